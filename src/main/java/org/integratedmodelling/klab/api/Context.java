@@ -1,6 +1,6 @@
 package org.integratedmodelling.klab.api;
 
-import java.util.concurrent.Future;
+import java.util.concurrent.Flow;
 
 import org.integratedmodelling.klab.api.Klab.ExportFormat;
 import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
@@ -24,11 +24,13 @@ public interface Context extends Observation {
      *        suitable time if the observable is an event), or any strings which will be interpreted
      *        as scenario URNs to affect the resolution at the engine side. If a relationship is
      *        built, two subject observations must also be passed, interpreted as source and
-     *        destination in order of call.
+     *        destination in order of call. A {@link Klab.Priority} orders the request in the
+     *        client-side queue when {@link Limits} are set. A {@link Deadline} bounds the time
+     *        spent waiting for the submission to be accepted.
      * 
      * @return the future observation being computed on the backend.
      */
-    Future<Estimate> estimate(Observable observable, Object... arguments);
+    Task<Estimate> estimate(Observable observable, Object... arguments);
 
     /**
      * Call with a concept (and geometry if the observable is not a quality) to create an
@@ -44,11 +46,46 @@ public interface Context extends Observation {
      *        suitable time if the observable is an event), or any strings which will be interpreted
      *        as scenario URNs to affect the resolution at the engine side. If a relationship is
      *        built, two subject observations must also be passed, interpreted as source and
-     *        destination in order of call.
+     *        destination in order of call. A {@link Klab.Priority} orders the request in the
+     *        client-side queue when {@link Limits} are set. A {@link Deadline} bounds the time
+     *        spent waiting for the submission to be accepted.
      * 
      * @return the future observation being computed on the backend.
      */
-    Future<Observation> submit(Observable observable, Object... arguments);
+    Task<Observation> submit(Observable observable, Object... arguments);
+
+    /**
+     * Submit like {@link #submit(Observable, Object...)} and publish all the observations made, such
+     * as those of several observables, of the groups created by an instantiator or of separate
+     * timesteps. Each observation is published as soon as the engine makes it available and the
+     * subscriber has requested it, so that the first ones can be used while others are still being
+     * computed. The publisher completes when the ticket is resolved and all its observations have
+     * been published, and signals an error if the ticket fails. It accepts a single subscriber.
+     * 
+     * @param observable the observable for the observation desired
+     * @param arguments as in {@link #submit(Observable, Object...)}
+     * @return a publisher of the observations, which starts polling when subscribed to
+     */
+    Flow.Publisher<Observation> publish(Observable observable, Object... arguments);
+
+    /**
+     * Submit a dynamic observation like {@link #submit(Observable, Object...)} and publish each of
+     * its timesteps as soon as the engine has computed it, with the summary statistics of its state
+     * and, if a format is passed, the state slice exported in it. Long temporal runs can so be
+     * consumed and written out progressively: at most <code>window</code> timesteps are retrieved
+     * ahead of the subscriber's requests, and none is kept after being published. The publisher
+     * completes when the ticket is resolved and all its timesteps have been published, signals an
+     * error if the ticket fails or a timestep cannot be retrieved, and accepts a single subscriber.
+     * 
+     * @param observable the observable for the observation desired, usually with a
+     *        {@link Klab.TemporalRepresentation#TIMESERIES} temporal extent
+     * @param format the format for the data of each timestep, or null to only publish statistics
+     * @param window the number of timesteps that may be retrieved before they are requested, 0 to
+     *        retrieve each only on request
+     * @param arguments as in {@link #submit(Observable, Object...)}
+     * @return a publisher of the timesteps, which starts polling when subscribed to
+     */
+    Flow.Publisher<Timestep> publishTimesteps(Observable observable, ExportFormat format, int window, Object... arguments);
 
     /**
      * Submit a previously computed estimate, implicitly accepting any costs involved.
@@ -56,7 +93,16 @@ public interface Context extends Observation {
      * @param estimate
      * @return the future observation being computed on the backend.
      */
-    Future<Observation> submit(Estimate estimate);
+    Task<Observation> submit(Estimate estimate);
+
+    /**
+     * Cancel all the tasks, publishers and estimates submitted in this context that have not
+     * finished, asking the engine to abort their computations. The context itself stays usable for
+     * further submissions.
+     * 
+     * @return the number of tasks cancelled
+     */
+    int cancel();
 
     /**
      * Retrieve the current dataflow for the context in the passed format. The ELK graph can be
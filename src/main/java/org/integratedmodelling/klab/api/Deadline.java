@@ -0,0 +1,68 @@
+package org.integratedmodelling.klab.api;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which a chain of operations must be complete, measured on the monotonic
+ * clock of {@link System#nanoTime()} so that it is unaffected by changes to the wall clock. Pass
+ * the same deadline to every step so that all the time they take counts against one budget,
+ * including network latency, retries and waits for the client {@link Limits}:
+ * 
+ * <pre>
+ * Deadline deadline = Deadline.in(30, TimeUnit.SECONDS);
+ * Context context = klab.submit(contextType, geometry, deadline).get(deadline);
+ * Observation elevation = context.submit(Observable.create("geography:Elevation"), deadline).get(deadline);
+ * elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, output, deadline);
+ * </pre>
+ * 
+ * A submission or export that cannot complete before the deadline throws
+ * {@link org.integratedmodelling.klab.api.impl.DeadlineExceededException}; waiting for a
+ * {@link Task} throws {@link java.util.concurrent.TimeoutException}.
+ * 
+ * @author Ferd
+ *
+ */
+public final class Deadline {
+
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * A deadline the passed time from now.
+     * 
+     * @param duration
+     * @param unit
+     * @return
+     */
+    public static Deadline in(long duration, TimeUnit unit) {
+        // differences of nanoTime values stay correct across overflow
+        return new Deadline(System.nanoTime() + unit.toNanos(Math.max(0, duration)));
+    }
+
+    /**
+     * @return the time left in nanoseconds, 0 if expired
+     */
+    public long getRemainingNanos() {
+        return Math.max(0, expiresAt - System.nanoTime());
+    }
+
+    /**
+     * @param unit
+     * @return the time left in the passed unit, rounded down, 0 if expired
+     */
+    public long getRemaining(TimeUnit unit) {
+        return unit.convert(getRemainingNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isExpired() {
+        return expiresAt - System.nanoTime() <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return isExpired() ? "expired deadline" : "deadline in " + getRemaining(TimeUnit.MILLISECONDS) + "ms";
+    }
+}
@@ -5,12 +5,14 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.Set;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
 
 import org.integratedmodelling.klab.api.API.PUBLIC.Export;
 import org.integratedmodelling.klab.api.data.IGeometry;
 import org.integratedmodelling.klab.api.impl.Engine;
 import org.integratedmodelling.klab.api.impl.EstimateImpl;
+import org.integratedmodelling.klab.api.impl.Threads;
 import org.integratedmodelling.klab.api.impl.TicketHandler;
 import org.integratedmodelling.klab.api.runtime.ITicket.Type;
 import org.integratedmodelling.klab.common.GeometryBuilder;
@@ -42,6 +44,7 @@ public class Klab implements Closeable {
 
     Engine engine;
     String session;
+    ScheduledFuture< ? > keepAlive;
 
     /**
      * Each export format carries the actual media type for content negotiation and the export items
@@ -64,7 +67,19 @@ public class Klab implements Closeable {
         PDF_DOCUMENT("application/pdf", Export.REPORT), //
         EXCEL_TABLE("application/vnd.ms-excel", Export.VIEW), //
         WORD_DOCUMENT("application/vnd.openxmlformats-officedocument.wordprocessingml.document",
-                Export.REPORT), BYTESTREAM("application/octet-stream", Export.DATA);
+                Export.REPORT), BYTESTREAM("application/octet-stream", Export.DATA), //
+        /**
+         * Apache Arrow IPC stream of state values or feature attributes, built by the client from
+         * the GeoTIFF or GeoJSON export. Needs Arrow on the classpath.
+         * 
+         * @see org.integratedmodelling.klab.api.impl.ArrowExport
+         */
+        ARROW_STREAM("application/vnd.apache.arrow.stream", Export.DATA), //
+        /**
+         * Apache Arrow IPC file, with random access to its record batches, built like
+         * {@link #ARROW_STREAM}.
+         */
+        ARROW_FILE("application/vnd.apache.arrow.file", Export.DATA);
 
         String mediaType;
         Set<Export> allowedExports = EnumSet.noneOf(Export.class);
@@ -92,6 +107,46 @@ public class Klab implements Closeable {
         }
     }
 
+    /**
+     * Encodings for the beans exchanged with the engine (tickets, observation references,
+     * requests). JSON is always available; the binary formats are faster to parse and smaller, and
+     * need the correspondent Jackson data format module on the classpath. Choose with
+     * {@link Klab#setBeanFormats(BeanFormat...)}.
+     * 
+     * @author Ferd
+     *
+     */
+    public static enum BeanFormat {
+
+        JSON("application/json", null, null), //
+        SMILE("application/x-jackson-smile", "com.fasterxml.jackson.dataformat.smile.SmileFactory",
+                "com.fasterxml.jackson.dataformat:jackson-dataformat-smile"), //
+        CBOR("application/cbor", "com.fasterxml.jackson.dataformat.cbor.CBORFactory",
+                "com.fasterxml.jackson.dataformat:jackson-dataformat-cbor");
+
+        String mediaType;
+        String factoryClass;
+        String module;
+
+        BeanFormat(String mediaType, String factoryClass, String module) {
+            this.mediaType = mediaType;
+            this.factoryClass = factoryClass;
+            this.module = module;
+        }
+
+        public String getMediaType() {
+            return mediaType;
+        }
+
+        public String getFactoryClass() {
+            return factoryClass;
+        }
+
+        public String getModule() {
+            return module;
+        }
+    }
+
     /**
      * The type of data that can be extracted from an observation. Used with states; any other
      * observation will return NONE. This is the low-level data representation for bridging to other
@@ -124,8 +179,27 @@ public class Klab implements Closeable {
         NONE, PERIOD, TIMESERIES
     }
 
+    /**
+     * Priority of a submission in the client-side queue, used when the tickets in flight have
+     * reached the {@link Limits} set for the engine. Pass it among the arguments of
+     * <code>submit</code> or <code>estimate</code>; the default is NORMAL.
+     * 
+     * @author Ferd
+     *
+     */
+    public static enum Priority {
+        LOW, NORMAL, HIGH
+    }
+
     public static long POLLING_INTERVAL_MS = 2000l;
 
+    /**
+     * Use virtual threads for the executors returned by {@link #newExecutor()} when the client was
+     * built with the <code>jdk21</code> profile and runs on JDK 21 or later. Set to false to keep
+     * platform threads.
+     */
+    public static boolean VIRTUAL_THREADS = true;
+
     private Klab(String engineUrl) {
         this.engine = new Engine(engineUrl);
         this.session = this.engine.authenticate();
@@ -136,6 +210,26 @@ public class Klab implements Closeable {
         this.session = this.engine.authenticate(username, password);
     }
 
+    private Klab(String engineUrl, String username, String password, SessionStore store) {
+        this.engine = new Engine(engineUrl);
+        this.session = this.engine.authenticate(username, password, store);
+        if (this.engine.isOnline()) {
+            this.keepAlive = store.schedule(this.engine::keepAlive);
+        }
+    }
+
+    /**
+     * An executor to fan out blocking work on submissions, such as waiting on many futures with
+     * <code>get()</code>. Each task gets its own thread: a virtual one when available (see
+     * {@link #VIRTUAL_THREADS}), otherwise a daemon platform thread from a cached pool. Shut it down
+     * when done.
+     * 
+     * @return a new executor
+     */
+    public static ExecutorService newExecutor() {
+        return Threads.executor("klab-task");
+    }
+
     /**
      * Authenticate with a remote engine and open a new user session. Call {@link #close()} to free
      * remote resources, or create the client in a try-with-resource block.
@@ -149,6 +243,22 @@ public class Klab implements Closeable {
         return new Klab(remoteEngineUrl, username, password);
     }
 
+    /**
+     * Resume the session kept in the passed {@link SessionStore} for this user and engine, or
+     * authenticate and store a new one. The session is kept alive while the client is open and
+     * renewed transparently when it expires. Calling {@link #close()} leaves the session open for
+     * later runs; call {@link #logout()} to end it.
+     * 
+     * @param remoteEngineUrl
+     * @param username
+     * @param password
+     * @param store
+     * @return
+     */
+    public static Klab create(String remoteEngineUrl, String username, String password, SessionStore store) {
+        return new Klab(remoteEngineUrl, username, password, store);
+    }
+
     /**
      * Authenticate with a local engine and open the default session. This does not require
      * authentication but only works if the engine is running on the local network and is properly
@@ -191,13 +301,17 @@ public class Klab implements Closeable {
      * @param geometry the geometry for the context. Use {@link GeometryBuilder} to create fluently.
      * @param arguments pass observables for further observations to be made in the context (if
      *        passed, the task will finish after all have been computed). Strings will be
-     *        interpreted as scenario URNs.
+     *        interpreted as scenario URNs. A {@link Priority} orders the request in the client-side
+     *        queue when {@link Limits} are set. A {@link Deadline} bounds the time spent waiting
+     *        for the submission to be accepted.
      * 
      * @return an estimate future; call get() to wait until the estimate is ready and retrieve it.
      */
-    public Future<Estimate> estimate(Observable contextType, IGeometry geometry, Object... arguments) {
+    public Task<Estimate> estimate(Observable contextType, IGeometry geometry, Object... arguments) {
 
         ContextRequest request = new ContextRequest();
+        Priority priority = Priority.NORMAL;
+        Deadline deadline = null;
         request.setContextType(contextType.toString());
         request.setGeometry(geometry.encode());
         request.setEstimate(true);
@@ -206,11 +320,15 @@ public class Klab implements Closeable {
                 request.getObservables().add(((Observable) o).toString());
             } else if (o instanceof String) {
                 request.getScenarios().add((String) o);
+            } else if (o instanceof Priority) {
+                priority = (Priority) o;
+            } else if (o instanceof Deadline) {
+                deadline = (Deadline) o;
             }
         }
 
         if (request.getGeometry() != null && request.getContextType() != null) {
-            String ticket = engine.submitContext(request);
+            String ticket = engine.submitContext(request, priority, deadline);
             if (ticket != null) {
                 return new TicketHandler<Estimate>(engine, ticket, null);
             }
@@ -219,8 +337,10 @@ public class Klab implements Closeable {
         throw new KlabIllegalArgumentException("Cannot build estimate request from arguments: " + Arrays.toString(arguments));
     }
 
-    public Future<Estimate> estimate(String urn, Object... arguments) {
+    public Task<Estimate> estimate(String urn, Object... arguments) {
         ContextRequest request = new ContextRequest();
+        Priority priority = Priority.NORMAL;
+        Deadline deadline = null;
         request.setUrn(urn);
         request.setEstimate(true);
         if (arguments != null) {
@@ -229,11 +349,15 @@ public class Klab implements Closeable {
                     request.getObservables().add(((Observable) o).toString());
                 } else if (o instanceof String) {
                     request.getScenarios().add((String) o);
+                } else if (o instanceof Priority) {
+                    priority = (Priority) o;
+                } else if (o instanceof Deadline) {
+                    deadline = (Deadline) o;
                 }
             }
         }
 
-        String ticket = engine.submitContext(request);
+        String ticket = engine.submitContext(request, priority, deadline);
         if (ticket != null) {
             return new TicketHandler<Estimate>(engine, ticket, null);
         }
@@ -249,7 +373,7 @@ public class Klab implements Closeable {
      * @param estimate
      * @return
      */
-    public Future<Context> submit(Estimate estimate) {
+    public Task<Context> submit(Estimate estimate) {
 
         if (((EstimateImpl) estimate).getTicketType() != Type.ContextEstimate) {
             throw new KlabIllegalArgumentException("the estimate passed is not a context estimate");
@@ -271,12 +395,16 @@ public class Klab implements Closeable {
      * @param geometry the geometry for the context. Use {@link GeometryBuilder} to create fluently.
      * @param arguments pass semantic types for further observations to be made in the context (if
      *        passed, the task will finish after all have been computed). Strings will be
-     *        interpreted as scenario URNs.
+     *        interpreted as scenario URNs. A {@link Priority} orders the request in the client-side
+     *        queue when {@link Limits} are set. A {@link Deadline} bounds the time spent waiting
+     *        for the submission to be accepted.
      * @return
      */
-    public Future<Context> submit(Observable contextType, IGeometry geometry, Object... arguments) {
+    public Task<Context> submit(Observable contextType, IGeometry geometry, Object... arguments) {
 
         ContextRequest request = new ContextRequest();
+        Priority priority = Priority.NORMAL;
+        Deadline deadline = null;
         request.setContextType(contextType.toString());
         request.setGeometry(geometry.encode());
         request.setEstimate(false);
@@ -285,11 +413,15 @@ public class Klab implements Closeable {
                 request.getObservables().add(((Observable) o).toString());
             } else if (o instanceof String) {
                 request.getScenarios().add((String) o);
+            } else if (o instanceof Priority) {
+                priority = (Priority) o;
+            } else if (o instanceof Deadline) {
+                deadline = (Deadline) o;
             }
         }
 
         if (request.getGeometry() != null && request.getContextType() != null) {
-            String ticket = engine.submitContext(request);
+            String ticket = engine.submitContext(request, priority, deadline);
             if (ticket != null) {
                 return new TicketHandler<Context>(engine, ticket, null);
             }
@@ -298,8 +430,10 @@ public class Klab implements Closeable {
         throw new KlabIllegalArgumentException("Cannot build estimate request from arguments: " + Arrays.toString(arguments));
     }
 
-    public Future<Context> submit(String urn, Object... arguments) {
+    public Task<Context> submit(String urn, Object... arguments) {
         ContextRequest request = new ContextRequest();
+        Priority priority = Priority.NORMAL;
+        Deadline deadline = null;
         request.setUrn(urn);
         request.setEstimate(false);
         if (arguments != null) {
@@ -308,11 +442,15 @@ public class Klab implements Closeable {
                     request.getObservables().add(((Observable) o).toString());
                 } else if (o instanceof String) {
                     request.getScenarios().add((String) o);
+                } else if (o instanceof Priority) {
+                    priority = (Priority) o;
+                } else if (o instanceof Deadline) {
+                    deadline = (Deadline) o;
                 }
             }
         }
 
-        String ticket = engine.submitContext(request);
+        String ticket = engine.submitContext(request, priority, deadline);
         if (ticket != null) {
             return new TicketHandler<Context>(engine, ticket, null);
         }
@@ -320,10 +458,128 @@ public class Klab implements Closeable {
         throw new KlabIllegalArgumentException("Cannot build estimate request from arguments: " + Arrays.toString(arguments));
     }
 
+    /**
+     * Install a {@link Metrics} implementation to instrument all calls made through this client and
+     * the contexts and observations it creates. Pass null or {@link Metrics#NONE} to disable.
+     * 
+     * @param metrics
+     * @return this client for chaining
+     */
+    public Klab setMetrics(Metrics metrics) {
+        this.engine.setMetrics(metrics);
+        return this;
+    }
+
+    /**
+     * Install a {@link TraceListener} to follow the lifecycle of the requests made through this
+     * client, and to send trace context headers to the engine. Pass null or
+     * {@link TraceListener#NONE} to disable.
+     * 
+     * @param listener
+     * @return this client for chaining
+     */
+    public Klab setTraceListener(TraceListener listener) {
+        this.engine.setTraceListener(listener);
+        return this;
+    }
+
+    /**
+     * Set the policy for retrying calls that fail transiently, failing fast while the engine is
+     * down and tolerating failures while waiting for tickets. Pass {@link RetryPolicy#NONE} to make
+     * a single attempt per call.
+     * 
+     * @param policy
+     * @return this client for chaining
+     */
+    public Klab setRetryPolicy(RetryPolicy policy) {
+        this.engine.setRetryPolicy(policy);
+        return this;
+    }
+
+    /**
+     * Set the size in bytes from which request bodies, such as contexts with detailed shapes or
+     * many injected states, are sent gzip-compressed to the engine. Engines that cannot decode them
+     * are detected at the first refusal, after which bodies are sent uncompressed. The default is
+     * 16 KB; pass a negative value to disable.
+     * 
+     * @param bytes
+     * @return this client for chaining
+     */
+    public Klab setRequestCompression(int bytes) {
+        this.engine.setRequestCompressionThreshold(bytes);
+        return this;
+    }
+
+    /**
+     * Set the encodings accepted for beans from the engine, in order of preference. JSON is always
+     * accepted as the last resort, so engines that do not support the binary formats keep working.
+     * Request bodies are sent in the first format passed until the engine refuses one, then in
+     * JSON. A 415 is a refusal; a 400 is only taken as one if the same request then succeeds in
+     * JSON. The default is JSON only.
+     * 
+     * @param formats
+     * @return this client for chaining
+     * @throws KlabIllegalStateException if the module for a format is not on the classpath
+     */
+    public Klab setBeanFormats(BeanFormat... formats) {
+        this.engine.setBeanFormats(formats);
+        return this;
+    }
+
+    /**
+     * Set client-side {@link Limits} on the rate of requests and the number of tickets in flight at
+     * the engine, queueing further submissions in the client by {@link Priority}. Pass
+     * {@link Limits#NONE} to remove them.
+     * 
+     * @param limits
+     * @return this client for chaining
+     */
+    public Klab setLimits(Limits limits) {
+        this.engine.setLimits(limits);
+        return this;
+    }
+
+    /**
+     * Set the {@link StateStore} that exports with a {@link Window} are cut from. The default is
+     * the {@link StateStore#getDefault() store} in <code>~/.klab/states</code>, shared by all
+     * clients that do not set their own.
+     * 
+     * @param store
+     * @return this client for chaining
+     */
+    public Klab setStateStore(StateStore store) {
+        this.engine.setStateStore(store);
+        return this;
+    }
+
+    /**
+     * End the session at the engine, also removing it from the {@link SessionStore} if one is used.
+     */
+    public void logout() {
+        stopKeepAlive();
+        if (this.engine.isOnline()) {
+            this.engine.logout();
+        }
+        this.engine.close();
+    }
+
+    private void stopKeepAlive() {
+        if (this.keepAlive != null) {
+            this.keepAlive.cancel(false);
+            this.keepAlive = null;
+        }
+    }
+
+    /**
+     * Close the session, unless it is kept in a {@link SessionStore}: then it is only released by
+     * this client, and can be resumed later.
+     */
     @Override
     public void close() throws IOException {
-        if (this.engine.isOnline()) {
+        stopKeepAlive();
+        if (this.engine.isOnline() && !this.engine.isPersistent()) {
             this.engine.deauthenticate();
         }
+        this.engine.close();
     }
 }
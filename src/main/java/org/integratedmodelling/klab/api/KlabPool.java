@@ -0,0 +1,244 @@
+package org.integratedmodelling.klab.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.integratedmodelling.klab.api.data.IGeometry;
+import org.integratedmodelling.klab.api.impl.EstimateImpl;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+import org.integratedmodelling.klab.exceptions.KlabIllegalStateException;
+import org.integratedmodelling.klab.exceptions.KlabRemoteException;
+
+/**
+ * A pool of k.LAB client sessions, opened on one or more engines, that spreads new contexts across
+ * them. Each new context or estimate goes to the session with the fewest tickets still waiting for
+ * their result, skipping sessions whose engine is failing fast after repeated errors. A context,
+ * and everything observed in it, stays in the session that created it; an estimate can only be
+ * accepted by the session that made it, which {@link #submit(Estimate)} takes care of.
+ * <p>
+ * Use {@link #create(String, String, int, String...)} for remote engines or
+ * {@link #create(int, String...)} for local ones. Sessions that cannot be opened are left out of
+ * the pool; check {@link #isOnline()} after creation as with {@link Klab}.
+ *
+ * @author Ferd
+ *
+ */
+public class KlabPool implements Closeable {
+
+    private final List<Klab> sessions = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    private KlabPool() {
+    }
+
+    /**
+     * Authenticate the passed number of sessions with each of the passed remote engines.
+     *
+     * @param username
+     * @param password
+     * @param sessionsPerEngine
+     * @param remoteEngineUrls
+     * @return
+     */
+    public static KlabPool create(String username, String password, int sessionsPerEngine, String... remoteEngineUrls) {
+        KlabPool ret = new KlabPool();
+        for(String url : remoteEngineUrls) {
+            for(int i = 0; i < sessionsPerEngine; i++) {
+                try {
+                    ret.add(Klab.create(url, username, password));
+                } catch (KlabRemoteException e) {
+                    // engine unreachable: leave it out
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Connect the passed number of sessions to each of the passed local engines.
+     *
+     * @param sessionsPerEngine
+     * @param localEngineUrls
+     * @return
+     */
+    public static KlabPool create(int sessionsPerEngine, String... localEngineUrls) {
+        KlabPool ret = new KlabPool();
+        for(String url : localEngineUrls) {
+            for(int i = 0; i < sessionsPerEngine; i++) {
+                ret.add(Klab.create(url));
+            }
+        }
+        return ret;
+    }
+
+    private void add(Klab session) {
+        if (session.isOnline()) {
+            sessions.add(session);
+        }
+    }
+
+    /**
+     * True if at least one session in the pool is connected.
+     *
+     * @return
+     */
+    public boolean isOnline() {
+        for(Klab session : sessions) {
+            if (session.isOnline()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The sessions in the pool.
+     *
+     * @return
+     */
+    public List<Klab> getSessions() {
+        return Collections.unmodifiableList(sessions);
+    }
+
+    /**
+     * Choose the session for new work: the available one with the fewest outstanding tickets,
+     * rotating among those with equal load.
+     *
+     * @return the chosen session
+     * @throws KlabIllegalStateException if no session is available
+     */
+    public Klab next() {
+        Klab ret = null;
+        int load = Integer.MAX_VALUE;
+        int start = next.getAndIncrement();
+        for(int i = 0; i < sessions.size(); i++) {
+            Klab session = sessions.get(Math.floorMod(start + i, sessions.size()));
+            if (!session.engine.isAvailable()) {
+                continue;
+            }
+            int outstanding = session.engine.getOutstandingTickets();
+            if (outstanding < load) {
+                load = outstanding;
+                ret = session;
+            }
+        }
+        if (ret == null) {
+            throw new KlabIllegalStateException("no engine session is available in the pool");
+        }
+        return ret;
+    }
+
+    /**
+     * Same as {@link Klab#estimate(Observable, IGeometry, Object...)} in the least loaded session.
+     */
+    public Task<Estimate> estimate(Observable contextType, IGeometry geometry, Object... arguments) {
+        return next().estimate(contextType, geometry, arguments);
+    }
+
+    /**
+     * Same as {@link Klab#estimate(String, Object...)} in the least loaded session.
+     */
+    public Task<Estimate> estimate(String urn, Object... arguments) {
+        return next().estimate(urn, arguments);
+    }
+
+    /**
+     * Same as {@link Klab#submit(Observable, IGeometry, Object...)} in the least loaded session.
+     */
+    public Task<Context> submit(Observable contextType, IGeometry geometry, Object... arguments) {
+        return next().submit(contextType, geometry, arguments);
+    }
+
+    /**
+     * Same as {@link Klab#submit(String, Object...)} in the least loaded session.
+     */
+    public Task<Context> submit(String urn, Object... arguments) {
+        return next().submit(urn, arguments);
+    }
+
+    /**
+     * Accept an estimate in the session that made it.
+     *
+     * @param estimate
+     * @return
+     */
+    public Task<Context> submit(Estimate estimate) {
+        for(Klab session : sessions) {
+            if (session.engine == ((EstimateImpl) estimate).getEngine()) {
+                return session.submit(estimate);
+            }
+        }
+        throw new KlabIllegalArgumentException("the estimate passed was not made by a session in this pool");
+    }
+
+    /**
+     * Install the same {@link Metrics} in all sessions.
+     *
+     * @param metrics
+     * @return this pool for chaining
+     */
+    public KlabPool setMetrics(Metrics metrics) {
+        for(Klab session : sessions) {
+            session.setMetrics(metrics);
+        }
+        return this;
+    }
+
+    /**
+     * Install the same {@link TraceListener} in all sessions.
+     *
+     * @param listener
+     * @return this pool for chaining
+     */
+    public KlabPool setTraceListener(TraceListener listener) {
+        for(Klab session : sessions) {
+            session.setTraceListener(listener);
+        }
+        return this;
+    }
+
+    /**
+     * Set the same {@link RetryPolicy} in all sessions.
+     *
+     * @param policy
+     * @return this pool for chaining
+     */
+    public KlabPool setRetryPolicy(RetryPolicy policy) {
+        for(Klab session : sessions) {
+            session.setRetryPolicy(policy);
+        }
+        return this;
+    }
+
+    /**
+     * Set the {@link Limits} of each session. Sessions on the same engine are limited separately.
+     *
+     * @param limits
+     * @return this pool for chaining
+     */
+    public KlabPool setLimits(Limits limits) {
+        for(Klab session : sessions) {
+            session.setLimits(limits);
+        }
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for(Klab session : sessions) {
+            try {
+                session.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.integratedmodelling.klab.api;
+
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.klab.exceptions.KlabIllegalStateException;
+
+/**
+ * Client-side limits on the load put on an engine, set with {@link Klab#setLimits(Limits)}. When
+ * the number of tickets (computations) in flight reaches {@link #maxTickets(int)}, further
+ * submissions wait in the client, in order of {@link Klab.Priority} and then of arrival, instead of
+ * queueing or being rejected at the engine. The rate of HTTP requests is limited by a token bucket.
+ * The default is {@link #NONE}, which adds no overhead.
+ * <p>
+ * A ticket occupies its slot until its future has produced the result, failed or been cancelled,
+ * so futures should always be waited for or cancelled. Slots held longer than
+ * {@link #ticketLease(long, TimeUnit)} are reclaimed anyway.
+ */
+public class Limits {
+
+    /**
+     * No limits. Shared, so it cannot be changed: start from {@link #create()} to set limits.
+     */
+    public static final Limits NONE = new Limits().freeze();
+
+    private int maxTickets = 0;
+    private double requestsPerSecond = 0;
+    private int burst = 1;
+    private long ticketLeaseMs = TimeUnit.HOURS.toMillis(6);
+    private boolean frozen;
+
+    public static Limits create() {
+        return new Limits();
+    }
+
+    /**
+     * Maximum number of tickets in flight, e.g. the concurrent jobs allowed by the engine
+     * allocation. 0 means unlimited.
+     */
+    public Limits maxTickets(int maxTickets) {
+        checkMutable();
+        this.maxTickets = maxTickets;
+        return this;
+    }
+
+    /**
+     * Sustained rate of HTTP requests to the engine and the size of the bursts allowed above it. A
+     * rate of 0 means unlimited.
+     */
+    public Limits requestRate(double requestsPerSecond, int burst) {
+        checkMutable();
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = Math.max(1, burst);
+        return this;
+    }
+
+    /**
+     * Time after which the slot of a ticket whose future was never completed is reclaimed. The
+     * ticket then also stops counting towards the load a {@link KlabPool} balances.
+     */
+    public Limits ticketLease(long time, TimeUnit unit) {
+        checkMutable();
+        this.ticketLeaseMs = unit.toMillis(time);
+        return this;
+    }
+
+    /*
+     * Make the builder methods throw instead of changing a shared instance.
+     */
+    private Limits freeze() {
+        this.frozen = true;
+        return this;
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new KlabIllegalStateException("Limits.NONE cannot be changed: use Limits.create()");
+        }
+    }
+
+    public int getMaxTickets() {
+        return maxTickets;
+    }
+
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public long getTicketLeaseMs() {
+        return ticketLeaseMs;
+    }
+
+    public boolean isUnlimited() {
+        return maxTickets <= 0 && requestsPerSecond <= 0;
+    }
+}
@@ -0,0 +1,130 @@
+package org.integratedmodelling.klab.api;
+
+/**
+ * Instrumentation SPI for the client side of the k.LAB API. Install an implementation with
+ * {@link Klab#setMetrics(Metrics)} to receive call counts, latencies, transferred bytes, errors and
+ * the lifecycle of the tickets that track remote computations. The default is {@link #NONE}, for
+ * which {@link #isEnabled()} returns false and the client skips all measurements.
+ * <p>
+ * Endpoints are reported using the templates in {@link API.PUBLIC} (e.g. with
+ * <code>{ticket}</code> placeholders) so that they can be used as low-cardinality tags.
+ * Implementations are called from any thread that uses the client and must be thread-safe and
+ * quick.
+ *
+ * @see org.integratedmodelling.klab.api.impl.MicrometerMetrics
+ */
+public interface Metrics {
+
+    /**
+     * No-op metrics, the default.
+     */
+    Metrics NONE = new Metrics(){
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    /**
+     * If false, the client does not take any timings and calls none of the other methods.
+     *
+     * @return
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * An HTTP call to the engine has completed.
+     *
+     * @param endpoint the endpoint template
+     * @param nanos wall-clock duration of the call
+     * @param status the HTTP status, or 0 if no response was received
+     * @param success whether the call produced a usable result
+     */
+    default void call(String endpoint, long nanos, int status, boolean success) {
+    }
+
+    /**
+     * Payload bytes transferred in one call.
+     *
+     * @param endpoint the endpoint template
+     * @param sent request payload bytes, or 0 if unknown
+     * @param received response payload bytes, or 0 if unknown
+     */
+    default void bytes(String endpoint, long sent, long received) {
+    }
+
+    /**
+     * A compressed response body has been decoded. The bytes on the wire are also reported to
+     * {@link #bytes(String, long, long)}; this adds what they expanded to, so that ratio and
+     * savings can be tracked per endpoint and encoding.
+     *
+     * @param endpoint the endpoint template
+     * @param encoding the content coding, e.g. <code>gzip</code>
+     * @param encodedBytes bytes received
+     * @param decodedBytes bytes after decoding
+     */
+    default void compression(String endpoint, String encoding, long encodedBytes, long decodedBytes) {
+    }
+
+    /**
+     * A request body has been compressed before sending. The compressed size is also reported to
+     * {@link #bytes(String, long, long)} as sent.
+     *
+     * @param endpoint the endpoint template
+     * @param encoding the content coding, e.g. <code>gzip</code>
+     * @param plainBytes size of the serialized body
+     * @param encodedBytes bytes sent
+     */
+    default void requestCompression(String endpoint, String encoding, long plainBytes, long encodedBytes) {
+    }
+
+    /**
+     * The engine has accepted a request and returned a ticket.
+     *
+     * @param ticketId
+     */
+    default void ticketSubmitted(String ticketId) {
+    }
+
+    /**
+     * A ticket has been polled for its status.
+     *
+     * @param ticketId
+     */
+    default void ticketPolled(String ticketId) {
+    }
+
+    /**
+     * A ticket has reached a final state.
+     *
+     * @param ticketId
+     * @param polls number of status requests made for the ticket
+     * @param nanos time from submission to resolution as seen by the client
+     * @param success false if the ticket ended in error or was abandoned
+     */
+    default void ticketResolved(String ticketId, int polls, long nanos, boolean success) {
+    }
+
+    /**
+     * The depth of a client-side queue kept because of the {@link Limits} set, reported when a
+     * submission enters or leaves it.
+     *
+     * @param queue <code>tickets</code>
+     * @param depth submissions waiting
+     */
+    default void queued(String queue, int depth) {
+    }
+
+    /**
+     * Time spent waiting for the {@link Limits} set before going ahead with a call.
+     *
+     * @param queue <code>tickets</code> for a free ticket slot, <code>requests</code> for the
+     *        request rate
+     * @param nanos
+     */
+    default void waited(String queue, long nanos) {
+    }
+
+}
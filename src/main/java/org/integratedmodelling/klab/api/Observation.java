@@ -11,6 +11,7 @@ import org.integratedmodelling.klab.api.Klab.ExportFormat;
 import org.integratedmodelling.klab.api.Klab.SpatialRepresentation;
 import org.integratedmodelling.klab.api.Klab.TemporalRepresentation;
 import org.integratedmodelling.klab.exceptions.KlabIllegalStateException;
+import org.integratedmodelling.klab.exceptions.KlabRemoteException;
 import org.integratedmodelling.klab.utils.Range;
 
 public interface Observation {
@@ -26,6 +27,14 @@ public interface Observation {
      */
     Set<IKimConcept.Type> getSemantics();
 
+    /**
+     * The id of the observation at the engine, which identifies it in exports and in the
+     * artifacts of tickets.
+     * 
+     * @return
+     */
+    String getId();
+
     /**
      * Return an {@link Observable} wrapping the string representation of the full
      * observation semantics.
@@ -56,7 +65,7 @@ public interface Observation {
      * @param target
      * @param format
      * @param file
-     * @param parameters
+     * @param parameters as in {@link #export(Export, ExportFormat, OutputStream, Object...)}
      * @return
      */
     boolean export(Export target, ExportFormat format, File file, Object... parameters);
@@ -79,7 +88,9 @@ public interface Observation {
      * @param target
      * @param format
      * @param output
-     * @param parameters
+     * @param parameters query parameters for the export; a {@link Deadline} bounds the whole
+     *        transfer, including waits and retries, and a {@link Window} restricts a GeoTIFF
+     *        export to part of the raster at a lower resolution
      * @return
      */
     boolean export(Export target, ExportFormat format, OutputStream output, Object... parameters);
@@ -114,6 +125,16 @@ public interface Observation {
      */
     Range getDataRange();
 
+    /**
+     * A spatial index over the geometries of a feature observation, built from its
+     * GeoJSON export the first time it is asked for and kept with the observation
+     * afterwards.
+     * 
+     * @return
+     * @throws KlabRemoteException if the features cannot be downloaded
+     */
+    SpatialIndex getSpatialIndex();
+
     /**
      * If the observation can be represented by a single scalar value, return it,
      * otherwise return null. Observation that return non-null will either
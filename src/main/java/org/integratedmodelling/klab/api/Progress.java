@@ -0,0 +1,65 @@
+package org.integratedmodelling.klab.api;
+
+import java.util.Map;
+
+import org.integratedmodelling.klab.api.runtime.ITicket;
+
+/**
+ * A snapshot of the progress of a {@link Task}, taken when its ticket was last polled.
+ * 
+ * @author Ferd
+ *
+ */
+public interface Progress {
+
+    /**
+     * Notified of the progress of a task when its ticket changes status or data. Calls come from
+     * the thread polling the ticket and must be thread-safe and quick.
+     */
+    @FunctionalInterface
+    interface Listener {
+        void progressed(Progress progress);
+    }
+
+    String getTicketId();
+
+    /**
+     * The ticket status. A ticket that failed, was cancelled or could not be polled for longer
+     * than the {@link RetryPolicy} tolerates is reported in error.
+     * 
+     * @return
+     */
+    ITicket.Status getStatus();
+
+    /**
+     * The data reported by the engine with the ticket, such as the artifacts or timesteps
+     * completed so far.
+     * 
+     * @return an unmodifiable map, possibly empty
+     */
+    Map<String, String> getData();
+
+    /**
+     * Time from the submission of the request to the snapshot.
+     * 
+     * @return
+     */
+    long getElapsedNanos();
+
+    /**
+     * The time similar requests have recently taken to resolve through the same client, i.e.
+     * requests of the same type for the same observables under the same scenarios.
+     * 
+     * @return the expected time from submission to resolution in nanoseconds, or -1 if no similar
+     *         request has been resolved yet
+     */
+    long getExpectedNanos();
+
+    /**
+     * The estimated time left before the ticket resolves, from {@link #getExpectedNanos()}. Once
+     * the expected time has passed, it stays at 0 until the ticket resolves.
+     * 
+     * @return the remaining time in nanoseconds, 0 if resolved, or -1 if unknown
+     */
+    long getRemainingNanos();
+}
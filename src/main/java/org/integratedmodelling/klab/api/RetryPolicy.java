@@ -0,0 +1,156 @@
+package org.integratedmodelling.klab.api;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.klab.exceptions.KlabIllegalStateException;
+
+/**
+ * Configuration of the client's behavior when the engine fails transiently (connection errors,
+ * HTTP 408, 429, 502, 503 or 504). Set it with {@link Klab#setRetryPolicy(RetryPolicy)}; the
+ * default is {@link #create()}.
+ * <ul>
+ * <li>Calls are repeated up to {@link #attempts(int)} times with exponential backoff and full
+ * jitter, so that many clients do not retry in lockstep. Requests that start a computation are only
+ * repeated when the engine certainly did not process them (connection refused, 429 or 503);
+ * status, retrieval and export requests are always repeatable.</li>
+ * <li>After {@link #circuitBreaker(int, long, TimeUnit) a number} of consecutive transient
+ * failures, calls to the engine fail immediately for a while, then a single trial call decides
+ * whether to resume.</li>
+ * <li>Waiting for a ticket survives failures to check its status for up to
+ * {@link #pollFailureTolerance(long, TimeUnit)} before the computation is given up.</li>
+ * </ul>
+ */
+public class RetryPolicy {
+
+    /**
+     * A single attempt per call, no circuit breaker and no tolerance for polling failures: the
+     * behavior of clients before retries were introduced. Shared, so it cannot be changed: start
+     * from {@link #create()} to configure a policy.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy().attempts(1).circuitBreaker(0, 0, TimeUnit.MILLISECONDS)
+            .pollFailureTolerance(0, TimeUnit.MILLISECONDS).freeze();
+
+    private int attempts = 4;
+    private long initialBackoffMs = 200;
+    private long maxBackoffMs = 10000;
+    private double multiplier = 2;
+    private int breakerThreshold = 8;
+    private long breakerOpenMs = 20000;
+    private long pollFailureToleranceMs = TimeUnit.MINUTES.toMillis(15);
+    private boolean frozen;
+
+    /**
+     * A policy with the defaults: 4 attempts, backoff from 200 ms doubling up to 10 s, circuit
+     * opened for 20 s after 8 consecutive failures, polling failures tolerated for 15 minutes.
+     *
+     * @return
+     */
+    public static RetryPolicy create() {
+        return new RetryPolicy();
+    }
+
+    /**
+     * Total number of attempts per call, including the first.
+     */
+    public RetryPolicy attempts(int attempts) {
+        checkMutable();
+        this.attempts = Math.max(1, attempts);
+        return this;
+    }
+
+    /**
+     * The backoff before the n-th retry is drawn uniformly between 0 and
+     * <code>min(max, initial * multiplier^(n-1))</code>.
+     */
+    public RetryPolicy backoff(long initial, long max, TimeUnit unit, double multiplier) {
+        checkMutable();
+        this.initialBackoffMs = unit.toMillis(initial);
+        this.maxBackoffMs = unit.toMillis(max);
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * Open the circuit after the passed number of consecutive transient failures, for the passed
+     * time. A threshold of 0 disables the circuit breaker.
+     */
+    public RetryPolicy circuitBreaker(int threshold, long openTime, TimeUnit unit) {
+        checkMutable();
+        this.breakerThreshold = threshold;
+        this.breakerOpenMs = unit.toMillis(openTime);
+        return this;
+    }
+
+    /**
+     * How long the status or the results of a ticket may remain impossible to retrieve before the
+     * computation is abandoned.
+     */
+    public RetryPolicy pollFailureTolerance(long time, TimeUnit unit) {
+        checkMutable();
+        this.pollFailureToleranceMs = unit.toMillis(time);
+        return this;
+    }
+
+    /*
+     * Make the builder methods throw instead of changing a shared instance.
+     */
+    private RetryPolicy freeze() {
+        this.frozen = true;
+        return this;
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new KlabIllegalStateException("RetryPolicy.NONE cannot be changed: use RetryPolicy.create()");
+        }
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public int getBreakerThreshold() {
+        return breakerThreshold;
+    }
+
+    public long getBreakerOpenMs() {
+        return breakerOpenMs;
+    }
+
+    public long getPollFailureToleranceMs() {
+        return pollFailureToleranceMs;
+    }
+
+    /**
+     * The jittered wait before the passed retry.
+     *
+     * @param retry 1 for the first retry
+     * @return milliseconds to wait
+     */
+    public long getBackoffMs(int retry) {
+        double cap = Math.min(maxBackoffMs, initialBackoffMs * Math.pow(multiplier, retry - 1));
+        return cap <= 0 ? 0 : (long) ThreadLocalRandom.current().nextDouble(cap);
+    }
+
+    /**
+     * Whether an HTTP status denotes a transient condition worth retrying.
+     *
+     * @param status
+     * @return
+     */
+    public boolean isTransient(int status) {
+        return status == 408 || status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * Whether an HTTP status guarantees that the engine did not process the request, so that even a
+     * request starting a computation can be repeated.
+     *
+     * @param status
+     * @return
+     */
+    public boolean isRejection(int status) {
+        return status == 429 || status == 503;
+    }
+}
@@ -0,0 +1,245 @@
+package org.integratedmodelling.klab.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.integratedmodelling.klab.exceptions.KlabIOException;
+
+/**
+ * Opt-in persistence of remote engine sessions, so that short-lived processes can resume the
+ * session opened by an earlier run instead of authenticating again, and keep access to the
+ * contexts made in it. Pass a store to {@link Klab#create(String, String, String, SessionStore)}:
+ * <ul>
+ * <li>a stored session for the same engine and user is pinged and resumed unless the engine refuses
+ * it, otherwise a new one is opened and stored;</li>
+ * <li>while the client is open, the engine is pinged with the session at the
+ * {@link #keepAlive(long, TimeUnit) keep-alive interval}, and a new session is opened if it is
+ * refused;</li>
+ * <li>if the engine rejects the session as expired (HTTP 401 or 403), the client authenticates
+ * again with the original credentials, stores the new session and repeats the call.</li>
+ * </ul>
+ * Session and authorization tokens are saved in a properties file, by default
+ * <code>~/.klab/sessions.properties</code>, readable and writable only by the owner on systems
+ * that support POSIX permissions. Changes are made under a lock on a <code>.lock</code> file next
+ * to it, so processes sharing a store do not lose each other's sessions. Passwords are never
+ * stored. Closing a client that uses a store leaves the session open for later runs; use
+ * {@link Klab#logout()} to end it.
+ *
+ * @author Ferd
+ *
+ */
+public class SessionStore {
+
+    private static final String POSIX_FILE_PERMISSIONS = "rw-------";
+    private static final String POSIX_DIRECTORY_PERMISSIONS = "rwx------";
+
+    private static ScheduledExecutorService scheduler;
+    // file locks are held by the whole process, so its stores also lock each file here
+    private static final Map<Path, Object> fileLocks = new ConcurrentHashMap<>();
+
+    private final Path file;
+    private long keepAliveMs = TimeUnit.MINUTES.toMillis(5);
+
+    private SessionStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * The store in <code>~/.klab/sessions.properties</code>.
+     *
+     * @return
+     */
+    public static SessionStore create() {
+        return new SessionStore(Paths.get(System.getProperty("user.home"), ".klab", "sessions.properties"));
+    }
+
+    /**
+     * A store in the passed file, created when the first session is saved.
+     *
+     * @param file
+     * @return
+     */
+    public static SessionStore create(Path file) {
+        return new SessionStore(file);
+    }
+
+    /**
+     * Interval between the pings made with stored sessions. 0 disables keep-alive.
+     *
+     * @param interval
+     * @param unit
+     * @return this store for chaining
+     */
+    public SessionStore keepAlive(long interval, TimeUnit unit) {
+        this.keepAliveMs = unit.toMillis(interval);
+        return this;
+    }
+
+    public long getKeepAliveMs() {
+        return keepAliveMs;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * The stored session for a user on an engine.
+     *
+     * @param engineUrl
+     * @param username
+     * @return the session and authorization tokens, or null if none is stored
+     */
+    public synchronized String[] get(String engineUrl, String username) {
+        Properties properties = read();
+        String session = properties.getProperty(key(engineUrl, username) + ".session");
+        return session == null ? null
+                : new String[]{session, properties.getProperty(key(engineUrl, username) + ".authorization", "")};
+    }
+
+    /**
+     * Store the session for a user on an engine, replacing any previous one.
+     *
+     * @param engineUrl
+     * @param username
+     * @param session
+     * @param authorization
+     */
+    public void put(String engineUrl, String username, String session, String authorization) {
+        update(properties -> {
+            properties.setProperty(key(engineUrl, username) + ".session", session);
+            properties.setProperty(key(engineUrl, username) + ".authorization",
+                    authorization == null ? "" : authorization);
+            return true;
+        });
+    }
+
+    /**
+     * Forget the session for a user on an engine.
+     *
+     * @param engineUrl
+     * @param username
+     */
+    public void remove(String engineUrl, String username) {
+        update(properties -> {
+            if (properties.remove(key(engineUrl, username) + ".session") == null) {
+                return false;
+            }
+            properties.remove(key(engineUrl, username) + ".authorization");
+            return true;
+        });
+    }
+
+    /*
+     * Run the keep-alive for a client at the configured interval on a shared daemon thread.
+     */
+    ScheduledFuture< ? > schedule(Runnable keepAlive) {
+        if (keepAliveMs <= 0) {
+            return null;
+        }
+        synchronized (SessionStore.class) {
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "klab-session-keepalive");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        return scheduler.scheduleWithFixedDelay(keepAlive, keepAliveMs, keepAliveMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static String key(String engineUrl, String username) {
+        while (engineUrl.endsWith("/")) {
+            engineUrl = engineUrl.substring(0, engineUrl.length() - 1);
+        }
+        return username + "@" + engineUrl;
+    }
+
+    private Properties read() {
+        Properties ret = new Properties();
+        if (Files.exists(file)) {
+            try (InputStream input = Files.newInputStream(file)) {
+                ret.load(input);
+            } catch (IOException e) {
+                throw new KlabIOException(e);
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * Read the file again, apply the change and write the file if the change says so, holding the
+     * lock file so that no other process changes the sessions in between.
+     */
+    private void update(Predicate<Properties> change) {
+        synchronized (fileLocks.computeIfAbsent(file.toAbsolutePath().normalize(), f -> new Object())) {
+            Path lockFile = createDirectory().resolve(file.getFileName() + ".lock");
+            try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    FileLock lock = channel.lock()) {
+                Properties properties = read();
+                if (change.test(properties)) {
+                    write(properties);
+                }
+            } catch (IOException e) {
+                throw new KlabIOException(e);
+            }
+        }
+    }
+
+    private Path createDirectory() {
+        Path directory = file.toAbsolutePath().getParent();
+        try {
+            if (!Files.exists(directory)) {
+                if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                    Files.createDirectories(directory,
+                            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(POSIX_DIRECTORY_PERMISSIONS)));
+                } else {
+                    Files.createDirectories(directory);
+                }
+            }
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        }
+        return directory;
+    }
+
+    /*
+     * Write to a private temporary file in the same directory, then move it in place so that
+     * concurrent readers never see a partial file.
+     */
+    private void write(Properties properties) {
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            Path temporary = posix
+                    ? Files.createTempFile(directory, ".sessions", ".tmp",
+                            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(POSIX_FILE_PERMISSIONS)))
+                    : Files.createTempFile(directory, ".sessions", ".tmp");
+            try (OutputStream output = Files.newOutputStream(temporary)) {
+                properties.store(output, "k.LAB engine sessions");
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        }
+    }
+}
@@ -0,0 +1,851 @@
+package org.integratedmodelling.klab.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.impl.GeoJsonFeatures;
+import org.integratedmodelling.klab.exceptions.KlabIOException;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+import org.integratedmodelling.klab.exceptions.KlabRemoteException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A packed R-tree over the geometries of a feature observation, for bounding box, intersection,
+ * containment and nearest neighbour queries that do not scan all features. The index is built
+ * once, sorting the features along a Hilbert curve through the centers of their bounding boxes and
+ * packing them into nodes of {@value #NODE_SIZE}, and cannot be changed afterwards; it is read-only
+ * and can be shared by threads.
+ *
+ * <pre>
+ * SpatialIndex towns = SpatialIndex.of(townObservation);
+ * SpatialIndex.Cursor cursor = towns.cursor();
+ * for(cursor.within(minX, minY, maxX, maxY); cursor.next();) {
+ *     use(cursor.getId());
+ * }
+ * </pre>
+ *
+ * Features are identified by their position in the order they were added, which for observations
+ * is the order of the GeoJSON export. Geometries are kept as flat coordinate arrays: points and
+ * multipoints, lines and multilines, and polygons and multipolygons, whose rings are combined with
+ * the even-odd rule so that holes are excluded. Features without geometry or with geometry
+ * collections are counted but not indexed.
+ * <p>
+ * Queries run through a {@link Cursor}, which keeps its own traversal stack and is reused across
+ * queries so that iterating results does not allocate. Cursors are not thread-safe: each thread
+ * should have its own.
+ *
+ * @author Ferd
+ *
+ */
+public class SpatialIndex {
+
+    /**
+     * Maximum children of a tree node.
+     */
+    public static final int NODE_SIZE = 16;
+
+    private static final byte POINTS = 0;
+    private static final byte LINES = 1;
+    private static final byte AREAS = 2;
+    private static final byte NONE = 3;
+
+    /*
+     * Features in the order added: the geometry of feature f has the parts from partStarts[f] to
+     * partStarts[f + 1], and part p has the points from partOffsets[p] to partOffsets[p + 1].
+     */
+    private final String[] ids;
+    private final byte[] kinds;
+    private final int[] partStarts;
+    private final int[] partOffsets;
+    private final double[] coordinates;
+
+    /*
+     * Tree nodes, leaves first, then each level up to the root, with 4 bounds each. Leaves point to
+     * a feature, other nodes to the position of their first child.
+     */
+    private final int leaves;
+    private final double[] boxes;
+    private final int[] indices;
+    private final int[] levelEnds;
+
+    /**
+     * Collects features and builds the index over them.
+     */
+    public static class Builder {
+
+        private final List<String> ids = new ArrayList<>();
+        private byte[] kinds = new byte[64];
+        private int[] partStarts = new int[65];
+        private int parts;
+        private int[] partOffsets = new int[65];
+        private int points;
+        private double[] coordinates = new double[256];
+
+        private Builder() {
+        }
+
+        /**
+         * Add a point feature.
+         *
+         * @param id
+         * @param x
+         * @param y
+         * @return this for chaining
+         */
+        public Builder point(String id, double x, double y) {
+            return points(id, x, y);
+        }
+
+        /**
+         * Add a multipoint feature.
+         *
+         * @param id
+         * @param xy the coordinate pairs of the points
+         * @return this for chaining
+         */
+        public Builder points(String id, double... xy) {
+            start(id, POINTS);
+            part(xy, false);
+            return this;
+        }
+
+        /**
+         * Add a line or multiline feature.
+         *
+         * @param id
+         * @param lines the coordinate pairs of the vertices of each line
+         * @return this for chaining
+         */
+        public Builder lines(String id, double[]... lines) {
+            start(id, LINES);
+            for(double[] line : lines) {
+                part(line, false);
+            }
+            return this;
+        }
+
+        /**
+         * Add a polygon or multipolygon feature. Rings inside others are holes; the last point need
+         * not repeat the first.
+         *
+         * @param id
+         * @param rings the coordinate pairs of the points of each ring of all polygons
+         * @return this for chaining
+         */
+        public Builder polygon(String id, double[]... rings) {
+            start(id, AREAS);
+            for(double[] ring : rings) {
+                if (ring.length < 6) {
+                    throw new KlabIllegalArgumentException("feature " + id + " has a ring with less than three points");
+                }
+                part(ring, true);
+            }
+            return this;
+        }
+
+        /**
+         * Add a GeoJSON feature, identified by its id or else by its position.
+         *
+         * @param feature
+         * @return this for chaining
+         */
+        public Builder feature(JsonNode feature) {
+            String id = feature.hasNonNull("id") ? feature.get("id").asText() : String.valueOf(ids.size());
+            JsonNode geometry = feature.path("geometry");
+            JsonNode coordinates = geometry.path("coordinates");
+            switch(geometry.path("type").asText()) {
+            case "Point":
+                start(id, POINTS);
+                positions(coordinates.size() == 0 ? coordinates : List.of(coordinates), false);
+                break;
+            case "MultiPoint":
+                start(id, POINTS);
+                positions(coordinates, false);
+                break;
+            case "LineString":
+                start(id, LINES);
+                positions(coordinates, false);
+                break;
+            case "MultiLineString":
+                start(id, LINES);
+                for(JsonNode line : coordinates) {
+                    positions(line, false);
+                }
+                break;
+            case "Polygon":
+                start(id, AREAS);
+                for(JsonNode ring : coordinates) {
+                    positions(ring, true);
+                }
+                break;
+            case "MultiPolygon":
+                start(id, AREAS);
+                for(JsonNode polygon : coordinates) {
+                    for(JsonNode ring : polygon) {
+                        positions(ring, true);
+                    }
+                }
+                break;
+            default:
+                start(id, NONE);
+            }
+            return this;
+        }
+
+        /**
+         * Pack the features added into an index. The builder should not be used afterwards.
+         *
+         * @return
+         */
+        public SpatialIndex build() {
+            return new SpatialIndex(this);
+        }
+
+        private void start(String id, byte kind) {
+            int feature = ids.size();
+            ids.add(id);
+            if (feature == kinds.length) {
+                kinds = Arrays.copyOf(kinds, feature * 2);
+                partStarts = Arrays.copyOf(partStarts, feature * 2 + 1);
+            }
+            kinds[feature] = kind;
+            partStarts[feature] = parts;
+            partStarts[feature + 1] = parts;
+        }
+
+        private void part(double[] xy, boolean ring) {
+            if (xy.length % 2 != 0) {
+                throw new KlabIllegalArgumentException("coordinates of feature " + ids.get(ids.size() - 1) + " are not in pairs");
+            }
+            int count = xy.length / 2;
+            // GeoJSON rings are closed
+            if (ring && count > 1 && xy[0] == xy[xy.length - 2] && xy[1] == xy[xy.length - 1]) {
+                count--;
+            }
+            ensure(count);
+            System.arraycopy(xy, 0, coordinates, points * 2, count * 2);
+            endPart(count);
+        }
+
+        private void positions(Iterable<JsonNode> positions, boolean ring) {
+            int count = 0;
+            for(JsonNode position : positions) {
+                ensure(count + 1);
+                coordinates[(points + count) * 2] = position.path(0).asDouble();
+                coordinates[(points + count) * 2 + 1] = position.path(1).asDouble();
+                count++;
+            }
+            if (ring && count > 1 && coordinates[points * 2] == coordinates[(points + count - 1) * 2]
+                    && coordinates[points * 2 + 1] == coordinates[(points + count - 1) * 2 + 1]) {
+                count--;
+            }
+            endPart(count);
+        }
+
+        private void ensure(int more) {
+            if ((points + more) * 2 > coordinates.length) {
+                coordinates = Arrays.copyOf(coordinates, Math.max(coordinates.length * 2, (points + more) * 2));
+            }
+        }
+
+        private void endPart(int count) {
+            if (count == 0) {
+                return;
+            }
+            if (parts + 1 == partOffsets.length) {
+                partOffsets = Arrays.copyOf(partOffsets, partOffsets.length * 2);
+            }
+            partOffsets[parts] = points;
+            points += count;
+            parts++;
+            partOffsets[parts] = points;
+            partStarts[ids.size()] = parts;
+        }
+    }
+
+    /**
+     * Iterates the results of one query at a time, in no particular order except for
+     * {@link #nearest(double, double, int, double)}. Calling a query method restarts it.
+     */
+    public class Cursor {
+
+        private static final int WITHIN = 0;
+        private static final int INTERSECTING = 1;
+        private static final int CONTAINING = 2;
+        private static final int NEAREST = 3;
+
+        private int mode;
+        private double minX;
+        private double minY;
+        private double maxX;
+        private double maxY;
+        private int[] stack = new int[NODE_SIZE * 8];
+        private int top;
+        private int feature = -1;
+        private double distance;
+
+        // binary heap of nodes by distance for nearest neighbours
+        private double[] keys = new double[NODE_SIZE * 8];
+        private int[] nodes = new int[NODE_SIZE * 8];
+        private int heap;
+        private int remaining;
+        private double maxDistanceSquared;
+
+        private Cursor() {
+        }
+
+        /**
+         * Features whose bounding box intersects the passed one.
+         *
+         * @return this, positioned before the first result
+         */
+        public Cursor within(double minX, double minY, double maxX, double maxY) {
+            return box(WITHIN, minX, minY, maxX, maxY);
+        }
+
+        /**
+         * Features whose geometry intersects the passed box, including polygons that contain it.
+         *
+         * @return this, positioned before the first result
+         */
+        public Cursor intersecting(double minX, double minY, double maxX, double maxY) {
+            return box(INTERSECTING, minX, minY, maxX, maxY);
+        }
+
+        /**
+         * Features whose geometry contains the passed point: polygons with the point inside, and
+         * points and lines that pass through it.
+         *
+         * @return this, positioned before the first result
+         */
+        public Cursor containing(double x, double y) {
+            return box(CONTAINING, x, y, x, y);
+        }
+
+        /**
+         * The features closest to a point by the distance to their geometry, zero for polygons
+         * that contain it, nearest first.
+         *
+         * @param x
+         * @param y
+         * @param count the maximum number of features
+         * @param maxDistance features farther than this are not returned
+         * @return this, positioned before the first result
+         */
+        public Cursor nearest(double x, double y, int count, double maxDistance) {
+            this.mode = NEAREST;
+            this.minX = this.maxX = x;
+            this.minY = this.maxY = y;
+            this.remaining = count;
+            this.maxDistanceSquared = maxDistance * maxDistance;
+            this.feature = -1;
+            this.heap = 0;
+            this.top = 0;
+            if (boxes.length > 0 && count > 0) {
+                push(boxes.length / 4 - 1, 0);
+            }
+            return this;
+        }
+
+        private Cursor box(int mode, double minX, double minY, double maxX, double maxY) {
+            this.mode = mode;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.feature = -1;
+            this.distance = Double.NaN;
+            this.heap = 0;
+            this.top = 0;
+            int root = boxes.length / 4 - 1;
+            if (root >= 0 && boxes[root * 4] <= maxX && boxes[root * 4 + 1] <= maxY && boxes[root * 4 + 2] >= minX
+                    && boxes[root * 4 + 3] >= minY) {
+                stack[top++] = root;
+            }
+            return this;
+        }
+
+        /**
+         * Move to the next result.
+         *
+         * @return false when there are no more
+         */
+        public boolean next() {
+            return mode == NEAREST ? nextNearest() : nextInBox();
+        }
+
+        /**
+         * @return the position of the current feature in the order features were added
+         */
+        public int getFeature() {
+            return feature;
+        }
+
+        public String getId() {
+            return ids[feature];
+        }
+
+        /**
+         * @return the distance of the current feature from the point of a nearest neighbour
+         *         query, NaN for other queries
+         */
+        public double getDistance() {
+            return distance;
+        }
+
+        private boolean nextInBox() {
+            while (top > 0) {
+                int node = stack[--top];
+                if (node < leaves) {
+                    int candidate = indices[node];
+                    if (mode == WITHIN || (mode == INTERSECTING ? intersects(candidate, minX, minY, maxX, maxY)
+                            : contains(candidate, minX, minY))) {
+                        feature = candidate;
+                        return true;
+                    }
+                    continue;
+                }
+                int end = Math.min(indices[node] + NODE_SIZE, levelEnd(indices[node]));
+                for(int child = indices[node]; child < end; child++) {
+                    int b = child * 4;
+                    if (boxes[b] > maxX || boxes[b + 1] > maxY || boxes[b + 2] < minX || boxes[b + 3] < minY) {
+                        continue;
+                    }
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                    }
+                    stack[top++] = child;
+                }
+            }
+            feature = -1;
+            return false;
+        }
+
+        private boolean nextNearest() {
+            while (heap > 0 && remaining > 0) {
+                double key = keys[0];
+                int node = pop();
+                if (key > maxDistanceSquared) {
+                    break;
+                }
+                if (node < 0) {
+                    // a feature, with its exact distance: none of what is left can be closer
+                    feature = -node - 1;
+                    distance = Math.sqrt(key);
+                    remaining--;
+                    return true;
+                }
+                if (node < leaves) {
+                    // the exact distance is only computed when the box is the closest left
+                    double d = distanceSquared(indices[node], minX, minY);
+                    if (d <= maxDistanceSquared) {
+                        push(-indices[node] - 1, d);
+                    }
+                    continue;
+                }
+                int end = Math.min(indices[node] + NODE_SIZE, levelEnd(indices[node]));
+                for(int child = indices[node]; child < end; child++) {
+                    double d = boxDistanceSquared(child, minX, minY);
+                    if (d <= maxDistanceSquared) {
+                        push(child, d);
+                    }
+                }
+            }
+            heap = 0;
+            feature = -1;
+            return false;
+        }
+
+        private void push(int node, double key) {
+            if (heap == keys.length) {
+                keys = Arrays.copyOf(keys, heap * 2);
+                nodes = Arrays.copyOf(nodes, heap * 2);
+            }
+            int i = heap++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (keys[parent] <= key) {
+                    break;
+                }
+                keys[i] = keys[parent];
+                nodes[i] = nodes[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            nodes[i] = node;
+        }
+
+        private int pop() {
+            int ret = nodes[0];
+            heap--;
+            double key = keys[heap];
+            int node = nodes[heap];
+            int i = 0;
+            while (true) {
+                int child = i * 2 + 1;
+                if (child >= heap) {
+                    break;
+                }
+                if (child + 1 < heap && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (keys[child] >= key) {
+                    break;
+                }
+                keys[i] = keys[child];
+                nodes[i] = nodes[child];
+                i = child;
+            }
+            keys[i] = key;
+            nodes[i] = node;
+            return ret;
+        }
+    }
+
+    private SpatialIndex(Builder builder) {
+
+        int size = builder.ids.size();
+        this.ids = builder.ids.toArray(new String[size]);
+        this.kinds = Arrays.copyOf(builder.kinds, size);
+        this.partStarts = Arrays.copyOf(builder.partStarts, size + 1);
+        this.partOffsets = Arrays.copyOf(builder.partOffsets, builder.parts + 1);
+        this.coordinates = Arrays.copyOf(builder.coordinates, builder.points * 2);
+
+        // bounding boxes of the features with geometry, and their extent
+        double[] bounds = new double[size * 4];
+        int indexed = 0;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for(int f = 0; f < size; f++) {
+            int from = partOffsets[partStarts[f]];
+            int to = partOffsets[partStarts[f + 1]];
+            if (kinds[f] == NONE || from == to) {
+                bounds[f * 4] = Double.NaN;
+                continue;
+            }
+            double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+            double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+            for(int p = from; p < to; p++) {
+                double x = coordinates[p * 2];
+                double y = coordinates[p * 2 + 1];
+                x0 = Math.min(x0, x);
+                y0 = Math.min(y0, y);
+                x1 = Math.max(x1, x);
+                y1 = Math.max(y1, y);
+            }
+            bounds[f * 4] = x0;
+            bounds[f * 4 + 1] = y0;
+            bounds[f * 4 + 2] = x1;
+            bounds[f * 4 + 3] = y1;
+            minX = Math.min(minX, x0);
+            minY = Math.min(minY, y0);
+            maxX = Math.max(maxX, x1);
+            maxY = Math.max(maxY, y1);
+            indexed++;
+        }
+
+        // sort by the Hilbert value of the box centers, in the high bits of a key with the feature
+        long[] keys = new long[indexed];
+        double width = maxX > minX ? maxX - minX : 1;
+        double height = maxY > minY ? maxY - minY : 1;
+        int k = 0;
+        for(int f = 0; f < size; f++) {
+            if (Double.isNaN(bounds[f * 4])) {
+                continue;
+            }
+            int hx = (int) (65535 * ((bounds[f * 4] + bounds[f * 4 + 2]) / 2 - minX) / width);
+            int hy = (int) (65535 * ((bounds[f * 4 + 1] + bounds[f * 4 + 3]) / 2 - minY) / height);
+            keys[k++] = (hilbert(hx, hy) << 31) | f;
+        }
+        Arrays.sort(keys);
+
+        // levels from the leaves up to a single root
+        List<Integer> ends = new ArrayList<>();
+        int nodes = indexed;
+        int count = indexed;
+        ends.add(nodes);
+        while (count > 1) {
+            count = (count + NODE_SIZE - 1) / NODE_SIZE;
+            nodes += count;
+            ends.add(nodes);
+        }
+        this.leaves = indexed;
+        this.boxes = new double[nodes * 4];
+        this.indices = new int[nodes];
+        this.levelEnds = new int[ends.size()];
+        for(int i = 0; i < levelEnds.length; i++) {
+            levelEnds[i] = ends.get(i);
+        }
+
+        for(int i = 0; i < indexed; i++) {
+            int f = (int) (keys[i] & 0x7fffffffL);
+            indices[i] = f;
+            System.arraycopy(bounds, f * 4, boxes, i * 4, 4);
+        }
+        int parent = indexed;
+        for(int level = 0, start = 0; level < levelEnds.length - 1; start = levelEnds[level++]) {
+            int end = levelEnds[level];
+            for(int child = start; child < end; child += NODE_SIZE) {
+                double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+                double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+                for(int c = child; c < Math.min(child + NODE_SIZE, end); c++) {
+                    x0 = Math.min(x0, boxes[c * 4]);
+                    y0 = Math.min(y0, boxes[c * 4 + 1]);
+                    x1 = Math.max(x1, boxes[c * 4 + 2]);
+                    y1 = Math.max(y1, boxes[c * 4 + 3]);
+                }
+                boxes[parent * 4] = x0;
+                boxes[parent * 4 + 1] = y0;
+                boxes[parent * 4 + 2] = x1;
+                boxes[parent * 4 + 3] = y1;
+                indices[parent++] = child;
+            }
+        }
+    }
+
+    /**
+     * An empty builder.
+     *
+     * @return
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Index the features of an observation, downloaded as GeoJSON and read one feature at a time.
+     * {@link Observation#getSpatialIndex()} keeps the index with the observation.
+     *
+     * @param features
+     * @param parameters passed to the export
+     * @return
+     * @throws KlabRemoteException if the features cannot be downloaded
+     */
+    public static SpatialIndex of(Observation features, Object... parameters) {
+        File download = null;
+        try {
+            download = File.createTempFile("klab", ".json");
+            if (!features.export(Export.DATA, ExportFormat.GEOJSON_FEATURES, download, parameters)) {
+                throw new KlabRemoteException("could not download " + features + " as GeoJSON");
+            }
+            return of(download);
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        } finally {
+            if (download != null) {
+                download.delete();
+            }
+        }
+    }
+
+    /**
+     * Index the features of a GeoJSON feature collection file, read one feature at a time.
+     *
+     * @param geojson
+     * @return
+     * @throws KlabIOException if the file cannot be read
+     */
+    public static SpatialIndex of(File geojson) {
+        Builder builder = new Builder();
+        try {
+            GeoJsonFeatures.read(geojson, builder::feature);
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        }
+        return builder.build();
+    }
+
+    /**
+     * A new cursor to query the index with.
+     *
+     * @return
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * @return the number of features, including those without geometry
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    public String getId(int feature) {
+        return ids[feature];
+    }
+
+    /**
+     * The feature nearest to a point.
+     *
+     * @param x
+     * @param y
+     * @return its position, or -1 if the index is empty
+     */
+    public int nearest(double x, double y) {
+        Cursor cursor = new Cursor().nearest(x, y, 1, Double.POSITIVE_INFINITY);
+        return cursor.next() ? cursor.getFeature() : -1;
+    }
+
+    private int levelEnd(int node) {
+        for(int end : levelEnds) {
+            if (node < end) {
+                return end;
+            }
+        }
+        return boxes.length / 4;
+    }
+
+    private double boxDistanceSquared(int node, double x, double y) {
+        double dx = Math.max(0, Math.max(boxes[node * 4] - x, x - boxes[node * 4 + 2]));
+        double dy = Math.max(0, Math.max(boxes[node * 4 + 1] - y, y - boxes[node * 4 + 3]));
+        return dx * dx + dy * dy;
+    }
+
+    private boolean contains(int f, double x, double y) {
+        return kinds[f] == AREAS ? inside(f, x, y) : distanceSquared(f, x, y) == 0;
+    }
+
+    /*
+     * Even-odd rule over all rings of all polygons of the feature.
+     */
+    private boolean inside(int f, double x, double y) {
+        boolean ret = false;
+        for(int part = partStarts[f]; part < partStarts[f + 1]; part++) {
+            int from = partOffsets[part];
+            int to = partOffsets[part + 1];
+            for(int i = from, j = to - 1; i < to; j = i++) {
+                double xi = coordinates[i * 2], yi = coordinates[i * 2 + 1];
+                double xj = coordinates[j * 2], yj = coordinates[j * 2 + 1];
+                if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+                    ret = !ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    private boolean intersects(int f, double minX, double minY, double maxX, double maxY) {
+        for(int part = partStarts[f]; part < partStarts[f + 1]; part++) {
+            int from = partOffsets[part];
+            int to = partOffsets[part + 1];
+            if (kinds[f] == POINTS) {
+                for(int i = from; i < to; i++) {
+                    double x = coordinates[i * 2], y = coordinates[i * 2 + 1];
+                    if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                        return true;
+                    }
+                }
+                continue;
+            }
+            // lines are open, rings closed
+            for(int i = kinds[f] == AREAS ? from : from + 1, j = kinds[f] == AREAS ? to - 1 : from; i < to; j = i++) {
+                if (segmentIntersects(coordinates[j * 2], coordinates[j * 2 + 1], coordinates[i * 2],
+                        coordinates[i * 2 + 1], minX, minY, maxX, maxY)) {
+                    return true;
+                }
+            }
+            if (to - from == 1 && segmentIntersects(coordinates[from * 2], coordinates[from * 2 + 1],
+                    coordinates[from * 2], coordinates[from * 2 + 1], minX, minY, maxX, maxY)) {
+                return true;
+            }
+        }
+        // no edge crosses the box: a polygon can still contain it entirely
+        return kinds[f] == AREAS && inside(f, minX, minY);
+    }
+
+    /*
+     * Liang-Barsky clipping of the segment to the box.
+     */
+    private static boolean segmentIntersects(double x1, double y1, double x2, double y2, double minX, double minY,
+            double maxX, double maxY) {
+        double t0 = 0;
+        double t1 = 1;
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        for(int i = 0; i < 4; i++) {
+            double p = i == 0 ? -dx : (i == 1 ? dx : (i == 2 ? -dy : dy));
+            double q = i == 0 ? x1 - minX : (i == 1 ? maxX - x1 : (i == 2 ? y1 - minY : maxY - y1));
+            if (p == 0) {
+                if (q < 0) {
+                    return false;
+                }
+            } else {
+                double t = q / p;
+                if (p < 0) {
+                    t0 = Math.max(t0, t);
+                } else {
+                    t1 = Math.min(t1, t);
+                }
+                if (t0 > t1) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private double distanceSquared(int f, double x, double y) {
+        if (kinds[f] == AREAS && inside(f, x, y)) {
+            return 0;
+        }
+        double ret = Double.POSITIVE_INFINITY;
+        for(int part = partStarts[f]; part < partStarts[f + 1]; part++) {
+            int from = partOffsets[part];
+            int to = partOffsets[part + 1];
+            if (kinds[f] == POINTS || to - from == 1) {
+                for(int i = from; i < to; i++) {
+                    double dx = coordinates[i * 2] - x, dy = coordinates[i * 2 + 1] - y;
+                    ret = Math.min(ret, dx * dx + dy * dy);
+                }
+                continue;
+            }
+            for(int i = kinds[f] == AREAS ? from : from + 1, j = kinds[f] == AREAS ? to - 1 : from; i < to; j = i++) {
+                ret = Math.min(ret, segmentDistanceSquared(coordinates[j * 2], coordinates[j * 2 + 1],
+                        coordinates[i * 2], coordinates[i * 2 + 1], x, y));
+            }
+        }
+        return ret;
+    }
+
+    private static double segmentDistanceSquared(double x1, double y1, double x2, double y2, double x, double y) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double length = dx * dx + dy * dy;
+        double t = length == 0 ? 0 : Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / length));
+        double ex = x1 + t * dx - x;
+        double ey = y1 + t * dy - y;
+        return ex * ex + ey * ey;
+    }
+
+    /*
+     * Position of a point of a 65536 x 65536 grid along the Hilbert curve through it.
+     */
+    private static long hilbert(int x, int y) {
+        long ret = 0;
+        int n = 1 << 16;
+        for(int s = n >> 1; s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            ret += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return ret;
+    }
+}
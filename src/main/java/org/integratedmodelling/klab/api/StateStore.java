@@ -0,0 +1,791 @@
+package org.integratedmodelling.klab.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.impl.GeoTiffRaster;
+import org.integratedmodelling.klab.exceptions.KlabIOException;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+import org.integratedmodelling.klab.exceptions.KlabRemoteException;
+
+/**
+ * A local, persistent store for the data of states that are analyzed repeatedly, so that they are
+ * downloaded and decoded only once. Each state is ingested from its GeoTIFF export into a file of
+ * square chunks of double values, which is memory-mapped when used: reading a window touches only
+ * the chunks it overlaps, and each chunk can be accessed in place as a {@link DoubleBuffer}
+ * without copying.
+ *
+ * <pre>
+ * StateStore store = StateStore.create().maxBytes(4L &lt;&lt; 30);
+ * StateStore.StoredState elevation = store.get(elevationState);
+ * double[] window = elevation.read(1000, 2000, 512, 512, null);
+ * </pre>
+ *
+ * States are identified by the observation id and the export parameters that select their extent,
+ * such as a <code>timestep</code>. The store is bounded: when ingesting a state would exceed
+ * {@link #maxBytes(long) its size}, the least recently used states are removed. A removed state
+ * stays readable by who already holds it on systems that allow deleting mapped files. The index
+ * is kept in <code>index.properties</code> in the store directory, by default
+ * <code>~/.klab/states</code>. Stores in the same or in different processes can share a
+ * directory: the index is read again when another store has changed it, and states are added and
+ * removed under a lock on the directory, merging the order of use of each store.
+ *
+ * @author Ferd
+ *
+ */
+public class StateStore {
+
+    private static final byte[] MAGIC = "KLABCHNK".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_BYTES = 64;
+    private static final String INDEX = "index.properties";
+    private static final String LOCK = "index.lock";
+
+    // file locks are held by the whole process, so its stores also lock each directory here
+    private static final Map<Path, Object> directoryLocks = new ConcurrentHashMap<>();
+
+    /**
+     * The data of a state in a store, in chunks of {@link #getChunkSize()} by
+     * {@link #getChunkSize()} cells. Rows go south from the top edge of the raster. Cells with no
+     * data are NaN. Instances can be read concurrently.
+     */
+    public static class StoredState {
+
+        private final String key;
+        private final Path file;
+        private final int width;
+        private final int height;
+        private final int chunkSize;
+        private final int chunksAcross;
+        private final int chunksPerSegment;
+        private final double originX;
+        private final double originY;
+        private final double cellWidth;
+        private final double cellHeight;
+        private final DoubleBuffer[] segments;
+
+        private StoredState(String key, Path file) {
+            this.key = key;
+            this.file = file;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                byte[] magic = new byte[MAGIC.length];
+                header.get(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new KlabIOException(file + " is not a stored state");
+                }
+                width = header.getInt();
+                height = header.getInt();
+                chunkSize = header.getInt();
+                header.getInt();
+                originX = header.getDouble();
+                originY = header.getDouble();
+                cellWidth = header.getDouble();
+                cellHeight = header.getDouble();
+                chunksAcross = (width + chunkSize - 1) / chunkSize;
+                chunksPerSegment = chunksPerSegment(chunkSize);
+                int chunks = chunksAcross * ((height + chunkSize - 1) / chunkSize);
+                segments = new DoubleBuffer[(chunks + chunksPerSegment - 1) / chunksPerSegment];
+                long chunkBytes = chunkBytes(chunkSize);
+                for(int i = 0; i < segments.length; i++) {
+                    long start = HEADER_BYTES + i * chunksPerSegment * chunkBytes;
+                    long size = Math.min(chunksPerSegment, chunks - i * chunksPerSegment) * chunkBytes;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size).order(ByteOrder.LITTLE_ENDIAN)
+                            .asDoubleBuffer();
+                }
+            } catch (IOException e) {
+                throw new KlabIOException(e);
+            }
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        /**
+         * @return the x coordinate of the left edge of the raster
+         */
+        public double getOriginX() {
+            return originX;
+        }
+
+        /**
+         * @return the y coordinate of the top edge of the raster
+         */
+        public double getOriginY() {
+            return originY;
+        }
+
+        public double getCellWidth() {
+            return cellWidth;
+        }
+
+        public double getCellHeight() {
+            return cellHeight;
+        }
+
+        /**
+         * @param x
+         * @return the column containing the x coordinate, which may be outside the raster
+         */
+        public int getColumn(double x) {
+            return (int) Math.floor((x - originX) / cellWidth);
+        }
+
+        /**
+         * @param y
+         * @return the row containing the y coordinate, which may be outside the raster
+         */
+        public int getRow(double y) {
+            return (int) Math.floor((originY - y) / cellHeight);
+        }
+
+        /**
+         * The value of one cell.
+         *
+         * @param column
+         * @param row
+         * @return the value, or NaN if the cell has no data or is outside the raster
+         */
+        public double get(int column, int row) {
+            if (column < 0 || row < 0 || column >= width || row >= height) {
+                return Double.NaN;
+            }
+            int chunk = (row / chunkSize) * chunksAcross + column / chunkSize;
+            return segments[chunk / chunksPerSegment].get(
+                    (chunk % chunksPerSegment) * chunkSize * chunkSize + (row % chunkSize) * chunkSize + column % chunkSize);
+        }
+
+        /**
+         * A read-only view of a chunk in the mapped file, in row order with rows of
+         * {@link #getChunkSize()} values. Chunks on the right and bottom edges are padded beyond
+         * the raster.
+         *
+         * @param chunkColumn
+         * @param chunkRow
+         * @return
+         */
+        public DoubleBuffer getChunk(int chunkColumn, int chunkRow) {
+            if (chunkColumn < 0 || chunkRow < 0 || chunkColumn >= chunksAcross || chunkRow * chunkSize >= height) {
+                throw new KlabIllegalArgumentException("chunk " + chunkColumn + ", " + chunkRow + " is outside the raster");
+            }
+            int chunk = chunkRow * chunksAcross + chunkColumn;
+            DoubleBuffer ret = segments[chunk / chunksPerSegment].duplicate();
+            int start = (chunk % chunksPerSegment) * chunkSize * chunkSize;
+            ret.position(start).limit(start + chunkSize * chunkSize);
+            return ret.slice().asReadOnlyBuffer();
+        }
+
+        /**
+         * Read a window of cells, which may extend across any number of chunks and beyond the
+         * raster.
+         *
+         * @param column the first column
+         * @param row the first row
+         * @param columns
+         * @param rows
+         * @param into an array of at least columns by rows values to reuse, or null
+         * @return the values in row order, NaN where there is no data or no raster
+         */
+        public double[] read(int column, int row, int columns, int rows, double[] into) {
+            if (columns < 0 || rows < 0) {
+                throw new KlabIllegalArgumentException("window size cannot be negative");
+            }
+            double[] ret = into != null && into.length >= columns * rows ? into : new double[columns * rows];
+            Arrays.fill(ret, 0, columns * rows, Double.NaN);
+            int firstRow = Math.max(row, 0);
+            int lastRow = Math.min(row + rows, height);
+            int firstColumn = Math.max(column, 0);
+            int lastColumn = Math.min(column + columns, width);
+            for(int r = firstRow; r < lastRow;) {
+                int chunkRow = r / chunkSize;
+                int rowEnd = Math.min(lastRow, (chunkRow + 1) * chunkSize);
+                for(int c = firstColumn; c < lastColumn;) {
+                    int chunkColumn = c / chunkSize;
+                    int columnEnd = Math.min(lastColumn, (chunkColumn + 1) * chunkSize);
+                    int chunk = chunkRow * chunksAcross + chunkColumn;
+                    DoubleBuffer segment = segments[chunk / chunksPerSegment];
+                    int base = (chunk % chunksPerSegment) * chunkSize * chunkSize;
+                    for(int rr = r; rr < rowEnd; rr++) {
+                        int source = base + (rr % chunkSize) * chunkSize + (c % chunkSize);
+                        int target = (rr - row) * columns + (c - column);
+                        for(int i = 0; i < columnEnd - c; i++) {
+                            ret[target + i] = segment.get(source + i);
+                        }
+                    }
+                    c = columnEnd;
+                }
+                r = rowEnd;
+            }
+            return ret;
+        }
+
+        /**
+         * Read a window of cells decimated by an integer factor, each value the mean of the cells
+         * with data in a square of factor by factor cells. Only the chunks that overlap the window
+         * are read.
+         *
+         * @param column the first column of the raster
+         * @param row the first row of the raster
+         * @param columns the number of decimated columns
+         * @param rows the number of decimated rows
+         * @param decimation the raster cells along each side of a decimated cell
+         * @param into an array of at least columns by rows values to reuse, or null
+         * @return the values in row order, NaN where there is no data or no raster
+         */
+        public double[] read(int column, int row, int columns, int rows, int decimation, double[] into) {
+            if (decimation < 1) {
+                throw new KlabIllegalArgumentException("decimation must be at least 1");
+            }
+            if (decimation == 1) {
+                return read(column, row, columns, rows, into);
+            }
+            if (columns < 0 || rows < 0) {
+                throw new KlabIllegalArgumentException("window size cannot be negative");
+            }
+            double[] ret = into != null && into.length >= columns * rows ? into : new double[columns * rows];
+            int span = columns * decimation;
+            double[] band = null;
+            for(int r = 0; r < rows; r++) {
+                band = read(column, row + r * decimation, span, decimation, band);
+                for(int c = 0; c < columns; c++) {
+                    double sum = 0;
+                    int count = 0;
+                    for(int i = 0; i < decimation; i++) {
+                        int offset = i * span + c * decimation;
+                        for(int j = 0; j < decimation; j++) {
+                            double value = band[offset + j];
+                            if (!Double.isNaN(value)) {
+                                sum += value;
+                                count++;
+                            }
+                        }
+                    }
+                    ret[r * columns + c] = count == 0 ? Double.NaN : sum / count;
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Read the window of cells whose centers are in the passed bounding box.
+         *
+         * @param minX
+         * @param minY
+         * @param maxX
+         * @param maxY
+         * @return the values in row order, NaN where there is no data or no raster
+         */
+        public double[] read(double minX, double minY, double maxX, double maxY) {
+            int column = (int) Math.ceil((minX - originX) / cellWidth - 0.5);
+            int row = (int) Math.ceil((originY - maxY) / cellHeight - 0.5);
+            int columns = (int) Math.ceil((maxX - originX) / cellWidth - 0.5) - column;
+            int rows = (int) Math.ceil((originY - minY) / cellHeight - 0.5) - row;
+            return read(column, row, Math.max(columns, 0), Math.max(rows, 0), null);
+        }
+
+        @Override
+        public String toString() {
+            return key + " (" + width + "x" + height + " in " + file.getFileName() + ")";
+        }
+    }
+
+    private static class Entry {
+        String file;
+        long bytes;
+        // order of last use, from a counter that is not affected by clock changes or ties
+        long accessed;
+    }
+
+    private final Path directory;
+    private long maxBytes = 1L << 30;
+    private int chunkSize = 256;
+    private Map<String, Entry> index;
+    // the index file when last read, to read it again once another store has replaced it
+    private List<Object> indexVersion;
+    private long accesses;
+    // states found since the index was last written, least recently used first
+    private final Set<String> used = new LinkedHashSet<>();
+
+    /*
+     * A change to the index made under the directory lock.
+     */
+    private interface IndexUpdate<T> {
+        T apply(Map<String, Entry> index) throws IOException;
+    }
+
+    private StateStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * The store in <code>~/.klab/states</code>.
+     *
+     * @return
+     */
+    public static StateStore create() {
+        return new StateStore(Paths.get(System.getProperty("user.home"), ".klab", "states"));
+    }
+
+    /**
+     * The store in <code>~/.klab/states</code> shared by the clients that have not set their own,
+     * created at the first call.
+     *
+     * @return
+     */
+    public static StateStore getDefault() {
+        return DefaultStore.INSTANCE;
+    }
+
+    /*
+     * Holds the default store until it is first asked for.
+     */
+    private static class DefaultStore {
+        static final StateStore INSTANCE = create();
+    }
+
+    /**
+     * A store in the passed directory, created when the first state is ingested.
+     *
+     * @param directory
+     * @return
+     */
+    public static StateStore create(Path directory) {
+        return new StateStore(directory);
+    }
+
+    /**
+     * The maximum size of the stored states. The default is 1 GB.
+     *
+     * @param bytes
+     * @return this store for chaining
+     */
+    public StateStore maxBytes(long bytes) {
+        this.maxBytes = bytes;
+        return this;
+    }
+
+    /**
+     * The side of the chunks of states ingested from now on, in cells. The default is 256.
+     *
+     * @param cells
+     * @return this store for chaining
+     */
+    public StateStore chunkSize(int cells) {
+        if (cells < 1 || chunkBytes(cells) > Integer.MAX_VALUE) {
+            throw new KlabIllegalArgumentException("chunk size must be at least 1 and fit a chunk in 2GB");
+        }
+        this.chunkSize = cells;
+        return this;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * The stored data of a state, ingested from the engine if not in the store.
+     *
+     * @param state
+     * @param parameters the export parameters that select the data, as in
+     *        {@link Observation#export(Export, ExportFormat, File, Object...)}
+     * @return the stored state
+     * @throws KlabRemoteException if the state must be ingested and cannot be downloaded
+     */
+    public StoredState get(Observation state, Object... parameters) {
+
+        String key = key(state, parameters);
+        StoredState ret = find(key);
+        if (ret != null) {
+            return ret;
+        }
+
+        // download and convert outside the lock so that other states can be read meanwhile
+        Path ingested = null;
+        File download = null;
+        try {
+            Files.createDirectories(directory);
+            download = File.createTempFile("klab", ".tiff");
+            if (!state.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, download, parameters)) {
+                throw new KlabRemoteException("could not download " + state + " as GeoTIFF");
+            }
+            ingested = Files.createTempFile(directory, ".state", ".tmp");
+            try (GeoTiffRaster raster = GeoTiffRaster.open(download)) {
+                ingest(raster, ingested, chunkSize);
+            }
+            return install(key, ingested);
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        } finally {
+            if (download != null) {
+                download.delete();
+            }
+            if (ingested != null) {
+                try {
+                    Files.deleteIfExists(ingested);
+                } catch (IOException e) {
+                    // left for the next cleanup
+                }
+            }
+        }
+    }
+
+    /**
+     * @param state
+     * @param parameters
+     * @return true if the data of the state are in the store
+     */
+    public synchronized boolean contains(Observation state, Object... parameters) {
+        Entry entry = index().get(key(state, parameters));
+        return entry != null && Files.exists(directory.resolve(entry.file));
+    }
+
+    /**
+     * Remove the data of a state from the store.
+     *
+     * @param state
+     * @param parameters
+     * @return true if they were in the store
+     */
+    public synchronized boolean remove(Observation state, Object... parameters) {
+        String key = key(state, parameters);
+        try {
+            return update(index -> {
+                Entry entry = index.remove(key);
+                if (entry != null) {
+                    delete(entry);
+                }
+                return entry != null;
+            });
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        }
+    }
+
+    /**
+     * @return the size of all stored states
+     */
+    public synchronized long getSize() {
+        return size(index());
+    }
+
+    private static long size(Map<String, Entry> index) {
+        long ret = 0;
+        for(Entry entry : index.values()) {
+            ret += entry.bytes;
+        }
+        return ret;
+    }
+
+    /*
+     * The use is only recorded in memory, and saved with the next change to the index.
+     */
+    private synchronized StoredState find(String key) {
+        Entry entry = index().get(key);
+        if (entry == null) {
+            return null;
+        }
+        Path file = directory.resolve(entry.file);
+        if (!Files.exists(file)) {
+            // removed by another store, which has updated the index or will
+            index.remove(key);
+            used.remove(key);
+            return null;
+        }
+        entry.accessed = ++accesses;
+        used.remove(key);
+        used.add(key);
+        return new StoredState(key, file);
+    }
+
+    private synchronized StoredState install(String key, Path ingested) throws IOException {
+        long bytes = Files.size(ingested);
+        return update(index -> {
+            Entry existing = index.get(key);
+            if (existing != null && Files.exists(directory.resolve(existing.file))) {
+                // ingested concurrently by another store
+                existing.accessed = ++accesses;
+                return new StoredState(key, directory.resolve(existing.file));
+            }
+            Entry entry = new Entry();
+            entry.file = UUID.randomUUID() + ".chunks";
+            entry.bytes = bytes;
+            entry.accessed = ++accesses;
+            evict(index, maxBytes - entry.bytes);
+            Files.move(ingested, directory.resolve(entry.file), StandardCopyOption.ATOMIC_MOVE);
+            index.put(key, entry);
+            deleteOrphans(index);
+            return new StoredState(key, directory.resolve(entry.file));
+        });
+    }
+
+    /*
+     * Read the index again, apply the change and write the index, holding the directory lock so
+     * that no other store changes the index in between. The states used here since the last
+     * update become the most recently used.
+     */
+    private <T> T update(IndexUpdate<T> change) throws IOException {
+        Files.createDirectories(directory);
+        synchronized (directoryLocks.computeIfAbsent(directory.toAbsolutePath().normalize(), d -> new Object())) {
+            try (FileChannel channel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE); FileLock lock = channel.lock()) {
+                index = readIndex();
+                T ret = change.apply(index);
+                used.clear();
+                writeIndex();
+                indexVersion = indexVersion();
+                return ret;
+            }
+        }
+    }
+
+    /*
+     * Remove the least recently used states until the rest fit in the passed size.
+     */
+    private void evict(Map<String, Entry> index, long size) {
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>(index.entrySet());
+        entries.sort((a, b) -> Long.compare(a.getValue().accessed, b.getValue().accessed));
+        long total = size(index);
+        for(Map.Entry<String, Entry> entry : entries) {
+            if (total <= size) {
+                break;
+            }
+            index.remove(entry.getKey());
+            delete(entry.getValue());
+            total -= entry.getValue().bytes;
+        }
+    }
+
+    /*
+     * Files of states left out of the index, as older versions of the index could when stores
+     * shared the directory. Called with the directory lock, when no state is being moved in.
+     */
+    private void deleteOrphans(Map<String, Entry> index) throws IOException {
+        Set<String> indexed = new HashSet<>();
+        for(Entry entry : index.values()) {
+            indexed.add(entry.file);
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.chunks")) {
+            for(Path file : files) {
+                if (!indexed.contains(file.getFileName().toString())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private void delete(Entry entry) {
+        try {
+            Files.deleteIfExists(directory.resolve(entry.file));
+        } catch (IOException e) {
+            // mapped elsewhere on systems that do not allow it; not in the index anymore
+        }
+    }
+
+    /*
+     * Copy each block of the raster into the chunks it overlaps, in a file mapped in segments
+     * of whole chunks.
+     */
+    private static void ingest(GeoTiffRaster raster, Path file, int chunkSize) throws IOException {
+
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int chunksAcross = (width + chunkSize - 1) / chunkSize;
+        int chunks = chunksAcross * ((height + chunkSize - 1) / chunkSize);
+        int chunksPerSegment = chunksPerSegment(chunkSize);
+        long chunkBytes = chunkBytes(chunkSize);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                GeoTiffRaster.Reader reader = raster.newReader()) {
+
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(width).putInt(height).putInt(chunkSize).putInt(0);
+            header.putDouble(raster.getOriginX()).putDouble(raster.getOriginY()).putDouble(raster.getCellWidth())
+                    .putDouble(raster.getCellHeight());
+
+            DoubleBuffer[] segments = new DoubleBuffer[(chunks + chunksPerSegment - 1) / chunksPerSegment];
+            MappedByteBuffer[] mapped = new MappedByteBuffer[segments.length];
+            for(int i = 0; i < segments.length; i++) {
+                long start = HEADER_BYTES + i * chunksPerSegment * chunkBytes;
+                long size = Math.min(chunksPerSegment, chunks - i * chunksPerSegment) * chunkBytes;
+                mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+                segments[i] = mapped[i].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            }
+
+            int blockWidth = raster.getBlockWidth();
+            for(int block = 0; block < raster.getBlockCount(); block++) {
+                double[] values = reader.read(block);
+                int column0 = raster.getBlockColumn(block);
+                int row0 = raster.getBlockRow(block);
+                int rows = Math.min(raster.getBlockHeight(), height - row0);
+                int columns = Math.min(blockWidth, width - column0);
+                for(int r = 0; r < rows; r++) {
+                    int row = row0 + r;
+                    for(int c = 0; c < columns; c++) {
+                        int column = column0 + c;
+                        int chunk = (row / chunkSize) * chunksAcross + column / chunkSize;
+                        segments[chunk / chunksPerSegment].put(
+                                (chunk % chunksPerSegment) * chunkSize * chunkSize + (row % chunkSize) * chunkSize
+                                        + column % chunkSize,
+                                values[r * blockWidth + c]);
+                    }
+                }
+            }
+
+            header.force();
+            for(MappedByteBuffer segment : mapped) {
+                segment.force();
+            }
+        }
+    }
+
+    private static long chunkBytes(int chunkSize) {
+        return (long) chunkSize * chunkSize * Double.BYTES;
+    }
+
+    private static int chunksPerSegment(int chunkSize) {
+        return (int) Math.max(1, Integer.MAX_VALUE / chunkBytes(chunkSize));
+    }
+
+    private static String key(Observation state, Object... parameters) {
+        StringBuilder ret = new StringBuilder(state.getId());
+        char separator = '?';
+        for(int i = 0; i < parameters.length; i++) {
+            if (parameters[i] instanceof Deadline) {
+                // bounds the download, does not select data
+                continue;
+            }
+            if (i + 1 < parameters.length) {
+                ret.append(separator).append(parameters[i]).append('=').append(parameters[++i]);
+                separator = '&';
+            }
+        }
+        return ret.toString();
+    }
+
+    /*
+     * The index, read again if another store has written it since.
+     */
+    private Map<String, Entry> index() {
+        List<Object> version = indexVersion();
+        if (index == null || !version.equals(indexVersion)) {
+            index = readIndex();
+            indexVersion = version;
+        }
+        return index;
+    }
+
+    /*
+     * The index file is replaced at each write, so its identity changes with its contents.
+     */
+    private List<Object> indexVersion() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(directory.resolve(INDEX), BasicFileAttributes.class);
+            return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+        } catch (IOException e) {
+            // not written yet
+            return Collections.emptyList();
+        }
+    }
+
+    /*
+     * Read the index from the file, then make the states used here since the last update the most
+     * recently used, in their order.
+     */
+    private Map<String, Entry> readIndex() {
+        Map<String, Entry> ret = new LinkedHashMap<>();
+        Path file = directory.resolve(INDEX);
+        if (Files.exists(file)) {
+            Properties properties = new Properties();
+            try (InputStream input = Files.newInputStream(file)) {
+                properties.load(input);
+            } catch (IOException e) {
+                throw new KlabIOException(e);
+            }
+            for(String name : properties.stringPropertyNames()) {
+                if (name.endsWith(".file")) {
+                    String key = name.substring(0, name.length() - ".file".length());
+                    Entry entry = new Entry();
+                    entry.file = properties.getProperty(name);
+                    entry.bytes = Long.parseLong(properties.getProperty(key + ".bytes", "0"));
+                    entry.accessed = Long.parseLong(properties.getProperty(key + ".accessed", "0"));
+                    ret.put(key, entry);
+                    accesses = Math.max(accesses, entry.accessed);
+                }
+            }
+        }
+        for(String key : used) {
+            Entry entry = ret.get(key);
+            if (entry != null) {
+                entry.accessed = ++accesses;
+            }
+        }
+        return ret;
+    }
+
+    /*
+     * Write to a temporary file in the same directory, then move it in place so that concurrent
+     * readers never see a partial index.
+     */
+    private void writeIndex() {
+        Properties properties = new Properties();
+        for(Map.Entry<String, Entry> entry : index.entrySet()) {
+            properties.setProperty(entry.getKey() + ".file", entry.getValue().file);
+            properties.setProperty(entry.getKey() + ".bytes", String.valueOf(entry.getValue().bytes));
+            properties.setProperty(entry.getKey() + ".accessed", String.valueOf(entry.getValue().accessed));
+        }
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, ".index", ".tmp");
+            try (OutputStream output = Files.newOutputStream(temporary)) {
+                properties.store(output, "k.LAB stored states");
+            }
+            Files.move(temporary, directory.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        }
+    }
+}
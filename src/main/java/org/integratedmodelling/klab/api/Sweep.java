@@ -0,0 +1,399 @@
+package org.integratedmodelling.klab.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.integratedmodelling.klab.api.data.IGeometry;
+import org.integratedmodelling.klab.api.impl.ContextImpl;
+import org.integratedmodelling.klab.api.impl.Threads;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+import org.integratedmodelling.klab.exceptions.KlabIllegalStateException;
+import org.integratedmodelling.klab.utils.Pair;
+import org.integratedmodelling.klab.utils.Range;
+
+/**
+ * Makes the same observations under several combinations of scenarios, running the combinations
+ * concurrently up to a set parallelism, and collects the aggregated value and data range of each
+ * observation in a {@link Table} for comparison. Create it on a client or pool, where each
+ * combination gets its own context so that no observation is reused across scenarios, or on an
+ * existing context, where the observations of every combination are made in it:
+ *
+ * <pre>
+ * Sweep.Table table = Sweep.create(klab, Observable.create("earth:Region"), geometry)
+ *         .observe(Observable.create("geography:Elevation"))
+ *         .baseline()
+ *         .scenarios("im.data.global.climate.rcp45")
+ *         .scenarios("im.data.global.climate.rcp85")
+ *         .parallelism(3)
+ *         .run();
+ * </pre>
+ *
+ * A combination that fails does not stop the others: its rows carry the error instead of values.
+ * In an existing context the observations are submitted one at a time, and the states injected in
+ * it with {@link Context#with(Observable, Object)} before running are injected in each of them.
+ *
+ * @author Ferd
+ *
+ */
+public class Sweep {
+
+    private interface ContextFactory {
+        Context create(String[] scenarios) throws Exception;
+    }
+
+    /**
+     * The outcome of one observation in one combination of scenarios.
+     */
+    public static class Row {
+
+        private final List<String> scenarios;
+        private final Observable observable;
+        private Observation observation;
+        private Range range;
+        private Object aggregatedValue;
+        private String error;
+        private long nanos;
+
+        Row(List<String> scenarios, Observable observable) {
+            this.scenarios = scenarios;
+            this.observable = observable;
+        }
+
+        public List<String> getScenarios() {
+            return scenarios;
+        }
+
+        public Observable getObservable() {
+            return observable;
+        }
+
+        /**
+         * @return the observation, or null if it failed
+         */
+        public Observation getObservation() {
+            return observation;
+        }
+
+        /**
+         * @return the data range, or null if the observation is not a numeric state or failed
+         */
+        public Range getRange() {
+            return range;
+        }
+
+        /**
+         * @return the aggregated value, or null if the observation is not a state or failed
+         */
+        public Object getAggregatedValue() {
+            return aggregatedValue;
+        }
+
+        /**
+         * @return the reason the observation failed, or null
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return the time from the start of the combination to the observation being available
+         */
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * The rows of a sweep, in the order the combinations and observables were given.
+     */
+    public static class Table {
+
+        private final List<Row> rows;
+
+        Table(List<Row> rows) {
+            this.rows = Collections.unmodifiableList(rows);
+        }
+
+        public List<Row> getRows() {
+            return rows;
+        }
+
+        /**
+         * The row for an observable in a combination of scenarios, given in the order they were
+         * passed.
+         *
+         * @param observable
+         * @param scenarios
+         * @return the row, or null if the combination or observable were not part of the sweep
+         */
+        public Row get(Observable observable, String... scenarios) {
+            for(Row row : rows) {
+                if (row.observable.toString().equals(observable.toString()) && row.scenarios.equals(Arrays.asList(scenarios))) {
+                    return row;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * One line per row with scenarios, observable, range and aggregated value, in columns.
+         */
+        @Override
+        public String toString() {
+            List<String[]> cells = new ArrayList<>();
+            cells.add(new String[]{"scenarios", "observable", "min", "max", "aggregated"});
+            for(Row row : rows) {
+                cells.add(new String[]{row.scenarios.isEmpty() ? "(baseline)" : String.join(" + ", row.scenarios),
+                        row.observable.toString(), row.range == null ? "" : String.valueOf(row.range.getLowerBound()),
+                        row.range == null ? "" : String.valueOf(row.range.getUpperBound()),
+                        row.error != null ? "error: " + row.error
+                                : (row.aggregatedValue == null ? "" : String.valueOf(row.aggregatedValue))});
+            }
+            int[] widths = new int[5];
+            for(String[] line : cells) {
+                for(int i = 0; i < line.length; i++) {
+                    widths[i] = Math.max(widths[i], line[i].length());
+                }
+            }
+            StringBuilder ret = new StringBuilder();
+            for(String[] line : cells) {
+                for(int i = 0; i < line.length; i++) {
+                    ret.append(i == 0 ? "" : "  ").append(String.format("%-" + widths[i] + "s", line[i]));
+                }
+                ret.append('\n');
+            }
+            return ret.toString();
+        }
+    }
+
+    private final ContextFactory contexts;
+    // the context shared by all combinations, if any
+    private final Context shared;
+    private final List<Observable> observables = new ArrayList<>();
+    private final List<List<String>> combinations = new ArrayList<>();
+    private int parallelism = 4;
+
+    private Sweep(ContextFactory contexts, Context shared) {
+        this.contexts = contexts;
+        this.shared = shared;
+    }
+
+    /**
+     * A sweep that creates a context of the passed type and geometry for each combination, under
+     * its scenarios.
+     *
+     * @param klab
+     * @param contextType
+     * @param geometry
+     * @return
+     */
+    public static Sweep create(Klab klab, Observable contextType, IGeometry geometry) {
+        return new Sweep(scenarios -> klab.submit(contextType, geometry, (Object[]) scenarios).get(), null);
+    }
+
+    /**
+     * A sweep that creates a context of the passed type and geometry for each combination, spread
+     * across the sessions in the pool.
+     *
+     * @param pool
+     * @param contextType
+     * @param geometry
+     * @return
+     */
+    public static Sweep create(KlabPool pool, Observable contextType, IGeometry geometry) {
+        return new Sweep(scenarios -> pool.submit(contextType, geometry, (Object[]) scenarios).get(), null);
+    }
+
+    /**
+     * A sweep that makes the observations of all combinations in the passed context.
+     *
+     * @param context
+     * @return
+     */
+    public static Sweep create(Context context) {
+        return new Sweep(scenarios -> context, context);
+    }
+
+    /**
+     * Add observables to make in each combination.
+     *
+     * @param observables
+     * @return this sweep for chaining
+     */
+    public Sweep observe(Observable... observables) {
+        this.observables.addAll(Arrays.asList(observables));
+        return this;
+    }
+
+    /**
+     * Add a combination of scenarios, all of which apply together.
+     *
+     * @param scenarioUrns
+     * @return this sweep for chaining
+     */
+    public Sweep scenarios(String... scenarioUrns) {
+        this.combinations.add(Collections.unmodifiableList(Arrays.asList(scenarioUrns)));
+        return this;
+    }
+
+    /**
+     * Add the combination with no scenarios.
+     *
+     * @return this sweep for chaining
+     */
+    public Sweep baseline() {
+        return scenarios();
+    }
+
+    /**
+     * The number of combinations running at the same time. The default is 4.
+     *
+     * @param combinations
+     * @return this sweep for chaining
+     */
+    public Sweep parallelism(int combinations) {
+        if (combinations < 1) {
+            throw new KlabIllegalArgumentException("sweep parallelism must be at least 1");
+        }
+        this.parallelism = combinations;
+        return this;
+    }
+
+    /**
+     * Run all the combinations and wait for their results.
+     *
+     * @return the table of results
+     * @throws InterruptedException
+     */
+    public Table run() throws InterruptedException {
+
+        if (observables.isEmpty() || combinations.isEmpty()) {
+            throw new KlabIllegalStateException("a sweep needs at least one observable and one combination of scenarios");
+        }
+
+        List<Pair<Observable, Object>> injected = shared instanceof ContextImpl ? ((ContextImpl) shared).takeInjected()
+                : Collections.emptyList();
+
+        List<Row> rows = new ArrayList<>();
+        List<List<Row>> rowsByCombination = new ArrayList<>();
+        for(List<String> scenarios : combinations) {
+            List<Row> combination = new ArrayList<>();
+            for(Observable observable : observables) {
+                combination.add(new Row(scenarios, observable));
+            }
+            rows.addAll(combination);
+            rowsByCombination.add(combination);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, combinations.size()),
+                Threads.factory("klab-sweep"));
+        try {
+            List<Future< ? >> tasks = new ArrayList<>();
+            for(List<Row> combination : rowsByCombination) {
+                tasks.add(executor.submit(() -> {
+                    run(combination, injected);
+                    return null;
+                }));
+            }
+            for(Future< ? > task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    // failures are recorded in the rows
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+
+        return new Table(rows);
+    }
+
+    /*
+     * Submit all the observables of a combination at once, then collect them.
+     */
+    private void run(List<Row> combination, List<Pair<Observable, Object>> injected) throws InterruptedException {
+
+        long start = System.nanoTime();
+        String[] scenarios = combination.get(0).scenarios.toArray(new String[0]);
+        Context context;
+        try {
+            context = contexts.create(scenarios);
+            if (context == null) {
+                throw new KlabIllegalStateException("context could not be created");
+            }
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            for(Row row : combination) {
+                row.error = message(e);
+            }
+            return;
+        }
+
+        List<Future<Observation>> observations = new ArrayList<>();
+        for(Row row : combination) {
+            try {
+                observations.add(submit(context, row.observable, scenarios, injected));
+            } catch (RuntimeException e) {
+                observations.add(null);
+                row.error = message(e);
+            }
+        }
+
+        for(int i = 0; i < combination.size(); i++) {
+            Row row = combination.get(i);
+            if (observations.get(i) == null) {
+                continue;
+            }
+            try {
+                Observation observation = observations.get(i).get();
+                row.nanos = System.nanoTime() - start;
+                if (observation == null || observation.isEmpty()) {
+                    row.error = "no observation was made";
+                    continue;
+                }
+                row.observation = observation;
+                try {
+                    row.range = observation.getDataRange();
+                    row.aggregatedValue = observation.getAggregatedValue();
+                } catch (KlabIllegalStateException e) {
+                    // not a state
+                }
+            } catch (ExecutionException | RuntimeException e) {
+                row.error = message(e);
+            }
+        }
+    }
+
+    /*
+     * The shared context is submitted to by one combination at a time, so that the injected states
+     * go with the observation they were injected for.
+     */
+    private Future<Observation> submit(Context context, Observable observable, String[] scenarios,
+            List<Pair<Observable, Object>> injected) {
+        if (context != shared) {
+            return context.submit(observable, (Object[]) scenarios);
+        }
+        synchronized (shared) {
+            for(Pair<Observable, Object> state : injected) {
+                shared.with(state.getFirst(), state.getSecond());
+            }
+            return shared.submit(observable, (Object[]) scenarios);
+        }
+    }
+
+    private static String message(Throwable e) {
+        Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+        return cause.getMessage() == null ? cause.getClass().getSimpleName() : cause.getMessage();
+    }
+}
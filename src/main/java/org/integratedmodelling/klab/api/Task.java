@@ -0,0 +1,56 @@
+package org.integratedmodelling.klab.api;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The future result of a request computed by the engine through a ticket, which reports the
+ * ticket's progress and an estimate of its remaining time.
+ * <p>
+ * The ticket is polled while waiting for the result in {@link #get()}, so progress is only
+ * updated while some thread is waiting. The expected time is known from submission if similar
+ * requests have been resolved before, e.g. to order work or choose timeouts.
+ * 
+ * @author Ferd
+ *
+ * @param <T> the type of the result
+ */
+public interface Task<T> extends Future<T> {
+
+    /**
+     * Wait for the result until the deadline, which also bounds the calls made to the engine to
+     * poll the ticket and retrieve the result. Pass the same deadline to all the steps of a chain
+     * of operations to complete the whole chain in time.
+     * 
+     * @param deadline
+     * @return the result
+     * @throws TimeoutException if the result was not available before the deadline
+     */
+    T get(Deadline deadline) throws InterruptedException, ExecutionException, TimeoutException;
+
+    /**
+     * @return the engine ticket computing the result
+     */
+    String getTicketId();
+
+    /**
+     * @return the progress at the last poll, or at submission if not polled yet
+     */
+    Progress getProgress();
+
+    /**
+     * Add a listener notified whenever the ticket changes status or data. The listener is called
+     * with the current progress before this method returns.
+     * 
+     * @param listener
+     * @return this task for chaining
+     */
+    Task<T> addListener(Progress.Listener listener);
+
+    /**
+     * @param listener
+     * @return this task for chaining
+     */
+    Task<T> removeListener(Progress.Listener listener);
+}
@@ -0,0 +1,631 @@
+package org.integratedmodelling.klab.api;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.impl.Threads;
+import org.integratedmodelling.klab.exceptions.KlabIOException;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+import org.integratedmodelling.klab.exceptions.KlabRemoteException;
+
+/**
+ * Serves the PNG render of a state as standard XYZ map tiles: 256 pixel squares in the Web
+ * Mercator projection, numbered from the north west corner at each zoom level, for web maps that
+ * pan and zoom over it:
+ *
+ * <pre>
+ * TilePyramid tiles = TilePyramid.of(elevation, 33.796, -9.41, 35.946, -7.086);
+ * byte[] png = tiles.getTile(zoom, x, y);
+ * </pre>
+ *
+ * The engine renders the whole state, so tiles are cut from renders made at the width in pixels
+ * the state has at each zoom level, up to {@link #maxRenderSize(int)}, beyond which the largest
+ * render is magnified. Each render is made once and all the tiles of its zoom levels are cut from
+ * it, assuming that it spans the longitude and latitude bounds passed evenly, as the renders of
+ * contexts in geographic coordinates do.
+ * <p>
+ * Tiles are kept in a memory cache and in a disk cache, both bounded and evicting the least
+ * recently used tiles; the disk cache persists across clients, in <code>~/.klab/tiles</code> by
+ * default, and is shared by all the pyramids of a process that use the same directory. Concurrent
+ * requests for the same tile, or for tiles of the same render, wait for a single render and cut.
+ * Once a tile is served its neighbours are cut in the background so that panning finds them ready.
+ * Tiles outside the state are transparent and not cached.
+ *
+ * @author Ferd
+ *
+ */
+public class TilePyramid implements Closeable {
+
+    /**
+     * Size in pixels of the side of a tile.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /*
+     * Renders kept decoded for cutting, beyond the one at the maximum size.
+     */
+    private static final int RENDERS_KEPT = 2;
+
+    private static final byte[] EMPTY = encode(new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB));
+
+    /*
+     * A render decoded to packed ARGB pixels.
+     */
+    private static class Render {
+
+        final int width;
+        final int height;
+        final int[] pixels;
+
+        Render(BufferedImage image) {
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            BufferedImage argb = image;
+            if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+                argb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                argb.getGraphics().drawImage(image, 0, 0, null);
+            }
+            this.pixels = ((DataBufferInt) argb.getRaster().getDataBuffer()).getData();
+        }
+    }
+
+    private final Observation observation;
+    private final double west;
+    private final double south;
+    private final double east;
+    private final double north;
+    private Object[] parameters = new Object[0];
+    private Path directory = Paths.get(System.getProperty("user.home"), ".klab", "tiles");
+    private long memoryBytes = 64L << 20;
+    private long diskBytes = 512L << 20;
+    private int maxRenderSize = 4096;
+    private boolean prefetch = true;
+    private int maxPrefetching = 16;
+
+    private final Map<String, byte[]> memory = new LinkedHashMap<>(256, 0.75f, true);
+    private long memorySize;
+    private DiskCache disk;
+    private final Map<String, CompletableFuture<byte[]>> tilesInFlight = new ConcurrentHashMap<>();
+    private final Map<Integer, CompletableFuture<Render>> rendersInFlight = new ConcurrentHashMap<>();
+    private final Map<Integer, Render> renders = new LinkedHashMap<>(4, 0.75f, true);
+    private final AtomicInteger prefetching = new AtomicInteger();
+    private ExecutorService executor;
+
+    private TilePyramid(Observation observation, double west, double south, double east, double north) {
+        this.observation = observation;
+        this.west = west;
+        this.south = south;
+        this.east = east;
+        this.north = north;
+    }
+
+    /**
+     * Tiles of the render of a state, whose extent has the passed bounds in degrees of longitude
+     * and latitude.
+     *
+     * @param state
+     * @param west
+     * @param south
+     * @param east
+     * @param north
+     * @return
+     */
+    public static TilePyramid of(Observation state, double west, double south, double east, double north) {
+        if (!(east > west) || !(north > south) || south < -90 || north > 90) {
+            throw new KlabIllegalArgumentException("invalid geographic bounds for tiles");
+        }
+        return new TilePyramid(state, west, south, east, north);
+    }
+
+    /**
+     * Parameters for the PNG export the tiles are cut from, which also select the tiles in the
+     * disk cache, as in {@link Observation#export(Export, ExportFormat, java.io.OutputStream, Object...)}.
+     * The viewport is chosen by the pyramid.
+     *
+     * @param parameters
+     * @return this for chaining
+     */
+    public TilePyramid parameters(Object... parameters) {
+        this.parameters = parameters;
+        return this;
+    }
+
+    /**
+     * The directory of the disk cache, created when the first tile is stored.
+     *
+     * @param directory
+     * @return this for chaining
+     */
+    public synchronized TilePyramid directory(Path directory) {
+        this.directory = directory;
+        this.disk = null;
+        return this;
+    }
+
+    /**
+     * The maximum size of the tiles kept in memory. The default is 64 MB. The renders the tiles
+     * are cut from are kept decoded besides, up to three at 4 bytes per pixel: the largest, at the
+     * default {@link #maxRenderSize(int)}, takes 64 MB for a square state.
+     *
+     * @param bytes
+     * @return this for chaining
+     */
+    public TilePyramid memoryBytes(long bytes) {
+        this.memoryBytes = bytes;
+        return this;
+    }
+
+    /**
+     * The maximum size of the tiles kept on disk. The default is 512 MB; 0 disables the disk cache.
+     * The pyramids sharing a directory keep all its tiles within the bound of the one storing a
+     * tile. Other processes using the directory are only seen when the cache is first read.
+     *
+     * @param bytes
+     * @return this for chaining
+     */
+    public TilePyramid diskBytes(long bytes) {
+        this.diskBytes = bytes;
+        return this;
+    }
+
+    /**
+     * The largest width in pixels asked to the engine for a render. The default is 4096.
+     *
+     * @param pixels
+     * @return this for chaining
+     */
+    public TilePyramid maxRenderSize(int pixels) {
+        if (pixels < TILE_SIZE) {
+            throw new KlabIllegalArgumentException("renders must be at least as large as a tile");
+        }
+        this.maxRenderSize = pixels;
+        return this;
+    }
+
+    /**
+     * Whether to cut the neighbours of each tile served in the background. The default is true.
+     *
+     * @param prefetch
+     * @return this for chaining
+     */
+    public TilePyramid prefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * A tile, from the caches if there, otherwise cut from a render of the state.
+     *
+     * @param z the zoom level
+     * @param x the column, from the antimeridian going east
+     * @param y the row, from the north going south
+     * @return the PNG image of the tile
+     * @throws KlabRemoteException if the render cannot be downloaded
+     * @throws java.util.concurrent.CancellationException if the pyramid is closed meanwhile
+     */
+    public byte[] getTile(int z, int x, int y) {
+        try {
+            return getTileAsync(z, x, y).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * A tile, computed in the background unless in the memory cache.
+     *
+     * @param z
+     * @param x
+     * @param y
+     * @return a future for the PNG image of the tile
+     */
+    public CompletableFuture<byte[]> getTileAsync(int z, int x, int y) {
+        CompletableFuture<byte[]> ret = tile(z, x, y);
+        if (prefetch) {
+            ret.thenRun(() -> prefetchAround(z, x, y));
+        }
+        return ret;
+    }
+
+    /**
+     * @param z
+     * @param x
+     * @param y
+     * @return true if the tile is in the memory or disk cache
+     */
+    public boolean contains(int z, int x, int y) {
+        String key = key(z, x, y);
+        synchronized (memory) {
+            if (memory.containsKey(key)) {
+                return true;
+            }
+        }
+        return diskBytes > 0 && disk().contains(key);
+    }
+
+    private CompletableFuture<byte[]> tile(int z, int x, int y) {
+
+        if (z < 0 || z > 30 || x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+            throw new KlabIllegalArgumentException("no tile " + z + "/" + x + "/" + y);
+        }
+        if (tileWest(z, x) >= east || tileWest(z, x + 1) <= west || tileNorth(z, y) <= south
+                || tileNorth(z, y + 1) >= north) {
+            return CompletableFuture.completedFuture(EMPTY);
+        }
+
+        String key = key(z, x, y);
+        byte[] cached = fromMemory(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        // the first request starts the work, concurrent ones wait for it
+        CompletableFuture<byte[]> created = new CompletableFuture<>();
+        CompletableFuture<byte[]> ret = tilesInFlight.putIfAbsent(key, created);
+        if (ret != null) {
+            return ret;
+        }
+        executor().execute(() -> {
+            try {
+                byte[] tile = fromDisk(key);
+                if (tile == null) {
+                    tile = cut(z, x, y, render(viewport(z)));
+                    toDisk(key, tile);
+                }
+                toMemory(key, tile);
+                created.complete(tile);
+            } catch (Throwable t) {
+                created.completeExceptionally(t);
+            } finally {
+                // unless close() has already dropped it
+                tilesInFlight.remove(key, created);
+            }
+        });
+        return created;
+    }
+
+    private void prefetchAround(int z, int x, int y) {
+        int tiles = 1 << z;
+        for(int dy = -1; dy <= 1; dy++) {
+            for(int dx = -1; dx <= 1; dx++) {
+                int nx = x + dx;
+                int ny = y + dy;
+                if ((dx == 0 && dy == 0) || nx < 0 || ny < 0 || nx >= tiles || ny >= tiles) {
+                    continue;
+                }
+                // a bounded number at a time, so that fast panning does not queue up work
+                if (prefetching.incrementAndGet() > maxPrefetching) {
+                    prefetching.decrementAndGet();
+                    return;
+                }
+                try {
+                    tile(z, nx, ny).whenComplete((tile, error) -> prefetching.decrementAndGet());
+                } catch (RuntimeException e) {
+                    prefetching.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /*
+     * The width of the render for a zoom level: the state's width in tile pixels, up to the
+     * maximum.
+     */
+    private int viewport(int z) {
+        double pixels = (east - west) / 360.0 * TILE_SIZE * (1L << z);
+        return (int) Math.max(1, Math.min(maxRenderSize, Math.ceil(pixels)));
+    }
+
+    private Render render(int viewport) {
+        synchronized (renders) {
+            Render ret = renders.get(viewport);
+            if (ret != null) {
+                return ret;
+            }
+        }
+        CompletableFuture<Render> created = new CompletableFuture<>();
+        CompletableFuture<Render> existing = rendersInFlight.putIfAbsent(viewport, created);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            Render ret = download(viewport);
+            synchronized (renders) {
+                renders.put(viewport, ret);
+                // the largest render serves all deep zoom levels and is kept
+                Iterator<Integer> kept = renders.keySet().iterator();
+                while (renders.size() > RENDERS_KEPT + (renders.containsKey(maxRenderSize) ? 1 : 0) && kept.hasNext()) {
+                    if (kept.next() != maxRenderSize) {
+                        kept.remove();
+                    }
+                }
+            }
+            created.complete(ret);
+            return ret;
+        } catch (RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            rendersInFlight.remove(viewport, created);
+        }
+    }
+
+    private Render download(int viewport) {
+        List<Object> query = new ArrayList<>(Arrays.asList(parameters));
+        query.add("viewport");
+        query.add(String.valueOf(viewport));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (!observation.export(Export.DATA, ExportFormat.PNG_IMAGE, output, query.toArray())) {
+            throw new KlabRemoteException("could not render " + observation + " as PNG");
+        }
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(output.toByteArray()));
+            if (image == null) {
+                throw new KlabIOException("the render of " + observation + " is not a readable image");
+            }
+            return new Render(image);
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        }
+    }
+
+    /*
+     * Resample the render into the tile, by nearest neighbour from the center of each pixel.
+     */
+    private byte[] cut(int z, int x, int y, Render render) {
+
+        int[] columns = new int[TILE_SIZE];
+        double tileWest = tileWest(z, x);
+        double pixelWidth = (tileWest(z, x + 1) - tileWest) / TILE_SIZE;
+        for(int i = 0; i < TILE_SIZE; i++) {
+            double lon = tileWest + (i + 0.5) * pixelWidth;
+            columns[i] = lon < west || lon >= east ? -1 : (int) ((lon - west) / (east - west) * render.width);
+        }
+
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+        for(int j = 0; j < TILE_SIZE; j++) {
+            double lat = latitude(z, y * (double) TILE_SIZE + j + 0.5);
+            if (lat <= south || lat > north) {
+                continue;
+            }
+            int row = Math.min(render.height - 1, (int) ((north - lat) / (north - south) * render.height));
+            int offset = row * render.width;
+            for(int i = 0; i < TILE_SIZE; i++) {
+                if (columns[i] >= 0) {
+                    pixels[j * TILE_SIZE + i] = render.pixels[offset + Math.min(render.width - 1, columns[i])];
+                }
+            }
+        }
+        return encode(tile);
+    }
+
+    private static byte[] encode(BufferedImage image) {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "png", ret);
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        }
+        return ret.toByteArray();
+    }
+
+    private static double tileWest(int z, int x) {
+        return x * 360.0 / (1L << z) - 180;
+    }
+
+    private static double tileNorth(int z, int y) {
+        return latitude(z, y * (double) TILE_SIZE);
+    }
+
+    /*
+     * Latitude of a pixel row of the whole Web Mercator map at a zoom level.
+     */
+    private static double latitude(int z, double row) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * row / (TILE_SIZE * (double) (1L << z))))));
+    }
+
+    private String key(int z, int x, int y) {
+        StringBuilder ret = new StringBuilder(observation.getId());
+        for(Object parameter : parameters) {
+            if (!(parameter instanceof Deadline)) {
+                ret.append('_').append(parameter);
+            }
+        }
+        return ret.append('/').append(z).append('/').append(x).append('/').append(y).toString();
+    }
+
+    private byte[] fromMemory(String key) {
+        synchronized (memory) {
+            return memory.get(key);
+        }
+    }
+
+    private void toMemory(String key, byte[] tile) {
+        synchronized (memory) {
+            byte[] previous = memory.put(key, tile);
+            memorySize += tile.length - (previous == null ? 0 : previous.length);
+            Iterator<byte[]> eldest = memory.values().iterator();
+            while (memorySize > memoryBytes && eldest.hasNext()) {
+                memorySize -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    private byte[] fromDisk(String key) {
+        return diskBytes > 0 ? disk().read(key) : null;
+    }
+
+    private void toDisk(String key, byte[] tile) throws IOException {
+        if (diskBytes > 0) {
+            disk().write(key, tile, diskBytes);
+        }
+    }
+
+    private synchronized DiskCache disk() {
+        if (disk == null) {
+            disk = DiskCache.of(directory);
+        }
+        return disk;
+    }
+
+    /*
+     * The tiles stored in a directory, least recently used first, shared by all the pyramids in
+     * the process that use the directory so that they keep to one bound.
+     */
+    private static class DiskCache {
+
+        private static final Map<Path, DiskCache> caches = new ConcurrentHashMap<>();
+
+        private final Path directory;
+        private Map<Path, Long> tiles;
+        private long size;
+
+        private DiskCache(Path directory) {
+            this.directory = directory;
+        }
+
+        static DiskCache of(Path directory) {
+            return caches.computeIfAbsent(directory.toAbsolutePath().normalize(), DiskCache::new);
+        }
+
+        synchronized boolean contains(String key) {
+            return tiles().containsKey(file(key));
+        }
+
+        byte[] read(String key) {
+            Path file = file(key);
+            synchronized (this) {
+                // moves it to the most recently used
+                if (tiles().get(file) == null) {
+                    return null;
+                }
+            }
+            try {
+                byte[] ret = Files.readAllBytes(file);
+                // the modification time orders the tiles by use across clients
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                return ret;
+            } catch (IOException e) {
+                // evicted by another process
+                synchronized (this) {
+                    Long stored = tiles().remove(file);
+                    size -= stored == null ? 0 : stored;
+                }
+                return null;
+            }
+        }
+
+        void write(String key, byte[] tile, long maxBytes) throws IOException {
+            Path file = file(key);
+            Files.createDirectories(file.getParent());
+            Path written = Files.createTempFile(file.getParent(), ".tile", ".tmp");
+            Files.write(written, tile);
+            Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                Long previous = tiles().put(file, (long) tile.length);
+                size += tile.length - (previous == null ? 0 : previous);
+                Iterator<Map.Entry<Path, Long>> eldest = tiles.entrySet().iterator();
+                while (size > maxBytes && eldest.hasNext()) {
+                    Map.Entry<Path, Long> entry = eldest.next();
+                    size -= entry.getValue();
+                    eldest.remove();
+                    Files.deleteIfExists(entry.getKey());
+                }
+            }
+        }
+
+        private Path file(String key) {
+            // keep the key readable but safe as a path
+            return directory.resolve(key.replaceAll("[^A-Za-z0-9_./=-]", "_").replace("..", "_") + ".png");
+        }
+
+        /*
+         * Read from the directory at the first use, ordered by modification time.
+         */
+        private Map<Path, Long> tiles() {
+            if (tiles == null) {
+                tiles = new LinkedHashMap<>(256, 0.75f, true);
+                size = 0;
+                if (Files.isDirectory(directory)) {
+                    try (Stream<Path> files = Files.walk(directory)) {
+                        List<Path> stored = files.filter(file -> file.toString().endsWith(".png")).collect(Collectors.toList());
+                        Map<Path, Long> used = new LinkedHashMap<>();
+                        for(Path tile : stored) {
+                            used.put(tile, Files.getLastModifiedTime(tile).toMillis());
+                        }
+                        stored.sort(Comparator.comparing(used::get));
+                        for(Path tile : stored) {
+                            long bytes = Files.size(tile);
+                            tiles.put(tile, bytes);
+                            size += bytes;
+                        }
+                    } catch (IOException e) {
+                        tiles = null;
+                        throw new KlabIOException(e);
+                    }
+                }
+            }
+            return tiles;
+        }
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Threads.executor("klab-tiles");
+        }
+        return executor;
+    }
+
+    /**
+     * Stop the background work. Tiles still being made are cancelled, so that threads waiting for
+     * them are released and later requests start them again. The caches stay on disk.
+     */
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        for(CompletableFuture<byte[]> tile : tilesInFlight.values()) {
+            tile.cancel(false);
+        }
+        tilesInFlight.clear();
+        for(CompletableFuture<Render> render : rendersInFlight.values()) {
+            render.cancel(false);
+        }
+        rendersInFlight.clear();
+    }
+}
@@ -0,0 +1,65 @@
+package org.integratedmodelling.klab.api;
+
+import java.io.InputStream;
+
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.exceptions.KlabIllegalStateException;
+import org.integratedmodelling.klab.utils.Range;
+
+/**
+ * One completed timestep of a dynamic observation, as published by
+ * {@link Context#publishTimesteps(Observable, ExportFormat, int, Object...)}: the summary
+ * statistics of its state slice and, if a format was requested, the slice data exported in it.
+ * 
+ * @author Ferd
+ *
+ */
+public interface Timestep {
+
+    /**
+     * The index of the timestep, starting at 0, or -1 if the engine did not report timesteps and
+     * the whole observation was published at once.
+     * 
+     * @return
+     */
+    int getIndex();
+
+    /**
+     * The descriptor of the observation at this timestep.
+     * 
+     * @return
+     */
+    Observation getObservation();
+
+    /**
+     * The range of the data at this timestep.
+     * 
+     * @return
+     * @throws KlabIllegalStateException if the observation is not a state
+     */
+    Range getDataRange();
+
+    /**
+     * The aggregated value of the data at this timestep, as in
+     * {@link Observation#getAggregatedValue()}.
+     * 
+     * @return
+     * @throws KlabIllegalStateException if the observation is not a state
+     */
+    Object getAggregatedValue();
+
+    /**
+     * @return the format of the data, or null if only the statistics were requested
+     */
+    ExportFormat getFormat();
+
+    /**
+     * @return the exported slice, or null if only the statistics were requested
+     */
+    byte[] getData();
+
+    /**
+     * @return a stream over the exported slice, or null if only the statistics were requested
+     */
+    InputStream getInputStream();
+}
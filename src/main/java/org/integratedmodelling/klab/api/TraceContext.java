@@ -0,0 +1,132 @@
+package org.integratedmodelling.klab.api;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Immutable trace and span identifiers following the
+ * <a href="https://www.w3.org/TR/trace-context/">W3C Trace Context</a> format, sent to the engine
+ * in the <code>traceparent</code> header of each request so that client and server spans can be
+ * stitched together. Create from an existing tracing system with {@link #parse(String)} or
+ * {@link #TraceContext(String, String, boolean)} to continue its traces.
+ */
+public final class TraceContext {
+
+    /**
+     * The header carrying the trace context in each request.
+     */
+    public static final String HEADER = "traceparent";
+
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final boolean sampled;
+
+    /**
+     * @param traceId 32 lowercase hex characters
+     * @param spanId 16 lowercase hex characters
+     * @param sampled
+     */
+    public TraceContext(String traceId, String spanId, boolean sampled) {
+        this(traceId, spanId, null, sampled);
+    }
+
+    private TraceContext(String traceId, String spanId, String parentSpanId, boolean sampled) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.sampled = sampled;
+    }
+
+    /**
+     * Start a new, sampled trace.
+     *
+     * @return
+     */
+    public static TraceContext create() {
+        return new TraceContext(hex(2), hex(1), null, true);
+    }
+
+    /**
+     * Parse a <code>traceparent</code> header value.
+     *
+     * @param traceParent
+     * @return the context, or null if the value is not a valid version 00 trace parent.
+     */
+    public static TraceContext parse(String traceParent) {
+        if (traceParent == null) {
+            return null;
+        }
+        String[] parts = traceParent.trim().split("-");
+        if (parts.length != 4 || !"00".equals(parts[0]) || parts[1].length() != 32 || parts[2].length() != 16
+                || parts[3].length() != 2 || !isHex(parts[1]) || !isHex(parts[2]) || !isHex(parts[3])) {
+            return null;
+        }
+        return new TraceContext(parts[1], parts[2], null, (Integer.parseInt(parts[3], 16) & 1) != 0);
+    }
+
+    /**
+     * A new span in the same trace, with this span as its parent.
+     *
+     * @return
+     */
+    public TraceContext child() {
+        return new TraceContext(traceId, hex(1), spanId, sampled);
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * @return the parent span ID, or null for a root span or one created from outside.
+     */
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * @return the value for the {@link #HEADER} header.
+     */
+    public String toTraceParent() {
+        return "00-" + traceId + "-" + spanId + (sampled ? "-01" : "-00");
+    }
+
+    @Override
+    public String toString() {
+        return toTraceParent();
+    }
+
+    private static String hex(int longs) {
+        StringBuilder ret = new StringBuilder(longs * 16);
+        for(int i = 0; i < longs; i++) {
+            long value;
+            do {
+                value = ThreadLocalRandom.current().nextLong();
+            } while (value == 0);
+            String digits = Long.toHexString(value);
+            for(int j = digits.length(); j < 16; j++) {
+                ret.append('0');
+            }
+            ret.append(digits);
+        }
+        return ret.toString();
+    }
+
+    private static boolean isHex(String s) {
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
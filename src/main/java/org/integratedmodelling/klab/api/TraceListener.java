@@ -0,0 +1,112 @@
+package org.integratedmodelling.klab.api;
+
+import java.util.List;
+
+import org.integratedmodelling.klab.api.runtime.ITicket;
+
+/**
+ * Listener for the lifecycle of the requests made by a {@link Klab} client, to bridge to a tracing
+ * system. Install with {@link Klab#setTraceListener(TraceListener)}.
+ * <p>
+ * Each request submitted to the engine starts a trace (continuing the one returned by
+ * {@link #getCurrentContext()} if any), which is kept through the polling of its ticket and the
+ * retrieval of the results, whatever thread does them. Every HTTP call is a child span of it whose
+ * identifiers are sent to the engine in the {@link TraceContext#HEADER} header. Callbacks come
+ * from the threads using the client and must be thread-safe and quick.
+ */
+public interface TraceListener {
+
+    /**
+     * No tracing, the default.
+     */
+    TraceListener NONE = new TraceListener(){
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    /**
+     * If false, no trace contexts are created, no headers are sent and no other method is called.
+     *
+     * @return
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * The span active in the calling thread according to the tracing system, to use as the parent
+     * of the spans created by the client.
+     *
+     * @return the current span, or null to start a new trace for each request.
+     */
+    default TraceContext getCurrentContext() {
+        return null;
+    }
+
+    /**
+     * A request bean has been built and is about to be sent.
+     *
+     * @param trace the trace for the request's lifecycle
+     * @param endpoint the endpoint template the request is sent to
+     * @param request the request bean
+     */
+    default void requestBuilt(TraceContext trace, String endpoint, Object request) {
+    }
+
+    /**
+     * An HTTP request is being sent.
+     *
+     * @param span the span for the call, child of the request's trace
+     * @param method
+     * @param endpoint the endpoint template
+     */
+    default void httpSent(TraceContext span, String method, String endpoint) {
+    }
+
+    /**
+     * The response to an HTTP request has been received, or the call failed.
+     *
+     * @param span the span for the call
+     * @param method
+     * @param endpoint the endpoint template
+     * @param status the HTTP status, or 0 if no response was received
+     * @param nanos duration of the call
+     */
+    default void httpReceived(TraceContext span, String method, String endpoint, int status, long nanos) {
+    }
+
+    /**
+     * The status of a ticket has been retrieved.
+     *
+     * @param trace the request's trace
+     * @param ticketId
+     * @param status the status, or null if it could not be retrieved
+     */
+    default void ticketPolled(TraceContext trace, String ticketId, ITicket.Status status) {
+    }
+
+    /**
+     * A ticket has reached a final state.
+     *
+     * @param trace the request's trace
+     * @param ticketId
+     * @param status the final status, null if the ticket was lost
+     * @param nanos time since submission
+     */
+    default void ticketResolved(TraceContext trace, String ticketId, ITicket.Status status, long nanos) {
+    }
+
+    /**
+     * The artifacts produced by a resolved ticket have been retrieved.
+     *
+     * @param trace the request's trace
+     * @param ticketId
+     * @param artifactIds the IDs of the observations retrieved
+     * @param nanos time spent retrieving them
+     */
+    default void artifactsFetched(TraceContext trace, String ticketId, List<String> artifactIds, long nanos) {
+    }
+
+}
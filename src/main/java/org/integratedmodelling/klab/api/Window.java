@@ -0,0 +1,131 @@
+package org.integratedmodelling.klab.api;
+
+import java.io.OutputStream;
+
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+
+/**
+ * A sub-window of a state's raster and the resolution to export it at, passed among the parameters
+ * of {@link Observation#export(Export, ExportFormat, OutputStream, Object...)} to get only the area
+ * in view of an interactive client:
+ *
+ * <pre>
+ * Window view = Window.of(minX, minY, maxX, maxY).resolution(metersPerPixel);
+ * elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, output, view);
+ * </pre>
+ *
+ * The bounding box is in the CRS of the context. The export covers the cells that overlap it,
+ * widened to whole cells of the decimated grid, which is aligned to the origin of the raster so
+ * that windows exported at the same resolution fit together. Each decimated cell has the mean of
+ * the cells with data it covers. Windows are cut by the client from the states in the
+ * {@link StateStore} set with {@link Klab#setStateStore(StateStore)}, so each state is downloaded
+ * once and panning and zooming transfer nothing more. The window is written in 64 bit floats, so
+ * the values stored are exported unchanged. Only {@link ExportFormat#GEOTIFF_RASTER}
+ * and the Arrow formats built from it support windows.
+ *
+ * @author Ferd
+ *
+ */
+public final class Window {
+
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+    private final double resolution;
+    private final int decimation;
+
+    private Window(double minX, double minY, double maxX, double maxY, double resolution, int decimation) {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.resolution = resolution;
+        this.decimation = decimation;
+    }
+
+    /**
+     * A window at the full resolution of the raster.
+     *
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     * @return
+     */
+    public static Window of(double minX, double minY, double maxX, double maxY) {
+        if (!(maxX > minX) || !(maxY > minY)) {
+            throw new KlabIllegalArgumentException("window bounds are empty");
+        }
+        return new Window(minX, minY, maxX, maxY, Double.NaN, 0);
+    }
+
+    /**
+     * The same window with the largest decimation whose cells are not larger than the passed
+     * size, in the units of the CRS.
+     *
+     * @param cellSize
+     * @return
+     */
+    public Window resolution(double cellSize) {
+        if (!(cellSize > 0)) {
+            throw new KlabIllegalArgumentException("window resolution must be positive");
+        }
+        return new Window(minX, minY, maxX, maxY, cellSize, 0);
+    }
+
+    /**
+     * The same window with each side of a cell spanning the passed number of raster cells.
+     *
+     * @param factor
+     * @return
+     */
+    public Window decimation(int factor) {
+        if (factor < 1) {
+            throw new KlabIllegalArgumentException("window decimation must be at least 1");
+        }
+        return new Window(minX, minY, maxX, maxY, Double.NaN, factor);
+    }
+
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMinY() {
+        return minY;
+    }
+
+    public double getMaxX() {
+        return maxX;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
+
+    /**
+     * The decimation for a raster with the passed cell size.
+     *
+     * @param cellSize
+     * @return the raster cells along each side of a window cell, at least 1
+     */
+    public int getDecimation(double cellSize) {
+        if (decimation > 0) {
+            return decimation;
+        }
+        if (!Double.isNaN(resolution)) {
+            // tolerate rounding in sizes that are exact multiples
+            return Math.max(1, (int) Math.floor(resolution / cellSize + 1e-9));
+        }
+        return 1;
+    }
+
+    @Override
+    public String toString() {
+        return "window [" + minX + ", " + minY + ", " + maxX + ", " + maxY + "]"
+                + (decimation > 0 ? " decimated by " + decimation : "")
+                + (Double.isNaN(resolution) ? "" : " at " + resolution);
+    }
+}
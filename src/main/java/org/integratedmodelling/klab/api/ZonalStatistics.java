@@ -0,0 +1,578 @@
+package org.integratedmodelling.klab.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.impl.GeoJsonFeatures;
+import org.integratedmodelling.klab.api.impl.GeoTiffRaster;
+import org.integratedmodelling.klab.exceptions.KlabIOException;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+import org.integratedmodelling.klab.exceptions.KlabIllegalStateException;
+import org.integratedmodelling.klab.exceptions.KlabRemoteException;
+import org.integratedmodelling.klab.utils.Range;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Computes count, sum, mean, minimum, maximum and optionally a histogram of the values of a
+ * raster within each of a set of polygonal zones, such as the mean elevation of each municipality
+ * or the total runoff of each watershed. The raster is a state, downloaded as GeoTIFF, or a
+ * GeoTIFF file exported before; the zones are the polygons of a feature observation, made in the
+ * same context so that they share the raster's projection, or polygons given with their
+ * coordinates in that projection:
+ *
+ * <pre>
+ * Map&lt;String, ZonalStatistics.Zone&gt; runoff = ZonalStatistics.of(runoffState)
+ *         .zones(watersheds)
+ *         .histogram(20)
+ *         .compute();
+ * </pre>
+ *
+ * The raster is read one block at a time and the blocks are processed in parallel with fork/join.
+ * A cell belongs to a zone if its center is inside the zone's polygons, holes excluded; zones may
+ * overlap. Cells with no data are not counted.
+ *
+ * @author Ferd
+ *
+ */
+public class ZonalStatistics {
+
+    /*
+     * Blocks processed by a single task before splitting is not worth it.
+     */
+    private static final int CELLS_PER_TASK = 65536;
+
+    /**
+     * The statistics of the raster cells in one zone.
+     */
+    public static class Zone {
+
+        private final String id;
+        private long count;
+        private double sum;
+        private double min = Double.NaN;
+        private double max = Double.NaN;
+        private long[] histogram;
+        private Range histogramRange;
+
+        Zone(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the number of cells with data in the zone
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public double getSum() {
+            return sum;
+        }
+
+        /**
+         * @return the mean, or NaN if the zone has no cells with data
+         */
+        public double getMean() {
+            return count == 0 ? Double.NaN : sum / count;
+        }
+
+        /**
+         * @return the minimum, or NaN if the zone has no cells with data
+         */
+        public double getMin() {
+            return min;
+        }
+
+        /**
+         * @return the maximum, or NaN if the zone has no cells with data
+         */
+        public double getMax() {
+            return max;
+        }
+
+        /**
+         * @return the cell count of each bin of equal width over {@link #getHistogramRange()},
+         *         not including values outside it, or null if no histogram was asked for
+         */
+        public long[] getHistogram() {
+            return histogram;
+        }
+
+        public Range getHistogramRange() {
+            return histogramRange;
+        }
+
+        @Override
+        public String toString() {
+            return id + ": count=" + count + " sum=" + sum + " mean=" + getMean() + " min=" + min + " max=" + max;
+        }
+    }
+
+    /*
+     * The edges of the rings of a zone, and their bounding box.
+     */
+    private static class Polygon {
+
+        final String id;
+        final double[] edges;
+        final int edgeCount;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+
+        Polygon(String id, List<double[]> rings) {
+            this.id = id;
+            int count = 0;
+            for(double[] ring : rings) {
+                if (ring.length < 6 || ring.length % 2 != 0) {
+                    throw new KlabIllegalArgumentException("zone " + id + " has a ring with less than three points");
+                }
+                count += ring.length / 2;
+            }
+            this.edges = new double[count * 4];
+            this.edgeCount = count;
+            int e = 0;
+            for(double[] ring : rings) {
+                int points = ring.length / 2;
+                for(int i = 0; i < points; i++) {
+                    int j = (i + 1) % points;
+                    edges[e++] = ring[i * 2];
+                    edges[e++] = ring[i * 2 + 1];
+                    edges[e++] = ring[j * 2];
+                    edges[e++] = ring[j * 2 + 1];
+                    minX = Math.min(minX, ring[i * 2]);
+                    maxX = Math.max(maxX, ring[i * 2]);
+                    minY = Math.min(minY, ring[i * 2 + 1]);
+                    maxY = Math.max(maxY, ring[i * 2 + 1]);
+                }
+            }
+        }
+    }
+
+    /*
+     * Statistics of all zones over part of the raster, in arrays indexed by zone.
+     */
+    private static class Accumulator {
+
+        final long[] count;
+        final double[] sum;
+        final double[] min;
+        final double[] max;
+        final long[] histogram;
+
+        Accumulator(int zones, int bins) {
+            count = new long[zones];
+            sum = new double[zones];
+            min = new double[zones];
+            max = new double[zones];
+            histogram = new long[zones * bins];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        }
+
+        Accumulator merge(Accumulator other) {
+            for(int i = 0; i < count.length; i++) {
+                count[i] += other.count[i];
+                sum[i] += other.sum[i];
+                min[i] = Math.min(min[i], other.min[i]);
+                max[i] = Math.max(max[i], other.max[i]);
+            }
+            for(int i = 0; i < histogram.length; i++) {
+                histogram[i] += other.histogram[i];
+            }
+            return this;
+        }
+    }
+
+    private final Observation state;
+    private final File file;
+    private final List<Observation> featureZones = new ArrayList<>();
+    private final List<Polygon> zones = new ArrayList<>();
+    private int bins;
+    private double lower;
+    private double upper;
+    private boolean rangeFromState;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private ZonalStatistics(Observation state, File file) {
+        this.state = state;
+        this.file = file;
+    }
+
+    /**
+     * Statistics of a state, which is downloaded as GeoTIFF when computed.
+     *
+     * @param state
+     * @return
+     */
+    public static ZonalStatistics of(Observation state) {
+        return new ZonalStatistics(state, null);
+    }
+
+    /**
+     * Statistics of a GeoTIFF file, such as one exported with
+     * {@link Observation#export(Export, ExportFormat, File, Object...)}.
+     *
+     * @param geotiff
+     * @return
+     */
+    public static ZonalStatistics of(File geotiff) {
+        return new ZonalStatistics(null, geotiff);
+    }
+
+    /**
+     * Add a zone for each polygon or multipolygon feature of an observation, identified by the
+     * feature's id or, for features with no id, by the observation's id followed by
+     * <code>#</code> and the position of the feature. The features are downloaded as GeoJSON when
+     * computed.
+     *
+     * @param features
+     * @return this for chaining
+     */
+    public ZonalStatistics zones(Observation features) {
+        this.featureZones.add(features);
+        return this;
+    }
+
+    /**
+     * Add a zone with the passed rings, each as x, y coordinate pairs in the raster's projection.
+     * Rings inside others are holes; the last point need not repeat the first.
+     *
+     * @param id
+     * @param rings
+     * @return this for chaining
+     */
+    public ZonalStatistics zone(String id, double[]... rings) {
+        this.zones.add(new Polygon(id, Arrays.asList(rings)));
+        return this;
+    }
+
+    /**
+     * Count the values in each zone in bins of equal width between the passed bounds.
+     *
+     * @param bins
+     * @param lower
+     * @param upper
+     * @return this for chaining
+     */
+    public ZonalStatistics histogram(int bins, double lower, double upper) {
+        if (bins < 1 || !(upper > lower)) {
+            throw new KlabIllegalArgumentException("a histogram needs at least one bin and a non-empty range");
+        }
+        this.bins = bins;
+        this.lower = lower;
+        this.upper = upper;
+        this.rangeFromState = false;
+        return this;
+    }
+
+    /**
+     * Count the values in each zone in bins of equal width over the data range of the state.
+     *
+     * @param bins
+     * @return this for chaining
+     */
+    public ZonalStatistics histogram(int bins) {
+        if (bins < 1) {
+            throw new KlabIllegalArgumentException("a histogram needs at least one bin");
+        }
+        this.bins = bins;
+        this.rangeFromState = true;
+        return this;
+    }
+
+    /**
+     * The number of threads processing blocks. The default is the number of processors.
+     *
+     * @param threads
+     * @return this for chaining
+     */
+    public ZonalStatistics parallelism(int threads) {
+        if (threads < 1) {
+            throw new KlabIllegalArgumentException("zonal statistics parallelism must be at least 1");
+        }
+        this.parallelism = threads;
+        return this;
+    }
+
+    /**
+     * Download what is needed and compute the statistics.
+     *
+     * @return the statistics of each zone by id, in the order the zones were added
+     * @throws KlabIllegalArgumentException if two zones have the same id
+     * @throws KlabRemoteException if the state or features cannot be downloaded
+     * @throws KlabIOException if the raster cannot be read
+     */
+    public Map<String, Zone> compute() {
+
+        List<Polygon> polygons = new ArrayList<>();
+        for(Observation features : featureZones) {
+            polygons.addAll(readFeatures(features));
+        }
+        polygons.addAll(zones);
+        if (polygons.isEmpty()) {
+            throw new KlabIllegalStateException("zonal statistics need at least one zone");
+        }
+        Set<String> ids = new HashSet<>();
+        for(Polygon polygon : polygons) {
+            if (!ids.add(polygon.id)) {
+                throw new KlabIllegalArgumentException("more than one zone has id " + polygon.id);
+            }
+        }
+
+        if (bins > 0 && rangeFromState) {
+            Range range = state == null ? null : state.getDataRange();
+            if (range == null || Double.isInfinite(range.getLowerBound()) || Double.isInfinite(range.getUpperBound())
+                    || !(range.getUpperBound() > range.getLowerBound())) {
+                throw new KlabIllegalStateException("no data range to build a histogram on: pass its bounds");
+            }
+            lower = range.getLowerBound();
+            upper = range.getUpperBound();
+        }
+
+        File raster = file;
+        try {
+            if (raster == null) {
+                raster = File.createTempFile("klab", ".tiff");
+                if (!state.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, raster)) {
+                    throw new KlabRemoteException("could not download " + state + " as GeoTIFF");
+                }
+            }
+            try (GeoTiffRaster tiff = GeoTiffRaster.open(raster)) {
+                return compute(tiff, polygons);
+            }
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        } finally {
+            if (raster != null && raster != file) {
+                raster.delete();
+            }
+        }
+    }
+
+    private Map<String, Zone> compute(GeoTiffRaster raster, List<Polygon> polygons) {
+
+        int maxEdges = 0;
+        for(Polygon polygon : polygons) {
+            maxEdges = Math.max(maxEdges, polygon.edgeCount);
+        }
+        BlockTask task = new BlockTask(raster, polygons, maxEdges, 0, raster.getBlockCount());
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        Accumulator result;
+        try {
+            result = pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+
+        Map<String, Zone> ret = new LinkedHashMap<>();
+        for(int z = 0; z < polygons.size(); z++) {
+            Zone zone = new Zone(polygons.get(z).id);
+            zone.count = result.count[z];
+            zone.sum = result.sum[z];
+            if (zone.count > 0) {
+                zone.min = result.min[z];
+                zone.max = result.max[z];
+            }
+            if (bins > 0) {
+                zone.histogram = Arrays.copyOfRange(result.histogram, z * bins, (z + 1) * bins);
+                zone.histogramRange = Range.create(lower, upper);
+            }
+            ret.put(zone.id, zone);
+        }
+        return Collections.unmodifiableMap(ret);
+    }
+
+    /*
+     * Accumulates a range of blocks, splitting it in halves while it is large enough.
+     */
+    private class BlockTask extends RecursiveTask<Accumulator> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final GeoTiffRaster raster;
+        private final List<Polygon> polygons;
+        private final int maxEdges;
+        private final int from;
+        private final int to;
+
+        BlockTask(GeoTiffRaster raster, List<Polygon> polygons, int maxEdges, int from, int to) {
+            this.raster = raster;
+            this.polygons = polygons;
+            this.maxEdges = maxEdges;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Accumulator compute() {
+            long cells = (long) (to - from) * raster.getBlockWidth() * raster.getBlockHeight();
+            if (to - from > 1 && cells > CELLS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                BlockTask left = new BlockTask(raster, polygons, maxEdges, from, middle);
+                left.fork();
+                Accumulator right = new BlockTask(raster, polygons, maxEdges, middle, to).compute();
+                return left.join().merge(right);
+            }
+            Accumulator ret = new Accumulator(polygons.size(), bins);
+            double[] crossings = new double[maxEdges];
+            try (GeoTiffRaster.Reader reader = raster.newReader()) {
+                for(int block = from; block < to; block++) {
+                    accumulate(block, reader, crossings, ret);
+                }
+            }
+            return ret;
+        }
+
+        private void accumulate(int block, GeoTiffRaster.Reader reader, double[] crossings, Accumulator accumulator) {
+
+            double cellWidth = raster.getCellWidth();
+            double cellHeight = raster.getCellHeight();
+            int blockWidth = raster.getBlockWidth();
+            int column0 = raster.getBlockColumn(block);
+            int row0 = raster.getBlockRow(block);
+            int columns = Math.min(blockWidth, raster.getWidth() - column0);
+            int rows = Math.min(raster.getBlockHeight(), raster.getHeight() - row0);
+            double left = raster.getOriginX() + column0 * cellWidth;
+            double right = left + columns * cellWidth;
+            double top = raster.getOriginY() - row0 * cellHeight;
+            double bottom = top - rows * cellHeight;
+
+            double[] values = null;
+            for(int z = 0; z < polygons.size(); z++) {
+
+                Polygon polygon = polygons.get(z);
+                if (polygon.maxX < left || polygon.minX > right || polygon.maxY < bottom || polygon.minY > top) {
+                    continue;
+                }
+                if (values == null) {
+                    values = reader.read(block);
+                }
+
+                for(int row = 0; row < rows; row++) {
+
+                    // the cell centers in this row that are inside the polygon, by even-odd rule
+                    double y = top - (row + 0.5) * cellHeight;
+                    int n = 0;
+                    double[] edges = polygon.edges;
+                    for(int e = 0; e < edges.length; e += 4) {
+                        double y1 = edges[e + 1];
+                        double y2 = edges[e + 3];
+                        if ((y1 <= y && y < y2) || (y2 <= y && y < y1)) {
+                            double x1 = edges[e];
+                            crossings[n++] = x1 + (y - y1) * (edges[e + 2] - x1) / (y2 - y1);
+                        }
+                    }
+                    if (n < 2) {
+                        continue;
+                    }
+                    Arrays.sort(crossings, 0, n);
+
+                    for(int c = 0; c + 1 < n; c += 2) {
+                        // first and last column whose center is in [start, end)
+                        int first = (int) Math.ceil((crossings[c] - left) / cellWidth - 0.5);
+                        int last = (int) Math.ceil((crossings[c + 1] - left) / cellWidth - 0.5);
+                        first = Math.max(first, 0);
+                        last = Math.min(last, columns);
+                        int offset = row * blockWidth;
+                        for(int column = first; column < last; column++) {
+                            double value = values[offset + column];
+                            if (Double.isNaN(value)) {
+                                continue;
+                            }
+                            accumulator.count[z]++;
+                            accumulator.sum[z] += value;
+                            if (value < accumulator.min[z]) {
+                                accumulator.min[z] = value;
+                            }
+                            if (value > accumulator.max[z]) {
+                                accumulator.max[z] = value;
+                            }
+                            if (bins > 0 && value >= lower && value <= upper) {
+                                int bin = Math.min(bins - 1, (int) ((value - lower) / (upper - lower) * bins));
+                                accumulator.histogram[z * bins + bin]++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Polygon and multipolygon features from the GeoJSON export of an observation, downloaded to
+     * a temporary file and read one feature at a time.
+     */
+    private static List<Polygon> readFeatures(Observation features) {
+        List<Polygon> ret = new ArrayList<>();
+        int[] index = new int[1];
+        File download = null;
+        try {
+            download = File.createTempFile("klab", ".json");
+            if (!features.export(Export.DATA, ExportFormat.GEOJSON_FEATURES, download)) {
+                throw new KlabRemoteException("could not download " + features + " as GeoJSON");
+            }
+            GeoJsonFeatures.read(download, feature -> {
+                String id = feature.hasNonNull("id") ? feature.get("id").asText() : features.getId() + "#" + index[0];
+                index[0]++;
+                JsonNode geometry = feature.path("geometry");
+                List<double[]> rings = new ArrayList<>();
+                switch(geometry.path("type").asText()) {
+                case "Polygon":
+                    addRings(geometry.path("coordinates"), rings);
+                    break;
+                case "MultiPolygon":
+                    for(JsonNode polygon : geometry.path("coordinates")) {
+                        addRings(polygon, rings);
+                    }
+                    break;
+                default:
+                    // points and lines have no area
+                    return;
+                }
+                ret.add(new Polygon(id, rings));
+            });
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        } finally {
+            if (download != null) {
+                download.delete();
+            }
+        }
+        return ret;
+    }
+
+    private static void addRings(JsonNode polygon, List<double[]> rings) {
+        for(JsonNode ring : polygon) {
+            int points = ring.size();
+            // GeoJSON rings are closed
+            if (points > 1 && ring.get(0).equals(ring.get(points - 1))) {
+                points--;
+            }
+            double[] coordinates = new double[points * 2];
+            for(int i = 0; i < points; i++) {
+                coordinates[i * 2] = ring.get(i).get(0).asDouble();
+                coordinates[i * 2 + 1] = ring.get(i).get(1).asDouble();
+            }
+            rings.add(coordinates);
+        }
+    }
+}
@@ -0,0 +1,527 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.ipc.ArrowWriter;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.exceptions.KlabIOException;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+import org.integratedmodelling.klab.exceptions.KlabRemoteException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Builds Apache Arrow record batches from the data of an observation and writes them as an Arrow
+ * IPC stream or file. Apache Arrow (<code>arrow-vector</code> and a memory module such as
+ * <code>arrow-memory-netty</code>) is an optional dependency of this package and must be on the
+ * classpath to use this class.
+ * <ul>
+ * <li>States have a row for each cell with data, with the <code>x</code> and <code>y</code>
+ * coordinates of the cell center and the <code>value</code>, all doubles. They are read from the
+ * GeoTIFF export one raster block at a time.</li>
+ * <li>Features have a row each, with the <code>id</code>, the <code>geometry</code> as ISO WKB
+ * (tagged as <code>geoarrow.wkb</code>) and a column for each property: doubles if all its values
+ * are numbers, booleans if all are, strings otherwise. They are parsed from the GeoJSON export one
+ * feature at a time.</li>
+ * </ul>
+ * Neither export is ever held in memory as a whole or converted to a string. Batches hold at most
+ * {@link #batchSize(int)} rows.
+ */
+public class ArrowExport {
+
+    private static final Map<String, String> WKB_METADATA = Collections.singletonMap("ARROW:extension:name",
+            "geoarrow.wkb");
+
+    private interface Sink {
+        void start(VectorSchemaRoot root) throws IOException;
+
+        void batch(VectorSchemaRoot root) throws IOException;
+    }
+
+    private final Observation observation;
+    private final boolean state;
+    private int batchSize = 65536;
+    private Object[] parameters = new Object[0];
+
+    private ArrowExport(Observation observation, boolean state) {
+        this.observation = observation;
+        this.state = state;
+    }
+
+    /**
+     * Export a state or a group of features.
+     *
+     * @param observation
+     * @return
+     */
+    public static ArrowExport of(Observation observation) {
+        return new ArrowExport(observation,
+                observation instanceof ObservationImpl ? ((ObservationImpl) observation).isState() : isState(observation));
+    }
+
+    private static boolean isState(Observation observation) {
+        try {
+            observation.getDataRange();
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The maximum number of rows in a record batch. The default is 65536.
+     *
+     * @param rows
+     * @return this for chaining
+     */
+    public ArrowExport batchSize(int rows) {
+        if (rows < 1) {
+            throw new KlabIllegalArgumentException("batch size must be at least 1");
+        }
+        this.batchSize = rows;
+        return this;
+    }
+
+    /**
+     * Parameters for the export the batches are built from, as in
+     * {@link Observation#export(Export, ExportFormat, OutputStream, Object...)}.
+     *
+     * @param parameters
+     * @return this for chaining
+     */
+    public ArrowExport parameters(Object... parameters) {
+        this.parameters = parameters;
+        return this;
+    }
+
+    /**
+     * Pass each record batch to a consumer. The same root is reused and refilled for all batches,
+     * so its vectors are only valid during each call.
+     *
+     * @param allocator
+     * @param consumer
+     * @throws KlabRemoteException if the data cannot be downloaded
+     */
+    public void batches(BufferAllocator allocator, Consumer<VectorSchemaRoot> consumer) {
+        produce(allocator, new Sink() {
+
+            @Override
+            public void start(VectorSchemaRoot root) {
+            }
+
+            @Override
+            public void batch(VectorSchemaRoot root) {
+                consumer.accept(root);
+            }
+        });
+    }
+
+    /**
+     * Write the batches as an Arrow IPC stream, or as an Arrow IPC file if the format is
+     * {@link ExportFormat#ARROW_FILE}.
+     *
+     * @param output left open
+     * @param format {@link ExportFormat#ARROW_STREAM} or {@link ExportFormat#ARROW_FILE}
+     * @throws KlabRemoteException if the data cannot be downloaded
+     */
+    public void write(OutputStream output, ExportFormat format) {
+        if (format != ExportFormat.ARROW_STREAM && format != ExportFormat.ARROW_FILE) {
+            throw new KlabIllegalArgumentException("not an Arrow format: " + format);
+        }
+        ArrowWriter[] writer = new ArrowWriter[1];
+        try (BufferAllocator allocator = new RootAllocator()) {
+            produce(allocator, new Sink() {
+
+                @Override
+                public void start(VectorSchemaRoot root) throws IOException {
+                    // the writers close the channel they write to, but the stream is the caller's
+                    OutputStream unclosed = new FilterOutputStream(output) {
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            flush();
+                        }
+                    };
+                    writer[0] = format == ExportFormat.ARROW_FILE
+                            ? new ArrowFileWriter(root, new DictionaryProvider.MapDictionaryProvider(),
+                                    Channels.newChannel(unclosed))
+                            : new ArrowStreamWriter(root, new DictionaryProvider.MapDictionaryProvider(), unclosed);
+                    writer[0].start();
+                }
+
+                @Override
+                public void batch(VectorSchemaRoot root) throws IOException {
+                    writer[0].writeBatch();
+                }
+            });
+            writer[0].end();
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        } finally {
+            if (writer[0] != null) {
+                writer[0].close();
+            }
+        }
+    }
+
+    /**
+     * Write the batches to a file.
+     *
+     * @param file overwritten if it exists
+     * @param format {@link ExportFormat#ARROW_STREAM} or {@link ExportFormat#ARROW_FILE}
+     */
+    public void write(File file, ExportFormat format) {
+        try (OutputStream output = Files.newOutputStream(file.toPath())) {
+            write(output, format);
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        }
+    }
+
+    private void produce(BufferAllocator allocator, Sink sink) {
+        File download = null;
+        try {
+            download = File.createTempFile("klab", state ? ".tiff" : ".json");
+            if (!observation.export(Export.DATA, state ? ExportFormat.GEOTIFF_RASTER : ExportFormat.GEOJSON_FEATURES,
+                    download, parameters)) {
+                throw new KlabRemoteException("could not download the data of " + observation);
+            }
+            if (state) {
+                produceCells(download, allocator, sink);
+            } else {
+                produceFeatures(download, allocator, sink);
+            }
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        } finally {
+            if (download != null) {
+                download.delete();
+            }
+        }
+    }
+
+    private void produceCells(File download, BufferAllocator allocator, Sink sink) throws IOException {
+
+        ArrowType number = new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+        Schema schema = new Schema(List.of(new Field("x", new FieldType(false, number, null), null),
+                new Field("y", new FieldType(false, number, null), null),
+                new Field("value", new FieldType(false, number, null), null)));
+
+        try (GeoTiffRaster raster = GeoTiffRaster.open(download);
+                GeoTiffRaster.Reader reader = raster.newReader();
+                VectorSchemaRoot root = VectorSchemaRoot.create(schema, allocator)) {
+
+            Float8Vector x = (Float8Vector) root.getVector("x");
+            Float8Vector y = (Float8Vector) root.getVector("y");
+            Float8Vector value = (Float8Vector) root.getVector("value");
+            sink.start(root);
+            root.allocateNew();
+            int rows = 0;
+
+            for(int block = 0; block < raster.getBlockCount(); block++) {
+                double[] values = reader.read(block);
+                int column0 = raster.getBlockColumn(block);
+                int row0 = raster.getBlockRow(block);
+                int columns = Math.min(raster.getBlockWidth(), raster.getWidth() - column0);
+                int blockRows = Math.min(raster.getBlockHeight(), raster.getHeight() - row0);
+                for(int r = 0; r < blockRows; r++) {
+                    double cy = raster.getOriginY() - (row0 + r + 0.5) * raster.getCellHeight();
+                    for(int c = 0; c < columns; c++) {
+                        double v = values[r * raster.getBlockWidth() + c];
+                        if (Double.isNaN(v)) {
+                            continue;
+                        }
+                        x.setSafe(rows, raster.getOriginX() + (column0 + c + 0.5) * raster.getCellWidth());
+                        y.setSafe(rows, cy);
+                        value.setSafe(rows, v);
+                        if (++rows == batchSize) {
+                            root.setRowCount(rows);
+                            sink.batch(root);
+                            root.allocateNew();
+                            rows = 0;
+                        }
+                    }
+                }
+            }
+            if (rows > 0) {
+                root.setRowCount(rows);
+                sink.batch(root);
+            }
+        }
+    }
+
+    private void produceFeatures(File download, BufferAllocator allocator, Sink sink) throws IOException {
+
+        // the types of the properties must be known before the first batch
+        Map<String, ArrowType> properties = new LinkedHashMap<>();
+        GeoJsonFeatures.read(download, feature -> {
+            feature.path("properties").fields().forEachRemaining(property -> {
+                JsonNode value = property.getValue();
+                if (value.isNull()) {
+                    properties.putIfAbsent(property.getKey(), null);
+                    return;
+                }
+                ArrowType type = value.isNumber() ? new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE)
+                        : (value.isBoolean() ? ArrowType.Bool.INSTANCE : ArrowType.Utf8.INSTANCE);
+                ArrowType previous = properties.get(property.getKey());
+                if (previous == null) {
+                    properties.put(property.getKey(), type);
+                } else if (previous.getClass() != type.getClass()) {
+                    properties.put(property.getKey(), ArrowType.Utf8.INSTANCE);
+                }
+            });
+        });
+
+        List<Field> fields = new ArrayList<>();
+        fields.add(new Field("id", new FieldType(true, ArrowType.Utf8.INSTANCE, null), null));
+        fields.add(new Field("geometry", new FieldType(true, ArrowType.Binary.INSTANCE, null, WKB_METADATA), null));
+        List<String> columns = new ArrayList<>();
+        for(Map.Entry<String, ArrowType> property : properties.entrySet()) {
+            String column = "id".equals(property.getKey()) || "geometry".equals(property.getKey())
+                    ? "properties." + property.getKey()
+                    : property.getKey();
+            columns.add(column);
+            fields.add(new Field(column,
+                    new FieldType(true, property.getValue() == null ? ArrowType.Utf8.INSTANCE : property.getValue(), null),
+                    null));
+        }
+
+        try (VectorSchemaRoot root = VectorSchemaRoot.create(new Schema(fields), allocator)) {
+
+            VarCharVector ids = (VarCharVector) root.getVector("id");
+            VarBinaryVector geometries = (VarBinaryVector) root.getVector("geometry");
+            Wkb wkb = new Wkb();
+            int[] rows = new int[1];
+            IOException[] error = new IOException[1];
+            sink.start(root);
+            root.allocateNew();
+
+            GeoJsonFeatures.read(download, feature -> {
+                if (error[0] != null) {
+                    return;
+                }
+                int row = rows[0];
+                JsonNode id = feature.get("id");
+                if (id == null || id.isNull()) {
+                    ids.setNull(row);
+                } else {
+                    ids.setSafe(row, id.asText().getBytes(StandardCharsets.UTF_8));
+                }
+                JsonNode geometry = feature.get("geometry");
+                if (geometry == null || geometry.isNull()) {
+                    geometries.setNull(row);
+                } else {
+                    wkb.reset();
+                    wkb.geometry(geometry);
+                    geometries.setSafe(row, wkb.bytes, 0, wkb.size);
+                }
+                int column = 0;
+                for(String name : properties.keySet()) {
+                    set(root.getVector(columns.get(column++)), row, feature.path("properties").get(name));
+                }
+                if (++rows[0] == batchSize) {
+                    root.setRowCount(rows[0]);
+                    try {
+                        sink.batch(root);
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                    root.allocateNew();
+                    rows[0] = 0;
+                }
+            });
+
+            if (error[0] != null) {
+                throw error[0];
+            }
+            if (rows[0] > 0) {
+                root.setRowCount(rows[0]);
+                sink.batch(root);
+            }
+        }
+    }
+
+    private static void set(Object vector, int row, JsonNode value) {
+        if (vector instanceof Float8Vector) {
+            if (value == null || value.isNull()) {
+                ((Float8Vector) vector).setNull(row);
+            } else {
+                ((Float8Vector) vector).setSafe(row, value.asDouble());
+            }
+        } else if (vector instanceof BitVector) {
+            if (value == null || value.isNull()) {
+                ((BitVector) vector).setNull(row);
+            } else {
+                ((BitVector) vector).setSafe(row, value.asBoolean() ? 1 : 0);
+            }
+        } else {
+            if (value == null || value.isNull()) {
+                ((VarCharVector) vector).setNull(row);
+            } else {
+                ((VarCharVector) vector)
+                        .setSafe(row, (value.isTextual() ? value.asText() : value.toString()).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /*
+     * ISO well-known binary of GeoJSON geometries, in a buffer reused for each.
+     */
+    private static class Wkb {
+
+        byte[] bytes = new byte[256];
+        int size;
+        private final ByteBuffer number = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+        void reset() {
+            size = 0;
+        }
+
+        void geometry(JsonNode geometry) {
+            String type = geometry.path("type").asText();
+            JsonNode coordinates = geometry.path("coordinates");
+            boolean z = hasZ(coordinates);
+            switch(type) {
+            case "Point":
+                header(1, z);
+                position(coordinates, z);
+                break;
+            case "LineString":
+                header(2, z);
+                positions(coordinates, z);
+                break;
+            case "Polygon":
+                header(3, z);
+                rings(coordinates, z);
+                break;
+            case "MultiPoint":
+                header(4, z);
+                integer(coordinates.size());
+                for(JsonNode point : coordinates) {
+                    header(1, z);
+                    position(point, z);
+                }
+                break;
+            case "MultiLineString":
+                header(5, z);
+                integer(coordinates.size());
+                for(JsonNode line : coordinates) {
+                    header(2, z);
+                    positions(line, z);
+                }
+                break;
+            case "MultiPolygon":
+                header(6, z);
+                integer(coordinates.size());
+                for(JsonNode polygon : coordinates) {
+                    header(3, z);
+                    rings(polygon, z);
+                }
+                break;
+            case "GeometryCollection":
+                JsonNode members = geometry.path("geometries");
+                header(7, members.size() > 0 && hasZ(members.get(0).path("coordinates")));
+                integer(members.size());
+                for(JsonNode member : members) {
+                    geometry(member);
+                }
+                break;
+            default:
+                throw new KlabIOException("unsupported GeoJSON geometry type " + type);
+            }
+        }
+
+        private static boolean hasZ(JsonNode coordinates) {
+            JsonNode position = coordinates;
+            while (position.isArray() && position.size() > 0 && position.get(0).isArray()) {
+                position = position.get(0);
+            }
+            return position.isArray() && position.size() > 2;
+        }
+
+        private void header(int type, boolean z) {
+            ensure(5);
+            bytes[size++] = 1;
+            integer(z ? type + 1000 : type);
+        }
+
+        private void rings(JsonNode rings, boolean z) {
+            integer(rings.size());
+            for(JsonNode ring : rings) {
+                positions(ring, z);
+            }
+        }
+
+        private void positions(JsonNode positions, boolean z) {
+            integer(positions.size());
+            for(JsonNode position : positions) {
+                position(position, z);
+            }
+        }
+
+        private void position(JsonNode position, boolean z) {
+            // an empty point has NaN coordinates
+            coordinate(position.size() > 0 ? position.get(0).asDouble() : Double.NaN);
+            coordinate(position.size() > 1 ? position.get(1).asDouble() : Double.NaN);
+            if (z) {
+                coordinate(position.size() > 2 ? position.get(2).asDouble() : Double.NaN);
+            }
+        }
+
+        private void integer(int value) {
+            ensure(4);
+            number.putInt(0, value);
+            System.arraycopy(number.array(), 0, bytes, size, 4);
+            size += 4;
+        }
+
+        private void coordinate(double value) {
+            ensure(8);
+            number.putDouble(0, value);
+            System.arraycopy(number.array(), 0, bytes, size, 8);
+            size += 8;
+        }
+
+        private void ensure(int more) {
+            if (size + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+            }
+        }
+    }
+}
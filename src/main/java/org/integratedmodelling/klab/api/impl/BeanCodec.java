@@ -0,0 +1,137 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.integratedmodelling.klab.api.Klab.BeanFormat;
+import org.integratedmodelling.klab.exceptions.KlabIllegalStateException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+
+/**
+ * Reads and writes API beans in one of the {@link BeanFormat}s. The binary formats use the Jackson
+ * data format modules (<code>jackson-dataformat-cbor</code>, <code>jackson-dataformat-smile</code>),
+ * which are optional dependencies looked up at runtime.
+ * <p>
+ * Each format has one object mapper, created on first use and shared by all engines, so that the
+ * serializers and deserializers Jackson builds per bean class are reused across calls. Bean
+ * properties are accessed through code generated by the Blackbird module instead of reflection, and
+ * properties unknown to this version of the beans are ignored so that newer engines can add fields.
+ */
+public class BeanCodec {
+
+    private static final BeanCodec[] codecs = new BeanCodec[BeanFormat.values().length];
+
+    private final BeanFormat format;
+    private final ObjectMapper mapper;
+
+    private BeanCodec(BeanFormat format, ObjectMapper mapper) {
+        this.format = format;
+        this.mapper = mapper.registerModule(new BlackbirdModule())
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+    }
+
+    /**
+     * The codec for a format.
+     *
+     * @param format
+     * @return
+     * @throws KlabIllegalStateException if the data format module is not on the classpath
+     */
+    public static synchronized BeanCodec get(BeanFormat format) {
+        if (codecs[format.ordinal()] == null) {
+            if (!isAvailable(format)) {
+                throw new KlabIllegalStateException("bean format " + format + " needs " + format.getModule() + " on the classpath");
+            }
+            codecs[format.ordinal()] = new BeanCodec(format, new ObjectMapper(factory(format)));
+        }
+        return codecs[format.ordinal()];
+    }
+
+    /**
+     * The codec for the media type in a <code>Content-Type</code> header.
+     *
+     * @param contentType
+     * @return the codec, or null if the media type is not that of a bean format or its module is
+     *         not available
+     */
+    public static BeanCodec forContentType(String contentType) {
+        if (contentType != null) {
+            String mediaType = contentType.split(";")[0].trim();
+            for(BeanFormat format : BeanFormat.values()) {
+                if (format.getMediaType().equalsIgnoreCase(mediaType) && isAvailable(format)) {
+                    return get(format);
+                }
+            }
+        }
+        return null;
+    }
+
+    public static boolean isAvailable(BeanFormat format) {
+        if (format.getFactoryClass() == null) {
+            return true;
+        }
+        try {
+            Class.forName(format.getFactoryClass());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private static JsonFactory factory(BeanFormat format) {
+        if (format.getFactoryClass() == null) {
+            return new JsonFactory();
+        }
+        try {
+            return (JsonFactory) Class.forName(format.getFactoryClass()).getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new KlabIllegalStateException(e);
+        }
+    }
+
+    public BeanFormat getFormat() {
+        return format;
+    }
+
+    public String getMediaType() {
+        return format.getMediaType();
+    }
+
+    /**
+     * Bind a bean from a stream as it is read, without buffering it first.
+     *
+     * @param input
+     * @param type
+     * @return
+     * @throws IOException
+     */
+    public <T> T read(InputStream input, Class<T> type) throws IOException {
+        return mapper.readValue(input, type);
+    }
+
+    public <T> T read(byte[] input, Class<T> type) throws IOException {
+        return mapper.readValue(input, type);
+    }
+
+    /**
+     * A parser over a stream, to read large documents one part at a time as trees or beans.
+     *
+     * @param input
+     * @return
+     * @throws IOException
+     */
+    public JsonParser parser(InputStream input) throws IOException {
+        return mapper.createParser(input);
+    }
+
+    public byte[] write(Object bean) throws IOException {
+        return mapper.writeValueAsBytes(bean);
+    }
+}
@@ -0,0 +1,90 @@
+package org.integratedmodelling.klab.api.impl;
+
+import org.integratedmodelling.klab.api.RetryPolicy;
+
+/**
+ * Per-engine circuit breaker. Closed while calls succeed; opened after the threshold of consecutive
+ * transient failures set in the {@link RetryPolicy}, failing calls fast for the configured time;
+ * then half-open, letting a single trial call through whose outcome closes or reopens it.
+ */
+public class CircuitBreaker {
+
+    public static enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String engineUrl;
+    private RetryPolicy policy;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    public CircuitBreaker(String engineUrl, RetryPolicy policy) {
+        this.engineUrl = engineUrl;
+        this.policy = policy;
+    }
+
+    public synchronized void setPolicy(RetryPolicy policy) {
+        this.policy = policy;
+        if (policy.getBreakerThreshold() <= 0) {
+            state = State.CLOSED;
+            failures = 0;
+        }
+    }
+
+    /**
+     * Call before each attempt.
+     *
+     * @throws EngineUnavailableException if the circuit is open
+     */
+    public synchronized void acquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt >= policy.getBreakerOpenMs() * 1000000L) {
+                state = State.HALF_OPEN;
+                trialInFlight = false;
+            } else {
+                throw new EngineUnavailableException("engine at " + engineUrl + " is unavailable: failing fast");
+            }
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight) {
+                throw new EngineUnavailableException("engine at " + engineUrl + " is unavailable: waiting for trial call");
+            }
+            trialInFlight = true;
+        }
+    }
+
+    /**
+     * The engine answered (whatever the outcome, as long as it's not a transient failure).
+     */
+    public synchronized void success() {
+        failures = 0;
+        trialInFlight = false;
+        state = State.CLOSED;
+    }
+
+    /**
+     * The engine was unreachable or answered with a transient failure.
+     */
+    public synchronized void failure() {
+        failures++;
+        trialInFlight = false;
+        if (policy.getBreakerThreshold() > 0 && (state == State.HALF_OPEN || failures >= policy.getBreakerThreshold())) {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * The call acquired was not made, so it says nothing about the engine. A half-open circuit lets
+     * the next call through as its trial.
+     */
+    public synchronized void release() {
+        trialInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
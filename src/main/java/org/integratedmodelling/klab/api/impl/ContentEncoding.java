@@ -0,0 +1,118 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.integratedmodelling.klab.exceptions.KlabIOException;
+
+/**
+ * HTTP content codings accepted from the engine and their streaming decoders. gzip and deflate
+ * come with the JDK; brotli is accepted when the Brotli decoder (<code>org.brotli:dec</code>) is
+ * on the classpath.
+ */
+public final class ContentEncoding {
+
+    public static final String HEADER = "Content-Encoding";
+    public static final String ACCEPT_HEADER = "Accept-Encoding";
+
+    private static final String BROTLI_DECODER = "org.brotli.dec.BrotliInputStream";
+    private static final Constructor< ? > brotli = brotliDecoder();
+
+    /**
+     * The value of the <code>Accept-Encoding</code> header sent with every call.
+     */
+    public static final String ACCEPTED = brotli == null ? "gzip, deflate" : "gzip, deflate, br";
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * An input stream that counts the bytes read through it.
+     */
+    public static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        public CountingInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int ret = super.read();
+            if (ret >= 0) {
+                count++;
+            }
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int ret = super.read(b, off, len);
+            if (ret > 0) {
+                count += ret;
+            }
+            return ret;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long ret = super.skip(n);
+            count += ret;
+            return ret;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Wrap the passed stream to decode the passed content coding as it is read.
+     *
+     * @param encoding the value of the <code>Content-Encoding</code> header, possibly null
+     * @param input
+     * @return the decoded stream
+     * @throws IOException
+     */
+    public static InputStream decode(String encoding, InputStream input) throws IOException {
+        if (encoding == null || encoding.isEmpty() || "identity".equalsIgnoreCase(encoding.trim())) {
+            return input;
+        }
+        switch(encoding.trim().toLowerCase()) {
+        case "gzip":
+        case "x-gzip":
+            return new GZIPInputStream(input, 8192);
+        case "deflate":
+            return new InflaterInputStream(input);
+        case "br":
+            if (brotli != null) {
+                try {
+                    return (InputStream) brotli.newInstance(input);
+                } catch (ReflectiveOperationException e) {
+                    throw new KlabIOException(e);
+                }
+            }
+            break;
+        default:
+            break;
+        }
+        throw new KlabIOException("unsupported content encoding from engine: " + encoding);
+    }
+
+    public static boolean isBrotliAvailable() {
+        return brotli != null;
+    }
+
+    private static Constructor< ? > brotliDecoder() {
+        try {
+            return Class.forName(BROTLI_DECODER).getConstructor(InputStream.class);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
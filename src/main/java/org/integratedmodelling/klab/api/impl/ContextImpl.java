@@ -5,14 +5,20 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.Future;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
 
 import org.integratedmodelling.klab.api.API.PUBLIC.Export;
 import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Deadline;
 import org.integratedmodelling.klab.api.Estimate;
 import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Klab.Priority;
 import org.integratedmodelling.klab.api.Observable;
 import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.Task;
+import org.integratedmodelling.klab.api.Timestep;
 import org.integratedmodelling.klab.api.data.IGeometry;
 import org.integratedmodelling.klab.api.runtime.ITicket.Type;
 import org.integratedmodelling.klab.exceptions.KlabIOException;
@@ -31,35 +37,37 @@ public class ContextImpl extends ObservationImpl implements Context {
     List<Pair<Observable, Object>> injectedStates = new ArrayList<>();
     List<Pair<Observable, IGeometry>> injectedObjects = new ArrayList<>();
 
+    // tickets submitted in this context whose result has not been retrieved yet
+    private final Set<TicketHandler< ? >> inFlight = ConcurrentHashMap.newKeySet();
+
     public ContextImpl(ObservationReference bean, Engine engine) {
         super(bean, engine);
     }
 
-    @Override
-    public Future<Estimate> estimate(Observable observable, Object... arguments) {
-
-        ObservationRequest request = new ObservationRequest();
-        request.setContextId(this.reference.getId());
-        request.setEstimate(true);
-        request.setUrn(observable.toString());
-
-        for(Pair<Observable, Object> state : injectedStates) {
-            request.getStates().put(state.getFirst().toString(), state.getSecond().toString());
-        }
-        for(Pair<Observable, IGeometry> object : injectedObjects) {
-            request.getStates().put(object.getFirst().toString(), object.getSecond().encode());
-        }
+    void track(TicketHandler< ? > handler) {
+        inFlight.add(handler);
+    }
 
-        injectedStates.clear();
-        injectedObjects.clear();
+    void untrack(TicketHandler< ? > handler) {
+        inFlight.remove(handler);
+    }
 
-        for(Object o : arguments) {
-            if (o instanceof String) {
-                request.getScenarios().add((String) o);
+    @Override
+    public int cancel() {
+        int ret = 0;
+        for(TicketHandler< ? > handler : new ArrayList<>(inFlight)) {
+            if (handler.cancel(true)) {
+                ret++;
             }
         }
+        return ret;
+    }
+
+    @Override
+    public Task<Estimate> estimate(Observable observable, Object... arguments) {
 
-        String ticket = engine.submitObservation(request);
+        Submission submission = buildRequest(observable, true, arguments);
+        String ticket = engine.submitObservation(submission.request, submission.priority, submission.deadline);
         if (ticket != null) {
             return new TicketHandler<Estimate>(engine, ticket, this);
         }
@@ -68,40 +76,49 @@ public class ContextImpl extends ObservationImpl implements Context {
     }
 
     @Override
-    public Future<Observation> submit(Observable observable, Object... arguments) {
+    public Task<Observation> submit(Observable observable, Object... arguments) {
 
-        ObservationRequest request = new ObservationRequest();
-        request.setContextId(this.reference.getId());
-        request.setEstimate(false);
-        request.setUrn(observable.toString());
-
-        for(Pair<Observable, Object> state : injectedStates) {
-            request.getStates().put(state.getFirst().toString(), state.getSecond().toString());
+        Submission submission = buildRequest(observable, false, arguments);
+        String ticket = engine.submitObservation(submission.request, submission.priority, submission.deadline);
+        if (ticket != null) {
+            // TODO updates the context bean when observation arrives!
+            return new TicketHandler<Observation>(engine, ticket, this);
         }
-        for(Pair<Observable, IGeometry> object : injectedObjects) {
-            request.getStates().put(object.getFirst().toString(), object.getSecond().encode());
+
+        throw new KlabIllegalArgumentException("Cannot build observation request from arguments: " + Arrays.toString(arguments));
+    }
+
+    @Override
+    public Flow.Publisher<Observation> publish(Observable observable, Object... arguments) {
+
+        Submission submission = buildRequest(observable, false, arguments);
+        String ticket = engine.submitObservation(submission.request, submission.priority, submission.deadline);
+        if (ticket != null) {
+            return new ObservationPublisher(engine, ticket, this);
         }
 
-        injectedStates.clear();
-        injectedObjects.clear();
+        throw new KlabIllegalArgumentException("Cannot build observation request from arguments: " + Arrays.toString(arguments));
+    }
 
-        for(Object o : arguments) {
-            if (o instanceof String) {
-                request.getScenarios().add((String) o);
-            }
+    @Override
+    public Flow.Publisher<Timestep> publishTimesteps(Observable observable, ExportFormat format, int window,
+            Object... arguments) {
+
+        if (window < 0) {
+            throw new KlabIllegalArgumentException("negative timestep window: " + window);
         }
 
-        String ticket = engine.submitObservation(request);
+        Submission submission = buildRequest(observable, false, arguments);
+        String ticket = engine.submitObservation(submission.request, submission.priority, submission.deadline);
         if (ticket != null) {
-            // TODO updates the context bean when observation arrives!
-            return new TicketHandler<Observation>(engine, ticket, this);
+            return new TimestepPublisher(engine, ticket, this, format, window);
         }
 
         throw new KlabIllegalArgumentException("Cannot build observation request from arguments: " + Arrays.toString(arguments));
     }
 
     @Override
-    public Future<Observation> submit(Estimate estimate) {
+    public Task<Observation> submit(Estimate estimate) {
 
         if (((EstimateImpl) estimate).getTicketType() != Type.ObservationEstimate) {
             throw new KlabIllegalArgumentException("the estimate passed is not a context estimate");
@@ -153,8 +170,78 @@ public class ContextImpl extends ObservationImpl implements Context {
         return null;
     }
 
+    /*
+     * An observation request with the priority and deadline to submit it with.
+     */
+    private static class Submission {
+        final ObservationRequest request = new ObservationRequest();
+        Priority priority = Priority.NORMAL;
+        Deadline deadline;
+    }
+
+    /*
+     * The request for an observable with the injected states, the scenarios among the arguments
+     * and any priority and deadline passed with them.
+     */
+    private Submission buildRequest(Observable observable, boolean estimate, Object[] arguments) {
+
+        Submission ret = new Submission();
+        ret.request.setContextId(this.reference.getId());
+        ret.request.setEstimate(estimate);
+        ret.request.setUrn(observable.toString());
+
+        inject(ret.request);
+
+        for(Object o : arguments) {
+            if (o instanceof String) {
+                ret.request.getScenarios().add((String) o);
+            } else if (o instanceof Priority) {
+                ret.priority = (Priority) o;
+            } else if (o instanceof Deadline) {
+                ret.deadline = (Deadline) o;
+            }
+        }
+
+        return ret;
+    }
+
+    /*
+     * Move the states and objects injected so far into the request, so that each injection goes
+     * with exactly one submission even when several threads submit in this context.
+     */
+    private synchronized void inject(ObservationRequest request) {
+
+        for(Pair<Observable, Object> state : injectedStates) {
+            request.getStates().put(state.getFirst().toString(), state.getSecond().toString());
+        }
+        for(Pair<Observable, IGeometry> object : injectedObjects) {
+            request.getStates().put(object.getFirst().toString(), object.getSecond().encode());
+        }
+
+        injectedStates.clear();
+        injectedObjects.clear();
+    }
+
+    /**
+     * Take the states and objects injected with {@link #with(Observable, Object)} and not yet
+     * submitted, so that they can be injected again for several submissions.
+     * 
+     * @Non-API
+     * 
+     * @return the observables with their values or geometries, in the order they were injected
+     */
+    public synchronized List<Pair<Observable, Object>> takeInjected() {
+        List<Pair<Observable, Object>> ret = new ArrayList<>(injectedStates);
+        for(Pair<Observable, IGeometry> object : injectedObjects) {
+            ret.add(new Pair<>(object.getFirst(), object.getSecond()));
+        }
+        injectedStates.clear();
+        injectedObjects.clear();
+        return ret;
+    }
+
     @Override
-    public Context with(Observable concept, Object value) {
+    public synchronized Context with(Observable concept, Object value) {
 
         if (value instanceof IGeometry) {
             if (concept.getName() == null) {
@@ -174,18 +261,19 @@ public class ContextImpl extends ObservationImpl implements Context {
      * 
      * @Non-API should be package private
      * 
-     * @param ret
+     * @param observations
      */
-    public void updateWith(ObservationImpl ret) {
+    public void updateWith(ObservationImpl... observations) {
         this.reference = engine.getObservation(reference.getId());
-        for(String name : this.reference.getChildIds().keySet()) {
-            if (ret.reference.getId().equals(this.reference.getChildIds().get(name))) {
-                catalogIds.put(name, ret.reference.getId());
-                catalog.put(ret.reference.getId(), ret);
-                break;
+        for(ObservationImpl ret : observations) {
+            for(String name : this.reference.getChildIds().keySet()) {
+                if (ret.reference.getId().equals(this.reference.getChildIds().get(name))) {
+                    catalogIds.put(name, ret.reference.getId());
+                    catalog.put(ret.reference.getId(), ret);
+                    break;
+                }
             }
         }
-
     }
 
 }
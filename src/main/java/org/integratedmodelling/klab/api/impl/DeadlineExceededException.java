@@ -0,0 +1,15 @@
+package org.integratedmodelling.klab.api.impl;
+
+/**
+ * Thrown when a call to the engine, or a wait for the client limits before it, cannot complete
+ * before the {@link org.integratedmodelling.klab.api.Deadline} it was made under. Like any
+ * unavailability, the same call may succeed later with more time.
+ */
+public class DeadlineExceededException extends EngineUnavailableException {
+
+    private static final long serialVersionUID = -6182310758364209461L;
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
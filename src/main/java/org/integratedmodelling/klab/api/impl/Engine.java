@@ -1,13 +1,38 @@
 package org.integratedmodelling.klab.api.impl;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
 import org.integratedmodelling.klab.Version;
 import org.integratedmodelling.klab.api.API;
+import org.integratedmodelling.klab.api.Deadline;
+import org.integratedmodelling.klab.api.Klab.BeanFormat;
 import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Klab.Priority;
+import org.integratedmodelling.klab.api.Limits;
+import org.integratedmodelling.klab.api.Metrics;
+import org.integratedmodelling.klab.api.RetryPolicy;
+import org.integratedmodelling.klab.api.SessionStore;
+import org.integratedmodelling.klab.api.StateStore;
+import org.integratedmodelling.klab.api.TraceContext;
+import org.integratedmodelling.klab.api.TraceListener;
+import org.integratedmodelling.klab.api.impl.ContentEncoding.CountingInputStream;
 import org.integratedmodelling.klab.exceptions.KlabIOException;
 import org.integratedmodelling.klab.rest.ContextRequest;
 import org.integratedmodelling.klab.rest.ObservationReference;
@@ -16,11 +41,18 @@ import org.integratedmodelling.klab.rest.PingResponse;
 import org.integratedmodelling.klab.rest.TicketResponse;
 import org.integratedmodelling.klab.rest.TicketResponse.Ticket;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+
 import kong.unirest.CookieSpecs;
 import kong.unirest.GetRequest;
+import kong.unirest.HttpRequest;
+import kong.unirest.HttpRequestWithBody;
 import kong.unirest.HttpResponse;
+import kong.unirest.RawResponse;
 import kong.unirest.RequestBodyEntity;
 import kong.unirest.Unirest;
+import kong.unirest.UnirestException;
+import kong.unirest.UnirestInstance;
 
 /**
  * The engine REST client wrapping all the calls and bean types. Unirest handles
@@ -31,11 +63,49 @@ import kong.unirest.Unirest;
  */
 public class Engine implements API.PUBLIC {
 
+    public static final int DEFAULT_REQUEST_COMPRESSION_THRESHOLD = 16384;
+
+    /**
+     * Ask the engine to abort the computation of a ticket. Engines that don't support it answer
+     * with an error and keep computing, but the client stops waiting for the ticket all the same.
+     */
+    public static final String CANCEL_TICKET = "/public/ticket/cancel/" + P_TICKET;
+
     private String url;
     // change temporarily using 'with'
     private String acceptHeader = null;
     private String session;
     private String authentication;
+    // kept to re-authenticate transparently when the session expires
+    private String username;
+    private String password;
+    private SessionStore sessionStore;
+    private final ReentrantLock authenticationLock = new ReentrantLock();
+    private Metrics metrics = Metrics.NONE;
+    private volatile StateStore stateStore;
+    private TraceListener tracer = TraceListener.NONE;
+    private final ThreadLocal<TraceContext> currentTrace = new ThreadLocal<>();
+    private final ThreadLocal<Deadline> currentDeadline = new ThreadLocal<>();
+    private final Map<String, TraceContext> ticketTraces = new ConcurrentHashMap<>();
+    // what each ticket was submitted for, to group its resolution time with similar requests
+    private final Map<String, String> ticketKinds = new ConcurrentHashMap<>();
+    private final RequestHistory history = new RequestHistory();
+    private RetryPolicy retryPolicy = RetryPolicy.create();
+    private final CircuitBreaker circuitBreaker;
+    private final EngineGovernor governor = new EngineGovernor(this);
+    // tickets whose result has not been retrieved, with the time they were submitted
+    private final Map<String, Long> outstandingTickets = new ConcurrentHashMap<>();
+    // request bodies at least this size are sent gzipped, unless the engine refuses them
+    private int requestCompressionThreshold = DEFAULT_REQUEST_COMPRESSION_THRESHOLD;
+    private volatile boolean requestCompressionRefused;
+    // binary bean formats in order of preference, and the Accept header for beans built from them
+    private List<BeanCodec> beanCodecs = Collections.emptyList();
+    private String acceptedBeans = "application/json";
+    private volatile boolean binaryRequestsRefused;
+    // shared JSON codec, used for beans unless a binary format is negotiated
+    private final BeanCodec json = BeanCodec.get(BeanFormat.JSON);
+    // own client so that content decoding can be controlled without affecting other Unirest users
+    private final UnirestInstance client;
 
     public Engine(String engineUrl) {
         this.url = engineUrl;
@@ -45,53 +115,628 @@ public class Engine implements API.PUBLIC {
         // added to avoid invalid cookie header warning
         // https://stackoverflow.com/a/40697322/4495284
         Unirest.config().cookieSpec(CookieSpecs.STANDARD);
+        // responses are decoded by this class, which needs to see the encoded bytes
+        this.client = Unirest.spawnInstance();
+        this.client.config().cookieSpec(CookieSpecs.STANDARD).requestCompression(false);
+        this.circuitBreaker = new CircuitBreaker(this.url, this.retryPolicy);
     }
 
     private <T> T post(String endpoint, Object request, Class< ? extends T> responseType, Object... pathVariables) {
 
-        String mediaType = "application/json";
+        String mediaType = acceptedBeans;
         if (this.acceptHeader != null) {
             mediaType = acceptHeader;
             this.acceptHeader = null;
         }
 
-        if (pathVariables != null) {
-            for(int i = 0; i < pathVariables.length; i++) {
-                endpoint = endpoint.replace(pathVariables[i].toString(), pathVariables[++i].toString());
+        String url = makeUrl(resolve(endpoint, pathVariables));
+        String accept = mediaType;
+        Payload payload = new Payload(request);
+        return call(endpoint, "POST", isIdempotent(endpoint), payload, () -> {
+            RequestBodyEntity requestBody = payload.attach(client.post(url).accept(accept)
+                    .header(ContentEncoding.ACCEPT_HEADER, ContentEncoding.ACCEPTED).header("User-Agent", getUserAgent()));
+            if (this.session != null) {
+                requestBody.header("klab-authorization", this.session);
             }
-        }
-        RequestBodyEntity requestBody = Unirest.post(makeUrl(endpoint)).contentType("application/json").accept(mediaType)
-                .header("User-Agent", getUserAgent()).body(request);
-        if (this.session != null) {
-            requestBody.header("klab-authorization", this.session);
-        }
-        if (this.authentication != null) {
-            requestBody.header("Authentication", this.session);
-        }
+            if (this.authentication != null) {
+                requestBody.header("Authentication", this.authentication);
+            }
+            return requestBody;
+        }, responseType);
+    }
 
-        return (T) requestBody.asObject(responseType).getBody();
+    private <T> T get(String endpoint, Class< ? extends T> cls, Object... pathVariables) {
+        return query(endpoint, cls, null, pathVariables);
     }
 
-    private <T> T get(String endpoint, Class< ? extends T> cls, Object... parameters) {
+    /*
+     * GET with query parameters, passed as name/value pairs. Metrics and tracing report the
+     * endpoint template without them.
+     */
+    private <T> T query(String endpoint, Class< ? extends T> cls, Object[] parameters, Object... pathVariables) {
 
-        String mediaType = "application/json";
+        String mediaType = acceptedBeans;
         if (this.acceptHeader != null) {
             mediaType = acceptHeader;
             this.acceptHeader = null;
         }
-        GetRequest requestBody = Unirest.get(makeUrl(endpoint, parameters)).accept(mediaType).header("User-Agent",
-                getUserAgent());
-        if (this.session != null) {
-            requestBody.header("klab-authorization", this.session);
-        }
-        if (this.authentication != null) {
-            requestBody.header("Authentication", this.session);
-        }
 
+        String url = makeUrl(resolve(endpoint, pathVariables), parameters);
+        String accept = mediaType;
         // TODO handle different responses if the Accept header has been modified.
         // Should pass a String class for text or an InputStream class for streamed
         // data.
-        return (T) requestBody.asObject(cls).getBody();
+        return call(endpoint, "GET", true, null, () -> {
+            GetRequest requestBody = client.get(url).accept(accept).header(ContentEncoding.ACCEPT_HEADER, ContentEncoding.ACCEPTED)
+                    .header("User-Agent", getUserAgent());
+            if (this.session != null) {
+                requestBody.header("klab-authorization", this.session);
+            }
+            if (this.authentication != null) {
+                requestBody.header("Authentication", this.authentication);
+            }
+            return requestBody;
+        }, cls);
+    }
+
+    /*
+     * Requests that start computations at the engine side can't be blindly repeated.
+     */
+    private static boolean isIdempotent(String endpoint) {
+        return !CREATE_CONTEXT.equals(endpoint) && !OBSERVE_IN_CONTEXT.equals(endpoint);
+    }
+
+    /*
+     * Requests made once whatever the retry policy, because the caller is not waiting for their
+     * outcome.
+     */
+    private static boolean isBestEffort(String endpoint) {
+        return CANCEL_TICKET.equals(endpoint);
+    }
+
+    /*
+     * Execute the request according to the retry policy, reporting each attempt to metrics and
+     * tracing if enabled. Transient failures that survive all attempts are thrown as
+     * KlabRemoteException; any other response is returned as before, with a null body on failure.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T call(String endpoint, String method, boolean idempotent, Payload payload,
+            Supplier<HttpRequest< ? >> requestFactory, Class< ? extends T> type) {
+
+        boolean reauthenticated = false;
+        int attempts = isBestEffort(endpoint) ? 1 : retryPolicy.getAttempts();
+        for(int attempt = 1;; attempt++) {
+
+            checkDeadline(method, endpoint);
+            governor.acquireRequest();
+            circuitBreaker.acquire();
+            String session = this.session;
+            HttpRequest< ? > request;
+            Call call;
+            try {
+                request = requestFactory.get();
+                applyDeadline(request);
+                call = begin(endpoint, method, request);
+            } catch (RuntimeException e) {
+                // nothing was sent
+                circuitBreaker.release();
+                throw e;
+            }
+            HttpResponse< ? > response = null;
+            UnirestException error = null;
+            long[] received = new long[1];
+            try {
+                response = request.asObject(raw -> read(endpoint, raw, type, received));
+            } catch (UnirestException e) {
+                error = e;
+            } finally {
+                if (call != null) {
+                    call.done(response == null ? 0 : response.getStatus(),
+                            response != null && response.isSuccess() && response.getBody() != null,
+                            payload == null ? 0 : payload.size(), received[0]);
+                    if (payload != null && payload.compressed && metrics.isEnabled()) {
+                        metrics.requestCompression(endpoint, "gzip", payload.plain.length, payload.size());
+                    }
+                }
+                if (response != null && !retryPolicy.isTransient(response.getStatus())) {
+                    circuitBreaker.success();
+                } else if (response == null && isPastDeadline()) {
+                    // cut short by the caller's deadline, which says nothing about the engine
+                    circuitBreaker.success();
+                } else {
+                    circuitBreaker.failure();
+                }
+            }
+
+            if (response != null && payload != null && payload.fallBack(response.getStatus())) {
+                // the engine did not process the request: repeat it in a simpler format
+                attempt--;
+                continue;
+            }
+            if (response != null && payload != null && response.isSuccess()) {
+                payload.succeeded();
+            }
+
+            if (response != null && isUnauthorized(response.getStatus()) && !reauthenticated
+                    && !AUTHENTICATE_USER.equals(endpoint) && reauthenticate(session)) {
+                // the engine did not process the request: repeat it with the new session
+                reauthenticated = true;
+                attempt--;
+                continue;
+            }
+
+            if (response != null && !retryPolicy.isTransient(response.getStatus())) {
+                return (T) response.getBody();
+            }
+
+            boolean repeatable = idempotent || (error != null && isConnectionRefused(error))
+                    || (response != null && retryPolicy.isRejection(response.getStatus()));
+            if (!repeatable || attempt >= attempts) {
+                checkDeadline(method, endpoint);
+                throw error == null
+                        ? new EngineUnavailableException(method + " " + endpoint + " failed with status " + response.getStatus())
+                        : new EngineUnavailableException(error);
+            }
+            backoff(attempt);
+        }
+    }
+
+    /*
+     * The response to user authentication.
+     */
+    static class AuthenticationResponse {
+        public String session;
+        public String authorization;
+    }
+
+    /*
+     * A request body, serialized again only if its format changes between attempts. It is sent in
+     * the preferred binary bean format unless the engine has refused it, and gzipped if large
+     * enough unless the engine has refused compressed bodies.
+     */
+    private final class Payload {
+
+        final Object request;
+        // binary codec of the serialized body, null for JSON
+        BeanCodec codec;
+        byte[] plain;
+        byte[] gzipped;
+        boolean compressed;
+        // formats dropped for this request only, after the engine answered 400 to them
+        boolean jsonBody;
+        boolean uncompressed;
+        // refuses for good the format last dropped on a 400, once the request succeeds without it
+        Runnable refusal;
+
+        Payload(Object request) {
+            this.request = request;
+        }
+
+        /*
+         * Fall back to JSON bodies first, then to uncompressed ones. A 415 says that the engine
+         * cannot decode the body, so the format is refused for good; a 400 may just as well be an
+         * ordinary bad request, so the format is only dropped for this request and refused if it
+         * then succeeds. Return false if there is nothing to fall back from.
+         */
+        boolean fallBack(int status) {
+            if (status != 415 && status != 400) {
+                return false;
+            }
+            if (codec != null) {
+                jsonBody = true;
+                if (status == 415) {
+                    binaryRequestsRefused = true;
+                } else {
+                    refusal = () -> binaryRequestsRefused = true;
+                }
+                return true;
+            }
+            if (!compressed) {
+                return false;
+            }
+            uncompressed = true;
+            if (status == 415) {
+                requestCompressionRefused = true;
+            } else {
+                refusal = () -> requestCompressionRefused = true;
+            }
+            return true;
+        }
+
+        /*
+         * The engine processed the request, so the format dropped last was the one it could not
+         * decode.
+         */
+        void succeeded() {
+            if (refusal != null) {
+                refusal.run();
+                refusal = null;
+            }
+        }
+
+        RequestBodyEntity attach(HttpRequestWithBody request) {
+            BeanCodec codec = binaryRequestsRefused || jsonBody || beanCodecs.isEmpty() ? null : beanCodecs.get(0);
+            if (plain == null || codec != this.codec) {
+                this.codec = codec;
+                this.plain = serialize(codec);
+                this.gzipped = null;
+            }
+            compressed = requestCompressionThreshold >= 0 && plain.length >= requestCompressionThreshold
+                    && !requestCompressionRefused && !uncompressed;
+            request.contentType(codec == null ? "application/json" : codec.getMediaType());
+            if (compressed) {
+                if (gzipped == null) {
+                    gzipped = gzip(plain);
+                }
+                request.header(ContentEncoding.HEADER, "gzip");
+            }
+            return request.body(compressed ? gzipped : plain);
+        }
+
+        private byte[] serialize(BeanCodec codec) {
+            try {
+                return (codec == null ? json : codec).write(this.request);
+            } catch (IOException e) {
+                throw new KlabIOException(e);
+            }
+        }
+
+        long size() {
+            return compressed ? gzipped.length : plain.length;
+        }
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream(data.length / 4);
+        try (GZIPOutputStream output = new GZIPOutputStream(ret, 8192)) {
+            output.write(data);
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        }
+        return ret.toByteArray();
+    }
+
+    /*
+     * Decode the response body as it streams in and bind it to the requested type. Bodies of
+     * unsuccessful responses are discarded and, like unparseable ones, produce a null result.
+     */
+    private <T> T read(String endpoint, RawResponse raw, Class< ? extends T> type, long[] received) {
+        String encoding = raw.getHeaders().getFirst(ContentEncoding.HEADER);
+        CountingInputStream wire = new CountingInputStream(raw.getContent());
+        T ret = null;
+        long decoded;
+        try (CountingInputStream input = new CountingInputStream(ContentEncoding.decode(encoding, wire))) {
+            if (raw.getStatus() < 200 || raw.getStatus() >= 300) {
+                input.transferTo(OutputStream.nullOutputStream());
+            } else {
+                ret = bind(input, raw.getHeaders().getFirst("Content-Type"), type);
+            }
+            decoded = input.getCount();
+        } catch (IOException e) {
+            throw new UnirestException(e);
+        } finally {
+            received[0] = wire.getCount();
+        }
+        if (metrics.isEnabled() && encoding != null && !encoding.isEmpty()) {
+            metrics.compression(endpoint, encoding, wire.getCount(), decoded);
+        }
+        return ret;
+    }
+
+    /*
+     * Bind straight from the stream with the codec for the content type, JSON unless a binary format
+     * was negotiated. Empty bodies, like unparseable ones, produce null.
+     */
+    private <T> T bind(InputStream input, String contentType, Class< ? extends T> type) throws IOException {
+        BeanCodec codec = beanCodecs.isEmpty() ? null : BeanCodec.forContentType(contentType);
+        try {
+            return (codec == null ? json : codec).read(input, type);
+        } catch (JsonProcessingException e) {
+            return null;
+        }
+    }
+
+    private static boolean isUnauthorized(int status) {
+        return status == 401 || status == 403;
+    }
+
+    /*
+     * Open a new session with the credentials used at authentication, unless another thread has
+     * already replaced the expired session. Returns whether a valid session is now available.
+     */
+    private boolean reauthenticate(String expiredSession) {
+        // a lock rather than a monitor, so that virtual threads waiting here do not pin their carrier
+        authenticationLock.lock();
+        try {
+            if (this.username == null) {
+                return false;
+            }
+            if (!Objects.equals(expiredSession, this.session)) {
+                return this.session != null;
+            }
+            authenticate(this.username, this.password);
+            return this.session != null;
+        } finally {
+            authenticationLock.unlock();
+        }
+    }
+
+    private static boolean isConnectionRefused(Throwable error) {
+        for(Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void backoff(int retry) {
+        Deadline deadline = currentDeadline.get();
+        long wait = retryPolicy.getBackoffMs(retry);
+        if (deadline != null) {
+            // the next attempt fails on the deadline anyway
+            wait = Math.min(wait, deadline.getRemaining(TimeUnit.MILLISECONDS));
+        }
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EngineUnavailableException("interrupted while waiting to retry a call to the engine");
+        }
+    }
+
+    /**
+     * Instrumentation of one HTTP call. Only created when metrics or tracing are enabled.
+     */
+    private final class Call {
+
+        final String endpoint;
+        final String method;
+        final long start = System.nanoTime();
+        final TraceContext span;
+
+        Call(String endpoint, String method, HttpRequest< ? > request) {
+            this.endpoint = endpoint;
+            this.method = method;
+            if (tracer.isEnabled()) {
+                TraceContext parent = currentTrace.get();
+                if (parent == null) {
+                    parent = tracer.getCurrentContext();
+                }
+                this.span = parent == null ? TraceContext.create() : parent.child();
+                request.header(TraceContext.HEADER, span.toTraceParent());
+                tracer.httpSent(span, method, endpoint);
+            } else {
+                this.span = null;
+            }
+        }
+
+        void done(int status, boolean success, long sent, long received) {
+            long nanos = System.nanoTime() - start;
+            if (metrics.isEnabled()) {
+                metrics.call(endpoint, nanos, status, success);
+                metrics.bytes(endpoint, sent, received);
+            }
+            if (span != null) {
+                tracer.httpReceived(span, method, endpoint, status, nanos);
+            }
+        }
+    }
+
+    private Call begin(String endpoint, String method, HttpRequest< ? > request) {
+        return metrics.isEnabled() || tracer.isEnabled() ? new Call(endpoint, method, request) : null;
+    }
+
+    /*
+     * Start the trace for a request that will produce a ticket.
+     */
+    private TraceContext startTrace(String endpoint, Object request) {
+        if (!tracer.isEnabled()) {
+            return null;
+        }
+        TraceContext parent = tracer.getCurrentContext();
+        TraceContext ret = parent == null ? TraceContext.create() : parent.child();
+        tracer.requestBuilt(ret, endpoint, request);
+        return ret;
+    }
+
+    /*
+     * Run a submission within the passed trace once the governor has a ticket slot for it, and
+     * remember the trace, the slot and the kind of request for the ticket returned.
+     */
+    private String submit(TraceContext trace, String kind, Priority priority, Supplier<String> submission) {
+        expireTickets();
+        governor.reserve(priority);
+        String ret = null;
+        try {
+            ret = traced(trace, submission);
+        } finally {
+            if (ret == null) {
+                governor.release(null);
+            } else {
+                governor.bind(ret);
+                outstandingTickets.put(ret, System.nanoTime());
+            }
+        }
+        if (trace != null && ret != null) {
+            ticketTraces.put(ret, trace);
+        }
+        if (kind != null && ret != null) {
+            ticketKinds.put(ret, kind);
+        }
+        return ret;
+    }
+
+    /**
+     * Called by the ticket handler when a ticket has reached a final state and its result has been
+     * retrieved, freeing its slot in the governor.
+     * 
+     * @param ticketId
+     */
+    public void ticketFinished(String ticketId) {
+        outstandingTickets.remove(ticketId);
+        governor.release(ticketId);
+    }
+
+    /**
+     * Number of tickets submitted through this engine whose result has not been retrieved yet.
+     * Tickets whose future was dropped stop counting after the
+     * {@link Limits#ticketLease(long, TimeUnit) ticket lease}, like their slot in the governor.
+     * 
+     * @return
+     */
+    public int getOutstandingTickets() {
+        expireTickets();
+        return outstandingTickets.size();
+    }
+
+    /*
+     * Forget the tickets held for longer than the ticket lease, whose handlers were never waited
+     * for or were never created, and free their slots and unclaimed traces and kinds.
+     */
+    private void expireTickets() {
+        long expiry = System.nanoTime() - governor.getLimits().getTicketLeaseMs() * 1000000L;
+        for(Iterator<Map.Entry<String, Long>> it = outstandingTickets.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getValue() < expiry) {
+                it.remove();
+                governor.release(entry.getKey());
+                ticketTraces.remove(entry.getKey());
+                ticketKinds.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * False while the circuit breaker is failing calls fast.
+     * 
+     * @return
+     */
+    public boolean isAvailable() {
+        return isOnline() && circuitBreaker.getState() != CircuitBreaker.State.OPEN;
+    }
+
+    /**
+     * Run the passed action with the passed trace as the parent of all HTTP calls made in it by the
+     * current thread.
+     * 
+     * @param <T>
+     * @param trace the trace, or null to just run the action
+     * @param action
+     * @return the action's result
+     */
+    public <T> T traced(TraceContext trace, Supplier<T> action) {
+        if (trace == null) {
+            return action.get();
+        }
+        TraceContext previous = currentTrace.get();
+        currentTrace.set(trace);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                currentTrace.remove();
+            } else {
+                currentTrace.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Run the passed action with the passed deadline bounding all the HTTP calls made in it by the
+     * current thread, their retries and any waits for the client limits.
+     * 
+     * @param <T>
+     * @param deadline the deadline, or null to just run the action
+     * @param action
+     * @return the action's result
+     * @throws DeadlineExceededException if a call cannot be made before the deadline
+     */
+    public <T> T bounded(Deadline deadline, Supplier<T> action) {
+        if (deadline == null) {
+            return action.get();
+        }
+        Deadline previous = currentDeadline.get();
+        currentDeadline.set(deadline);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                currentDeadline.remove();
+            } else {
+                currentDeadline.set(previous);
+            }
+        }
+    }
+
+    /**
+     * @return the deadline bounding the calls of the current thread, or null
+     */
+    Deadline getDeadline() {
+        return currentDeadline.get();
+    }
+
+    /*
+     * Apply what is left of the deadline of the current thread as the connect and socket timeouts
+     * of the request. The deadline is checked before acquiring the request, so that an expired one
+     * does not hold a circuit breaker probe.
+     */
+    private void applyDeadline(HttpRequest< ? > request) {
+        Deadline deadline = currentDeadline.get();
+        if (deadline == null) {
+            return;
+        }
+        int timeout = (int) Math.max(1, Math.min(Integer.MAX_VALUE, deadline.getRemaining(TimeUnit.MILLISECONDS)));
+        request.connectTimeout(timeout);
+        request.socketTimeout(timeout);
+    }
+
+    private boolean isPastDeadline() {
+        Deadline deadline = currentDeadline.get();
+        return deadline != null && deadline.isExpired();
+    }
+
+    private void checkDeadline(String method, String endpoint) {
+        if (isPastDeadline()) {
+            throw new DeadlineExceededException(method + " " + endpoint + " could not be completed before the deadline");
+        }
+    }
+
+    /**
+     * Retrieve (once) the trace started when the ticket was submitted.
+     * 
+     * @param ticketId
+     * @return the trace, or null if tracing was disabled at submission
+     */
+    public TraceContext claimTrace(String ticketId) {
+        return ticketTraces.remove(ticketId);
+    }
+
+    /**
+     * Retrieve (once) the description of the request that produced the ticket, as grouped in the
+     * {@link #getRequestHistory() request history}.
+     * 
+     * @param ticketId
+     * @return the description, or null if the request is not grouped with others
+     */
+    public String claimKind(String ticketId) {
+        return ticketKinds.remove(ticketId);
+    }
+
+    public RequestHistory getRequestHistory() {
+        return history;
+    }
+
+    /*
+     * Substitute the path variables, passed as placeholder/value pairs, in an endpoint template.
+     */
+    private String resolve(String endpoint, Object... pathVariables) {
+        if (pathVariables != null) {
+            for(int i = 0; i < pathVariables.length; i++) {
+                endpoint = endpoint.replace(pathVariables[i].toString(), pathVariables[++i].toString());
+            }
+        }
+        return endpoint;
     }
 
     private String makeUrl(String endpoint, Object... parameters) {
@@ -126,25 +771,125 @@ public class Engine implements API.PUBLIC {
      */
     public String authenticate(String username, String password) {
 
+        this.username = username;
+        this.password = password;
         Map<String, String> request = new HashMap<>();
         request.put("username", username);
         request.put("password", password);
-        Map< ? , ? > result = post(AUTHENTICATE_USER, request, Map.class);
-        if (result.containsKey("session")) {
-            // TODO check if we need to remember the user-bound authorization token
-            this.session = result.get("session").toString();
-        } else {
-            this.session = "";
-        }
-        if (result.containsKey("authorization")) {
-            // TODO check if we need to remember the user-bound authorization token
-            this.authentication = result.get("authorization").toString();
-        } else {
-            this.authentication = "";
+        AuthenticationResponse result = post(AUTHENTICATE_USER, request, AuthenticationResponse.class);
+        if (result == null) {
+            // credentials refused
+            this.session = null;
+            this.authentication = null;
+            return null;
+        }
+        // TODO check if we need to remember the user-bound authorization token
+        this.session = result.session == null ? "" : result.session;
+        this.authentication = result.authorization == null ? "" : result.authorization;
+        if (this.sessionStore != null) {
+            this.sessionStore.put(this.url, username, this.session, this.authentication);
         }
         return new StringBuffer().append(this.session).append("|").append(this.authentication).toString();
     }
 
+    /**
+     * Resume the session for the user kept in the passed store unless the engine refuses it,
+     * otherwise authenticate and store the new session. The store is also updated at any later
+     * re-authentication.
+     * 
+     * @param username
+     * @param password
+     * @param store
+     * @return the session ID and authentication token as in {@link #authenticate(String, String)}
+     */
+    public String authenticate(String username, String password, SessionStore store) {
+        this.sessionStore = store;
+        String[] stored = store.get(this.url, username);
+        if (stored != null) {
+            this.session = stored[0];
+            this.authentication = stored[1];
+            this.username = username;
+            this.password = password;
+            if (isSessionValid()) {
+                return new StringBuffer().append(this.session).append("|").append(this.authentication).toString();
+            }
+        }
+        return authenticate(username, password);
+    }
+
+    /**
+     * Ping the engine with the current session. Engines that do not check sessions on a ping answer
+     * it anyway, so true only means that the session was not rejected: an expired session is
+     * replaced when a later call is refused with HTTP 401 or 403.
+     * 
+     * @return false if the engine is unreachable or does not accept the session
+     */
+    public boolean isSessionValid() {
+        int status = ping();
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * Ping the engine with the current session, re-authenticating only if it is refused as expired
+     * (HTTP 401 or 403); other failures are left to the next round. Called periodically when a
+     * {@link SessionStore} is used.
+     */
+    public void keepAlive() {
+        if (this.session != null && isUnauthorized(ping())) {
+            try {
+                reauthenticate(this.session);
+            } catch (RuntimeException e) {
+                // engine unreachable: try again at the next round
+            }
+        }
+    }
+
+    /*
+     * Ping with the session headers; 0 if the engine could not be reached.
+     */
+    private int ping() {
+        if (this.session == null) {
+            return 0;
+        }
+        GetRequest ping = client.get(makeUrl(API.PING)).accept("application/json").header("User-Agent", getUserAgent())
+                .header("klab-authorization", this.session);
+        if (this.authentication != null) {
+            ping.header("Authentication", this.authentication);
+        }
+        Call call = begin(API.PING, "GET", ping);
+        int status = 0;
+        try {
+            status = ping.asEmpty().getStatus();
+        } catch (UnirestException e) {
+            // unreachable
+        }
+        if (call != null) {
+            call.done(status, status >= 200 && status < 300, 0, 0);
+        }
+        return status;
+    }
+
+    /**
+     * End the session and remove it from the session store, if any.
+     * 
+     * @return
+     */
+    public boolean logout() {
+        if (this.sessionStore != null && this.username != null) {
+            this.sessionStore.remove(this.url, this.username);
+        }
+        return deauthenticate();
+    }
+
+    /**
+     * True if the session is kept in a {@link SessionStore} to be resumed later.
+     * 
+     * @return
+     */
+    public boolean isPersistent() {
+        return this.sessionStore != null;
+    }
+
     /**
      * Send the de-authentication request to clean up and exit gracefully. Always
      * appreciated.
@@ -152,8 +897,14 @@ public class Engine implements API.PUBLIC {
      * @return
      */
     public boolean deauthenticate() {
-        return Unirest.post(makeUrl(DEAUTHENTICATE_USER)).header("klab-authorization", this.session)
-                .header("Authentication", this.authentication).asEmpty().isSuccess();
+        HttpRequestWithBody request = client.post(makeUrl(DEAUTHENTICATE_USER));
+        request.header("klab-authorization", this.session).header("Authentication", this.authentication);
+        Call call = begin(DEAUTHENTICATE_USER, "POST", request);
+        HttpResponse< ? > response = request.asEmpty();
+        if (call != null) {
+            call.done(response.getStatus(), response.isSuccess(), 0, 0);
+        }
+        return response.isSuccess();
     }
 
     /**
@@ -162,9 +913,12 @@ public class Engine implements API.PUBLIC {
      * @return
      */
     public String authenticate() {
+        GetRequest ping = client.get(makeUrl(API.PING)).accept("application/json").header("User-Agent", getUserAgent());
+        Call call = begin(API.PING, "GET", ping);
+        int status = 0;
         try {
-            HttpResponse<PingResponse> request = Unirest.get(makeUrl(API.PING)).accept("application/json")
-                    .header("User-Agent", getUserAgent()).asObject(PingResponse.class);
+            HttpResponse<PingResponse> request = ping.asObject(PingResponse.class);
+            status = request.getStatus();
             if (request.isSuccess()) {
                 PingResponse response = request.getBody();
                 if (response != null && response.getLocalSessionId() != null) {
@@ -174,6 +928,9 @@ public class Engine implements API.PUBLIC {
         } catch (Throwable t) {
             // no connection: just return null, isOnline() will return false
         }
+        if (call != null) {
+            call.done(status, this.session != null, 0, 0);
+        }
         return this.session;
     }
 
@@ -188,11 +945,42 @@ public class Engine implements API.PUBLIC {
      * @return
      */
     public String submitContext(ContextRequest request) {
-        TicketResponse.Ticket response = post(CREATE_CONTEXT, request, TicketResponse.Ticket.class);
-        if (response != null) {
-            return response.getId();
-        }
-        return null;
+        return submitContext(request, Priority.NORMAL);
+    }
+
+    /**
+     * Submit context request with the passed priority for the client-side queue, return ticket
+     * number or null in case of error
+     * 
+     * @param request
+     * @param priority
+     * @return
+     */
+    public String submitContext(ContextRequest request, Priority priority) {
+        String kind = RequestHistory.kind(request.isEstimate() ? "context estimate" : "context",
+                request.getContextType() == null ? request.getUrn() : request.getContextType(), request.getObservables(),
+                request.getScenarios());
+        return submit(startTrace(CREATE_CONTEXT, request), kind, priority, () -> {
+            TicketResponse.Ticket response = post(CREATE_CONTEXT, request, TicketResponse.Ticket.class);
+            if (response != null) {
+                return response.getId();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Submit context request with the passed priority, completing the submission (including any
+     * wait for a ticket slot) before the passed deadline.
+     * 
+     * @param request
+     * @param priority
+     * @param deadline the deadline, or null for none
+     * @return the ticket number or null in case of error
+     * @throws DeadlineExceededException if the request could not be submitted in time
+     */
+    public String submitContext(ContextRequest request, Priority priority, Deadline deadline) {
+        return bounded(deadline, () -> submitContext(request, priority));
     }
 
     /**
@@ -202,31 +990,85 @@ public class Engine implements API.PUBLIC {
      * @return
      */
     public String submitObservation(ObservationRequest request) {
-        TicketResponse.Ticket response = post(OBSERVE_IN_CONTEXT.replace(P_CONTEXT, request.getContextId()), request,
-                TicketResponse.Ticket.class);
-        if (response != null && response.getId() != null) {
-            return response.getId();
-        }
-        return null;
+        return submitObservation(request, Priority.NORMAL);
+    }
+
+    /**
+     * Submit observation request with the passed priority for the client-side queue, return ticket
+     * number or null in case of error
+     * 
+     * @param request
+     * @param priority
+     * @return
+     */
+    public String submitObservation(ObservationRequest request, Priority priority) {
+        String kind = RequestHistory.kind(request.isEstimate() ? "observation estimate" : "observation", request.getUrn(),
+                null, request.getScenarios());
+        return submit(startTrace(OBSERVE_IN_CONTEXT, request), kind, priority, () -> {
+            TicketResponse.Ticket response = post(OBSERVE_IN_CONTEXT, request, TicketResponse.Ticket.class, P_CONTEXT,
+                    request.getContextId());
+            if (response != null && response.getId() != null) {
+                return response.getId();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Submit observation request with the passed priority, completing the submission (including
+     * any wait for a ticket slot) before the passed deadline.
+     * 
+     * @param request
+     * @param priority
+     * @param deadline the deadline, or null for none
+     * @return the ticket number or null in case of error
+     * @throws DeadlineExceededException if the request could not be submitted in time
+     */
+    public String submitObservation(ObservationRequest request, Priority priority, Deadline deadline) {
+        return bounded(deadline, () -> submitObservation(request, priority));
     }
 
     public String submitEstimate(String estimateId) {
-        Ticket response = get(SUBMIT_ESTIMATE.replace(P_ESTIMATE, estimateId), TicketResponse.Ticket.class);
-        if (response != null && response.getId() != null) {
-            return response.getId();
+        return submit(startTrace(SUBMIT_ESTIMATE, estimateId), null, Priority.NORMAL, () -> {
+            Ticket response = get(SUBMIT_ESTIMATE, TicketResponse.Ticket.class, P_ESTIMATE, estimateId);
+            if (response != null && response.getId() != null) {
+                return response.getId();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Ask the engine to abort the job of a ticket and free its resources, in a single attempt that
+     * is not repeated whatever the retry policy.
+     * 
+     * @param ticketId
+     * @return true if the engine acknowledged the cancellation
+     */
+    public boolean cancelTicket(String ticketId) {
+        try {
+            Ticket ret = post(CANCEL_TICKET, Collections.emptyMap(), TicketResponse.Ticket.class, P_TICKET, ticketId);
+            return ret != null && ret.getId() != null;
+        } catch (EngineUnavailableException e) {
+            return false;
         }
-        return null;
     }
 
     public Ticket getTicket(String ticketId) {
-        Ticket ret = get(TICKET_INFO.replace(P_TICKET, ticketId), TicketResponse.Ticket.class);
+        Ticket ret = get(TICKET_INFO, TicketResponse.Ticket.class, P_TICKET, ticketId);
         return (ret == null || ret.getId() == null) ? null : ret;
     }
 
-    public ObservationReference getObservation(String artifactId) {
-        ObservationReference ret = get(
-                EXPORT_DATA.replace(P_EXPORT, Export.STRUCTURE.name().toLowerCase()).replace(P_OBSERVATION, artifactId),
-                ObservationReference.class);
+    /**
+     * Retrieve the descriptor of an observation.
+     * 
+     * @param artifactId
+     * @param parameters name/value pairs for the query string, e.g. to select one timestep
+     * @return the descriptor, or null if the engine did not return one
+     */
+    public ObservationReference getObservation(String artifactId, Object... parameters) {
+        ObservationReference ret = query(EXPORT_DATA, ObservationReference.class, parameters, P_EXPORT,
+                Export.STRUCTURE.name().toLowerCase(), P_OBSERVATION, artifactId);
         return (ret == null || ret.getId() == null) ? null : ret;
     }
 
@@ -235,24 +1077,249 @@ public class Engine implements API.PUBLIC {
 
         String url = makeUrl(EXPORT_DATA.replace(P_EXPORT, target.name().toLowerCase()).replace(P_OBSERVATION, observationId),
                 parameters);
-        try {
-            Unirest.get(url).accept(format.getMediaType()).header("klab-authorization", this.session)
-                    .header("Authentication", this.authentication).header("User-Agent", getUserAgent()).thenConsume(response -> {
-                        try {
-                            response.getContent().transferTo(output);
+        boolean reauthenticated = false;
+        for(int attempt = 1;; attempt++) {
+
+            checkDeadline("GET", EXPORT_DATA);
+            try {
+                governor.acquireRequest();
+                circuitBreaker.acquire();
+            } catch (DeadlineExceededException e) {
+                throw e;
+            } catch (EngineUnavailableException e) {
+                return false;
+            }
+
+            String session = this.session;
+            GetRequest request;
+            Call call;
+            try {
+                request = client.get(url).accept(format.getMediaType()).header(ContentEncoding.ACCEPT_HEADER,
+                        ContentEncoding.ACCEPTED);
+                applyDeadline(request);
+                request.header("klab-authorization", this.session).header("Authentication", this.authentication)
+                        .header("User-Agent", getUserAgent());
+                call = begin(EXPORT_DATA, "GET", request);
+            } catch (RuntimeException e) {
+                // nothing was sent
+                circuitBreaker.release();
+                throw e;
+            }
+            long[] transferred = new long[1];
+            long[] written = new long[1];
+            int[] status = new int[1];
+            Exception[] local = new Exception[1];
+            boolean ret = false;
+            try {
+                request.thenConsume(response -> {
+                    status[0] = response.getStatus();
+                    if (status[0] >= 200 && status[0] < 300) {
+                        String encoding = response.getHeaders().getFirst(ContentEncoding.HEADER);
+                        CountingInputStream wire = new CountingInputStream(response.getContent());
+                        try (InputStream input = ContentEncoding.decode(encoding, wire)) {
+                            byte[] buffer = new byte[8192];
+                            int n;
+                            while ((n = input.read(buffer)) >= 0) {
+                                try {
+                                    output.write(buffer, 0, n);
+                                } catch (IOException | RuntimeException e) {
+                                    // the caller's stream failed, not the engine
+                                    local[0] = e;
+                                    throw e;
+                                }
+                                written[0] += n;
+                            }
+                            transferred[0] = wire.getCount();
+                            if (metrics.isEnabled() && encoding != null && !encoding.isEmpty()) {
+                                metrics.compression(EXPORT_DATA, encoding, wire.getCount(), written[0]);
+                            }
                         } catch (IOException e) {
                             // uncheck
+                            transferred[0] = wire.getCount();
                             throw new KlabIOException(e);
                         }
-                    });
+                    }
+                });
 
-            return true;
+                ret = status[0] >= 200 && status[0] < 300;
 
-        } catch (Throwable t) {
-            // just return false
+            } catch (UnirestException | KlabIOException e) {
+                // connection or stream failure: return false unless retried
+            } catch (RuntimeException e) {
+                if (local[0] == null) {
+                    circuitBreaker.release();
+                    throw e;
+                }
+            }
+
+            if (local[0] != null) {
+                if (call != null) {
+                    call.done(status[0], false, 0, transferred[0]);
+                }
+                circuitBreaker.success();
+                if (local[0] instanceof RuntimeException) {
+                    throw (RuntimeException) local[0];
+                }
+                throw new KlabIOException(local[0]);
+            }
+
+            if (call != null) {
+                call.done(status[0], ret, 0, transferred[0]);
+            }
+            if (!ret && isPastDeadline()) {
+                // cut short by the caller's deadline, which says nothing about the engine
+                circuitBreaker.success();
+                checkDeadline("GET", EXPORT_DATA);
+            }
+
+            if (isUnauthorized(status[0]) && !reauthenticated) {
+                circuitBreaker.success();
+                try {
+                    if (reauthenticate(session)) {
+                        reauthenticated = true;
+                        attempt--;
+                        continue;
+                    }
+                } catch (RuntimeException e) {
+                    // could not authenticate again
+                }
+                return false;
+            }
+
+            // a 2xx whose body broke off is as transient as a connection that never answered
+            boolean failedTransiently = !ret && (status[0] == 0 || retryPolicy.isTransient(status[0])
+                    || (status[0] >= 200 && status[0] < 300));
+            if (failedTransiently) {
+                circuitBreaker.failure();
+            } else {
+                circuitBreaker.success();
+            }
+
+            // can only repeat if nothing was written to the output yet
+            if (!failedTransiently || written[0] > 0 || attempt >= retryPolicy.getAttempts()) {
+                return ret;
+            }
+
+            try {
+                backoff(attempt);
+            } catch (EngineUnavailableException e) {
+                return false;
+            }
         }
+    }
 
-        return false;
+    /**
+     * Install the metrics to report to.
+     * 
+     * @param metrics
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics == null ? Metrics.NONE : metrics;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Install the listener for request tracing.
+     * 
+     * @param tracer
+     */
+    public void setTraceListener(TraceListener tracer) {
+        this.tracer = tracer == null ? TraceListener.NONE : tracer;
+    }
+
+    public TraceListener getTraceListener() {
+        return tracer;
+    }
+
+    /**
+     * Set the policy for retries, circuit breaking and tolerance of polling failures.
+     * 
+     * @param policy
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        this.retryPolicy = policy == null ? RetryPolicy.NONE : policy;
+        this.circuitBreaker.setPolicy(this.retryPolicy);
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Set the bean formats accepted, in order of preference. JSON is always accepted last.
+     * 
+     * @param formats
+     */
+    public void setBeanFormats(BeanFormat... formats) {
+        List<BeanCodec> codecs = new ArrayList<>();
+        StringBuilder accept = new StringBuilder();
+        for(BeanFormat format : formats) {
+            if (format == BeanFormat.JSON) {
+                break;
+            }
+            BeanCodec codec = BeanCodec.get(format);
+            accept.append(codecs.isEmpty() ? "" : ", ").append(format.getMediaType());
+            if (!codecs.isEmpty()) {
+                accept.append(";q=").append(Math.max(1, 10 - codecs.size()) / 10.0);
+            }
+            codecs.add(codec);
+        }
+        this.acceptedBeans = codecs.isEmpty() ? "application/json" : accept.append(", application/json;q=0.1").toString();
+        this.beanCodecs = codecs;
+        this.binaryRequestsRefused = false;
+    }
+
+    /**
+     * Set the size from which request bodies are sent gzip-compressed. If the engine refuses a
+     * compressed body (HTTP 415), the request is repeated uncompressed and compression is not
+     * attempted again. A request answered with 400 is also repeated uncompressed, but compression
+     * is only given up if the repeated request succeeds. A negative value disables compression.
+     * 
+     * @param bytes
+     */
+    public void setRequestCompressionThreshold(int bytes) {
+        this.requestCompressionThreshold = bytes;
+    }
+
+    /**
+     * Set the client-side limits on request rate and tickets in flight.
+     * 
+     * @param limits
+     */
+    public void setLimits(Limits limits) {
+        this.governor.setLimits(limits);
+    }
+
+    public EngineGovernor getGovernor() {
+        return governor;
+    }
+
+    /**
+     * Set the store that windowed exports are cut from.
+     * 
+     * @param store
+     */
+    public void setStateStore(StateStore store) {
+        this.stateStore = store;
+    }
+
+    /**
+     * @return the store set, or the {@link StateStore#getDefault() default one} shared by all
+     *         engines in the user's home
+     */
+    public StateStore getStateStore() {
+        StateStore ret = stateStore;
+        return ret == null ? StateStore.getDefault() : ret;
+    }
+
+    /**
+     * Release the HTTP connections held by this engine client. Call after deauthenticating.
+     */
+    public void close() {
+        this.client.close();
     }
 
     private String getUserAgent() {
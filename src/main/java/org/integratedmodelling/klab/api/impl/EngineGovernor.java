@@ -0,0 +1,274 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.integratedmodelling.klab.api.Deadline;
+import org.integratedmodelling.klab.api.Klab.Priority;
+import org.integratedmodelling.klab.api.Limits;
+import org.integratedmodelling.klab.api.Metrics;
+
+/**
+ * Enforces the {@link Limits} of one engine: a token bucket for the request rate and a counting
+ * semaphore for tickets in flight, whose waiters are served by priority and then in order of
+ * arrival. Waits and queue depth are reported to the engine's {@link Metrics} as
+ * <code>requests</code> and <code>tickets</code>.
+ * <p>
+ * Waiting uses a lock and condition rather than monitors, so that waiting virtual threads do not
+ * pin their carrier.
+ */
+public class EngineGovernor {
+
+    private static class Waiter implements Comparable<Waiter> {
+
+        final int priority;
+        final long sequence;
+        boolean granted;
+
+        Waiter(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter o) {
+            return priority != o.priority ? Integer.compare(o.priority, priority) : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private final Engine engine;
+    private volatile Limits limits = Limits.NONE;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotGranted = lock.newCondition();
+
+    // token bucket
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    // ticket slots: reserved slots are acquired but not yet bound to a ticket
+    private int inFlight;
+    private final Map<String, Long> leases = new HashMap<>();
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+    private long sequence;
+
+    public EngineGovernor(Engine engine) {
+        this.engine = engine;
+    }
+
+    public void setLimits(Limits limits) {
+        lock.lock();
+        try {
+            this.limits = limits == null ? Limits.NONE : limits;
+            this.tokens = this.limits.getBurst();
+            this.refilled = System.nanoTime();
+            grant();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Limits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Take a token for an HTTP request, sleeping if the bucket is empty. Tokens are reserved in
+     * order of arrival, so waits are fair. If the calling thread has a deadline that would pass
+     * before a token is available, none is taken.
+     * 
+     * @throws DeadlineExceededException if the request could not be made before the deadline
+     */
+    public void acquireRequest() {
+
+        if (limits.getRequestsPerSecond() <= 0) {
+            return;
+        }
+
+        Deadline deadline = engine.getDeadline();
+        long wait;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            tokens = Math.min(limits.getBurst(), tokens + (now - refilled) * limits.getRequestsPerSecond() / 1e9);
+            refilled = now;
+            tokens -= 1;
+            wait = tokens >= 0 ? 0 : (long) (-tokens / limits.getRequestsPerSecond() * 1e9);
+            if (deadline != null && wait > deadline.getRemainingNanos()) {
+                tokens += 1;
+                throw new DeadlineExceededException("no request allowed by the rate limit before the deadline");
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EngineUnavailableException("interrupted while waiting for the request rate limit");
+            }
+            if (engine.getMetrics().isEnabled()) {
+                engine.getMetrics().waited("requests", wait);
+            }
+        }
+    }
+
+    /**
+     * Reserve a ticket slot before submitting a request that will create a ticket, waiting in
+     * priority order if none is free. The slot must then be bound to the ticket with
+     * {@link #bind(String)} or freed with {@link #release(String)} passing null.
+     *
+     * @param priority
+     * @throws DeadlineExceededException if no slot was free before the deadline of the calling
+     *         thread
+     */
+    public void reserve(Priority priority) {
+
+        if (limits.getMaxTickets() <= 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Waiter waiter;
+        int depth;
+        lock.lock();
+        try {
+            reclaimExpiredLeases();
+            if (inFlight < limits.getMaxTickets() && waiters.isEmpty()) {
+                inFlight++;
+                return;
+            }
+            waiter = new Waiter(priority == null ? Priority.NORMAL.ordinal() : priority.ordinal(), sequence++);
+            waiters.add(waiter);
+            depth = waiters.size();
+        } finally {
+            lock.unlock();
+        }
+
+        Metrics metrics = engine.getMetrics();
+        if (metrics.isEnabled()) {
+            metrics.queued("tickets", depth);
+        }
+
+        Deadline deadline = engine.getDeadline();
+        lock.lock();
+        try {
+            while (!waiter.granted) {
+                try {
+                    if (deadline != null && deadline.isExpired()) {
+                        waiters.remove(waiter);
+                        throw new DeadlineExceededException("no ticket slot was free before the deadline");
+                    }
+                    // wake up periodically to reclaim the leases of forgotten tickets
+                    slotGranted.await(deadline == null ? 1000000000L : Math.min(1000000000L, deadline.getRemainingNanos()),
+                            TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    waiters.remove(waiter);
+                    if (waiter.granted) {
+                        inFlight--;
+                        grant();
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new EngineUnavailableException("interrupted while waiting for a free ticket slot");
+                }
+                if (!waiter.granted && reclaimExpiredLeases()) {
+                    grant();
+                }
+            }
+            depth = waiters.size();
+        } finally {
+            lock.unlock();
+        }
+
+        if (metrics.isEnabled()) {
+            metrics.waited("tickets", System.nanoTime() - start);
+            metrics.queued("tickets", depth);
+        }
+    }
+
+    /**
+     * Bind a reserved slot to the ticket the engine returned.
+     *
+     * @param ticketId
+     */
+    public void bind(String ticketId) {
+        if (limits.getMaxTickets() > 0) {
+            lock.lock();
+            try {
+                leases.put(ticketId, System.nanoTime());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Free the slot of a ticket that has reached a final state, or a reserved slot if the ticket ID
+     * is null. Calling it more than once for a ticket has no effect.
+     *
+     * @param ticketId
+     */
+    public void release(String ticketId) {
+        if (limits.getMaxTickets() <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (ticketId == null || leases.remove(ticketId) != null) {
+                inFlight = Math.max(0, inFlight - 1);
+                grant();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getTicketsInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void grant() {
+        boolean granted = false;
+        while ((limits.getMaxTickets() <= 0 || inFlight < limits.getMaxTickets()) && !waiters.isEmpty()) {
+            waiters.poll().granted = true;
+            inFlight++;
+            granted = true;
+        }
+        if (granted) {
+            slotGranted.signalAll();
+        }
+    }
+
+    private boolean reclaimExpiredLeases() {
+        boolean ret = false;
+        long expiry = System.nanoTime() - limits.getTicketLeaseMs() * 1000000L;
+        for(Iterator<Long> it = leases.values().iterator(); it.hasNext();) {
+            if (it.next() < expiry) {
+                it.remove();
+                inFlight = Math.max(0, inFlight - 1);
+                ret = true;
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,21 @@
+package org.integratedmodelling.klab.api.impl;
+
+import org.integratedmodelling.klab.exceptions.KlabRemoteException;
+
+/**
+ * Thrown when the engine could not be reached or answered with a transient failure after all the
+ * attempts allowed by the retry policy, or when the circuit breaker is open. Unlike other remote
+ * errors, the same call may succeed later.
+ */
+public class EngineUnavailableException extends KlabRemoteException {
+
+    private static final long serialVersionUID = 2437829016365011244L;
+
+    public EngineUnavailableException(String message) {
+        super(message);
+    }
+
+    public EngineUnavailableException(Throwable cause) {
+        super(cause);
+    }
+}
@@ -12,6 +12,7 @@ public class EstimateImpl implements Estimate {
     private boolean feasible;
     private String currency;
     private ITicket.Type ticketType;
+    private Engine engine;
 
     public EstimateImpl(String id, double cost, String currency, Type type, String feasible) {
         this.estimateId = id;
@@ -21,6 +22,11 @@ public class EstimateImpl implements Estimate {
         this.feasible = "true".equals(feasible);
     }
 
+    public EstimateImpl(String id, double cost, String currency, Type type, String feasible, Engine engine) {
+        this(id, cost, currency, type, feasible);
+        this.engine = engine;
+    }
+
     /**
      * The cost of the estimate, converted to the user currency returned by
      * {@link #getCurrency()}.
@@ -51,6 +57,15 @@ public class EstimateImpl implements Estimate {
         return ticketType;
     }
 
+    /**
+     * The engine session that made the estimate, which is the only one that can accept it.
+     * 
+     * @return
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
     @Override
     public String getDataflow(ExportFormat format) {
         // TODO Auto-generated method stub
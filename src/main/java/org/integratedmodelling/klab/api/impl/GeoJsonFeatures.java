@@ -0,0 +1,54 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.function.Consumer;
+
+import org.integratedmodelling.klab.api.Klab.BeanFormat;
+import org.integratedmodelling.klab.exceptions.KlabIOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Reads the features of a GeoJSON feature collection one at a time from a streaming parser, so
+ * that only one feature is in memory at once however large the collection.
+ */
+public class GeoJsonFeatures {
+
+    private GeoJsonFeatures() {
+    }
+
+    public static void read(File geojson, Consumer<JsonNode> consumer) throws IOException {
+        try (InputStream input = Files.newInputStream(geojson.toPath())) {
+            read(input, consumer);
+        }
+    }
+
+    /**
+     * @param input left open
+     * @param consumer called with each feature in order
+     * @throws KlabIOException if the input is not a feature collection
+     */
+    public static void read(InputStream input, Consumer<JsonNode> consumer) throws IOException {
+        try (JsonParser parser = BeanCodec.get(BeanFormat.JSON).parser(input)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new KlabIOException("GeoJSON input is not a feature collection");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("features".equals(name) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        consumer.accept(parser.readValueAsTree());
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,620 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.integratedmodelling.klab.exceptions.KlabIOException;
+
+/**
+ * Reads the first band of a single-image GeoTIFF, such as the ones exported for states, one
+ * block (strip or tile) at a time so that blocks can be read concurrently and the raster is never
+ * held in memory as a whole. Uncompressed and Deflate-compressed rasters of 8, 16 and 32 bit
+ * integers and 32 and 64 bit floats are supported, with or without horizontal differencing. The
+ * georeferencing is taken from the pixel scale and tie point tags, so rotated rasters are not
+ * supported; coordinates are in the CRS of the raster.
+ */
+public class GeoTiffRaster implements Closeable {
+
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_LENGTH = 257;
+    private static final int BITS_PER_SAMPLE = 258;
+    private static final int COMPRESSION = 259;
+    private static final int STRIP_OFFSETS = 273;
+    private static final int SAMPLES_PER_PIXEL = 277;
+    private static final int ROWS_PER_STRIP = 278;
+    private static final int STRIP_BYTE_COUNTS = 279;
+    private static final int PLANAR_CONFIGURATION = 284;
+    private static final int PREDICTOR = 317;
+    private static final int TILE_WIDTH = 322;
+    private static final int TILE_LENGTH = 323;
+    private static final int TILE_OFFSETS = 324;
+    private static final int TILE_BYTE_COUNTS = 325;
+    private static final int SAMPLE_FORMAT = 339;
+    private static final int MODEL_PIXEL_SCALE = 33550;
+    private static final int MODEL_TIEPOINT = 33922;
+    private static final int GDAL_NODATA = 42113;
+
+    private static final int COMPRESSION_NONE = 1;
+    private static final int COMPRESSION_DEFLATE = 8;
+    private static final int COMPRESSION_DEFLATE_OLD = 32946;
+
+    private static final int FORMAT_UNSIGNED = 1;
+    private static final int FORMAT_SIGNED = 2;
+    private static final int FORMAT_FLOAT = 3;
+
+    private final FileChannel channel;
+    private final ByteOrder order;
+    private int width;
+    private int height;
+    private int bytesPerSample;
+    private int sampleFormat = FORMAT_UNSIGNED;
+    private int samplesPerPixel = 1;
+    private boolean planar;
+    private int compression = COMPRESSION_NONE;
+    private int predictor = 1;
+    private int blockWidth;
+    private int blockHeight;
+    private int blocksAcross;
+    private int blocksDown;
+    private long[] offsets;
+    private long[] byteCounts;
+    private double originX;
+    private double originY;
+    private double cellWidth = 1;
+    private double cellHeight = 1;
+    private double noData = Double.NaN;
+
+    /**
+     * Decodes blocks into a buffer that is reused for each block. A reader must only be used by
+     * one thread at a time; get one for each thread from {@link GeoTiffRaster#newReader()}.
+     */
+    public class Reader implements Closeable {
+
+        private final Inflater inflater = new Inflater();
+        private final double[] values = new double[blockWidth * blockHeight];
+        private ByteBuffer compressed = ByteBuffer.allocate(0);
+        private final ByteBuffer decoded = ByteBuffer
+                .allocate(blockWidth * blockHeight * bytesPerSample * (planar ? 1 : samplesPerPixel)).order(order);
+
+        private Reader() {
+        }
+
+        /**
+         * Read a block of values of the first band, in row order with a row length of
+         * {@link GeoTiffRaster#getBlockWidth()}. Cells outside the raster in edge tiles are
+         * padding; no-data values are returned as NaN.
+         *
+         * @param block
+         * @return the values, in a buffer that is overwritten by the next read
+         */
+        public double[] read(int block) {
+
+            int length = (int) byteCounts[block];
+            ByteBuffer raw = decoded;
+            if (compression != COMPRESSION_NONE) {
+                if (compressed.capacity() < length) {
+                    compressed = ByteBuffer.allocate(length);
+                }
+                raw = compressed;
+            }
+            raw.clear().limit(length);
+            try {
+                long position = offsets[block];
+                while (raw.hasRemaining()) {
+                    if (channel.read(raw, position + raw.position()) < 0) {
+                        throw new KlabIOException("GeoTIFF block " + block + " is truncated");
+                    }
+                }
+            } catch (IOException e) {
+                throw new KlabIOException(e);
+            }
+
+            if (compression == COMPRESSION_NONE) {
+                // a short last strip leaves the padding rows from the previous block
+                decoded.clear();
+            } else {
+                raw.flip();
+                decoded.clear();
+                inflater.reset();
+                inflater.setInput(raw);
+                try {
+                    while (decoded.hasRemaining() && !inflater.finished()) {
+                        if (inflater.inflate(decoded) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                    }
+                } catch (DataFormatException e) {
+                    throw new KlabIOException(e);
+                }
+            }
+
+            int stride = planar ? 1 : samplesPerPixel;
+            if (predictor == 2) {
+                undoDifferencing(stride);
+            }
+
+            int cells = blockWidth * blockHeight;
+            for(int i = 0; i < cells; i++) {
+                double value = sample(i * stride * bytesPerSample);
+                values[i] = isNoData(value) ? Double.NaN : value;
+            }
+            return values;
+        }
+
+        private boolean isNoData(double value) {
+            // no-data values are written in decimal, which may not round-trip through doubles
+            return sampleFormat == FORMAT_FLOAT && bytesPerSample == 4 ? (float) value == (float) noData : value == noData;
+        }
+
+        private double sample(int index) {
+            switch(sampleFormat) {
+            case FORMAT_FLOAT:
+                return bytesPerSample == 4 ? decoded.getFloat(index) : decoded.getDouble(index);
+            case FORMAT_SIGNED:
+                switch(bytesPerSample) {
+                case 1:
+                    return decoded.get(index);
+                case 2:
+                    return decoded.getShort(index);
+                default:
+                    return decoded.getInt(index);
+                }
+            default:
+                switch(bytesPerSample) {
+                case 1:
+                    return decoded.get(index) & 0xff;
+                case 2:
+                    return decoded.getShort(index) & 0xffff;
+                default:
+                    return decoded.getInt(index) & 0xffffffffL;
+                }
+            }
+        }
+
+        /*
+         * Horizontal differencing stores each sample as the difference from the one on its left,
+         * modulo the sample size.
+         */
+        private void undoDifferencing(int stride) {
+            for(int row = 0; row < blockHeight; row++) {
+                int start = row * blockWidth * stride;
+                for(int i = start + stride; i < start + blockWidth * stride; i++) {
+                    int at = i * bytesPerSample;
+                    int left = (i - stride) * bytesPerSample;
+                    switch(bytesPerSample) {
+                    case 1:
+                        decoded.put(at, (byte) (decoded.get(at) + decoded.get(left)));
+                        break;
+                    case 2:
+                        decoded.putShort(at, (short) (decoded.getShort(at) + decoded.getShort(left)));
+                        break;
+                    default:
+                        decoded.putInt(at, decoded.getInt(at) + decoded.getInt(left));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+
+    private GeoTiffRaster(FileChannel channel, ByteOrder order) {
+        this.channel = channel;
+        this.order = order;
+    }
+
+    /**
+     * Open a GeoTIFF file and read its first image directory.
+     *
+     * @param file
+     * @return the raster, to be closed after use
+     * @throws KlabIOException if the file cannot be read or uses unsupported TIFF features
+     */
+    public static GeoTiffRaster open(File file) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            ByteBuffer header = read(channel, 0, 8, ByteOrder.LITTLE_ENDIAN);
+            ByteOrder order;
+            if (header.get(0) == 'I' && header.get(1) == 'I') {
+                order = ByteOrder.LITTLE_ENDIAN;
+            } else if (header.get(0) == 'M' && header.get(1) == 'M') {
+                order = ByteOrder.BIG_ENDIAN;
+            } else {
+                throw new KlabIOException(file + " is not a TIFF file");
+            }
+            header.order(order);
+            if (header.getShort(2) != 42) {
+                throw new KlabIOException(file + " is not a classic TIFF file");
+            }
+            GeoTiffRaster ret = new GeoTiffRaster(channel, order);
+            ret.readDirectory(header.getInt(4) & 0xffffffffL);
+            return ret;
+        } catch (IOException e) {
+            close(channel);
+            throw new KlabIOException(e);
+        } catch (RuntimeException e) {
+            close(channel);
+            throw e;
+        }
+    }
+
+    private void readDirectory(long offset) throws IOException {
+
+        int entries = read(channel, offset, 2, order).getShort(0) & 0xffff;
+        ByteBuffer directory = read(channel, offset + 2, entries * 12, order);
+        long[] tileOffsets = null;
+        long[] tileByteCounts = null;
+        long[] stripOffsets = null;
+        long[] stripByteCounts = null;
+        int rowsPerStrip = Integer.MAX_VALUE;
+        double[] tiepoint = null;
+        int bitsPerSample = 8;
+
+        for(int i = 0; i < entries; i++) {
+            int entry = i * 12;
+            int tag = directory.getShort(entry) & 0xffff;
+            switch(tag) {
+            case IMAGE_WIDTH:
+                width = (int) integers(directory, entry)[0];
+                break;
+            case IMAGE_LENGTH:
+                height = (int) integers(directory, entry)[0];
+                break;
+            case BITS_PER_SAMPLE:
+                bitsPerSample = (int) integers(directory, entry)[0];
+                break;
+            case COMPRESSION:
+                compression = (int) integers(directory, entry)[0];
+                break;
+            case SAMPLES_PER_PIXEL:
+                samplesPerPixel = (int) integers(directory, entry)[0];
+                break;
+            case PLANAR_CONFIGURATION:
+                planar = integers(directory, entry)[0] == 2;
+                break;
+            case PREDICTOR:
+                predictor = (int) integers(directory, entry)[0];
+                break;
+            case SAMPLE_FORMAT:
+                sampleFormat = (int) integers(directory, entry)[0];
+                break;
+            case ROWS_PER_STRIP:
+                rowsPerStrip = (int) Math.min(Integer.MAX_VALUE, integers(directory, entry)[0]);
+                break;
+            case STRIP_OFFSETS:
+                stripOffsets = integers(directory, entry);
+                break;
+            case STRIP_BYTE_COUNTS:
+                stripByteCounts = integers(directory, entry);
+                break;
+            case TILE_WIDTH:
+                blockWidth = (int) integers(directory, entry)[0];
+                break;
+            case TILE_LENGTH:
+                blockHeight = (int) integers(directory, entry)[0];
+                break;
+            case TILE_OFFSETS:
+                tileOffsets = integers(directory, entry);
+                break;
+            case TILE_BYTE_COUNTS:
+                tileByteCounts = integers(directory, entry);
+                break;
+            case MODEL_PIXEL_SCALE:
+                double[] scale = doubles(directory, entry);
+                cellWidth = scale[0];
+                cellHeight = scale[1];
+                break;
+            case MODEL_TIEPOINT:
+                tiepoint = doubles(directory, entry);
+                break;
+            case GDAL_NODATA:
+                String value = ascii(directory, entry).trim();
+                if (!value.isEmpty()) {
+                    // GDAL writes NaN in lowercase
+                    noData = "nan".equalsIgnoreCase(value) ? Double.NaN : Double.parseDouble(value);
+                }
+                break;
+            default:
+                // not needed
+            }
+        }
+
+        if (tiepoint != null) {
+            // raster point (i, j) is at model point (x, y), with rows going south
+            originX = tiepoint[3] - tiepoint[0] * cellWidth;
+            originY = tiepoint[4] + tiepoint[1] * cellHeight;
+        }
+
+        if (width <= 0 || height <= 0) {
+            throw new KlabIOException("GeoTIFF has no image size");
+        }
+        if (compression != COMPRESSION_NONE && compression != COMPRESSION_DEFLATE
+                && compression != COMPRESSION_DEFLATE_OLD) {
+            throw new KlabIOException("unsupported GeoTIFF compression " + compression);
+        }
+        if (predictor != 1 && (predictor != 2 || sampleFormat == FORMAT_FLOAT)) {
+            throw new KlabIOException("unsupported GeoTIFF predictor " + predictor);
+        }
+        boolean integer = sampleFormat == FORMAT_UNSIGNED || sampleFormat == FORMAT_SIGNED;
+        if (!(integer && (bitsPerSample == 8 || bitsPerSample == 16 || bitsPerSample == 32))
+                && !(sampleFormat == FORMAT_FLOAT && (bitsPerSample == 32 || bitsPerSample == 64))) {
+            throw new KlabIOException("unsupported GeoTIFF sample type: " + bitsPerSample + " bits, format " + sampleFormat);
+        }
+        bytesPerSample = bitsPerSample / 8;
+
+        if (tileOffsets != null) {
+            offsets = tileOffsets;
+            byteCounts = tileByteCounts;
+        } else {
+            blockWidth = width;
+            blockHeight = Math.min(rowsPerStrip, height);
+            offsets = stripOffsets;
+            byteCounts = stripByteCounts;
+        }
+        if (offsets == null || byteCounts == null || blockWidth <= 0 || blockHeight <= 0) {
+            throw new KlabIOException("GeoTIFF has no strips or tiles");
+        }
+        blocksAcross = (width + blockWidth - 1) / blockWidth;
+        blocksDown = (height + blockHeight - 1) / blockHeight;
+        if (offsets.length < getBlockCount()) {
+            throw new KlabIOException("GeoTIFF does not have the offsets of all its blocks");
+        }
+        if (compression == COMPRESSION_NONE) {
+            // strips may be stored shorter than the decoded block size, but not longer
+            long size = (long) blockWidth * blockHeight * bytesPerSample * (planar ? 1 : samplesPerPixel);
+            for(int i = 0; i < byteCounts.length; i++) {
+                byteCounts[i] = Math.min(byteCounts[i], size);
+            }
+        }
+    }
+
+    private long[] integers(ByteBuffer directory, int entry) throws IOException {
+        int type = directory.getShort(entry + 2) & 0xffff;
+        int count = (int) (directory.getInt(entry + 4) & 0xffffffffL);
+        int size = type == 3 ? 2 : (type == 4 ? 4 : (type == 16 ? 8 : 1));
+        ByteBuffer values = values(directory, entry, count * size);
+        long[] ret = new long[count];
+        for(int i = 0; i < count; i++) {
+            switch(type) {
+            case 3:
+                ret[i] = values.getShort(i * 2) & 0xffff;
+                break;
+            case 4:
+                ret[i] = values.getInt(i * 4) & 0xffffffffL;
+                break;
+            case 16:
+                ret[i] = values.getLong(i * 8);
+                break;
+            default:
+                ret[i] = values.get(i) & 0xff;
+            }
+        }
+        return ret;
+    }
+
+    private double[] doubles(ByteBuffer directory, int entry) throws IOException {
+        int count = (int) (directory.getInt(entry + 4) & 0xffffffffL);
+        ByteBuffer values = values(directory, entry, count * 8);
+        double[] ret = new double[count];
+        for(int i = 0; i < count; i++) {
+            ret[i] = values.getDouble(i * 8);
+        }
+        return ret;
+    }
+
+    private String ascii(ByteBuffer directory, int entry) throws IOException {
+        int count = (int) (directory.getInt(entry + 4) & 0xffffffffL);
+        ByteBuffer values = values(directory, entry, count);
+        byte[] bytes = new byte[count];
+        values.get(bytes);
+        int length = 0;
+        while (length < count && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /*
+     * Values of up to four bytes are stored in the entry itself, larger ones at an offset.
+     */
+    private ByteBuffer values(ByteBuffer directory, int entry, int size) throws IOException {
+        if (size <= 4) {
+            ByteBuffer ret = directory.duplicate().order(order);
+            ret.position(entry + 8).limit(entry + 8 + size);
+            return ret.slice().order(order);
+        }
+        return read(channel, directory.getInt(entry + 8) & 0xffffffffL, size, order);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size, ByteOrder order) throws IOException {
+        ByteBuffer ret = ByteBuffer.allocate(size).order(order);
+        while (ret.hasRemaining()) {
+            if (channel.read(ret, position + ret.position()) < 0) {
+                throw new KlabIOException("TIFF file is truncated");
+            }
+        }
+        ret.flip();
+        return ret;
+    }
+
+    private static void close(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * A reader of blocks for the calling thread.
+     *
+     * @return
+     */
+    public Reader newReader() {
+        return new Reader();
+    }
+
+    /**
+     * Write a raster of 64 bit floats in uncompressed strips, in the layout this class reads, with
+     * NaN marking cells with no data. Values are written exactly as passed.
+     *
+     * @param output left open
+     * @param width
+     * @param height
+     * @param originX the x coordinate of the left edge
+     * @param originY the y coordinate of the top edge
+     * @param cellWidth
+     * @param cellHeight
+     * @param values in row order, rows going south
+     * @throws IOException
+     */
+    public static void write(OutputStream output, int width, int height, double originX, double originY, double cellWidth,
+            double cellHeight, double[] values) throws IOException {
+
+        int rowsPerStrip = Math.max(1, Math.min(height, 65536 / Math.max(1, width * 8)));
+        int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+        int entries = 14;
+        int offsetsAt = 8 + 2 + entries * 12 + 4;
+        int countsAt = offsetsAt + strips * 4;
+        int scaleAt = countsAt + strips * 4;
+        int tiepointAt = scaleAt + 24;
+        int dataAt = tiepointAt + 48;
+
+        ByteBuffer header = ByteBuffer.allocate(dataAt).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        header.putShort((short) entries);
+        entry(header, IMAGE_WIDTH, 4, 1, width);
+        entry(header, IMAGE_LENGTH, 4, 1, height);
+        entry(header, BITS_PER_SAMPLE, 3, 1, 64);
+        entry(header, COMPRESSION, 3, 1, COMPRESSION_NONE);
+        // photometric interpretation: black is zero
+        entry(header, 262, 3, 1, 1);
+        entry(header, STRIP_OFFSETS, 4, strips, strips == 1 ? dataAt : offsetsAt);
+        entry(header, SAMPLES_PER_PIXEL, 3, 1, 1);
+        entry(header, ROWS_PER_STRIP, 4, 1, rowsPerStrip);
+        entry(header, STRIP_BYTE_COUNTS, 4, strips, strips == 1 ? width * height * 8 : countsAt);
+        entry(header, PLANAR_CONFIGURATION, 3, 1, 1);
+        entry(header, SAMPLE_FORMAT, 3, 1, FORMAT_FLOAT);
+        entry(header, MODEL_PIXEL_SCALE, 12, 3, scaleAt);
+        entry(header, MODEL_TIEPOINT, 12, 6, tiepointAt);
+        // fits in the entry
+        header.putShort((short) GDAL_NODATA).putShort((short) 2).putInt(4).put("nan\0".getBytes(StandardCharsets.US_ASCII));
+        header.putInt(0);
+        for(int strip = 0; strip < strips; strip++) {
+            header.putInt(dataAt + strip * rowsPerStrip * width * 8);
+        }
+        for(int strip = 0; strip < strips; strip++) {
+            header.putInt(Math.min(rowsPerStrip, height - strip * rowsPerStrip) * width * 8);
+        }
+        header.putDouble(cellWidth).putDouble(cellHeight).putDouble(0);
+        header.putDouble(0).putDouble(0).putDouble(0).putDouble(originX).putDouble(originY).putDouble(0);
+        output.write(header.array());
+
+        ByteBuffer strip = ByteBuffer.allocate(rowsPerStrip * width * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for(int row = 0; row < height; row += rowsPerStrip) {
+            strip.clear();
+            int end = Math.min(height, row + rowsPerStrip) * width;
+            for(int i = row * width; i < end; i++) {
+                strip.putDouble(values[i]);
+            }
+            output.write(strip.array(), 0, strip.position());
+        }
+    }
+
+    /*
+     * Entries must be sorted by tag; values that fit are left-justified in the offset field.
+     */
+    private static void entry(ByteBuffer header, int tag, int type, int count, int value) {
+        header.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == 3 && count == 1) {
+            header.putShort((short) value).putShort((short) 0);
+        } else {
+            header.putInt(value);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the x coordinate of the left edge of the raster
+     */
+    public double getOriginX() {
+        return originX;
+    }
+
+    /**
+     * @return the y coordinate of the top edge of the raster
+     */
+    public double getOriginY() {
+        return originY;
+    }
+
+    public double getCellWidth() {
+        return cellWidth;
+    }
+
+    public double getCellHeight() {
+        return cellHeight;
+    }
+
+    /**
+     * @return the value marking cells with no data, or NaN if none is set
+     */
+    public double getNoData() {
+        return noData;
+    }
+
+    public int getBlockCount() {
+        return blocksAcross * blocksDown;
+    }
+
+    public int getBlockWidth() {
+        return blockWidth;
+    }
+
+    public int getBlockHeight() {
+        return blockHeight;
+    }
+
+    /**
+     * @param block
+     * @return the raster column of the first cell of the block
+     */
+    public int getBlockColumn(int block) {
+        return (block % blocksAcross) * blockWidth;
+    }
+
+    /**
+     * @param block
+     * @return the raster row of the first cell of the block
+     */
+    public int getBlockRow(int block) {
+        return (block / blocksAcross) * blockHeight;
+    }
+
+    @Override
+    public void close() {
+        close(channel);
+    }
+}
@@ -0,0 +1,140 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.integratedmodelling.klab.api.Metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Bridge from {@link Metrics} to a Micrometer {@link MeterRegistry}. Micrometer is an optional
+ * dependency of this package and must be on the classpath to use this class. Meters are created
+ * on first use and cached, so reporting does not allocate once all endpoints have been seen.
+ * <ul>
+ * <li><code>klab.client.requests</code> timer, tagged by endpoint and outcome;</li>
+ * <li><code>klab.client.errors</code> counter, tagged by endpoint;</li>
+ * <li><code>klab.client.bytes</code> counter, tagged by endpoint and direction;</li>
+ * <li><code>klab.client.bytes.saved</code> counter of the bytes saved by response compression and
+ * <code>klab.client.compression.ratio</code> summary of decoded over encoded size, tagged by
+ * endpoint and encoding; <code>klab.client.request.bytes.saved</code> counter of the bytes saved by
+ * compressing request bodies;</li>
+ * <li><code>klab.client.tickets.outstanding</code> gauge;</li>
+ * <li><code>klab.client.ticket.polls</code> summary of the polls needed per ticket;</li>
+ * <li><code>klab.client.ticket.resolution</code> timer from submission to resolution, tagged by
+ * outcome;</li>
+ * <li><code>klab.client.queue.depth</code> gauge and <code>klab.client.queue.wait</code> timer,
+ * tagged by queue, for the client-side {@link org.integratedmodelling.klab.api.Limits}.</li>
+ * </ul>
+ */
+public class MicrometerMetrics implements Metrics {
+
+    private final MeterRegistry registry;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Map<String, Timer> successes = new ConcurrentHashMap<>();
+    private final Map<String, Timer> failures = new ConcurrentHashMap<>();
+    private final Map<String, Counter> errors = new ConcurrentHashMap<>();
+    private final Map<String, Counter> sent = new ConcurrentHashMap<>();
+    private final Map<String, Counter> received = new ConcurrentHashMap<>();
+    private final Map<String, Counter> saved = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> ratios = new ConcurrentHashMap<>();
+    private final Map<String, Counter> requestSaved = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> depths = new ConcurrentHashMap<>();
+    private final Map<String, Timer> waits = new ConcurrentHashMap<>();
+    private final DistributionSummary polls;
+    private final Timer resolved;
+    private final Timer abandoned;
+
+    public MicrometerMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        Gauge.builder("klab.client.tickets.outstanding", outstanding, AtomicInteger::get).register(registry);
+        this.polls = DistributionSummary.builder("klab.client.ticket.polls").register(registry);
+        this.resolved = Timer.builder("klab.client.ticket.resolution").tag("outcome", "success").register(registry);
+        this.abandoned = Timer.builder("klab.client.ticket.resolution").tag("outcome", "error").register(registry);
+    }
+
+    @Override
+    public void call(String endpoint, long nanos, int status, boolean success) {
+        if (success) {
+            successes.computeIfAbsent(endpoint, e -> timer(e, "success")).record(nanos, TimeUnit.NANOSECONDS);
+        } else {
+            failures.computeIfAbsent(endpoint, e -> timer(e, "error")).record(nanos, TimeUnit.NANOSECONDS);
+            errors.computeIfAbsent(endpoint, e -> Counter.builder("klab.client.errors").tag("endpoint", e).register(registry))
+                    .increment();
+        }
+    }
+
+    @Override
+    public void bytes(String endpoint, long sentBytes, long receivedBytes) {
+        if (sentBytes > 0) {
+            sent.computeIfAbsent(endpoint, e -> bytesCounter(e, "sent")).increment(sentBytes);
+        }
+        if (receivedBytes > 0) {
+            received.computeIfAbsent(endpoint, e -> bytesCounter(e, "received")).increment(receivedBytes);
+        }
+    }
+
+    @Override
+    public void compression(String endpoint, String encoding, long encodedBytes, long decodedBytes) {
+        String key = endpoint + " " + encoding;
+        if (decodedBytes > encodedBytes) {
+            saved.computeIfAbsent(key, k -> Counter.builder("klab.client.bytes.saved").baseUnit("bytes").tag("endpoint", endpoint)
+                    .tag("encoding", encoding).register(registry)).increment(decodedBytes - encodedBytes);
+        }
+        if (encodedBytes > 0) {
+            ratios.computeIfAbsent(key, k -> DistributionSummary.builder("klab.client.compression.ratio").tag("endpoint", endpoint)
+                    .tag("encoding", encoding).register(registry)).record((double) decodedBytes / encodedBytes);
+        }
+    }
+
+    @Override
+    public void requestCompression(String endpoint, String encoding, long plainBytes, long encodedBytes) {
+        if (plainBytes > encodedBytes) {
+            requestSaved.computeIfAbsent(endpoint + " " + encoding, k -> Counter.builder("klab.client.request.bytes.saved")
+                    .baseUnit("bytes").tag("endpoint", endpoint).tag("encoding", encoding).register(registry))
+                    .increment(plainBytes - encodedBytes);
+        }
+    }
+
+    @Override
+    public void ticketSubmitted(String ticketId) {
+        outstanding.incrementAndGet();
+    }
+
+    @Override
+    public void ticketResolved(String ticketId, int pollCount, long nanos, boolean success) {
+        outstanding.decrementAndGet();
+        polls.record(pollCount);
+        (success ? resolved : abandoned).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void queued(String queue, int depth) {
+        depths.computeIfAbsent(queue, q -> {
+            AtomicInteger ret = new AtomicInteger();
+            Gauge.builder("klab.client.queue.depth", ret, AtomicInteger::get).tag("queue", q).register(registry);
+            return ret;
+        }).set(depth);
+    }
+
+    @Override
+    public void waited(String queue, long nanos) {
+        waits.computeIfAbsent(queue, q -> Timer.builder("klab.client.queue.wait").tag("queue", q).register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer timer(String endpoint, String outcome) {
+        return Timer.builder("klab.client.requests").tag("endpoint", endpoint).tag("outcome", outcome).register(registry);
+    }
+
+    private Counter bytesCounter(String endpoint, String direction) {
+        return Counter.builder("klab.client.bytes").baseUnit("bytes").tag("endpoint", endpoint).tag("direction", direction)
+                .register(registry);
+    }
+}
@@ -7,16 +7,22 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.integratedmodelling.kim.api.IKimConcept;
 import org.integratedmodelling.klab.api.API.PUBLIC.Export;
 import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Deadline;
 import org.integratedmodelling.klab.api.Klab.ExportFormat;
 import org.integratedmodelling.klab.api.Observable;
 import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.SpatialIndex;
+import org.integratedmodelling.klab.api.StateStore;
+import org.integratedmodelling.klab.api.Window;
 import org.integratedmodelling.klab.exceptions.KlabIOException;
 import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
 import org.integratedmodelling.klab.exceptions.KlabIllegalStateException;
@@ -28,9 +34,11 @@ import org.integratedmodelling.klab.utils.Range;
 public class ObservationImpl implements Observation {
 
     protected ObservationReference reference;
-    protected Map<String, String> catalogIds = new HashMap<>();
-    protected Map<String, ObservationImpl> catalog = new HashMap<>();
+    // concurrent, as several observations may be submitted in the same context from different threads
+    protected Map<String, String> catalogIds = new ConcurrentHashMap<>();
+    protected Map<String, ObservationImpl> catalog = new ConcurrentHashMap<>();
     protected Engine engine;
+    private volatile SpatialIndex spatialIndex;
 
     public ObservationImpl(ObservationReference reference, Engine engine) {
         this.reference = reference;
@@ -42,6 +50,11 @@ public class ObservationImpl implements Observation {
         return reference.getSemantics();
     }
 
+    @Override
+    public String getId() {
+        return reference.getId();
+    }
+
     @Override
     public Observable getObservable() {
         return new Observable(reference.getObservable());
@@ -97,7 +110,84 @@ public class ObservationImpl implements Observation {
         if (!format.isExportAllowed(target)) {
             throw new KlabIllegalArgumentException("export format is incompatible with target");
         }
-        return engine.streamExport(this.reference.getId(), target, format, output, parameters);
+        if (format == ExportFormat.ARROW_STREAM || format == ExportFormat.ARROW_FILE) {
+            // built here from the GeoTIFF or GeoJSON export, as the engine does not produce it
+            if (!isArrowAvailable()) {
+                throw new KlabIllegalStateException("Arrow export needs org.apache.arrow:arrow-vector on the classpath");
+            }
+            ArrowExport.of(this).parameters(parameters).write(output, format);
+            return true;
+        }
+        Deadline deadline = null;
+        Window window = null;
+        List<Object> query = new ArrayList<>();
+        if (parameters != null) {
+            for(Object parameter : parameters) {
+                if (parameter instanceof Deadline) {
+                    deadline = (Deadline) parameter;
+                } else if (parameter instanceof Window) {
+                    window = (Window) parameter;
+                } else {
+                    query.add(parameter);
+                }
+            }
+        }
+        if (window != null) {
+            if (format != ExportFormat.GEOTIFF_RASTER || !isState()) {
+                throw new KlabIllegalArgumentException("windows can only be exported from states as GeoTIFF");
+            }
+            if (deadline != null) {
+                query.add(deadline);
+            }
+            return exportWindow(window, output, query.toArray());
+        }
+        return engine.bounded(deadline, () -> engine.streamExport(this.reference.getId(), target, format, output, query.toArray()));
+    }
+
+    /*
+     * Cut and decimate the window from the stored state, downloading it only if not stored yet.
+     */
+    private boolean exportWindow(Window window, OutputStream output, Object[] parameters) {
+
+        StateStore.StoredState state = engine.getStateStore().get(this, parameters);
+        int decimation = window.getDecimation(state.getCellWidth());
+        int column = Math.floorDiv(state.getColumn(window.getMinX()), decimation) * decimation;
+        int row = Math.floorDiv(state.getRow(window.getMaxY()), decimation) * decimation;
+        // the last cells overlapping the window, whose far edges are past its bounds
+        int lastColumn = (int) Math.ceil((window.getMaxX() - state.getOriginX()) / state.getCellWidth()) - 1;
+        int lastRow = (int) Math.ceil((state.getOriginY() - window.getMinY()) / state.getCellHeight()) - 1;
+        lastColumn = Math.min(lastColumn, state.getWidth() - 1);
+        lastRow = Math.min(lastRow, state.getHeight() - 1);
+        column = Math.max(column, 0);
+        row = Math.max(row, 0);
+        if (lastColumn < column || lastRow < row) {
+            throw new KlabIllegalArgumentException(window + " does not overlap " + this);
+        }
+        int columns = (lastColumn - column) / decimation + 1;
+        int rows = (lastRow - row) / decimation + 1;
+
+        double[] values = state.read(column, row, columns, rows, decimation, null);
+        try {
+            GeoTiffRaster.write(output, columns, rows, state.getOriginX() + column * state.getCellWidth(),
+                    state.getOriginY() - row * state.getCellHeight(), state.getCellWidth() * decimation,
+                    state.getCellHeight() * decimation, values);
+        } catch (IOException e) {
+            throw new KlabIOException(e);
+        }
+        return true;
+    }
+
+    boolean isState() {
+        return reference != null && reference.getObservationType() == ObservationType.STATE;
+    }
+
+    private static boolean isArrowAvailable() {
+        try {
+            Class.forName("org.apache.arrow.vector.VectorSchemaRoot");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
     }
 
     @Override
@@ -132,6 +222,20 @@ public class ObservationImpl implements Observation {
         return Range.create(this.reference.getDataSummary().getMinValue(), this.reference.getDataSummary().getMaxValue());
     }
 
+    @Override
+    public SpatialIndex getSpatialIndex() {
+        SpatialIndex ret = spatialIndex;
+        if (ret == null) {
+            synchronized (this) {
+                ret = spatialIndex;
+                if (ret == null) {
+                    spatialIndex = ret = SpatialIndex.of(this);
+                }
+            }
+        }
+        return ret;
+    }
+
     @Override
     public Object getScalarValue() {
         String literalValue = reference.getOverallValue();
@@ -0,0 +1,43 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.rest.ObservationReference;
+import org.integratedmodelling.klab.rest.TicketResponse.Ticket;
+
+/**
+ * Publishes each observation made by a ticket as soon as its artifact is listed by the engine,
+ * including artifacts listed while the ticket is still open. Observations are retrieved only when
+ * the subscriber has requested them. Each observation is cataloged in the context before it is
+ * published.
+ */
+public class ObservationPublisher extends TicketPublisher<Observation> {
+
+    public ObservationPublisher(Engine engine, String ticketId, ContextImpl context) {
+        super(engine, ticketId, context, 0, "klab-observations");
+    }
+
+    @Override
+    protected List<String> available(Ticket ticket) {
+        if (ticket.getData().containsKey("artifacts")) {
+            return Arrays.asList(ticket.getData().get("artifacts").split(","));
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    protected Observation fetch(String artifactId) {
+        ObservationReference bean = engine.getObservation(artifactId);
+        if (bean == null) {
+            return null;
+        }
+        ObservationImpl observation = new ObservationImpl(bean, engine);
+        if (context != null) {
+            context.updateWith(observation);
+        }
+        return observation;
+    }
+}
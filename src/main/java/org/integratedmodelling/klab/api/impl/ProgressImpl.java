@@ -0,0 +1,65 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.integratedmodelling.klab.api.Progress;
+import org.integratedmodelling.klab.api.runtime.ITicket.Status;
+
+public class ProgressImpl implements Progress {
+
+    private final String ticketId;
+    private final Status status;
+    private final Map<String, String> data;
+    private final long elapsedNanos;
+    private final long expectedNanos;
+
+    public ProgressImpl(String ticketId, Status status, Map<String, String> data, long elapsedNanos, long expectedNanos) {
+        this.ticketId = ticketId;
+        this.status = status;
+        this.data = data == null || data.isEmpty() ? Collections.emptyMap()
+                : Collections.unmodifiableMap(new LinkedHashMap<>(data));
+        this.elapsedNanos = elapsedNanos;
+        this.expectedNanos = expectedNanos;
+    }
+
+    @Override
+    public String getTicketId() {
+        return ticketId;
+    }
+
+    @Override
+    public Status getStatus() {
+        return status;
+    }
+
+    @Override
+    public Map<String, String> getData() {
+        return data;
+    }
+
+    @Override
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public long getExpectedNanos() {
+        return expectedNanos;
+    }
+
+    @Override
+    public long getRemainingNanos() {
+        if (status == Status.RESOLVED) {
+            return 0;
+        }
+        return expectedNanos < 0 ? -1 : Math.max(0, expectedNanos - elapsedNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "ticket " + ticketId + " " + status + " after " + elapsedNanos / 1000000 + "ms"
+                + (expectedNanos < 0 ? "" : " of ~" + expectedNanos / 1000000 + "ms") + (data.isEmpty() ? "" : " " + data);
+    }
+}
@@ -0,0 +1,70 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolution times of recent requests, grouped by a description of what they asked for, used to
+ * tell how long a new similar request is expected to take. Each group keeps an exponentially
+ * weighted average that follows changes in engine load; the least recently used groups are
+ * dropped beyond {@link #MAX_KINDS}.
+ */
+public class RequestHistory {
+
+    public static final int MAX_KINDS = 1000;
+
+    // weight of the latest resolution time in the average
+    private static final double WEIGHT = 0.3;
+
+    private final Map<String, double[]> averages = new LinkedHashMap<String, double[]>(16, 0.75f, true){
+
+        private static final long serialVersionUID = -3420926406128337561L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+            return size() > MAX_KINDS;
+        }
+    };
+
+    /**
+     * Describe a request for grouping with similar ones.
+     * 
+     * @param type the type of request, e.g. the endpoint
+     * @param urn the main observable or URN
+     * @param observables any further observables, in any order
+     * @param scenarios the scenarios, in any order
+     * @return the description
+     */
+    public static String kind(String type, String urn, List<String> observables, List<String> scenarios) {
+        StringBuilder ret = new StringBuilder(type).append(' ').append(urn);
+        if (observables != null && !observables.isEmpty()) {
+            ret.append(" with ").append(String.join(", ", observables.stream().sorted().toArray(String[]::new)));
+        }
+        if (scenarios != null && !scenarios.isEmpty()) {
+            ret.append(" under ").append(String.join(", ", scenarios.stream().sorted().toArray(String[]::new)));
+        }
+        return ret.toString();
+    }
+
+    public synchronized void resolved(String kind, long nanos) {
+        if (kind == null) {
+            return;
+        }
+        double[] average = averages.get(kind);
+        if (average == null) {
+            averages.put(kind, new double[]{nanos});
+        } else {
+            average[0] += WEIGHT * (nanos - average[0]);
+        }
+    }
+
+    /**
+     * @param kind
+     * @return the expected resolution time in nanoseconds, or -1 if none of the kind was resolved
+     */
+    public synchronized long expected(String kind) {
+        double[] average = kind == null ? null : averages.get(kind);
+        return average == null ? -1 : (long) average[0];
+    }
+}
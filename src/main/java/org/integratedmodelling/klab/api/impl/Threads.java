@@ -0,0 +1,90 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.integratedmodelling.klab.api.Klab;
+
+/**
+ * The threads the client runs blocking work on. The Java 11 build uses daemon platform threads;
+ * the <code>jdk21</code> build profile adds {@link Provider} implemented with virtual threads,
+ * which is used unless {@link Klab#VIRTUAL_THREADS} is false.
+ */
+public final class Threads {
+
+    /**
+     * Source of threads for the client.
+     */
+    public interface Provider {
+
+        ThreadFactory factory(String name);
+
+        /**
+         * An executor that runs each task in its own thread, or reuses threads if they are costly.
+         *
+         * @param name
+         * @return
+         */
+        ExecutorService executor(String name);
+    }
+
+    private static final String VIRTUAL_PROVIDER = "org.integratedmodelling.klab.api.impl.VirtualThreads";
+
+    private static final Provider platform = new Provider() {
+
+        @Override
+        public ThreadFactory factory(String name) {
+            AtomicInteger count = new AtomicInteger();
+            return runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+
+        @Override
+        public ExecutorService executor(String name) {
+            return Executors.newCachedThreadPool(factory(name));
+        }
+    };
+
+    private static final Provider virtual = virtualProvider();
+
+    private Threads() {
+    }
+
+    public static boolean isVirtualAvailable() {
+        return virtual != null;
+    }
+
+    /**
+     * Whether new client threads are virtual.
+     *
+     * @return
+     */
+    public static boolean isVirtual() {
+        return virtual != null && Klab.VIRTUAL_THREADS;
+    }
+
+    public static ThreadFactory factory(String name) {
+        return provider().factory(name);
+    }
+
+    public static ExecutorService executor(String name) {
+        return provider().executor(name);
+    }
+
+    private static Provider provider() {
+        return isVirtual() ? virtual : platform;
+    }
+
+    private static Provider virtualProvider() {
+        try {
+            return (Provider) Class.forName(VIRTUAL_PROVIDER).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -1,12 +1,25 @@
 package org.integratedmodelling.klab.api.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicReference;
 
+import org.integratedmodelling.klab.api.Deadline;
 import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Metrics;
+import org.integratedmodelling.klab.api.Progress;
+import org.integratedmodelling.klab.api.Task;
+import org.integratedmodelling.klab.api.TraceContext;
+import org.integratedmodelling.klab.api.TraceListener;
 import org.integratedmodelling.klab.api.runtime.ITicket.Status;
 import org.integratedmodelling.klab.exceptions.KlabInternalErrorException;
 import org.integratedmodelling.klab.rest.ObservationReference;
@@ -15,98 +28,366 @@ import org.integratedmodelling.klab.rest.TicketResponse.Ticket;
 
 /**
  * Handler that uses the ticket API in k.LAB to provide access to a bean
- * computed asynchronously at the remote side.
+ * computed asynchronously at the remote side, reporting the ticket's progress
+ * as it is polled.
  * 
  * @author Ferd
  *
  * @param <T> class of final result
  */
-public class TicketHandler<T> implements Future<T> {
+public class TicketHandler<T> implements Task<T> {
+
+    // engine jobs are cancelled here, so that cancelling returns without waiting for the engine
+    private static ExecutorService cancellations;
 
     private Engine engine;
     private String ticketId;
     private ContextImpl context;
-    private AtomicReference<T> result = new AtomicReference<>();
-    private boolean cancelled;
+    private volatile State state = State.WAITING;
+    private volatile T result;
+    // counted down when the handler leaves the WAITING state, to wake up waiting threads
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final long submitted = System.nanoTime();
+    private volatile long resolved;
+    private volatile long completed;
+    private int polls;
+    private final TraceContext trace;
+    private long unavailableSince;
+    private final String kind;
+    private final long expected;
+    private volatile Progress progress;
+    private final List<Progress.Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private enum State {
+        WAITING, DONE, FAILED, CANCELLED
+    }
 
     public TicketHandler(Engine engine, String ticketId, ContextImpl context) {
         this.engine = engine;
         this.ticketId = ticketId;
         this.context = context;
+        this.trace = engine.claimTrace(ticketId);
+        this.kind = engine.claimKind(ticketId);
+        this.expected = engine.getRequestHistory().expected(kind);
+        this.progress = new ProgressImpl(ticketId, Status.OPEN, Collections.emptyMap(), 0, expected);
+        if (engine.getMetrics().isEnabled()) {
+            engine.getMetrics().ticketSubmitted(ticketId);
+        }
+        if (context != null) {
+            context.track(this);
+        }
     }
 
+    /**
+     * Stop waiting for the ticket and ask the engine to abort its job, in the background. Threads
+     * waiting in {@link #get()} return immediately with a {@link CancellationException}, whether or
+     * not <code>mayInterruptIfRunning</code> is set, and the ticket's slot in the client
+     * {@link org.integratedmodelling.klab.api.Limits} is freed.
+     * 
+     * @return false if the result had already been retrieved, the ticket had failed or the
+     *         handler had already been cancelled
+     */
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
-        // TODO call virtual to cancel the job
-        this.cancelled = true;
-        return false;
+        if (!conclude(State.CANCELLED, null)) {
+            return false;
+        }
+        engine.ticketFinished(ticketId);
+        if (resolved == 0) {
+            abandoned(null);
+        }
+        cancellations().execute(() -> {
+            try {
+                engine.cancelTicket(ticketId);
+            } catch (RuntimeException e) {
+                // best effort: the job is left to the engine
+            }
+        });
+        return true;
+    }
+
+    private static synchronized ExecutorService cancellations() {
+        if (cancellations == null) {
+            cancellations = Threads.executor("klab-cancel");
+        }
+        return cancellations;
     }
 
     @Override
     public boolean isCancelled() {
-        return cancelled;
+        return state == State.CANCELLED;
+    }
+
+    /**
+     * @return true if the ticket ended in error or could not be polled for longer than the retry
+     *         policy tolerates
+     */
+    public boolean isFailed() {
+        return state == State.FAILED;
     }
 
     @Override
     public boolean isDone() {
-        return result.get() != null;
+        return state != State.WAITING;
     }
 
+    /**
+     * Wait for the result.
+     * 
+     * @return the result, or null if the ticket failed
+     * @throws CancellationException if the handler was cancelled, including while waiting
+     */
     @Override
     public T get() throws InterruptedException, ExecutionException {
-        if (isCancelled()) {
-            return null;
-        }
-        while (result.get() == null) {
-            T bean = poll(engine);
-            if (bean != null) {
-                result.set(bean);
-                break;
-            } else if (isCancelled()) {
-                break;
+        while (state == State.WAITING) {
+            if (poll(engine) == null) {
+                finished.await(Klab.POLLING_INTERVAL_MS, TimeUnit.MILLISECONDS);
             }
-            Thread.sleep(Klab.POLLING_INTERVAL_MS);
         }
-        return result.get();
+        return outcome();
     }
 
     @Override
     public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return get(Deadline.in(timeout, unit));
+    }
 
-        if (isCancelled()) {
-            return null;
-        }
-
-        long time = 0;
-        long tout = unit.convert(timeout, TimeUnit.MILLISECONDS);
-        while (result.get() == null) {
-            if (time > tout) {
-                break;
+    /**
+     * Wait for the result until the deadline. The time taken by polling and by retrieving the
+     * result counts against it, and calls to the engine are bounded by it.
+     * 
+     * @return the result, or null if the ticket failed
+     * @throws TimeoutException if the result was not retrieved before the deadline
+     * @throws CancellationException if the handler was cancelled, including while waiting
+     */
+    @Override
+    public T get(Deadline deadline) throws InterruptedException, ExecutionException, TimeoutException {
+        while (state == State.WAITING) {
+            if (deadline.isExpired()) {
+                throw new TimeoutException("ticket " + ticketId + " was not completed before the deadline");
             }
-            T bean = poll(engine);
-            if (bean != null) {
-                result.set(bean);
-                break;
-            } else if (isCancelled()) {
-                break;
+            if (engine.bounded(deadline, () -> poll(engine)) == null) {
+                finished.await(Math.min(Klab.POLLING_INTERVAL_MS * 1000000L, deadline.getRemainingNanos()),
+                        TimeUnit.NANOSECONDS);
             }
-            Thread.sleep(Klab.POLLING_INTERVAL_MS);
-            time += Klab.POLLING_INTERVAL_MS;
         }
+        return outcome();
+    }
 
-        return result.get();
+    private T outcome() {
+        if (state == State.CANCELLED) {
+            throw new CancellationException("ticket " + ticketId + " was cancelled");
+        }
+        return result;
+    }
+
+    /*
+     * Leave the WAITING state, once. Listeners are notified outside the lock.
+     */
+    private boolean conclude(State state, T result) {
+        synchronized (this) {
+            if (this.state != State.WAITING) {
+                return false;
+            }
+            this.result = result;
+            this.state = state;
+            finished.countDown();
+        }
+        if (context != null) {
+            context.untrack(this);
+        }
+        if (state != State.DONE) {
+            progressed(Status.ERROR, progress.getData());
+        }
+        return true;
     }
 
     private T poll(Engine engine) {
-        TicketResponse.Ticket ticket = engine.getTicket(ticketId);
+        Ticket ticket = check();
+        if (ticket == null || ticket.getStatus() != Status.RESOLVED) {
+            return null;
+        }
+        T ret;
+        try {
+            ret = engine.traced(trace, () -> processTicket(ticket));
+        } catch (DeadlineExceededException e) {
+            // the caller ran out of time, the engine is not at fault
+            return null;
+        } catch (EngineUnavailableException e) {
+            // the results are still at the engine: fetch them at the next poll
+            unavailable();
+            return null;
+        }
+        return completed(ticket, ret) ? ret : null;
+    }
+
+    /**
+     * Poll the ticket once, reporting to the engine's metrics and trace listener. An engine that
+     * cannot be reached is tolerated for as long as the retry policy allows; after that, or if the
+     * ticket ends in error, the handler is cancelled.
+     * 
+     * @return the ticket if open or resolved, otherwise null
+     */
+    Ticket check() {
+        polls++;
+        Metrics metrics = engine.getMetrics();
+        TraceListener tracer = engine.getTraceListener();
+        if (metrics.isEnabled()) {
+            metrics.ticketPolled(ticketId);
+        }
+        TicketResponse.Ticket ticket;
+        try {
+            ticket = engine.traced(trace, () -> engine.getTicket(ticketId));
+        } catch (DeadlineExceededException e) {
+            return null;
+        } catch (EngineUnavailableException e) {
+            unavailable();
+            return null;
+        }
+        if (trace != null) {
+            tracer.ticketPolled(trace, ticketId, ticket == null ? null : ticket.getStatus());
+        }
         if (ticket == null || ticket.getStatus() == Status.ERROR || ticket.getId() == null) {
-            cancel(true);
+            failed(ticket == null ? null : ticket.getStatus());
             return null;
         }
-        if (ticket.getStatus() == Status.RESOLVED) {
-            return processTicket(ticket);
+        if (ticket.getStatus() == Status.RESOLVED && this.resolved == 0) {
+            this.resolved = System.nanoTime();
+            engine.getRequestHistory().resolved(kind, resolved - submitted);
+            if (metrics.isEnabled()) {
+                metrics.ticketResolved(ticketId, polls, resolved - submitted, true);
+            }
+            if (trace != null) {
+                tracer.ticketResolved(trace, ticketId, Status.RESOLVED, resolved - submitted);
+            }
+        }
+        unavailableSince = 0;
+        progressed(ticket.getStatus(), ticket.getData());
+        return ticket;
+    }
+
+    /*
+     * Take a new progress snapshot and notify the listeners if the status or data have changed.
+     */
+    private void progressed(Status status, Map<String, String> data) {
+        Progress previous = this.progress;
+        long now = resolved != 0 && status == Status.RESOLVED ? resolved : System.nanoTime();
+        Progress current = new ProgressImpl(ticketId, status, data, now - submitted, expected);
+        this.progress = current;
+        if (previous.getStatus() != current.getStatus() || !previous.getData().equals(current.getData())) {
+            for(Progress.Listener listener : listeners) {
+                listener.progressed(current);
+            }
+        }
+    }
+
+    /*
+     * All the results of a resolved ticket have been retrieved. Return false if the handler was
+     * cancelled or failed meanwhile.
+     */
+    boolean completed(Ticket ticket, T result) {
+        if (!conclude(State.DONE, result)) {
+            return false;
+        }
+        this.completed = System.nanoTime();
+        engine.ticketFinished(ticketId);
+        if (trace != null) {
+            engine.getTraceListener().artifactsFetched(trace, ticketId, artifactIds(ticket), completed - resolved);
+        }
+        return true;
+    }
+
+    private void failed(Status status) {
+        if (conclude(State.FAILED, null)) {
+            engine.ticketFinished(ticketId);
+            // once resolved the ticket has been reported already
+            if (resolved == 0) {
+                abandoned(status);
+            }
         }
-        return null;
+    }
+
+    /*
+     * The engine could not be reached: keep waiting unless that has been going on for longer than
+     * the retry policy tolerates.
+     */
+    void unavailable() {
+        long now = System.nanoTime();
+        if (unavailableSince == 0) {
+            unavailableSince = now;
+        }
+        if (now - unavailableSince >= engine.getRetryPolicy().getPollFailureToleranceMs() * 1000000L) {
+            failed(null);
+        }
+    }
+
+    /*
+     * The engine answered a call other than a poll, such as retrieving results.
+     */
+    void reachable() {
+        unavailableSince = 0;
+    }
+
+    private void abandoned(Status status) {
+        if (engine.getMetrics().isEnabled()) {
+            engine.getMetrics().ticketResolved(ticketId, polls, System.nanoTime() - submitted, false);
+        }
+        if (trace != null) {
+            engine.getTraceListener().ticketResolved(trace, ticketId, status, System.nanoTime() - submitted);
+        }
+    }
+
+    private static List<String> artifactIds(Ticket ticket) {
+        List<String> ret = new ArrayList<>();
+        if (ticket.getData().containsKey("context")) {
+            ret.add(ticket.getData().get("context"));
+        }
+        if (ticket.getData().containsKey("artifacts")) {
+            ret.addAll(Arrays.asList(ticket.getData().get("artifacts").split(",")));
+        }
+        return ret;
+    }
+
+    @Override
+    public String getTicketId() {
+        return ticketId;
+    }
+
+    @Override
+    public Progress getProgress() {
+        return progress;
+    }
+
+    @Override
+    public Task<T> addListener(Progress.Listener listener) {
+        listeners.add(listener);
+        listener.progressed(progress);
+        return this;
+    }
+
+    @Override
+    public Task<T> removeListener(Progress.Listener listener) {
+        listeners.remove(listener);
+        return this;
+    }
+
+    /**
+     * Time between the creation of this handler (right after the engine accepted the request) and
+     * the first poll that found the ticket resolved.
+     * 
+     * @return the waiting time in nanoseconds, or -1 if the ticket has not been seen resolved yet.
+     */
+    public long getWaitNanos() {
+        return resolved == 0 ? -1 : resolved - submitted;
+    }
+
+    /**
+     * Time spent retrieving the result beans after the ticket was resolved.
+     * 
+     * @return the fetch time in nanoseconds, or -1 if the result has not been retrieved yet.
+     */
+    public long getFetchNanos() {
+        return completed == 0 ? -1 : completed - resolved;
     }
 
     protected T processTicket(Ticket ticket) {
@@ -126,22 +407,27 @@ public class TicketHandler<T> implements Future<T> {
         throw new KlabInternalErrorException("unexpected ticket type: " + ticket.getType());
     }
 
+    /*
+     * All the artifacts are retrieved and cataloged in the context; the first is returned. Use an
+     * ObservationPublisher to receive all of them.
+     */
     @SuppressWarnings("unchecked")
     private T makeObservation(Ticket ticket) {
         if (ticket.getData().containsKey("artifacts")) {
+            List<ObservationImpl> observations = new ArrayList<>();
             for(String oid : ticket.getData().get("artifacts").split(",")) {
                 ObservationReference bean = engine.getObservation(oid);
-                ObservationImpl ret = new ObservationImpl(bean, engine);
-                if (context != null && ret != null && ret.reference != null) {
-                    context.updateWith(ret);
+                if (bean != null) {
+                    observations.add(new ObservationImpl(bean, engine));
                 }
-                return (T) ret;
             }
-        } else {
-            // empty result
-            return (T) (new ObservationImpl(null, engine));
+            if (context != null && !observations.isEmpty()) {
+                context.updateWith(observations.toArray(new ObservationImpl[observations.size()]));
+            }
+            return (T) (observations.isEmpty() ? new ObservationImpl(null, engine) : observations.get(0));
         }
-        return null;
+        // empty result
+        return (T) (new ObservationImpl(null, engine));
     }
 
     @SuppressWarnings("unchecked")
@@ -159,7 +445,7 @@ public class TicketHandler<T> implements Future<T> {
     @SuppressWarnings("unchecked")
     private T makeEstimate(Ticket ticket) {
         return (T) new EstimateImpl(ticket.getData().get("estimate"), Double.parseDouble(ticket.getData().get("cost")),
-                ticket.getData().get("currency"), ticket.getType(), ticket.getData().get("feasible"));
+                ticket.getData().get("currency"), ticket.getType(), ticket.getData().get("feasible"), engine);
     }
 
 }
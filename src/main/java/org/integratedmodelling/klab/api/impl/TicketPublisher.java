@@ -0,0 +1,341 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.runtime.ITicket.Status;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+import org.integratedmodelling.klab.exceptions.KlabIllegalStateException;
+import org.integratedmodelling.klab.exceptions.KlabRemoteException;
+import org.integratedmodelling.klab.rest.TicketResponse.Ticket;
+
+/**
+ * Publishes the items made available by an observation ticket as the engine lists them, including
+ * while the ticket is still open. Subclasses say which keys a polled ticket lists and how to
+ * retrieve the item for each. Items are retrieved when the subscriber has requested them, or up
+ * to a window ahead of its requests, so a slow consumer holds back the transfers but not the
+ * polling and no more than the window is ever held waiting to be published.
+ * <p>
+ * The publisher accepts a single subscriber, whose signals are delivered from one client thread
+ * started at subscription. Cancelling the subscription stops polling and frees the ticket's slot
+ * in the client {@link org.integratedmodelling.klab.api.Limits}.
+ *
+ * @param <T> the type of the items published
+ */
+public abstract class TicketPublisher<T> implements Flow.Publisher<T> {
+
+    protected final Engine engine;
+    protected final String ticketId;
+    protected final ContextImpl context;
+    private final TicketHandler<Observation> handler;
+    private final int window;
+    private final String threadName;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * @param engine
+     * @param ticketId
+     * @param context the context the ticket was submitted to, if any
+     * @param window the number of items that may be retrieved before the subscriber requests
+     *        them; 0 retrieves each only on request
+     * @param threadName the name of the thread delivering the signals
+     */
+    protected TicketPublisher(Engine engine, String ticketId, ContextImpl context, int window, String threadName) {
+        if (window < 0) {
+            throw new KlabIllegalArgumentException("negative publishing window: " + window);
+        }
+        this.engine = engine;
+        this.ticketId = ticketId;
+        this.context = context;
+        this.handler = new TicketHandler<>(engine, ticketId, context);
+        this.window = window;
+        this.threadName = threadName;
+    }
+
+    /**
+     * The keys of the items listed in a polled ticket, in publishing order. Keys returned by
+     * previous polls are ignored.
+     *
+     * @param ticket
+     * @return the keys, possibly empty
+     */
+    protected abstract List<String> available(Ticket ticket);
+
+    /**
+     * Retrieve the item for a key.
+     *
+     * @param key
+     * @return the item, or null if there is nothing to publish for the key
+     * @throws EngineUnavailableException to retry the same key later, for as long as the retry
+     *         policy tolerates
+     */
+    protected abstract T fetch(String key);
+
+    @Override
+    public void subscribe(Flow.Subscriber< ? super T> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription(){
+
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new KlabIllegalStateException("ticket " + ticketId + " has already been subscribed to"));
+            return;
+        }
+        Threads.factory(threadName).newThread(new Subscription(subscriber)).start();
+    }
+
+    private class Subscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber< ? super T> subscriber;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private long demand;
+        private boolean cancelled;
+        private Throwable error;
+        // consecutive retrievals that found the engine unavailable
+        private int failedRetrievals;
+
+        Subscription(Flow.Subscriber< ? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            lock.lock();
+            try {
+                if (n <= 0) {
+                    error = new KlabIllegalArgumentException("non-positive number of items requested: " + n);
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            lock.lock();
+            try {
+                cancelled = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+
+            subscriber.onSubscribe(this);
+
+            Set<String> listed = new HashSet<>();
+            Deque<String> pending = new ArrayDeque<>();
+            Deque<T> buffer = new ArrayDeque<>();
+            Ticket ticket = null;
+            long polled = System.nanoTime() - Klab.POLLING_INTERVAL_MS * 1000000L;
+            try {
+                while (true) {
+
+                    boolean resolved = ticket != null && ticket.getStatus() == Status.RESOLVED;
+                    if (!resolved && System.nanoTime() - polled >= Klab.POLLING_INTERVAL_MS * 1000000L) {
+                        polled = System.nanoTime();
+                        Ticket polledTicket = handler.check();
+                        if (polledTicket == null && handler.isFailed()) {
+                            if (!isCancelled()) {
+                                subscriber.onError(new KlabRemoteException("observation ticket " + ticketId + " failed or was abandoned"));
+                            }
+                            return;
+                        }
+                        if (polledTicket != null) {
+                            ticket = polledTicket;
+                            resolved = ticket.getStatus() == Status.RESOLVED;
+                            for(String key : available(ticket)) {
+                                if (listed.add(key)) {
+                                    pending.add(key);
+                                }
+                            }
+                        }
+                    }
+
+                    // retrieve ahead of demand up to the window
+                    boolean unavailable = false;
+                    while (buffer.size() < window && !pending.isEmpty() && !unavailable && !isCancelled()) {
+                        unavailable = !retrieve(pending, buffer);
+                    }
+
+                    while ((!buffer.isEmpty() || !pending.isEmpty()) && take(resolved)) {
+                        if (buffer.isEmpty() && (unavailable || !retrieve(pending, buffer))) {
+                            // try again after the next poll, or after backing off once resolved
+                            unavailable = true;
+                            giveBack();
+                            break;
+                        }
+                        if (buffer.isEmpty()) {
+                            // nothing to publish for this key
+                            giveBack();
+                            continue;
+                        }
+                        subscriber.onNext(buffer.poll());
+                        if (buffer.size() < window && !pending.isEmpty() && !unavailable) {
+                            unavailable = !retrieve(pending, buffer);
+                        }
+                    }
+
+                    if (isCancelled()) {
+                        handler.cancel(true);
+                        return;
+                    }
+                    if (handler.isFailed()) {
+                        // the engine was unavailable for longer than the retry policy tolerates
+                        subscriber.onError(new KlabRemoteException("results of observation ticket " + ticketId + " could not be retrieved"));
+                        return;
+                    }
+                    if (handler.isCancelled()) {
+                        // cancelled with the context
+                        subscriber.onError(new CancellationException("ticket " + ticketId + " was cancelled"));
+                        return;
+                    }
+                    Throwable failure = getError();
+                    if (failure != null) {
+                        handler.cancel(true);
+                        subscriber.onError(failure);
+                        return;
+                    }
+                    if (resolved && pending.isEmpty() && buffer.isEmpty()) {
+                        if (handler.completed(ticket, null)) {
+                            subscriber.onComplete();
+                        } else {
+                            subscriber.onError(new CancellationException("ticket " + ticketId + " was cancelled"));
+                        }
+                        return;
+                    }
+                    if (!resolved) {
+                        pause(polled + Klab.POLLING_INTERVAL_MS * 1000000L - System.nanoTime(),
+                                !unavailable && (!pending.isEmpty() || !buffer.isEmpty()));
+                    } else if (unavailable) {
+                        // nothing left to poll: back off before trying the engine again
+                        long backoff = engine.getRetryPolicy().getBackoffMs(failedRetrievals);
+                        pause(Math.max(backoff, Klab.POLLING_INTERVAL_MS) * 1000000L, false);
+                    }
+                }
+            } catch (RuntimeException e) {
+                handler.cancel(true);
+                if (!isCancelled()) {
+                    subscriber.onError(e);
+                }
+            } catch (InterruptedException e) {
+                handler.cancel(true);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /*
+         * Retrieve the item for the first pending key into the buffer, unless there is none for it.
+         * Return false, leaving the key pending, if the engine is unavailable, which the handler
+         * tolerates as it does failed polls.
+         */
+        private boolean retrieve(Deque<String> pending, Deque<T> buffer) {
+            T item;
+            try {
+                item = fetch(pending.peek());
+            } catch (EngineUnavailableException e) {
+                failedRetrievals++;
+                handler.unavailable();
+                return false;
+            }
+            failedRetrievals = 0;
+            handler.reachable();
+            pending.poll();
+            if (item != null) {
+                buffer.add(item);
+            }
+            return true;
+        }
+
+        /*
+         * Take one unit of demand. Once the ticket is resolved there is nothing left to poll for, so
+         * wait for the subscriber to ask for more.
+         */
+        private boolean take(boolean wait) throws InterruptedException {
+            lock.lock();
+            try {
+                while (wait && demand == 0 && !cancelled && error == null) {
+                    changed.await();
+                }
+                if (demand == 0 || cancelled || error != null) {
+                    return false;
+                }
+                if (demand != Long.MAX_VALUE) {
+                    demand--;
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void giveBack() {
+            lock.lock();
+            try {
+                if (demand != Long.MAX_VALUE) {
+                    demand++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /*
+         * Wait until the next poll is due, waking up early if cancelled or, when items are waiting
+         * to be published, as soon as the subscriber asks for them.
+         */
+        private void pause(long nanos, boolean wakeOnDemand) throws InterruptedException {
+            lock.lock();
+            try {
+                while (nanos > 0 && !cancelled && error == null && !(wakeOnDemand && demand > 0)) {
+                    nanos = changed.awaitNanos(nanos);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isCancelled() {
+            lock.lock();
+            try {
+                return cancelled;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Throwable getError() {
+            lock.lock();
+            try {
+                return error;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.Timestep;
+import org.integratedmodelling.klab.utils.Range;
+
+public class TimestepImpl implements Timestep {
+
+    private final int index;
+    private final Observation observation;
+    private final ExportFormat format;
+    private final byte[] data;
+
+    public TimestepImpl(int index, Observation observation, ExportFormat format, byte[] data) {
+        this.index = index;
+        this.observation = observation;
+        this.format = format;
+        this.data = data;
+    }
+
+    @Override
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public Observation getObservation() {
+        return observation;
+    }
+
+    @Override
+    public Range getDataRange() {
+        return observation.getDataRange();
+    }
+
+    @Override
+    public Object getAggregatedValue() {
+        return observation.getAggregatedValue();
+    }
+
+    @Override
+    public ExportFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return data == null ? null : new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public String toString() {
+        return "timestep " + index + (data == null ? "" : " (" + data.length + " bytes of " + format + ")");
+    }
+}
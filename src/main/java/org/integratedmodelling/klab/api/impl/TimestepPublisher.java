@@ -0,0 +1,84 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Timestep;
+import org.integratedmodelling.klab.api.runtime.ITicket.Status;
+import org.integratedmodelling.klab.exceptions.KlabRemoteException;
+import org.integratedmodelling.klab.rest.ObservationReference;
+import org.integratedmodelling.klab.rest.TicketResponse.Ticket;
+
+/**
+ * Publishes the timesteps of a dynamic observation as the engine completes them. While the ticket
+ * is open, the engine lists the observation in its "artifacts" data and the number of completed
+ * timesteps in its "timesteps" data; the statistics of each timestep are retrieved from the
+ * structure export and its slice from the data export, both with the {@link #P_TIMESTEP} query
+ * parameter. If the engine never reports timesteps, the whole observation is published as one when
+ * the ticket is resolved.
+ */
+public class TimestepPublisher extends TicketPublisher<Timestep> {
+
+    /**
+     * Query parameter selecting one timestep in exports.
+     */
+    public static final String P_TIMESTEP = "timestep";
+
+    private final ExportFormat format;
+    private String artifactId;
+    private int listed;
+
+    public TimestepPublisher(Engine engine, String ticketId, ContextImpl context, ExportFormat format, int window) {
+        super(engine, ticketId, context, window, "klab-timesteps");
+        this.format = format;
+    }
+
+    @Override
+    protected List<String> available(Ticket ticket) {
+
+        if (artifactId == null && ticket.getData().containsKey("artifacts")) {
+            artifactId = ticket.getData().get("artifacts").split(",")[0];
+        }
+        if (artifactId == null) {
+            return Collections.emptyList();
+        }
+
+        List<String> ret = new ArrayList<>();
+        if (ticket.getData().containsKey("timesteps")) {
+            int completed = Integer.parseInt(ticket.getData().get("timesteps"));
+            for(; listed < completed; listed++) {
+                ret.add(String.valueOf(listed));
+            }
+        } else if (listed == 0 && ticket.getStatus() == Status.RESOLVED) {
+            listed = -1;
+            ret.add("");
+        }
+        return ret;
+    }
+
+    @Override
+    protected Timestep fetch(String key) {
+
+        int index = key.isEmpty() ? -1 : Integer.parseInt(key);
+        Object[] parameters = index < 0 ? new Object[0] : new Object[]{P_TIMESTEP, index};
+        ObservationReference bean = engine.getObservation(artifactId, parameters);
+        if (bean == null) {
+            throw new KlabRemoteException("timestep " + index + " of observation " + artifactId + " could not be retrieved");
+        }
+
+        byte[] data = null;
+        if (format != null) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            if (!engine.streamExport(artifactId, Export.DATA, format, output, parameters)) {
+                throw new KlabRemoteException("timestep " + index + " of observation " + artifactId + " could not be exported");
+            }
+            data = output.toByteArray();
+        }
+
+        return new TimestepImpl(index, new ObservationImpl(bean, engine), format, data);
+    }
+}
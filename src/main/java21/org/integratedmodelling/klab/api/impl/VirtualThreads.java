@@ -0,0 +1,23 @@
+package org.integratedmodelling.klab.api.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads for the client, compiled only in the <code>jdk21</code> build profile. Blocking
+ * waits on tickets and engine I/O unmount them from their carrier, so tens of thousands of
+ * submissions can be awaited with plain <code>Future.get()</code> calls.
+ */
+public class VirtualThreads implements Threads.Provider {
+
+    @Override
+    public ThreadFactory factory(String name) {
+        return Thread.ofVirtual().name(name + "-", 1).factory();
+    }
+
+    @Override
+    public ExecutorService executor(String name) {
+        return Executors.newThreadPerTaskExecutor(factory(name));
+    }
+}
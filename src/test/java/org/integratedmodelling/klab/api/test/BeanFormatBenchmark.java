@@ -0,0 +1,165 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.integratedmodelling.klab.api.Klab.BeanFormat;
+import org.integratedmodelling.klab.api.impl.BeanCodec;
+import org.integratedmodelling.klab.rest.ObservationReference;
+
+import kong.unirest.Unirest;
+
+/**
+ * Compares the size, parse time and allocation of a large {@link ObservationReference} tree in each
+ * available {@link BeanFormat}, read from a stream as the engine client does. The first line is
+ * the baseline of reading JSON into a String and binding it with the Unirest object mapper, as done
+ * before beans were read through {@link BeanCodec}. Not a unit test: run the main method, optionally
+ * passing the number of children per level, the depth and the number of measured iterations.
+ */
+public class BeanFormatBenchmark {
+
+    interface Parser {
+        Object parse(byte[] encoded) throws Exception;
+    }
+
+    public static class Result {
+
+        public String name;
+        public int bytes;
+        public double microsPerParse;
+        public long bytesAllocatedPerParse;
+
+        @Override
+        public String toString() {
+            return String.format("%-24s %10d bytes %10.1f us/parse %12d bytes allocated/parse", name, bytes,
+                    microsPerParse, bytesAllocatedPerParse);
+        }
+    }
+
+    /**
+     * A tree of observation references like those of a context with many observations, each with a
+     * shape, metadata and a data summary.
+     *
+     * @param children children per level
+     * @param depth
+     * @return
+     */
+    public static Map<String, Object> referenceTree(int children, int depth) {
+        return reference("obs", children, depth);
+    }
+
+    private static Map<String, Object> reference(String id, int children, int depth) {
+
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("id", id);
+        ret.put("urn", "local:" + id);
+        ret.put("label", "Observation " + id);
+        ret.put("observable", "im:Normalized geography:Elevation");
+        ret.put("encodedShape", "POLYGON((33.796 -7.086, 35.946 -7.086, 35.946 -9.41, 33.796 -9.41, 33.796 -7.086))");
+        Map<String, String> metadata = new LinkedHashMap<>();
+        for(int i = 0; i < 8; i++) {
+            metadata.put("key" + i, "value " + id + " " + i);
+        }
+        ret.put("metadata", metadata);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        List<Integer> histogram = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            histogram.add(i * 37 % 101);
+        }
+        summary.put("histogram", histogram);
+        summary.put("minValue", 0.0);
+        summary.put("maxValue", 1.0);
+        summary.put("mean", 0.42);
+        ret.put("dataSummary", summary);
+        if (depth > 0) {
+            Map<String, String> childIds = new LinkedHashMap<>();
+            List<Object> refs = new ArrayList<>();
+            for(int i = 0; i < children; i++) {
+                String childId = id + "." + i;
+                childIds.put("child" + i, childId);
+                refs.add(reference(childId, children, depth - 1));
+            }
+            ret.put("childIds", childIds);
+            ret.put("children", refs);
+        }
+        return ret;
+    }
+
+    /**
+     * Encode the tree in a format and measure parsing it back from a stream.
+     *
+     * @param format
+     * @param tree
+     * @param iterations
+     * @return
+     * @throws Exception
+     */
+    public static Result measure(BeanFormat format, Object tree, int iterations) throws Exception {
+        BeanCodec codec = BeanCodec.get(format);
+        return measure(format.name(), codec.write(tree),
+                encoded -> codec.read(new ByteArrayInputStream(encoded), ObservationReference.class), iterations);
+    }
+
+    /**
+     * Measure parsing the tree in JSON through a String with the Unirest object mapper.
+     *
+     * @param tree
+     * @param iterations
+     * @return
+     * @throws Exception
+     */
+    public static Result measureBaseline(Object tree, int iterations) throws Exception {
+        return measure("JSON (String, Unirest)", BeanCodec.get(BeanFormat.JSON).write(tree),
+                encoded -> Unirest.config().getObjectMapper().readValue(
+                        new String(new ByteArrayInputStream(encoded).readAllBytes(), StandardCharsets.UTF_8),
+                        ObservationReference.class),
+                iterations);
+    }
+
+    private static Result measure(String name, byte[] encoded, Parser parser, int iterations) throws Exception {
+
+        // warm up
+        for(int i = 0; i < Math.max(10, iterations / 2); i++) {
+            parser.parse(encoded);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            parser.parse(encoded);
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        Result ret = new Result();
+        ret.name = name;
+        ret.bytes = encoded.length;
+        ret.microsPerParse = elapsed / 1000.0 / iterations;
+        ret.bytesAllocatedPerParse = allocated / iterations;
+        return ret;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int children = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        Map<String, Object> tree = referenceTree(children, depth);
+        System.out.println(measureBaseline(tree, iterations));
+        for(BeanFormat format : BeanFormat.values()) {
+            if (BeanCodec.isAvailable(format)) {
+                System.out.println(measure(format, tree, iterations));
+            } else {
+                System.out.println(format + " not available: add " + format.getModule());
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes float GeoTIFF rasters in strips or tiles, uncompressed or with Deflate, for the stand-in
+ * engine and the tests of the raster reader.
+ */
+public class GeoTiffWriter {
+
+    private final int width;
+    private final int height;
+    private final float[] values;
+    private double originX;
+    private double originY;
+    private double cellSize = 1;
+    private int blockWidth;
+    private int blockHeight;
+    private boolean tiled;
+    private boolean deflate;
+    private Float noData;
+    private ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+
+    /**
+     * A raster with values in row order, with its top left corner at (0, height) and unit cells
+     * so that cell centers are at half coordinates. Written in strips of 8 rows by default.
+     */
+    public GeoTiffWriter(int width, int height, float[] values) {
+        this.width = width;
+        this.height = height;
+        this.values = values;
+        this.originY = height;
+        this.blockWidth = width;
+        this.blockHeight = 8;
+    }
+
+    public GeoTiffWriter origin(double x, double y, double cellSize) {
+        this.originX = x;
+        this.originY = y;
+        this.cellSize = cellSize;
+        return this;
+    }
+
+    public GeoTiffWriter strips(int rows) {
+        this.tiled = false;
+        this.blockWidth = width;
+        this.blockHeight = rows;
+        return this;
+    }
+
+    public GeoTiffWriter tiles(int tileWidth, int tileHeight) {
+        this.tiled = true;
+        this.blockWidth = tileWidth;
+        this.blockHeight = tileHeight;
+        return this;
+    }
+
+    public GeoTiffWriter deflate() {
+        this.deflate = true;
+        return this;
+    }
+
+    public GeoTiffWriter noData(float value) {
+        this.noData = value;
+        return this;
+    }
+
+    public GeoTiffWriter bigEndian() {
+        this.order = ByteOrder.BIG_ENDIAN;
+        return this;
+    }
+
+    public byte[] write() {
+
+        int across = (width + blockWidth - 1) / blockWidth;
+        int down = (height + blockHeight - 1) / blockHeight;
+        List<byte[]> blocks = new ArrayList<>();
+        for(int b = 0; b < across * down; b++) {
+            int column0 = (b % across) * blockWidth;
+            int row0 = (b / across) * blockHeight;
+            // strips are cut at the last row, tiles are padded
+            int rows = tiled ? blockHeight : Math.min(blockHeight, height - row0);
+            ByteBuffer block = ByteBuffer.allocate(blockWidth * rows * 4).order(order);
+            for(int row = 0; row < rows; row++) {
+                for(int column = 0; column < blockWidth; column++) {
+                    int r = row0 + row;
+                    int c = column0 + column;
+                    block.putFloat(r < height && c < width ? values[r * width + c] : 0);
+                }
+            }
+            blocks.add(deflate ? deflate(block.array()) : block.array());
+        }
+
+        // long enough not to fit in the entry
+        String noDataText = noData == null ? null : noData.toString() + "\0\0";
+        int entries = 14 + (noDataText == null ? 0 : 1);
+        int ifdSize = 2 + entries * 12 + 4;
+        int extra = 8 + ifdSize;
+        int offsetsAt = extra;
+        int countsAt = offsetsAt + blocks.size() * 4;
+        int scaleAt = countsAt + blocks.size() * 4;
+        int tiepointAt = scaleAt + 24;
+        int noDataAt = tiepointAt + 48;
+        int dataAt = noDataAt + (noDataText == null ? 0 : noDataText.length());
+        int size = dataAt;
+        for(byte[] block : blocks) {
+            size += block.length;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size).order(order);
+        out.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        out.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        out.putShort((short) 42);
+        out.putInt(8);
+        out.putShort((short) entries);
+        int offsets = blocks.size() == 1 ? dataAt : offsetsAt;
+        int counts = blocks.size() == 1 ? blocks.get(0).length : countsAt;
+        entry(out, 256, 4, 1, width);
+        entry(out, 257, 4, 1, height);
+        entry(out, 258, 3, 1, 32);
+        entry(out, 259, 3, 1, deflate ? 8 : 1);
+        entry(out, 262, 3, 1, 1);
+        if (!tiled) {
+            entry(out, 273, 4, blocks.size(), offsets);
+        }
+        entry(out, 277, 3, 1, 1);
+        if (!tiled) {
+            entry(out, 278, 4, 1, blockHeight);
+            entry(out, 279, 4, blocks.size(), counts);
+        }
+        entry(out, 284, 3, 1, 1);
+        if (tiled) {
+            entry(out, 322, 4, 1, blockWidth);
+            entry(out, 323, 4, 1, blockHeight);
+            entry(out, 324, 4, blocks.size(), offsets);
+            entry(out, 325, 4, blocks.size(), counts);
+        } else {
+            entry(out, 317, 3, 1, 1);
+        }
+        entry(out, 339, 3, 1, 3);
+        entry(out, 33550, 12, 3, scaleAt);
+        entry(out, 33922, 12, 6, tiepointAt);
+        if (noDataText != null) {
+            entry(out, 42113, 2, noDataText.length(), noDataAt);
+        }
+        out.putInt(0);
+
+        int offset = dataAt;
+        for(byte[] block : blocks) {
+            out.putInt(offset);
+            offset += block.length;
+        }
+        for(byte[] block : blocks) {
+            out.putInt(block.length);
+        }
+        out.putDouble(cellSize).putDouble(cellSize).putDouble(0);
+        out.putDouble(0).putDouble(0).putDouble(0).putDouble(originX).putDouble(originY).putDouble(0);
+        if (noDataText != null) {
+            out.put(noDataText.getBytes(StandardCharsets.US_ASCII));
+        }
+        for(byte[] block : blocks) {
+            out.put(block);
+        }
+        return out.array();
+    }
+
+    /*
+     * Entries must be sorted by tag; values that fit are left-justified in the offset field.
+     */
+    private void entry(ByteBuffer out, int tag, int type, int count, int value) {
+        out.putShort((short) tag);
+        out.putShort((short) type);
+        out.putInt(count);
+        if (type == 3 && count == 1) {
+            out.putShort((short) value);
+            out.putShort((short) 0);
+        } else {
+            out.putInt(value);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            ret.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return ret.toByteArray();
+    }
+}
@@ -0,0 +1,28 @@
+package org.integratedmodelling.klab.api.test;
+
+import org.integratedmodelling.klab.api.Klab;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+
+/**
+ * HeCo test suite run against an embedded {@link StandInEngine}. Only checks the client side of
+ * the workflow, as the indicator values are scripted.
+ */
+public class HeCoTestsStandIn extends HeCoTests {
+
+    @ClassRule
+    public static StandInFixture standIn = StandInFixture.start().pollingInterval(50);
+
+    @BeforeClass
+    public static void scriptIndicators() {
+        for(String indicator : indicators) {
+            standIn.getEngine().script(indicator).state(0.1, 0.9, 0.45);
+        }
+    }
+
+    @Override
+    protected Klab createClient() {
+        return Klab.create(standIn.getEngine().getUrl(), "username", "password");
+    }
+
+}
@@ -0,0 +1,125 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear latency histogram with ~1.5% relative precision over the whole range of
+ * positive long values. Values below 128 are counted exactly; above that, each power of two is
+ * split into 64 linear sub-buckets, so recording never allocates and the footprint is fixed.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 64;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = (64 - 6) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            return;
+        }
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        min.accumulateAndGet(value, Math::min);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMin() {
+        return count.get() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * The value at the passed percentile (0-100), as the midpoint of the bucket containing it and
+     * clamped to the recorded extremes.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                long value = lowerBound(i) + (width(i) - 1) / 2;
+                return Math.max(getMin(), Math.min(getMax(), value));
+            }
+        }
+        return getMax();
+    }
+
+    public void add(LatencyHistogram other) {
+        for(int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c > 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        if (other.count.get() > 0) {
+            min.accumulateAndGet(other.min.get(), Math::min);
+            max.accumulateAndGet(other.max.get(), Math::max);
+        }
+    }
+
+    /**
+     * Summary for machine-readable reports, with values divided by the passed scale (e.g. 1e6 to
+     * report nanoseconds as milliseconds).
+     */
+    public Map<String, Object> summary(double scale) {
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("count", getCount());
+        ret.put("min", getMin() / scale);
+        ret.put("mean", getMean() / scale);
+        ret.put("p50", getValueAtPercentile(50) / scale);
+        ret.put("p90", getValueAtPercentile(90) / scale);
+        ret.put("p99", getValueAtPercentile(99) / scale);
+        ret.put("p999", getValueAtPercentile(99.9) / scale);
+        ret.put("max", getMax() / scale);
+        return ret;
+    }
+
+    static int index(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long lowerBound(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return ((long) (index % SUB_BUCKETS + SUB_BUCKETS)) << shift;
+    }
+
+    static long width(int index) {
+        return index < LINEAR_LIMIT ? 1 : 1L << (index / SUB_BUCKETS - 1);
+    }
+}
@@ -0,0 +1,321 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Estimate;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.impl.TicketHandler;
+import org.integratedmodelling.klab.common.Geometry;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Load generator built on the {@link Klab} API. Opens a number of sessions, creates a context in
+ * each and drives a weighted mix of concurrent submit, estimate and export operations, recording
+ * a latency histogram per phase. The report is JSON so that runs can be compared.
+ * <p>
+ * Run with no engine URL to load an embedded {@link StandInEngine}. Arguments are
+ * <code>--name value</code> pairs: engine, username, password, sessions, concurrency, operations,
+ * mix (e.g. <code>submit=6,estimate=2,export=2</code>), observable, polling (ms), latency (ms,
+ * stand-in only) and report (output file, stdout if not given).
+ */
+public class LoadTest {
+
+    public static enum Phase {
+        CONTEXT, SUBMIT, TICKET_WAIT, REFERENCE_FETCH, EXPORT_TRANSFER
+    }
+
+    public static enum Operation {
+        SUBMIT, ESTIMATE, EXPORT
+    }
+
+    private static final String RUAHA = "EPSG:4326 POLYGON((33.796 -7.086, 35.946 -7.086, 35.946 -9.41, 33.796 -9.41, 33.796 -7.086))";
+
+    String engineUrl;
+    String username;
+    String password;
+    int sessions = 2;
+    int concurrency = 4;
+    int operations = 200;
+    long pollingInterval = 50;
+    long standInLatency = 100;
+    String observable = "geography:Elevation";
+    Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+
+    private final Map<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+    private final Map<Operation, LatencyHistogram> totals = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+    private final AtomicLong exportedBytes = new AtomicLong();
+    private final AtomicLong issued = new AtomicLong();
+
+    public LoadTest() {
+        mix.put(Operation.SUBMIT, 6);
+        mix.put(Operation.ESTIMATE, 2);
+        mix.put(Operation.EXPORT, 2);
+        for(Phase phase : Phase.values()) {
+            phases.put(phase, new LatencyHistogram());
+        }
+        for(Operation operation : Operation.values()) {
+            totals.put(operation, new LatencyHistogram());
+            errors.put(operation, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        LoadTest test = new LoadTest();
+        String report = null;
+        for(int i = 0; i < args.length - 1; i += 2) {
+            String value = args[i + 1];
+            switch(args[i].replaceFirst("^--", "")) {
+            case "engine":
+                test.engineUrl = value;
+                break;
+            case "username":
+                test.username = value;
+                break;
+            case "password":
+                test.password = value;
+                break;
+            case "sessions":
+                test.sessions = Integer.parseInt(value);
+                break;
+            case "concurrency":
+                test.concurrency = Integer.parseInt(value);
+                break;
+            case "operations":
+                test.operations = Integer.parseInt(value);
+                break;
+            case "polling":
+                test.pollingInterval = Long.parseLong(value);
+                break;
+            case "latency":
+                test.standInLatency = Long.parseLong(value);
+                break;
+            case "observable":
+                test.observable = value;
+                break;
+            case "mix":
+                test.mix.clear();
+                for(String weight : value.split(",")) {
+                    String[] pair = weight.split("=");
+                    test.mix.put(Operation.valueOf(pair[0].trim().toUpperCase()), Integer.parseInt(pair[1].trim()));
+                }
+                break;
+            case "report":
+                report = value;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown argument " + args[i]);
+            }
+        }
+
+        Map<String, Object> result = test.run();
+        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        if (report == null) {
+            System.out.println(mapper.writeValueAsString(result));
+        } else {
+            mapper.writeValue(new File(report), result);
+        }
+    }
+
+    /**
+     * Run the configured load and return the report.
+     */
+    public Map<String, Object> run() throws Exception {
+
+        StandInEngine standIn = null;
+        String url = engineUrl;
+        if (url == null) {
+            standIn = StandInEngine.start().ticketLatency(standInLatency);
+            url = standIn.getUrl();
+        }
+
+        long previousInterval = Klab.POLLING_INTERVAL_MS;
+        Klab.POLLING_INTERVAL_MS = pollingInterval;
+        ExecutorService executor = Executors.newFixedThreadPool(sessions * concurrency);
+        List<Klab> clients = new ArrayList<>();
+        long start = System.nanoTime();
+
+        try {
+
+            List<Future<?>> workers = new ArrayList<>();
+            for(int s = 0; s < sessions; s++) {
+                Klab klab = username == null ? Klab.create(url) : Klab.create(url, username, password);
+                if (!klab.isOnline()) {
+                    throw new IllegalStateException("cannot connect to " + url);
+                }
+                clients.add(klab);
+                Context context = timed(Phase.CONTEXT,
+                        () -> klab.submit(Observable.create("earth:Region"), Geometry.builder().grid(RUAHA, "1 km").years(2010).build()));
+                Observation exportable = submit(context);
+                for(int c = 0; c < concurrency; c++) {
+                    workers.add(executor.submit(() -> work(context, exportable)));
+                }
+            }
+            for(Future<?> worker : workers) {
+                worker.get();
+            }
+
+        } finally {
+            executor.shutdownNow();
+            for(Klab klab : clients) {
+                klab.close();
+            }
+            Klab.POLLING_INTERVAL_MS = previousInterval;
+            if (standIn != null) {
+                standIn.close();
+            }
+        }
+
+        return report(System.nanoTime() - start);
+    }
+
+    private Void work(Context context, Observation exportable) throws Exception {
+
+        int total = 0;
+        for(int weight : mix.values()) {
+            total += weight;
+        }
+
+        while (issued.incrementAndGet() <= operations) {
+
+            int pick = ThreadLocalRandom.current().nextInt(total);
+            Operation operation = null;
+            for(Operation candidate : mix.keySet()) {
+                pick -= mix.get(candidate);
+                if (pick < 0) {
+                    operation = candidate;
+                    break;
+                }
+            }
+
+            long start = System.nanoTime();
+            try {
+                switch(operation) {
+                case SUBMIT:
+                    submit(context);
+                    break;
+                case ESTIMATE:
+                    Future<Estimate> estimate = timedSubmit(() -> context.estimate(Observable.create(observable)));
+                    waitFor(estimate);
+                    break;
+                case EXPORT:
+                    long t = System.nanoTime();
+                    CountingStream output = new CountingStream();
+                    if (!exportable.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, output)) {
+                        throw new IllegalStateException("export failed");
+                    }
+                    phases.get(Phase.EXPORT_TRANSFER).record(System.nanoTime() - t);
+                    exportedBytes.addAndGet(output.count);
+                    break;
+                }
+                totals.get(operation).record(System.nanoTime() - start);
+            } catch (Exception e) {
+                errors.get(operation).incrementAndGet();
+            }
+        }
+        return null;
+    }
+
+    private Observation submit(Context context) throws Exception {
+        Observation ret = waitFor(timedSubmit(() -> context.submit(Observable.create(observable))));
+        if (ret == null || ret.isEmpty()) {
+            throw new IllegalStateException("observation of " + observable + " failed");
+        }
+        return ret;
+    }
+
+    private <T> Future<T> timedSubmit(Callable<Future<T>> submit) throws Exception {
+        long start = System.nanoTime();
+        Future<T> ret = submit.call();
+        phases.get(Phase.SUBMIT).record(System.nanoTime() - start);
+        return ret;
+    }
+
+    private <T> T waitFor(Future<T> future) throws Exception {
+        T ret = future.get();
+        if (future instanceof TicketHandler) {
+            phases.get(Phase.TICKET_WAIT).record(((TicketHandler<?>) future).getWaitNanos());
+            phases.get(Phase.REFERENCE_FETCH).record(((TicketHandler<?>) future).getFetchNanos());
+        }
+        return ret;
+    }
+
+    private <T> T timed(Phase phase, Callable<Future<T>> submit) throws Exception {
+        long start = System.nanoTime();
+        T ret = waitFor(timedSubmit(submit));
+        phases.get(phase).record(System.nanoTime() - start);
+        return ret;
+    }
+
+    private Map<String, Object> report(long elapsedNanos) {
+
+        Map<String, Object> ret = new LinkedHashMap<>();
+        Map<String, Object> configuration = new LinkedHashMap<>();
+        configuration.put("engine", engineUrl == null ? "stand-in" : engineUrl);
+        configuration.put("sessions", sessions);
+        configuration.put("concurrency", concurrency);
+        configuration.put("operations", operations);
+        configuration.put("pollingIntervalMs", pollingInterval);
+        configuration.put("observable", observable);
+        configuration.put("mix", mix);
+        ret.put("configuration", configuration);
+
+        double seconds = elapsedNanos / 1e9;
+        long completed = 0;
+        Map<String, Object> operationReport = new LinkedHashMap<>();
+        for(Operation operation : Operation.values()) {
+            Map<String, Object> summary = totals.get(operation).summary(1e6);
+            summary.put("errors", errors.get(operation).get());
+            operationReport.put(operation.name().toLowerCase(), summary);
+            completed += totals.get(operation).getCount();
+        }
+        ret.put("elapsedSeconds", seconds);
+        ret.put("throughputPerSecond", completed / seconds);
+        ret.put("exportedBytes", exportedBytes.get());
+        ret.put("latencyUnit", "ms");
+        ret.put("operations", operationReport);
+
+        Map<String, Object> phaseReport = new LinkedHashMap<>();
+        for(Phase phase : Phase.values()) {
+            phaseReport.put(phase.name().toLowerCase(), phases.get(phase).summary(1e6));
+        }
+        ret.put("phases", phaseReport);
+        return ret;
+    }
+
+    static class CountingStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.integratedmodelling.klab.api.SpatialIndex;
+
+/**
+ * Measures building a {@link SpatialIndex} over random hexagonal zones and querying it with small
+ * boxes, points to locate and nearest neighbours, against a linear scan of the bounding boxes as
+ * done without the index. Not a unit test: run the main method, optionally passing the numbers of
+ * features (by default 100000 and 1000000) and the number of queries.
+ */
+public class SpatialIndexBenchmark {
+
+    interface Query {
+        int run(SpatialIndex.Cursor cursor, double x, double y);
+    }
+
+    public static void main(String[] args) {
+
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int[] sizes = args.length > 0 ? new int[]{Integer.parseInt(args[0])} : new int[]{100000, 1000000};
+
+        for(int size : sizes) {
+
+            Random random = new Random(42);
+            // zones of about the same density at all sizes
+            double extent = Math.sqrt(size) * 10;
+            double[] bounds = new double[size * 4];
+            SpatialIndex.Builder builder = SpatialIndex.builder();
+            double[] ring = new double[12];
+            for(int i = 0; i < size; i++) {
+                double x = random.nextDouble() * extent;
+                double y = random.nextDouble() * extent;
+                double radius = 1 + random.nextDouble() * 5;
+                bounds[i * 4] = bounds[i * 4 + 1] = Double.POSITIVE_INFINITY;
+                bounds[i * 4 + 2] = bounds[i * 4 + 3] = Double.NEGATIVE_INFINITY;
+                for(int p = 0; p < 6; p++) {
+                    ring[p * 2] = x + radius * Math.cos(p * Math.PI / 3);
+                    ring[p * 2 + 1] = y + radius * Math.sin(p * Math.PI / 3);
+                    bounds[i * 4] = Math.min(bounds[i * 4], ring[p * 2]);
+                    bounds[i * 4 + 1] = Math.min(bounds[i * 4 + 1], ring[p * 2 + 1]);
+                    bounds[i * 4 + 2] = Math.max(bounds[i * 4 + 2], ring[p * 2]);
+                    bounds[i * 4 + 3] = Math.max(bounds[i * 4 + 3], ring[p * 2 + 1]);
+                }
+                builder.polygon("zone" + i, ring);
+            }
+
+            long start = System.nanoTime();
+            SpatialIndex index = builder.build();
+            System.out.printf("%d features: built in %.1f ms%n", size, (System.nanoTime() - start) / 1e6);
+
+            SpatialIndex.Cursor cursor = index.cursor();
+            measure("box 50x50", queries, extent, cursor, (c, x, y) -> {
+                int n = 0;
+                for(c.within(x, y, x + 50, y + 50); c.next();) {
+                    n++;
+                }
+                return n;
+            });
+            measure("point in polygon", queries, extent, cursor, (c, x, y) -> {
+                int n = 0;
+                for(c.containing(x, y); c.next();) {
+                    n++;
+                }
+                return n;
+            });
+            measure("10 nearest", queries, extent, cursor, (c, x, y) -> {
+                int n = 0;
+                for(c.nearest(x, y, 10, Double.POSITIVE_INFINITY); c.next();) {
+                    n++;
+                }
+                return n;
+            });
+            measure("box 50x50, linear scan", Math.max(1, queries / 1000), extent, cursor, (c, x, y) -> {
+                int n = 0;
+                for(int i = 0; i < bounds.length; i += 4) {
+                    if (bounds[i] <= x + 50 && bounds[i + 1] <= y + 50 && bounds[i + 2] >= x && bounds[i + 3] >= y) {
+                        n++;
+                    }
+                }
+                return n;
+            });
+        }
+    }
+
+    private static void measure(String name, int queries, double extent, SpatialIndex.Cursor cursor, Query query) {
+
+        Random random = new Random(7);
+        // warm up
+        for(int i = 0; i < Math.max(10, queries / 2); i++) {
+            query.run(cursor, random.nextDouble() * extent, random.nextDouble() * extent);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long results = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < queries; i++) {
+            results += query.run(cursor, random.nextDouble() * extent, random.nextDouble() * extent);
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        System.out.printf("  %-24s %10.2f us/query %8.1f results/query %8d bytes allocated/query%n", name,
+                elapsed / 1000.0 / queries, (double) results / queries, allocated / queries);
+    }
+}
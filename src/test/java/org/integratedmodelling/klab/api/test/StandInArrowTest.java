@@ -0,0 +1,120 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowFileReader;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.impl.ArrowExport;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Arrow exports of stand-in states, whose GeoTIFF cells are valued as their column number with no
+ * data in the top row, and of stand-in point features, read back with the Arrow readers.
+ */
+public class StandInArrowTest {
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private Context context;
+
+    @Before
+    public void connect() throws Exception {
+        engine = standIn.getEngine();
+        engine.script("geography:Elevation").raster(40, 30);
+        engine.script("infrastructure:Town").objects(3);
+        klab = standIn.getKlab();
+        context = standIn.createContext();
+    }
+
+    @Test
+    public void statesBecomeRowsOfCells() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assert elevation.export(Export.DATA, ExportFormat.ARROW_STREAM, output);
+        int rows = 0;
+        try (BufferAllocator allocator = new RootAllocator();
+                ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(output.toByteArray()), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            while (reader.loadNextBatch()) {
+                Float8Vector x = (Float8Vector) root.getVector("x");
+                Float8Vector y = (Float8Vector) root.getVector("y");
+                Float8Vector value = (Float8Vector) root.getVector("value");
+                for(int i = 0; i < root.getRowCount(); i++) {
+                    // cell centers, and the top row has no data
+                    assert value.get(i) == Math.floor(x.get(i));
+                    assert y.get(i) > 0 && y.get(i) < 29;
+                }
+                rows += root.getRowCount();
+            }
+        }
+        assert rows == 29 * 40;
+    }
+
+    @Test
+    public void batchesHoldAtMostTheBatchSize() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        int[] batches = new int[2];
+        try (BufferAllocator allocator = new RootAllocator()) {
+            ArrowExport.of(elevation).batchSize(100).batches(allocator, root -> {
+                assert root.getRowCount() <= 100;
+                batches[0]++;
+                batches[1] += root.getRowCount();
+            });
+        }
+        assert batches[0] == 12 && batches[1] == 29 * 40;
+    }
+
+    @Test
+    public void featuresBecomeRowsWithWkbGeometry() throws Exception {
+        Observation towns = context.submit(Observable.create("infrastructure:Town")).get();
+        File file = File.createTempFile("klab_arrow", ".arrow");
+        try (BufferAllocator allocator = new RootAllocator()) {
+            assert towns.export(Export.DATA, ExportFormat.ARROW_FILE, file);
+            try (SeekableByteChannel channel = Files.newByteChannel(file.toPath());
+                    ArrowFileReader reader = new ArrowFileReader(channel, allocator)) {
+                VectorSchemaRoot root = reader.getVectorSchemaRoot();
+                assert "geoarrow.wkb".equals(
+                        root.getSchema().findField("geometry").getMetadata().get("ARROW:extension:name"));
+                assert reader.loadNextBatch();
+                assert root.getRowCount() == 3;
+                VarCharVector ids = (VarCharVector) root.getVector("id");
+                VarBinaryVector geometries = (VarBinaryVector) root.getVector("geometry");
+                VarCharVector names = (VarCharVector) root.getVector("name");
+                for(int i = 0; i < 3; i++) {
+                    assert new String(ids.get(i), StandardCharsets.UTF_8).endsWith("." + i);
+                    assert new String(names.get(i), StandardCharsets.UTF_8).endsWith(" " + i);
+                    ByteBuffer wkb = ByteBuffer.wrap(geometries.get(i)).order(ByteOrder.LITTLE_ENDIAN);
+                    assert wkb.capacity() == 21 && wkb.get(0) == 1 && wkb.getInt(1) == 1;
+                    assert wkb.getDouble(5) == 33.8 + i * 0.1 && wkb.getDouble(13) == -7.1 - i * 0.1;
+                }
+                assert !reader.loadNextBatch();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
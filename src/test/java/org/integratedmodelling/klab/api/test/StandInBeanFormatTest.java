@@ -0,0 +1,108 @@
+package org.integratedmodelling.klab.api.test;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Klab.BeanFormat;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.impl.BeanCodec;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.integratedmodelling.klab.common.Geometry;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+import org.integratedmodelling.klab.rest.ObservationReference;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Negotiation of binary bean formats with the stand-in engine and fallback to JSON.
+ */
+public class StandInBeanFormatTest {
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+
+    @Before
+    public void connect() {
+        engine = standIn.getEngine();
+        engine.script("geography:Elevation").state(100, 2000, 900);
+        klab = standIn.getKlab();
+    }
+
+    private Observation elevation() throws Exception {
+        Context context = klab.submit(Observable.create("earth:Region"),
+                Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build()).get();
+        assert context != null;
+        return context.submit(Observable.create("geography:Elevation")).get();
+    }
+
+    private void checkFormat(BeanFormat format) throws Exception {
+        klab.setBeanFormats(format);
+        Observation elevation = elevation();
+        assert elevation != null;
+        assert ((Number) elevation.getAggregatedValue()).doubleValue() == 900;
+        assert engine.getBinaryBeansReceived() >= 2;
+        assert engine.getBinaryBeansSent() >= 4;
+    }
+
+    @Test
+    public void smileBeansAreExchanged() throws Exception {
+        checkFormat(BeanFormat.SMILE);
+    }
+
+    @Test
+    public void cborBeansAreExchanged() throws Exception {
+        checkFormat(BeanFormat.CBOR);
+    }
+
+    @Test
+    public void jsonIsTheDefault() throws Exception {
+        assert elevation() != null;
+        assert engine.getBinaryBeansReceived() == 0;
+        assert engine.getBinaryBeansSent() == 0;
+    }
+
+    @Test
+    public void enginesWithoutBinaryFormatsGetJson() throws Exception {
+        engine.binaryBeans(false);
+        klab.setBeanFormats(BeanFormat.CBOR, BeanFormat.SMILE);
+        assert elevation() != null;
+        assert engine.getBinaryBeansSent() == 0;
+        // the refused binary body is sent again as JSON, then JSON is used from the start
+        assert engine.getRequestCount(Endpoint.CREATE_CONTEXT) == 2;
+        assert engine.getRequestCount(Endpoint.OBSERVE) == 1;
+    }
+
+    @Test
+    public void binaryBodiesRefusedAsBadRequestsFallBackToJson() throws Exception {
+        engine.binaryBeans(false).refusalStatus(400);
+        klab.setBeanFormats(BeanFormat.CBOR);
+        assert elevation() != null;
+        assert engine.getRequestCount(Endpoint.CREATE_CONTEXT) == 2;
+        assert engine.getRequestCount(Endpoint.OBSERVE) == 1;
+    }
+
+    @Test
+    public void badRequestsKeepBinaryFormats() throws Exception {
+        klab.setBeanFormats(BeanFormat.CBOR);
+        engine.failNext(Endpoint.CREATE_CONTEXT, 2, 400);
+        try {
+            elevation();
+            assert false;
+        } catch (KlabIllegalArgumentException e) {
+            // refused in CBOR and in JSON
+        }
+        assert engine.getRequestCount(Endpoint.CREATE_CONTEXT) == 2;
+        assert elevation() != null;
+        assert engine.getBinaryBeansReceived() >= 2;
+    }
+
+    @Test
+    public void unknownPropertiesAreIgnored() throws Exception {
+        byte[] bean = "{\"id\":\"o1\",\"addedInANewerEngine\":{\"x\":[1,2]}}".getBytes("UTF-8");
+        assert "o1".equals(BeanCodec.get(BeanFormat.JSON).read(bean, ObservationReference.class).getId());
+    }
+}
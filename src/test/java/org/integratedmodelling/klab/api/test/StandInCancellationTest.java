@@ -0,0 +1,152 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.RetryPolicy;
+import org.integratedmodelling.klab.api.Task;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Cancelling tasks and contexts, which must abort the jobs at the stand-in engine.
+ */
+public class StandInCancellationTest {
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private Context context;
+
+    @Before
+    public void connect() throws Exception {
+        engine = standIn.getEngine();
+        engine.script("geography:Slope").latency(10000);
+        engine.script("hydrology:Runoff").latency(10000);
+        klab = standIn.getKlab();
+        context = standIn.createContext();
+    }
+
+    @Test
+    public void cancellingAbortsTheEngineJob() throws Exception {
+        Task<Observation> task = context.submit(Observable.create("geography:Slope"));
+        assert task.cancel(true);
+        assert task.isCancelled();
+        assert task.isDone();
+        assert !task.cancel(true);
+        awaitCancelled(1);
+        assert engine.getOpenTickets() == 0;
+        try {
+            task.get();
+            assert false;
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void waitersAreReleased() throws Exception {
+        Task<Observation> task = context.submit(Observable.create("geography:Slope"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Observation> waiter = executor.submit(() -> task.get());
+        Thread.sleep(200);
+        long start = System.nanoTime();
+        task.cancel(false);
+        try {
+            waiter.get(5, TimeUnit.SECONDS);
+            assert false;
+        } catch (ExecutionException e) {
+            assert e.getCause() instanceof CancellationException;
+        }
+        assert System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1);
+        executor.shutdown();
+    }
+
+    @Test
+    public void cancellingIsNotRetried() throws Exception {
+        klab.setRetryPolicy(RetryPolicy.create().attempts(5).backoff(500, 500, TimeUnit.MILLISECONDS, 1));
+        Task<Observation> task = context.submit(Observable.create("geography:Slope"));
+        engine.failNext(Endpoint.CANCEL_TICKET, 5, 503);
+        long start = System.nanoTime();
+        // the engine job is left to the engine, the task is cancelled all the same
+        assert task.cancel(true) && task.isCancelled();
+        assert System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500);
+        // a retry would come after the 500 ms backoff
+        Thread.sleep(1000);
+        assert engine.getRequestCount(Endpoint.CANCEL_TICKET) == 1;
+        engine.heal();
+    }
+
+    @Test
+    public void finishedTasksCannotBeCancelled() throws Exception {
+        Task<Observation> task = context.submit(Observable.create("geography:Elevation"));
+        assert task.get() != null;
+        assert !task.cancel(true);
+        assert !task.isCancelled();
+        assert task.get() != null;
+        assert engine.getCancelledTickets() == 0;
+    }
+
+    @Test
+    public void cancellingTheContextCascades() throws Exception {
+        Task<Observation> slope = context.submit(Observable.create("geography:Slope"));
+        Task<Observation> runoff = context.submit(Observable.create("hydrology:Runoff"));
+        CountDownLatch failed = new CountDownLatch(1);
+        context.publish(Observable.create("hydrology:Runoff")).subscribe(new Flow.Subscriber<Observation>(){
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Observation item) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                if (throwable instanceof CancellationException) {
+                    failed.countDown();
+                }
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        assert context.cancel() == 3;
+        assert slope.isCancelled() && runoff.isCancelled();
+        assert failed.await(5, TimeUnit.SECONDS);
+        awaitCancelled(3);
+        assert engine.getOpenTickets() == 0;
+        // nothing left to cancel, and the context is still usable
+        assert context.cancel() == 0;
+        assert context.submit(Observable.create("geography:Elevation")).get() != null;
+    }
+
+    /*
+     * Engine jobs are cancelled in the background.
+     */
+    private void awaitCancelled(int tickets) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (engine.getCancelledTickets() < tickets && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assert engine.getCancelledTickets() == tickets;
+    }
+}
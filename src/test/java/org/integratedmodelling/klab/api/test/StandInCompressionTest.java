@@ -0,0 +1,170 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Metrics;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.integratedmodelling.klab.common.Geometry;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Negotiation and streamed decoding of compressed responses from the stand-in engine, and
+ * compression of large request bodies.
+ */
+public class StandInCompressionTest {
+
+    static class CompressionMetrics implements Metrics {
+
+        AtomicLong encoded = new AtomicLong();
+        AtomicLong decoded = new AtomicLong();
+        AtomicLong plainRequests = new AtomicLong();
+        AtomicLong encodedRequests = new AtomicLong();
+
+        @Override
+        public void compression(String endpoint, String encoding, long encodedBytes, long decodedBytes) {
+            encoded.addAndGet(encodedBytes);
+            decoded.addAndGet(decodedBytes);
+        }
+
+        @Override
+        public void requestCompression(String endpoint, String encoding, long plainBytes, long encodedBytes) {
+            plainRequests.addAndGet(plainBytes);
+            encodedRequests.addAndGet(encodedBytes);
+        }
+    }
+
+    private static final int EXPORT_SIZE = 500000;
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private CompressionMetrics metrics;
+
+    @Before
+    public void connect() {
+        engine = standIn.getEngine();
+        engine.script("infrastructure:Town").exportSize("application/json", EXPORT_SIZE);
+        metrics = new CompressionMetrics();
+        klab = standIn.getKlab().setMetrics(metrics);
+    }
+
+    private Observation towns() throws Exception {
+        Context context = klab.submit(Observable.create("earth:Region"),
+                Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build()).get();
+        return context.submit(Observable.create("infrastructure:Town")).get();
+    }
+
+    @Test
+    public void textExportsAreTransferredCompressed() throws Exception {
+        Observation towns = towns();
+        long sent = engine.getBytesSent();
+        LoadTest.CountingStream output = new LoadTest.CountingStream();
+        assert towns.export(Export.DATA, ExportFormat.GEOJSON_FEATURES, output);
+        assert output.count == EXPORT_SIZE;
+        assert engine.getBytesSent() - sent < EXPORT_SIZE / 10;
+        assert metrics.decoded.get() >= EXPORT_SIZE;
+        assert metrics.decoded.get() > 10 * metrics.encoded.get();
+    }
+
+    @Test
+    public void allResponsesCanBeCompressed() throws Exception {
+        engine.compressResponses(0);
+        Observation towns = towns();
+        assert towns != null;
+        assert towns.export(Export.DATA, ExportFormat.GEOJSON_FEATURES).length() == EXPORT_SIZE;
+        assert metrics.encoded.get() > 0;
+    }
+
+    @Test
+    public void uncompressedResponsesAreUnchanged() throws Exception {
+        engine.compressResponses(-1);
+        LoadTest.CountingStream output = new LoadTest.CountingStream();
+        assert towns().export(Export.DATA, ExportFormat.GEOJSON_FEATURES, output);
+        assert output.count == EXPORT_SIZE;
+        assert metrics.encoded.get() == 0;
+    }
+
+    /*
+     * A region like the HeCo ones, whose shape is a polygon with the passed number of vertices
+     * encoded as hex WKB.
+     */
+    private static Geometry detailedRegion(int vertices) {
+        ByteBuffer wkb = ByteBuffer.allocate(13 + vertices * 16).order(ByteOrder.LITTLE_ENDIAN);
+        wkb.put((byte) 1).putInt(3).putInt(1).putInt(vertices);
+        for(int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * i / (vertices - 1);
+            double radius = 0.8 + 0.05 * Math.sin(angle * 37);
+            wkb.putDouble(-73.9 + radius * Math.cos(angle)).putDouble(4.4 + radius * Math.sin(angle));
+        }
+        StringBuilder hex = new StringBuilder();
+        for(byte b : wkb.array()) {
+            hex.append(String.format("%02X", b));
+        }
+        return Geometry.create("\u03c40(1){ttype=LOGICAL,period=[1609459200000 1640995200000],tscope=1.0,tunit=YEAR}"
+                + "S2(934,631){bbox=[-74.7 -73.1 3.6 5.2],shape=" + hex + ",proj=EPSG:4326}");
+    }
+
+    @Test
+    public void largeRequestBodiesAreCompressed() throws Exception {
+        Context context = klab.submit(Observable.create("earth:Region"), detailedRegion(20000)).get();
+        assert context != null;
+        assert engine.getDecodedBytesReceived() > 640000;
+        // hex-encoded coordinates compress less than text, but still well
+        assert engine.getBytesReceived() < engine.getDecodedBytesReceived() * 3 / 5;
+        assert metrics.plainRequests.get() * 3 > metrics.encodedRequests.get() * 5;
+    }
+
+    @Test
+    public void smallRequestBodiesAreNotCompressed() throws Exception {
+        towns();
+        assert engine.getBytesReceived() == engine.getDecodedBytesReceived();
+        assert metrics.plainRequests.get() == 0;
+    }
+
+    @Test
+    public void refusedCompressionFallsBackToPlainBodies() throws Exception {
+        engine.decodeRequests(false);
+        assert klab.submit(Observable.create("earth:Region"), detailedRegion(20000)).get() != null;
+        assert engine.getRequestCount(Endpoint.CREATE_CONTEXT) == 2;
+        // not attempted again
+        assert klab.submit(Observable.create("earth:Region"), detailedRegion(20000)).get() != null;
+        assert engine.getRequestCount(Endpoint.CREATE_CONTEXT) == 3;
+    }
+
+    @Test
+    public void compressionRefusedAsBadRequestFallsBackToPlainBodies() throws Exception {
+        engine.decodeRequests(false).refusalStatus(400);
+        assert klab.submit(Observable.create("earth:Region"), detailedRegion(20000)).get() != null;
+        assert klab.submit(Observable.create("earth:Region"), detailedRegion(20000)).get() != null;
+        assert engine.getRequestCount(Endpoint.CREATE_CONTEXT) == 3;
+    }
+
+    @Test
+    public void badRequestsKeepCompression() throws Exception {
+        engine.failNext(Endpoint.CREATE_CONTEXT, 2, 400);
+        try {
+            klab.submit(Observable.create("earth:Region"), detailedRegion(20000));
+            assert false;
+        } catch (KlabIllegalArgumentException e) {
+            // refused compressed and plain
+        }
+        assert engine.getRequestCount(Endpoint.CREATE_CONTEXT) == 2;
+        long received = engine.getBytesReceived();
+        long decoded = engine.getDecodedBytesReceived();
+        assert klab.submit(Observable.create("earth:Region"), detailedRegion(20000)).get() != null;
+        assert engine.getBytesReceived() - received < (engine.getDecodedBytesReceived() - decoded) * 3 / 5;
+    }
+}
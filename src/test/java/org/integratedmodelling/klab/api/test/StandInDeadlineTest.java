@@ -0,0 +1,97 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Deadline;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.Task;
+import org.integratedmodelling.klab.api.impl.DeadlineExceededException;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Waiting with timeouts and deadlines, which must count the time spent in calls to the stand-in
+ * engine and not only the time between polls.
+ */
+public class StandInDeadlineTest {
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private Context context;
+
+    @Before
+    public void connect() throws Exception {
+        engine = standIn.getEngine();
+        engine.script("geography:Elevation").latency(300);
+        engine.script("geography:Slope").latency(10000);
+        klab = standIn.getKlab();
+        context = standIn.createContext();
+    }
+
+    @Test
+    public void timeoutsAreConvertedFromTheirUnit() throws Exception {
+        assert context.submit(Observable.create("geography:Elevation")).get(1, TimeUnit.SECONDS) != null;
+    }
+
+    @Test
+    public void timeoutsIncludeTheTimeSpentInCalls() throws Exception {
+        engine.delay(Endpoint.TICKET_INFO, 300);
+        Task<Observation> task = context.submit(Observable.create("geography:Slope"));
+        long start = System.nanoTime();
+        try {
+            task.get(500, TimeUnit.MILLISECONDS);
+            assert false;
+        } catch (TimeoutException e) {
+            // expected
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // a poll in progress is cut short by the socket timeout rather than waited for
+        assert elapsed >= 500 && elapsed < 750 : elapsed;
+        assert !task.isDone();
+    }
+
+    @Test
+    public void oneDeadlineBoundsAChainOfCalls() throws Exception {
+        Deadline deadline = Deadline.in(5, TimeUnit.SECONDS);
+        Observation elevation = context.submit(Observable.create("geography:Elevation"), deadline).get(deadline);
+        assert elevation != null;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assert elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, output, deadline);
+        assert output.size() > 0;
+        assert !deadline.isExpired();
+    }
+
+    @Test
+    public void expiredDeadlinesFailWithoutCallingTheEngine() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        Deadline deadline = Deadline.in(0, TimeUnit.MILLISECONDS);
+        long observations = engine.getRequestCount(Endpoint.OBSERVE);
+        long exports = engine.getRequestCount(Endpoint.EXPORT);
+        try {
+            context.submit(Observable.create("geography:Slope"), deadline);
+            assert false;
+        } catch (DeadlineExceededException e) {
+            // expected
+        }
+        try {
+            elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, new ByteArrayOutputStream(), deadline);
+            assert false;
+        } catch (DeadlineExceededException e) {
+            // expected
+        }
+        assert engine.getRequestCount(Endpoint.OBSERVE) == observations;
+        assert engine.getRequestCount(Endpoint.EXPORT) == exports;
+    }
+}
@@ -0,0 +1,1132 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageIO;
+
+import org.integratedmodelling.klab.api.API;
+import org.integratedmodelling.klab.api.API.PUBLIC;
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Klab.BeanFormat;
+import org.integratedmodelling.klab.api.impl.BeanCodec;
+import org.integratedmodelling.klab.api.impl.Engine;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embeddable stand-in for a k.LAB engine, implementing the subset of {@link API.PUBLIC} used by
+ * the client on a loopback HTTP server so that the test suites can run without a local modeler or
+ * credentials for a remote engine. Ticket latencies, artifact payloads, export sizes and failures
+ * are scriptable, so the same server is used for functional and load testing.
+ * <p>
+ * Observables are matched on their semantics (the string passed to {@code Observable.create()}
+ * without value, unit, range or name). Anything that has not been scripted is answered with a
+ * numeric state whose statistics are compatible with the elevation in the test suites.
+ */
+public class StandInEngine implements AutoCloseable {
+
+    public static final String BASE_PATH = "/modeler";
+    public static final String LOCAL_SESSION = "standin-local-session";
+
+    /**
+     * The endpoints served, used to target failure injection and to read request counts.
+     */
+    public static enum Endpoint {
+        PING, AUTHENTICATE, DEAUTHENTICATE, CREATE_CONTEXT, OBSERVE, SUBMIT_ESTIMATE, TICKET_INFO, CANCEL_TICKET, EXPORT
+    }
+
+    /**
+     * Scripted behavior for all observations of one observable. Obtain through
+     * {@link StandInEngine#script(String)} and configure fluently.
+     */
+    public static class Script {
+
+        boolean objects;
+        int objectCount = 10;
+        double min = 270;
+        double max = 2800;
+        double mean = 1200;
+        Long latency;
+        boolean fails;
+        int artifacts = 1;
+        long artifactInterval;
+        int timesteps;
+        long timestepInterval;
+        Map<String, Double> scenarioFactors = new ConcurrentHashMap<>();
+        Map<String, Long> exportSizes = new ConcurrentHashMap<>();
+        int rasterWidth;
+        int rasterHeight;
+        List<double[]> polygons;
+
+        /**
+         * Answer with a numeric state with the passed statistics.
+         */
+        public Script state(double min, double max, double mean) {
+            this.objects = false;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            return this;
+        }
+
+        /**
+         * Answer with a group of the passed number of point features.
+         */
+        public Script objects(int count) {
+            this.objects = true;
+            this.objectCount = count;
+            return this;
+        }
+
+        /**
+         * Ticket latency for this observable, overriding the engine default.
+         */
+        public Script latency(long milliseconds) {
+            this.latency = milliseconds;
+            return this;
+        }
+
+        /**
+         * Make the ticket end in error.
+         */
+        public Script fails() {
+            this.fails = true;
+            return this;
+        }
+
+        /**
+         * Number of artifacts listed in the resolved ticket, e.g. to simulate instantiators
+         * producing several groups.
+         */
+        public Script artifacts(int count) {
+            this.artifacts = count;
+            return this;
+        }
+
+        /**
+         * Multiply the values by the passed factor when the observation is made under the passed
+         * scenario.
+         */
+        public Script scenario(String urn, double factor) {
+            this.scenarioFactors.put(urn, factor);
+            return this;
+        }
+
+        /**
+         * Make the artifacts one at a time, each the passed time after the previous one, listing
+         * them in the ticket while it is still open. The ticket resolves with the last.
+         */
+        public Script artifactInterval(long milliseconds) {
+            this.artifactInterval = milliseconds;
+            return this;
+        }
+
+        /**
+         * Make a dynamic state computing the passed number of timesteps, each the passed time
+         * after the previous one. The observation is listed in the open ticket with the first
+         * and the number of completed timesteps is reported in the ticket data; each timestep can
+         * be exported on its own with the <code>timestep</code> query parameter, with the mean
+         * and bounds increasing by one at each. The ticket resolves with the last.
+         */
+        public Script timesteps(int count, long interval) {
+            this.objects = false;
+            this.timesteps = count;
+            this.timestepInterval = interval;
+            return this;
+        }
+
+        /**
+         * Export data as a GeoTIFF of the passed number of unit cells, with the bottom left
+         * corner at (0, 0), no data in the top row and each other cell valued as its column
+         * number, multiplied by any scenario factor. PNG renders scale it to the viewport width
+         * in grays, with the top row transparent.
+         */
+        public Script raster(int width, int height) {
+            this.objects = false;
+            this.rasterWidth = width;
+            this.rasterHeight = height;
+            return this;
+        }
+
+        /**
+         * Answer with a group of polygon features, one for each ring of x, y coordinates.
+         */
+        public Script polygons(double[]... rings) {
+            this.objects = true;
+            this.objectCount = rings.length;
+            this.polygons = Arrays.asList(rings);
+            return this;
+        }
+
+        /**
+         * Size of binary exports (or padding of text exports) for the passed media type.
+         */
+        public Script exportSize(String mediaType, long bytes) {
+            this.exportSizes.put(mediaType, bytes);
+            return this;
+        }
+    }
+
+    static class Failure {
+        int remaining;
+        double rate;
+        int status;
+    }
+
+    class Artifact {
+        String id;
+        String observable;
+        String name;
+        Script script;
+        double factor = 1;
+        String value;
+        Map<String, String> childIds = Collections.synchronizedMap(new LinkedHashMap<>());
+        boolean context;
+        // time the artifact is listed in its open ticket, 0 if only at resolution
+        long readyAt;
+        // time the first timestep was started, for dynamic states
+        long startedAt;
+    }
+
+    class Ticket {
+        String id;
+        String type;
+        long resolveAt;
+        boolean fails;
+        Map<String, String> data = new LinkedHashMap<>();
+        List<Artifact> pending = new ArrayList<>();
+        Artifact context;
+        Map<String, Object> estimatedRequest;
+        boolean estimateForContext;
+        String status = "OPEN";
+    }
+
+    private static final Pattern OBSERVABLE_SYNTAX = Pattern
+            .compile("^(?:(?<value>\\S+) as )?(?<semantics>.+?)(?: (?<range>\\S+ to \\S+))?(?: in (?<unit>\\S+))?(?: named (?<name>\\S+))?$");
+
+    private static final Map<String, Double> UNIT_FACTORS = Map.of("ft", 3.28084, "km", 0.001, "cm", 100.0);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ObjectMapper json = new ObjectMapper();
+    private final Map<Endpoint, Pattern> routes = new EnumMap<>(Endpoint.class);
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>();
+    private final Map<Endpoint, Failure> failures = new ConcurrentHashMap<>();
+    private final Map<Endpoint, Long> delays = new ConcurrentHashMap<>();
+    private final Map<Endpoint, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> injections = new ConcurrentHashMap<>();
+    private final Map<String, Artifact> artifacts = new ConcurrentHashMap<>();
+    private final Map<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private final Map<String, Ticket> estimates = new ConcurrentHashMap<>();
+    private final Queue<String> traceParents = new ConcurrentLinkedQueue<>();
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final AtomicInteger truncations = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private volatile long ticketLatency = 100;
+    private volatile int compressionThreshold = 1024;
+    private volatile boolean decodeRequests = true;
+    private volatile int refusalStatus = 415;
+    private final AtomicLong decodedBytesReceived = new AtomicLong();
+    private volatile boolean binaryBeans = true;
+    private final AtomicLong binaryBeansReceived = new AtomicLong();
+    private final AtomicLong binaryBeansSent = new AtomicLong();
+    private volatile String username;
+    private volatile String password;
+
+    private StandInEngine(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "klab-standin-engine");
+            thread.setDaemon(true);
+            return thread;
+        });
+        routes.put(Endpoint.PING, route(API.PING));
+        routes.put(Endpoint.AUTHENTICATE, route(PUBLIC.AUTHENTICATE_USER));
+        routes.put(Endpoint.DEAUTHENTICATE, route(PUBLIC.DEAUTHENTICATE_USER));
+        routes.put(Endpoint.CREATE_CONTEXT, route(PUBLIC.CREATE_CONTEXT));
+        routes.put(Endpoint.OBSERVE, route(PUBLIC.OBSERVE_IN_CONTEXT));
+        routes.put(Endpoint.SUBMIT_ESTIMATE, route(PUBLIC.SUBMIT_ESTIMATE));
+        routes.put(Endpoint.TICKET_INFO, route(PUBLIC.TICKET_INFO));
+        routes.put(Endpoint.CANCEL_TICKET, route(Engine.CANCEL_TICKET));
+        routes.put(Endpoint.EXPORT, route(PUBLIC.EXPORT_DATA));
+        for(Endpoint endpoint : Endpoint.values()) {
+            requestCounts.put(endpoint, new AtomicLong());
+        }
+        script("infrastructure:Town").objects(12);
+        server.setExecutor(executor);
+        server.createContext(BASE_PATH, this::handle);
+    }
+
+    /**
+     * Start a stand-in engine on an ephemeral loopback port.
+     */
+    public static StandInEngine start() {
+        return start(0);
+    }
+
+    public static StandInEngine start(int port) {
+        try {
+            StandInEngine ret = new StandInEngine(port);
+            ret.server.start();
+            return ret;
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot start stand-in engine", e);
+        }
+    }
+
+    /**
+     * The URL to pass to {@code Klab.create()}.
+     */
+    public String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + BASE_PATH;
+    }
+
+    /**
+     * Default ticket latency for anything not scripted otherwise.
+     */
+    public StandInEngine ticketLatency(long milliseconds) {
+        this.ticketLatency = milliseconds;
+        return this;
+    }
+
+    /**
+     * Only accept the passed credentials. By default any username and password are accepted.
+     */
+    public StandInEngine credentials(String username, String password) {
+        this.username = username;
+        this.password = password;
+        return this;
+    }
+
+    /**
+     * Add or retrieve the script for an observable's semantics.
+     */
+    public Script script(String semantics) {
+        return scripts.computeIfAbsent(semantics, s -> new Script());
+    }
+
+    /**
+     * Answer the next {@code count} calls to the endpoint with the passed HTTP status.
+     */
+    public StandInEngine failNext(Endpoint endpoint, int count, int status) {
+        Failure failure = new Failure();
+        failure.remaining = count;
+        failure.status = status;
+        failures.put(endpoint, failure);
+        return this;
+    }
+
+    /**
+     * Answer a random fraction of the calls to the endpoint with the passed HTTP status.
+     */
+    public StandInEngine failureRate(Endpoint endpoint, double rate, int status) {
+        Failure failure = new Failure();
+        failure.rate = rate;
+        failure.status = status;
+        failures.put(endpoint, failure);
+        return this;
+    }
+
+    /**
+     * Drop the connection right after the headers of the next {@code count} streamed exports, which
+     * the client sees as a 200 with no body.
+     */
+    public StandInEngine truncateNext(int count) {
+        truncations.set(count);
+        return this;
+    }
+
+    /**
+     * Add a fixed server-side delay to every call to the endpoint.
+     */
+    public StandInEngine delay(Endpoint endpoint, long milliseconds) {
+        delays.put(endpoint, milliseconds);
+        return this;
+    }
+
+    /**
+     * Compress text and JSON responses of at least the passed size when the client accepts gzip or
+     * deflate. Negative to disable; the default is 1024.
+     */
+    public StandInEngine compressResponses(int threshold) {
+        this.compressionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Whether gzip or deflate request bodies are decoded (the default) or refused with the refusal
+     * status.
+     */
+    public StandInEngine decodeRequests(boolean decode) {
+        this.decodeRequests = decode;
+        return this;
+    }
+
+    /**
+     * The status answering request bodies that are not decoded or are in a refused bean format:
+     * 415 by default, 400 like engines that only see a malformed request.
+     */
+    public StandInEngine refusalStatus(int status) {
+        this.refusalStatus = status;
+        return this;
+    }
+
+    /**
+     * Whether beans are read and written in the binary formats the client asks for (the default), or
+     * always written in JSON with binary request bodies refused with the refusal status.
+     */
+    public StandInEngine binaryBeans(boolean binary) {
+        this.binaryBeans = binary;
+        return this;
+    }
+
+    /**
+     * Number of request bodies received in a binary bean format.
+     */
+    public long getBinaryBeansReceived() {
+        return binaryBeansReceived.get();
+    }
+
+    /**
+     * Number of beans sent in a binary format.
+     */
+    public long getBinaryBeansSent() {
+        return binaryBeansSent.get();
+    }
+
+    /**
+     * Expire all the sessions issued so far: requests carrying them are answered with 401 until the
+     * client authenticates again.
+     */
+    public StandInEngine expireSessions() {
+        sessions.clear();
+        return this;
+    }
+
+    /**
+     * Remove all injected failures and delays.
+     */
+    public StandInEngine heal() {
+        failures.clear();
+        delays.clear();
+        truncations.set(0);
+        return this;
+    }
+
+    public long getRequestCount(Endpoint endpoint) {
+        return requestCounts.get(endpoint).get();
+    }
+
+    /**
+     * All the <code>traceparent</code> headers received, in order of arrival.
+     */
+    public List<String> getTraceParents() {
+        return new ArrayList<>(traceParents);
+    }
+
+    /**
+     * The number of observation requests that injected a state for the passed observable.
+     */
+    public long getInjectionCount(String observable) {
+        AtomicLong ret = injections.get(observable);
+        return ret == null ? 0 : ret.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Request body bytes received on the wire.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Request body bytes after decoding any content encoding.
+     */
+    public long getDecodedBytesReceived() {
+        return decodedBytesReceived.get();
+    }
+
+    /**
+     * Number of tickets whose job was aborted by a cancellation request while still open.
+     */
+    public int getCancelledTickets() {
+        int ret = 0;
+        for(Ticket ticket : tickets.values()) {
+            if (ticket.data.containsKey("cancelled")) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    public int getOpenTickets() {
+        int ret = 0;
+        for(Ticket ticket : tickets.values()) {
+            if ("OPEN".equals(ticket.status)) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /*
+     * Turn an API endpoint with {placeholders} into a pattern with a named group per placeholder.
+     */
+    private static Pattern route(String endpoint) {
+        String regex = Pattern.quote(endpoint);
+        for(String parameter : new String[]{PUBLIC.P_CONTEXT, PUBLIC.P_TICKET, PUBLIC.P_ESTIMATE, PUBLIC.P_OBSERVATION,
+                PUBLIC.P_EXPORT}) {
+            regex = regex.replace(parameter, "\\E(?<" + parameter.replaceAll("[^A-Za-z]", "") + ">[^/]+)\\Q");
+        }
+        return Pattern.compile(regex);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().substring(BASE_PATH.length());
+            for(Endpoint endpoint : Endpoint.values()) {
+                Matcher matcher = routes.get(endpoint).matcher(path);
+                if (matcher.matches()) {
+                    requestCounts.get(endpoint).incrementAndGet();
+                    String traceParent = exchange.getRequestHeaders().getFirst("traceparent");
+                    if (traceParent != null) {
+                        traceParents.add(traceParent);
+                    }
+                    byte[] body = exchange.getRequestBody().readAllBytes();
+                    bytesReceived.addAndGet(body.length);
+                    String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                    if (encoding != null && !decodeRequests) {
+                        respond(exchange, refusalStatus, "text/plain", new byte[0]);
+                        return;
+                    }
+                    BeanCodec codec = BeanCodec.forContentType(exchange.getRequestHeaders().getFirst("Content-Type"));
+                    if (codec != null && codec.getFormat() != BeanFormat.JSON && !binaryBeans) {
+                        respond(exchange, refusalStatus, "text/plain", new byte[0]);
+                        return;
+                    }
+                    body = decode(encoding, body);
+                    decodedBytesReceived.addAndGet(body.length);
+                    Long delay = delays.get(endpoint);
+                    if (delay != null) {
+                        Thread.sleep(delay);
+                    }
+                    Integer failure = checkFailure(endpoint);
+                    if (failure == null && endpoint != Endpoint.AUTHENTICATE && !isSessionValid(exchange)) {
+                        failure = 401;
+                    }
+                    if (failure != null) {
+                        respond(exchange, failure, "text/plain", "injected failure".getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        dispatch(endpoint, matcher, body, exchange);
+                    }
+                    return;
+                }
+            }
+            respond(exchange, 404, "text/plain", new byte[0]);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            respond(exchange, 500, "text/plain", String.valueOf(t.getMessage()).getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /*
+     * Requests may come without a session (local engine) but a session, if sent, must be one that
+     * has been issued and not expired.
+     */
+    private boolean isSessionValid(HttpExchange exchange) {
+        String session = exchange.getRequestHeaders().getFirst("klab-authorization");
+        return session == null || session.isEmpty() || LOCAL_SESSION.equals(session) || sessions.contains(session);
+    }
+
+    private Integer checkFailure(Endpoint endpoint) {
+        Failure failure = failures.get(endpoint);
+        if (failure != null) {
+            synchronized (failure) {
+                if (failure.remaining > 0) {
+                    failure.remaining--;
+                    return failure.status;
+                }
+            }
+            if (failure.rate > 0 && ThreadLocalRandom.current().nextDouble() < failure.rate) {
+                return failure.status;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void dispatch(Endpoint endpoint, Matcher matcher, byte[] body, HttpExchange exchange) throws IOException {
+
+        switch(endpoint) {
+        case PING:
+            respondJson(exchange, Map.of("localSessionId", LOCAL_SESSION));
+            break;
+        case AUTHENTICATE:
+            Map<String, Object> credentials = readBean(exchange, body);
+            if (username != null && (!username.equals(credentials.get("username")) || !password.equals(credentials.get("password")))) {
+                respond(exchange, 403, "text/plain", new byte[0]);
+            } else {
+                String session = "standin-session-" + ids.incrementAndGet();
+                sessions.add(session);
+                respondJson(exchange, Map.of("session", session, "authorization", "standin-authorization"));
+            }
+            break;
+        case DEAUTHENTICATE:
+            sessions.remove(exchange.getRequestHeaders().getFirst("klab-authorization"));
+            respond(exchange, 200, "text/plain", new byte[0]);
+            break;
+        case CREATE_CONTEXT:
+            respondJson(exchange, ticketBean(createContext(readBean(exchange, body))));
+            break;
+        case OBSERVE:
+            respondJson(exchange, ticketBean(observe(matcher.group(name(PUBLIC.P_CONTEXT)), readBean(exchange, body))));
+            break;
+        case SUBMIT_ESTIMATE:
+            Ticket estimate = estimates.remove(matcher.group(name(PUBLIC.P_ESTIMATE)));
+            if (estimate == null) {
+                respond(exchange, 404, "text/plain", new byte[0]);
+            } else {
+                Map<String, Object> request = new LinkedHashMap<>(estimate.estimatedRequest);
+                request.put("estimate", false);
+                respondJson(exchange, ticketBean(estimate.estimateForContext ? createContext(request)
+                        : observe(estimate.context.id, request)));
+            }
+            break;
+        case TICKET_INFO:
+            Ticket ticket = tickets.get(matcher.group(name(PUBLIC.P_TICKET)));
+            if (ticket == null) {
+                respond(exchange, 404, "text/plain", new byte[0]);
+            } else {
+                respondJson(exchange, ticketBean(ticket));
+            }
+            break;
+        case CANCEL_TICKET:
+            Ticket cancelled = tickets.get(matcher.group(name(PUBLIC.P_TICKET)));
+            if (cancelled == null) {
+                respond(exchange, 404, "text/plain", new byte[0]);
+            } else {
+                synchronized (cancelled) {
+                    if ("OPEN".equals(cancelled.status)) {
+                        cancelled.status = "ERROR";
+                        cancelled.data.put("cancelled", "true");
+                    }
+                }
+                respondJson(exchange, ticketBean(cancelled));
+            }
+            break;
+        case EXPORT:
+            export(matcher.group(name(PUBLIC.P_OBSERVATION)), matcher.group(name(PUBLIC.P_EXPORT)),
+                    exchange.getRequestHeaders().getFirst("Accept"), exchange);
+            break;
+        }
+    }
+
+    private static String name(String parameter) {
+        return parameter.replaceAll("[^A-Za-z]", "");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Ticket createContext(Map<String, Object> request) {
+
+        Ticket ticket = newTicket(Boolean.TRUE.equals(request.get("estimate")) ? "ContextEstimate" : "ContextObservation");
+        if ("ContextEstimate".equals(ticket.type)) {
+            return estimate(ticket, request, null);
+        }
+
+        String type = request.get("contextType") == null ? String.valueOf(request.get("urn")) : request.get("contextType").toString();
+        Artifact context = newArtifact(type, scripts.get(type));
+        context.context = true;
+        ticket.context = context;
+        ticket.data.put("context", context.id);
+        List<String> observables = (List<String>) request.get("observables");
+        if (observables != null) {
+            for(String observable : observables) {
+                ticket.pending.addAll(newArtifacts(observable, ticket));
+            }
+        }
+        return ticket;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Ticket observe(String contextId, Map<String, Object> request) {
+
+        Artifact context = artifacts.get(contextId);
+        Ticket ticket = newTicket(Boolean.TRUE.equals(request.get("estimate")) ? "ObservationEstimate" : "ObservationInContext");
+        ticket.context = context;
+        if (context == null) {
+            ticket.fails = true;
+            return ticket;
+        }
+        if ("ObservationEstimate".equals(ticket.type)) {
+            return estimate(ticket, request, context);
+        }
+        Map<String, Object> states = (Map<String, Object>) request.get("states");
+        if (states != null) {
+            for(String observable : states.keySet()) {
+                injections.computeIfAbsent(observable, key -> new AtomicLong()).incrementAndGet();
+                Artifact state = newArtifacts(observable, null).get(0);
+                state.value = String.valueOf(states.get(observable));
+                context.childIds.put(state.name, state.id);
+            }
+        }
+        ticket.pending.addAll(newArtifacts(String.valueOf(request.get("urn")), ticket));
+        List<String> scenarios = (List<String>) request.get("scenarios");
+        if (scenarios != null) {
+            for(Artifact artifact : ticket.pending) {
+                for(String scenario : scenarios) {
+                    artifact.factor *= artifact.script.scenarioFactors.getOrDefault(scenario, 1.0);
+                }
+            }
+        }
+        return ticket;
+    }
+
+    private Ticket estimate(Ticket ticket, Map<String, Object> request, Artifact context) {
+        String estimateId = "E" + ids.incrementAndGet();
+        ticket.estimatedRequest = request;
+        ticket.estimateForContext = context == null;
+        ticket.data.put("estimate", estimateId);
+        ticket.data.put("cost", "0.0");
+        ticket.data.put("currency", "KLB");
+        ticket.data.put("feasible", "true");
+        estimates.put(estimateId, ticket);
+        return ticket;
+    }
+
+    private Ticket newTicket(String type) {
+        Ticket ret = new Ticket();
+        ret.id = "T" + ids.incrementAndGet();
+        ret.type = type;
+        ret.resolveAt = System.currentTimeMillis() + ticketLatency;
+        tickets.put(ret.id, ret);
+        return ret;
+    }
+
+    private List<Artifact> newArtifacts(String observable, Ticket ticket) {
+
+        Matcher matcher = OBSERVABLE_SYNTAX.matcher(observable.trim());
+        String semantics = observable;
+        String name = null;
+        String unit = null;
+        String value = null;
+        if (matcher.matches()) {
+            semantics = matcher.group("semantics");
+            name = matcher.group("name");
+            unit = matcher.group("unit");
+            value = matcher.group("value");
+        }
+        if (name == null) {
+            name = defaultName(semantics);
+        }
+        Script script = scripts.get(semantics);
+        if (ticket != null && script != null) {
+            if (script.latency != null) {
+                ticket.resolveAt = Math.max(ticket.resolveAt, System.currentTimeMillis() + script.latency);
+            }
+            ticket.fails |= script.fails;
+        }
+
+        List<Artifact> ret = new ArrayList<>();
+        int count = script == null ? 1 : script.artifacts;
+        long now = System.currentTimeMillis();
+        if (ticket != null && script != null && script.artifactInterval > 0) {
+            ticket.resolveAt = Math.max(ticket.resolveAt, now + count * script.artifactInterval);
+        }
+        if (ticket != null && script != null && script.timesteps > 0) {
+            ticket.resolveAt = Math.max(ticket.resolveAt, now + script.timesteps * script.timestepInterval);
+        }
+        for(int i = 0; i < count; i++) {
+            Artifact artifact = newArtifact(observable, script);
+            artifact.name = i == 0 ? name : (name + "_" + i);
+            if (ticket != null && script != null && script.artifactInterval > 0) {
+                artifact.readyAt = now + (i + 1) * script.artifactInterval;
+            }
+            if (ticket != null && script != null && script.timesteps > 0) {
+                artifact.startedAt = now;
+                artifact.readyAt = now + script.timestepInterval;
+            }
+            artifact.value = value;
+            if (unit != null && UNIT_FACTORS.containsKey(unit)) {
+                artifact.factor = UNIT_FACTORS.get(unit);
+            }
+            ret.add(artifact);
+        }
+        return ret;
+    }
+
+    private Artifact newArtifact(String observable, Script script) {
+        Artifact ret = new Artifact();
+        ret.id = "O" + ids.incrementAndGet();
+        ret.observable = observable;
+        ret.script = script == null ? new Script() : script;
+        artifacts.put(ret.id, ret);
+        return ret;
+    }
+
+    /*
+     * Same as the engine: local name of the main concept, lowercased and with camel case turned to
+     * underscores.
+     */
+    private static String defaultName(String semantics) {
+        String concept = semantics;
+        Matcher matcher = Pattern.compile("([a-z.]+:[A-Za-z]+)\\)*\\s*$").matcher(semantics);
+        if (matcher.find()) {
+            concept = matcher.group(1);
+        }
+        concept = concept.substring(concept.indexOf(':') + 1);
+        return concept.replaceAll("([a-z])([A-Z])", "$1_$2").toLowerCase();
+    }
+
+    private Map<String, Object> ticketBean(Ticket ticket) {
+
+        synchronized (ticket) {
+            long now = System.currentTimeMillis();
+            if ("OPEN".equals(ticket.status) && now >= ticket.resolveAt && ticket.fails) {
+                ticket.status = "ERROR";
+            } else if ("OPEN".equals(ticket.status)) {
+                boolean resolved = now >= ticket.resolveAt;
+                StringBuilder ids = new StringBuilder();
+                for(Artifact artifact : ticket.pending) {
+                    if (resolved || (artifact.readyAt > 0 && now >= artifact.readyAt)) {
+                        ids.append(ids.length() == 0 ? "" : ",").append(artifact.id);
+                        if (ticket.context != null) {
+                            ticket.context.childIds.put(artifact.name, artifact.id);
+                        }
+                    }
+                }
+                if (ids.length() > 0) {
+                    ticket.data.put("artifacts", ids.toString());
+                }
+                for(Artifact artifact : ticket.pending) {
+                    if (artifact.script.timesteps > 0) {
+                        ticket.data.put("timesteps", String.valueOf(resolved ? artifact.script.timesteps : completedTimesteps(artifact, now)));
+                    }
+                }
+                if (resolved) {
+                    ticket.status = "RESOLVED";
+                }
+            }
+            Map<String, Object> ret = new LinkedHashMap<>();
+            ret.put("id", ticket.id);
+            ret.put("type", ticket.type);
+            ret.put("status", ticket.status);
+            ret.put("data", new LinkedHashMap<>(ticket.data));
+            return ret;
+        }
+    }
+
+    private static int completedTimesteps(Artifact artifact, long now) {
+        if (artifact.startedAt == 0 || artifact.script.timestepInterval <= 0) {
+            return artifact.script.timesteps;
+        }
+        return (int) Math.min(artifact.script.timesteps, (now - artifact.startedAt) / artifact.script.timestepInterval);
+    }
+
+    private Map<String, Object> referenceBean(Artifact artifact, int timestep) {
+
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("id", artifact.id);
+        ret.put("observable", artifact.observable);
+        synchronized (artifact.childIds) {
+            ret.put("childIds", new LinkedHashMap<>(artifact.childIds));
+        }
+        if (artifact.context) {
+            ret.put("observationType", "SUBJECT");
+            ret.put("semantics", List.of("SUBJECT"));
+        } else if (artifact.script.objects) {
+            ret.put("observationType", "GROUP");
+            ret.put("semantics", List.of("SUBJECT"));
+            ret.put("childrenCount", artifact.script.objectCount);
+        } else {
+            ret.put("observationType", "STATE");
+            ret.put("semantics", List.of("QUALITY"));
+            ret.put("valueType", "NUMBER");
+            if (artifact.value != null) {
+                ret.put("overallValue", artifact.value);
+            }
+            Map<String, Object> summary = new LinkedHashMap<>();
+            int offset = Math.max(timestep, 0);
+            summary.put("minValue", artifact.script.min * artifact.factor + offset);
+            summary.put("maxValue", artifact.script.max * artifact.factor + offset);
+            summary.put("mean", artifact.script.mean * artifact.factor + offset);
+            ret.put("dataSummary", summary);
+        }
+        return ret;
+    }
+
+    private void export(String observationId, String target, String mediaType, HttpExchange exchange) throws IOException {
+
+        Artifact artifact = artifacts.get(observationId);
+        if (artifact == null) {
+            respond(exchange, 404, "text/plain", new byte[0]);
+            return;
+        }
+
+        int timestep = -1;
+        int viewport = 0;
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for(String parameter : query.split("&")) {
+                if (parameter.startsWith("timestep=")) {
+                    timestep = Integer.parseInt(parameter.substring("timestep=".length()));
+                } else if (parameter.startsWith("viewport=")) {
+                    viewport = Integer.parseInt(parameter.substring("viewport=".length()));
+                }
+            }
+        }
+        if (timestep >= 0 && timestep >= completedTimesteps(artifact, System.currentTimeMillis())) {
+            respond(exchange, 404, "text/plain", new byte[0]);
+            return;
+        }
+
+        Export export = Export.valueOf(target.toUpperCase());
+        if (export == Export.STRUCTURE) {
+            respondJson(exchange, referenceBean(artifact, timestep));
+            return;
+        }
+
+        String type = mediaType == null ? "application/octet-stream" : mediaType;
+        Long size = artifact.script.exportSizes.get(type);
+        switch(type) {
+        case "application/json":
+            respond(exchange, 200, type, pad(jsonExport(artifact, export), size));
+            break;
+        case "text/plain":
+        case "text/csv":
+            String text = export == Export.DATAFLOW ? "observe " + artifact.observable + "\n" : artifact.name + "," + artifact.id + "\n";
+            respond(exchange, 200, type, pad(text.getBytes(StandardCharsets.UTF_8), size));
+            break;
+        case "image/png":
+            if (artifact.script.rasterWidth > 0) {
+                respond(exchange, 200, type, png(artifact, viewport > 0 ? viewport : artifact.script.rasterWidth));
+            } else {
+                streamBytes(exchange, type, size == null ? 65536 : size);
+            }
+            break;
+        case "image/tiff":
+            if (artifact.script.rasterWidth > 0) {
+                respond(exchange, 200, type, geotiff(artifact));
+                break;
+            }
+            // fall through
+        default:
+            streamBytes(exchange, type, size == null ? 65536 : size);
+        }
+    }
+
+    private static byte[] geotiff(Artifact artifact) {
+        int width = artifact.script.rasterWidth;
+        int height = artifact.script.rasterHeight;
+        float[] values = new float[width * height];
+        for(int i = 0; i < values.length; i++) {
+            values[i] = i < width ? -9999 : (float) ((i % width) * artifact.factor);
+        }
+        return new GeoTiffWriter(width, height, values).noData(-9999).write();
+    }
+
+    /*
+     * The raster scaled to the viewport width, in grays from black in the first column to white in
+     * the last, with the top row of no data transparent.
+     */
+    private static byte[] png(Artifact artifact, int width) throws IOException {
+        int columns = artifact.script.rasterWidth;
+        int rows = artifact.script.rasterHeight;
+        int height = Math.max(1, (int) Math.round((double) width * rows / columns));
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for(int j = 0; j < height; j++) {
+            int row = j * rows / height;
+            for(int i = 0; i < width; i++) {
+                int gray = (i * columns / width) * 255 / Math.max(1, columns - 1);
+                image.setRGB(i, j, row == 0 ? 0 : 0xff000000 | gray << 16 | gray << 8 | gray);
+            }
+        }
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", ret);
+        return ret.toByteArray();
+    }
+
+    private byte[] jsonExport(Artifact artifact, Export export) throws IOException {
+        if (export == Export.DATA && artifact.script.objects) {
+            List<Object> features = new ArrayList<>();
+            for(int i = 0; i < artifact.script.objectCount; i++) {
+                Object geometry = Map.of("type", "Point", "coordinates", List.of(33.8 + i * 0.1, -7.1 - i * 0.1));
+                if (artifact.script.polygons != null) {
+                    double[] ring = artifact.script.polygons.get(i);
+                    List<Object> points = new ArrayList<>();
+                    for(int p = 0; p <= ring.length / 2; p++) {
+                        int at = (p % (ring.length / 2)) * 2;
+                        points.add(List.of(ring[at], ring[at + 1]));
+                    }
+                    geometry = Map.of("type", "Polygon", "coordinates", List.of(points));
+                }
+                features.add(Map.of("type", "Feature", "id", artifact.id + "." + i, "properties",
+                        Map.of("name", artifact.name + " " + i), "geometry", geometry));
+            }
+            return json.writeValueAsBytes(Map.of("type", "FeatureCollection", "features", features));
+        } else if (export == Export.LEGEND) {
+            return json.writeValueAsBytes(Map.of("type", "COLORRAMP", "label", artifact.name, "colors",
+                    List.of("#000000", "#ffffff")));
+        }
+        return json.writeValueAsBytes(Map.of("id", artifact.id, "children", List.of(Map.of("id", artifact.observable))));
+    }
+
+    private static byte[] pad(byte[] content, Long size) {
+        if (size == null || size <= content.length) {
+            return content;
+        }
+        byte[] ret = new byte[size.intValue()];
+        Arrays.fill(ret, (byte) ' ');
+        System.arraycopy(content, 0, ret, 0, content.length);
+        return ret;
+    }
+
+    /*
+     * Binary payloads are streamed in chunks so that large sizes don't need to be held in memory.
+     */
+    private void streamBytes(HttpExchange exchange, String mediaType, long size) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", mediaType);
+        exchange.sendResponseHeaders(200, size);
+        if (truncations.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            // closing a fixed-length body short of its length resets the connection
+            exchange.getResponseBody().flush();
+            exchange.close();
+            return;
+        }
+        byte[] chunk = new byte[8192];
+        for(int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) i;
+        }
+        try (OutputStream output = exchange.getResponseBody()) {
+            long left = size;
+            while (left > 0) {
+                int n = (int) Math.min(left, chunk.length);
+                output.write(chunk, 0, n);
+                left -= n;
+            }
+        }
+        bytesSent.addAndGet(size);
+    }
+
+    private static byte[] decode(String encoding, byte[] body) throws IOException {
+        if (encoding == null || "identity".equals(encoding)) {
+            return body;
+        }
+        try (InputStream input = "gzip".equals(encoding) ? new GZIPInputStream(new ByteArrayInputStream(body))
+                : new InflaterInputStream(new ByteArrayInputStream(body))) {
+            return input.readAllBytes();
+        }
+    }
+
+    private static String responseEncoding(HttpExchange exchange) {
+        String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accepted != null) {
+            for(String encoding : accepted.split(",")) {
+                String coding = encoding.split(";")[0].trim();
+                if ("gzip".equals(coding) || "deflate".equals(coding)) {
+                    return coding;
+                }
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> readBean(HttpExchange exchange, byte[] body) throws IOException {
+        BeanCodec codec = BeanCodec.forContentType(exchange.getRequestHeaders().getFirst("Content-Type"));
+        if (codec == null || codec.getFormat() == BeanFormat.JSON) {
+            return json.readValue(body, Map.class);
+        }
+        binaryBeansReceived.incrementAndGet();
+        return codec.read(body, Map.class);
+    }
+
+    /*
+     * Beans are written in the first format in the Accept header that has a codec, ignoring q
+     * values since the client lists its formats in order of preference.
+     */
+    private void respondJson(HttpExchange exchange, Object bean) throws IOException {
+        String accepted = exchange.getRequestHeaders().getFirst("Accept");
+        if (binaryBeans && accepted != null) {
+            for(String mediaType : accepted.split(",")) {
+                BeanCodec codec = BeanCodec.forContentType(mediaType);
+                if (codec != null && codec.getFormat() != BeanFormat.JSON) {
+                    binaryBeansSent.incrementAndGet();
+                    respond(exchange, 200, codec.getMediaType(), codec.write(bean));
+                    return;
+                }
+                if (codec != null) {
+                    break;
+                }
+            }
+        }
+        respond(exchange, 200, "application/json", json.writeValueAsBytes(bean));
+    }
+
+    private void respond(HttpExchange exchange, int status, String mediaType, byte[] content) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", mediaType);
+        String encoding = responseEncoding(exchange);
+        if (encoding != null && compressionThreshold >= 0 && content.length >= compressionThreshold) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 4);
+            try (OutputStream output = "gzip".equals(encoding) ? new GZIPOutputStream(compressed)
+                    : new DeflaterOutputStream(compressed)) {
+                output.write(content);
+            }
+            content = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        exchange.sendResponseHeaders(status, content.length == 0 ? -1 : content.length);
+        if (content.length > 0) {
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(content);
+            }
+        }
+        bytesSent.addAndGet(content.length);
+    }
+}
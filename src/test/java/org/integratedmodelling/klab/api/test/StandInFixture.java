@@ -0,0 +1,125 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.common.Geometry;
+import org.junit.rules.ExternalResource;
+
+/**
+ * A stand-in engine started for each test, polled every 20 ms unless set otherwise and, if
+ * {@link #connected()}, with a client authenticated to it. Engine, client and polling interval are
+ * closed and restored after the test, after its own <code>@After</code> methods:
+ *
+ * <pre>
+ * &#64;Rule
+ * public StandInFixture standIn = StandInFixture.start(50).connected();
+ * </pre>
+ *
+ * As a <code>@ClassRule</code> the engine is shared by all the tests of the class.
+ */
+public class StandInFixture extends ExternalResource {
+
+    private final long ticketLatency;
+    private long pollingIntervalMs = 20;
+    private boolean connected;
+    private StandInEngine engine;
+    private Klab klab;
+    private long pollingInterval;
+
+    private StandInFixture(long ticketLatency) {
+        this.ticketLatency = ticketLatency;
+    }
+
+    /**
+     * An engine answering each ticket after the stand-in's default latency.
+     *
+     * @return
+     */
+    public static StandInFixture start() {
+        return new StandInFixture(-1);
+    }
+
+    /**
+     * An engine answering each ticket after the passed time.
+     *
+     * @param ticketLatency in milliseconds
+     * @return
+     */
+    public static StandInFixture start(long ticketLatency) {
+        return new StandInFixture(ticketLatency);
+    }
+
+    /**
+     * The interval the client polls tickets at while the engine is running.
+     *
+     * @param milliseconds
+     * @return this fixture for chaining
+     */
+    public StandInFixture pollingInterval(long milliseconds) {
+        this.pollingIntervalMs = milliseconds;
+        return this;
+    }
+
+    /**
+     * Connect a client to the engine before each test.
+     *
+     * @return this fixture for chaining
+     */
+    public StandInFixture connected() {
+        this.connected = true;
+        return this;
+    }
+
+    @Override
+    protected void before() {
+        engine = StandInEngine.start();
+        if (ticketLatency >= 0) {
+            engine.ticketLatency(ticketLatency);
+        }
+        pollingInterval = Klab.POLLING_INTERVAL_MS;
+        Klab.POLLING_INTERVAL_MS = pollingIntervalMs;
+        if (connected) {
+            klab = Klab.create(engine.getUrl(), "username", "password");
+        }
+    }
+
+    @Override
+    protected void after() {
+        try {
+            if (klab != null) {
+                klab.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            engine.close();
+            Klab.POLLING_INTERVAL_MS = pollingInterval;
+        }
+    }
+
+    public StandInEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return the client, or null if not {@link #connected()}
+     */
+    public Klab getKlab() {
+        return klab;
+    }
+
+    /**
+     * A region context on the client, the one most tests observe in.
+     *
+     * @return
+     * @throws Exception
+     */
+    public Context createContext() throws Exception {
+        return klab.submit(Observable.create("earth:Region"),
+                Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build()).get();
+    }
+}
@@ -0,0 +1,157 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Klab.Priority;
+import org.integratedmodelling.klab.api.Limits;
+import org.integratedmodelling.klab.api.Metrics;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.integratedmodelling.klab.common.Geometry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Client-side {@link Limits} on tickets in flight and request rate, against the stand-in engine.
+ */
+public class StandInLimitsTest {
+
+    static class QueueMetrics implements Metrics {
+
+        AtomicInteger depth = new AtomicInteger();
+        AtomicInteger outstanding = new AtomicInteger();
+        AtomicInteger maxOutstanding = new AtomicInteger();
+        AtomicLong ticketWaits = new AtomicLong();
+        AtomicLong requestWaits = new AtomicLong();
+
+        @Override
+        public void ticketSubmitted(String ticketId) {
+            maxOutstanding.accumulateAndGet(outstanding.incrementAndGet(), Math::max);
+        }
+
+        @Override
+        public void ticketResolved(String ticketId, int polls, long nanos, boolean success) {
+            outstanding.decrementAndGet();
+        }
+
+        @Override
+        public void queued(String queue, int depth) {
+            this.depth.set(depth);
+        }
+
+        @Override
+        public void waited(String queue, long nanos) {
+            ("tickets".equals(queue) ? ticketWaits : requestWaits).addAndGet(nanos);
+        }
+    }
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(100).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private QueueMetrics metrics;
+
+    @Before
+    public void connect() {
+        engine = standIn.getEngine();
+        metrics = new QueueMetrics();
+        klab = standIn.getKlab().setMetrics(metrics);
+    }
+
+    private Future<Context> submit(Priority priority) {
+        return klab.submit(Observable.create("earth:Region"),
+                Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build(), priority);
+    }
+
+    private void awaitDepth(int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.depth.get() != depth) {
+            assert System.currentTimeMillis() < deadline;
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void ticketsInFlightAreLimited() throws Exception {
+        klab.setLimits(Limits.create().maxTickets(2));
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        List<Future<Context>> results = new ArrayList<>();
+        for(int i = 0; i < 6; i++) {
+            results.add(executor.submit(() -> submit(Priority.NORMAL).get()));
+        }
+        for(Future<Context> result : results) {
+            assert result.get(30, TimeUnit.SECONDS) != null;
+        }
+        executor.shutdown();
+        assert metrics.maxOutstanding.get() == 2;
+        assert metrics.ticketWaits.get() > 0;
+    }
+
+    @Test
+    public void queuedSubmissionsAreServedByPriority() throws Exception {
+
+        klab.setLimits(Limits.create().maxTickets(1));
+        List<Priority> served = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        Future<Context> first = submit(Priority.NORMAL);
+        Future< ? > low = executor.submit(() -> {
+            Future<Context> context = submit(Priority.LOW);
+            served.add(Priority.LOW);
+            return context.get();
+        });
+        awaitDepth(1);
+        Future< ? > high = executor.submit(() -> {
+            Future<Context> context = submit(Priority.HIGH);
+            served.add(Priority.HIGH);
+            return context.get();
+        });
+        awaitDepth(2);
+
+        assert first.get() != null;
+        assert high.get(30, TimeUnit.SECONDS) != null;
+        assert low.get(30, TimeUnit.SECONDS) != null;
+        executor.shutdown();
+
+        assert served.get(0) == Priority.HIGH;
+        assert served.get(1) == Priority.LOW;
+    }
+
+    @Test
+    public void requestRateIsLimited() throws Exception {
+
+        klab.setLimits(Limits.create().requestRate(20, 1));
+        long start = System.nanoTime();
+        assert submit(Priority.NORMAL).get() != null;
+        long elapsed = System.nanoTime() - start;
+
+        long requests = 0;
+        for(Endpoint endpoint : Endpoint.values()) {
+            requests += engine.getRequestCount(endpoint);
+        }
+        // the authentication happened before the limits were set
+        requests -= engine.getRequestCount(Endpoint.AUTHENTICATE);
+        assert elapsed >= TimeUnit.MILLISECONDS.toNanos((requests - 1) * 50 * 9 / 10);
+        assert metrics.requestWaits.get() > 0;
+    }
+
+    @Test
+    public void cancelledTicketsFreeTheirSlot() throws Exception {
+        klab.setLimits(Limits.create().maxTickets(1));
+        submit(Priority.NORMAL).cancel(true);
+        assert submit(Priority.NORMAL).get() != null;
+        assert metrics.ticketWaits.get() == 0;
+    }
+}
@@ -0,0 +1,44 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Short run of the {@link LoadTest} harness against the stand-in engine, to keep the harness and
+ * its report format working.
+ */
+public class StandInLoadTest {
+
+    @Test
+    public void histogramPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000);
+        }
+        assert histogram.getCount() == 100000;
+        assert Math.abs(histogram.getValueAtPercentile(50) - 50000000.0) / 50000000.0 < 0.02;
+        assert Math.abs(histogram.getValueAtPercentile(99) - 99000000.0) / 99000000.0 < 0.02;
+        assert histogram.getValueAtPercentile(100) == histogram.getMax();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shortRun() throws Exception {
+        LoadTest test = new LoadTest();
+        test.sessions = 2;
+        test.concurrency = 3;
+        test.operations = 30;
+        test.standInLatency = 20;
+        test.pollingInterval = 10;
+        Map<String, Object> report = test.run();
+        Map<String, Object> phases = (Map<String, Object>) report.get("phases");
+        assert ((Map<String, Object>) phases.get("ticket_wait")).get("count") instanceof Long;
+        assert (Long) ((Map<String, Object>) phases.get("submit")).get("count") >= 30;
+        long errors = 0;
+        for(Object summary : ((Map<String, Object>) report.get("operations")).values()) {
+            errors += (Long) ((Map<String, Object>) summary).get("errors");
+        }
+        assert errors == 0;
+    }
+}
@@ -0,0 +1,113 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.integratedmodelling.klab.api.API;
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Metrics;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.common.Geometry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checks what the client reports to {@link Metrics} against the stand-in engine.
+ */
+public class StandInMetricsTest {
+
+    static class CountingMetrics implements Metrics {
+
+        Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+        AtomicInteger errors = new AtomicInteger();
+        AtomicLong received = new AtomicLong();
+        AtomicInteger outstanding = new AtomicInteger();
+        AtomicInteger resolved = new AtomicInteger();
+        AtomicInteger polls = new AtomicInteger();
+
+        @Override
+        public void call(String endpoint, long nanos, int status, boolean success) {
+            calls.computeIfAbsent(endpoint, e -> new AtomicInteger()).incrementAndGet();
+            if (!success) {
+                errors.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void bytes(String endpoint, long sent, long received) {
+            this.received.addAndGet(received);
+        }
+
+        @Override
+        public void ticketSubmitted(String ticketId) {
+            outstanding.incrementAndGet();
+        }
+
+        @Override
+        public void ticketResolved(String ticketId, int polls, long nanos, boolean success) {
+            outstanding.decrementAndGet();
+            resolved.incrementAndGet();
+            this.polls.addAndGet(polls);
+        }
+
+        int calls(String endpoint) {
+            AtomicInteger ret = calls.get(endpoint);
+            return ret == null ? 0 : ret.get();
+        }
+    }
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(100);
+
+    private StandInEngine engine;
+
+    @Before
+    public void startEngine() {
+        engine = standIn.getEngine();
+    }
+
+    @Test
+    public void ticketLifecycleAndTransfers() throws Exception {
+
+        CountingMetrics metrics = new CountingMetrics();
+        try (Klab klab = Klab.create(engine.getUrl(), "username", "password").setMetrics(metrics)) {
+
+            Context context = klab.submit(Observable.create("earth:Region"),
+                    Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build()).get();
+            Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+            engine.script("geography:Elevation").exportSize("image/tiff", 100000);
+            assert elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, new LoadTest.CountingStream());
+
+            assert metrics.outstanding.get() == 0;
+            assert metrics.resolved.get() == 2;
+            assert metrics.polls.get() >= 4;
+            assert metrics.calls(API.PUBLIC.CREATE_CONTEXT) == 1;
+            assert metrics.calls(API.PUBLIC.OBSERVE_IN_CONTEXT) == 1;
+            assert metrics.calls(API.PUBLIC.TICKET_INFO) == metrics.polls.get();
+            assert metrics.calls(API.PUBLIC.EXPORT_DATA) >= 3;
+            assert metrics.received.get() >= 100000;
+            assert metrics.errors.get() == 0;
+        }
+    }
+
+    @Test
+    public void failedTicketsAreReported() throws Exception {
+
+        engine.script("geography:Slope").fails();
+        CountingMetrics metrics = new CountingMetrics();
+        try (Klab klab = Klab.create(engine.getUrl(), "username", "password").setMetrics(metrics)) {
+            Context context = klab.submit(Observable.create("earth:Region"),
+                    Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build()).get();
+            context.submit(Observable.create("geography:Slope")).get();
+            assert metrics.outstanding.get() == 0;
+            assert metrics.resolved.get() == 2;
+        }
+    }
+}
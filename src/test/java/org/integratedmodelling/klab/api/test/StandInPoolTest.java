@@ -0,0 +1,125 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Estimate;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.KlabPool;
+import org.integratedmodelling.klab.api.Limits;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.integratedmodelling.klab.common.Geometry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Spreading contexts across two stand-in engines with a {@link KlabPool}.
+ */
+public class StandInPoolTest {
+
+    @Rule
+    public StandInFixture firstStandIn = StandInFixture.start(100);
+    @Rule
+    public StandInFixture secondStandIn = StandInFixture.start(100);
+
+    private StandInEngine first;
+    private StandInEngine second;
+    private KlabPool pool;
+
+    @Before
+    public void connect() {
+        first = firstStandIn.getEngine();
+        second = secondStandIn.getEngine();
+        pool = KlabPool.create("username", "password", 2, first.getUrl(), second.getUrl());
+    }
+
+    @After
+    public void disconnect() throws Exception {
+        pool.close();
+    }
+
+    private Future<Context> submit() {
+        return pool.submit(Observable.create("earth:Region"),
+                Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build());
+    }
+
+    @Test
+    public void sessionsAreOpenedOnAllEngines() {
+        assert pool.isOnline();
+        assert pool.getSessions().size() == 4;
+        assert first.getRequestCount(Endpoint.AUTHENTICATE) == 2;
+        assert second.getRequestCount(Endpoint.AUTHENTICATE) == 2;
+    }
+
+    @Test
+    public void contextsAreSpreadAcrossEngines() throws Exception {
+        List<Future<Context>> contexts = new ArrayList<>();
+        for(int i = 0; i < 8; i++) {
+            contexts.add(submit());
+        }
+        for(Future<Context> context : contexts) {
+            assert context.get() != null;
+        }
+        assert first.getRequestCount(Endpoint.CREATE_CONTEXT) == 4;
+        assert second.getRequestCount(Endpoint.CREATE_CONTEXT) == 4;
+    }
+
+    @Test
+    public void observationsStayWithTheirContext() throws Exception {
+        Context context = submit().get();
+        StandInEngine owner = first.getRequestCount(Endpoint.CREATE_CONTEXT) == 1 ? first : second;
+        StandInEngine other = owner == first ? second : first;
+        for(int i = 0; i < 3; i++) {
+            // load the other sessions so that the pool would choose them for new work
+            submit();
+        }
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        assert elevation != null;
+        assert owner.getRequestCount(Endpoint.OBSERVE) == 1;
+        assert other.getRequestCount(Endpoint.OBSERVE) == 0;
+    }
+
+    @Test
+    public void estimatesAreAcceptedByTheirSession() throws Exception {
+        List<Estimate> estimates = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            estimates.add(pool.estimate(Observable.create("earth:Region"),
+                    Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build()).get());
+        }
+        for(Estimate estimate : estimates) {
+            // an estimate is unknown to any other engine
+            assert pool.submit(estimate).get() != null;
+        }
+        assert first.getRequestCount(Endpoint.SUBMIT_ESTIMATE) == first.getRequestCount(Endpoint.CREATE_CONTEXT);
+        assert second.getRequestCount(Endpoint.SUBMIT_ESTIMATE) == second.getRequestCount(Endpoint.CREATE_CONTEXT);
+    }
+
+    @Test
+    public void droppedFuturesStopCountingAfterTheirLease() throws Exception {
+        pool.setLimits(Limits.create().ticketLease(50, TimeUnit.MILLISECONDS));
+        Klab session = pool.getSessions().get(0);
+        for(int i = 0; i < 3; i++) {
+            // never waited for
+            session.submit(Observable.create("earth:Region"),
+                    Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build());
+        }
+        StandInEngine other = first.getRequestCount(Endpoint.CREATE_CONTEXT) == 3 ? second : first;
+        Thread.sleep(100);
+        List<Future<Context>> contexts = new ArrayList<>();
+        for(int i = 0; i < 8; i++) {
+            contexts.add(submit());
+        }
+        for(Future<Context> context : contexts) {
+            assert context.get() != null;
+        }
+        // the forgotten tickets no longer steer work away from their session
+        assert other.getRequestCount(Endpoint.CREATE_CONTEXT) == 4;
+    }
+}
@@ -0,0 +1,83 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.Progress;
+import org.integratedmodelling.klab.api.Task;
+import org.integratedmodelling.klab.api.runtime.ITicket.Status;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Progress reporting and expected times of tasks against the stand-in engine.
+ */
+public class StandInProgressTest {
+
+    private static final long LATENCY = 300;
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(LATENCY).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private Context context;
+
+    @Before
+    public void connect() throws Exception {
+        engine = standIn.getEngine();
+        engine.script("infrastructure:Town").objects(5).artifacts(3).artifactInterval(150);
+        klab = standIn.getKlab();
+        context = standIn.createContext();
+    }
+
+    @Test
+    public void listenersFollowTheTicket() throws Exception {
+        List<Progress> events = new CopyOnWriteArrayList<>();
+        Task<Observation> task = context.submit(Observable.create("infrastructure:Town")).addListener(events::add);
+        assert events.size() == 1;
+        assert events.get(0).getStatus() == Status.OPEN;
+        assert task.get() != null;
+        Progress last = events.get(events.size() - 1);
+        assert last.getStatus() == Status.RESOLVED;
+        assert last.getRemainingNanos() == 0;
+        assert last.getElapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(LATENCY);
+        // artifacts listed one at a time while the ticket was open
+        assert events.stream().filter(p -> p.getStatus() == Status.OPEN && p.getData().containsKey("artifacts")).count() >= 2;
+        assert task.getProgress() == last;
+    }
+
+    @Test
+    public void similarRequestsSetTheExpectedTime() throws Exception {
+        Task<Observation> first = context.submit(Observable.create("geography:Elevation"));
+        assert first.getProgress().getExpectedNanos() == -1;
+        assert first.getProgress().getRemainingNanos() == -1;
+        first.get();
+
+        Task<Observation> second = context.submit(Observable.create("geography:Elevation"));
+        long expected = second.getProgress().getExpectedNanos();
+        assert expected >= TimeUnit.MILLISECONDS.toNanos(LATENCY);
+        assert expected == first.getProgress().getElapsedNanos();
+        assert second.getProgress().getRemainingNanos() == expected;
+        second.get();
+
+        // different observables or scenarios are not similar
+        assert context.submit(Observable.create("geography:Slope")).getProgress().getExpectedNanos() == -1;
+        assert context.submit(Observable.create("geography:Elevation"), "rcp85").getProgress().getExpectedNanos() == -1;
+    }
+
+    @Test
+    public void failuresAreReported() throws Exception {
+        engine.script("infrastructure:Road").fails();
+        List<Progress> events = new CopyOnWriteArrayList<>();
+        Task<Observation> task = context.submit(Observable.create("infrastructure:Road")).addListener(events::add);
+        task.get();
+        assert events.get(events.size() - 1).getStatus() == Status.ERROR;
+    }
+}
@@ -0,0 +1,135 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Limits;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.integratedmodelling.klab.exceptions.KlabRemoteException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Publishing the observations of submissions that make several artifacts.
+ */
+public class StandInPublisherTest {
+
+    static class Collector implements Flow.Subscriber<Observation> {
+
+        final long initialRequest;
+        Flow.Subscription subscription;
+        List<Observation> observations = new CopyOnWriteArrayList<>();
+        List<Long> arrivals = new CopyOnWriteArrayList<>();
+        volatile Throwable error;
+        CountDownLatch done = new CountDownLatch(1);
+
+        Collector(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(Observation item) {
+            observations.add(item);
+            arrivals.add(System.nanoTime());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private Context context;
+
+    @Before
+    public void connect() throws Exception {
+        engine = standIn.getEngine();
+        engine.script("infrastructure:Town").objects(5).artifacts(3);
+        klab = standIn.getKlab();
+        context = standIn.createContext();
+    }
+
+    @Test
+    public void submitCatalogsAllArtifacts() throws Exception {
+        Observation towns = context.submit(Observable.create("infrastructure:Town")).get();
+        assert towns != null;
+        long exports = engine.getRequestCount(Endpoint.EXPORT);
+        assert context.getObservation("town_1") != null;
+        assert context.getObservation("town_2") != null;
+        // already retrieved with the first
+        assert engine.getRequestCount(Endpoint.EXPORT) == exports;
+    }
+
+    @Test
+    public void observationsArePublishedAsTheyAreMade() throws Exception {
+        engine.script("infrastructure:Town").artifactInterval(300);
+        Collector collector = new Collector(Long.MAX_VALUE);
+        context.publish(Observable.create("infrastructure:Town")).subscribe(collector);
+        assert collector.done.await(10, TimeUnit.SECONDS);
+        assert collector.error == null;
+        assert collector.observations.size() == 3;
+        assert collector.arrivals.get(2) - collector.arrivals.get(0) > TimeUnit.MILLISECONDS.toNanos(400);
+        assert context.getObservation("town_2") != null;
+    }
+
+    @Test
+    public void observationsAreRetrievedOnDemand() throws Exception {
+        Collector collector = new Collector(1);
+        context.publish(Observable.create("infrastructure:Town")).subscribe(collector);
+        Thread.sleep(500);
+        assert collector.observations.size() == 1;
+        assert collector.done.getCount() == 1;
+        collector.subscription.request(2);
+        assert collector.done.await(10, TimeUnit.SECONDS);
+        assert collector.observations.size() == 3;
+    }
+
+    @Test
+    public void failedTicketsAreSignalled() throws Exception {
+        engine.script("infrastructure:Town").fails();
+        Collector collector = new Collector(Long.MAX_VALUE);
+        context.publish(Observable.create("infrastructure:Town")).subscribe(collector);
+        assert collector.done.await(10, TimeUnit.SECONDS);
+        assert collector.error instanceof KlabRemoteException;
+        assert collector.observations.isEmpty();
+    }
+
+    @Test
+    public void cancellingFreesTheTicketSlot() throws Exception {
+        klab.setLimits(Limits.create().maxTickets(1));
+        engine.script("infrastructure:Town").artifactInterval(200);
+        Collector collector = new Collector(1);
+        context.publish(Observable.create("infrastructure:Town")).subscribe(collector);
+        while (collector.observations.isEmpty()) {
+            Thread.sleep(20);
+        }
+        collector.subscription.cancel();
+        assert context.submit(Observable.create("geography:Elevation")).get() != null;
+        assert collector.observations.size() == 1;
+    }
+}
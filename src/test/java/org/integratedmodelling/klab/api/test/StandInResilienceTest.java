@@ -0,0 +1,110 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.RetryPolicy;
+import org.integratedmodelling.klab.api.impl.EngineUnavailableException;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.integratedmodelling.klab.common.Geometry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Retries, circuit breaking and polling through transient failures injected in the stand-in
+ * engine.
+ */
+public class StandInResilienceTest {
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+
+    @Before
+    public void connect() {
+        engine = standIn.getEngine();
+        klab = standIn.getKlab()
+                .setRetryPolicy(RetryPolicy.create().backoff(5, 20, TimeUnit.MILLISECONDS, 2).circuitBreaker(8, 100,
+                        TimeUnit.MILLISECONDS));
+    }
+
+    @After
+    public void disconnect() throws Exception {
+        engine.heal();
+    }
+
+    private Context context() throws Exception {
+        return klab.submit(Observable.create("earth:Region"), Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build())
+                .get();
+    }
+
+    @Test
+    public void pollingSurvivesTransientErrors() throws Exception {
+        engine.failNext(Endpoint.TICKET_INFO, 20, 503);
+        Context context = context();
+        assert context != null;
+        assert engine.getRequestCount(Endpoint.TICKET_INFO) > 20;
+    }
+
+    @Test
+    public void rejectedSubmissionsAreRepeated() throws Exception {
+        engine.failNext(Endpoint.CREATE_CONTEXT, 2, 503);
+        assert context() != null;
+        assert engine.getRequestCount(Endpoint.CREATE_CONTEXT) == 3;
+    }
+
+    @Test
+    public void ambiguousSubmissionFailuresAreNotRepeated() throws Exception {
+        engine.failNext(Endpoint.CREATE_CONTEXT, 1, 502);
+        try {
+            context();
+            assert false;
+        } catch (EngineUnavailableException e) {
+            // expected
+        }
+        assert engine.getRequestCount(Endpoint.CREATE_CONTEXT) == 1;
+    }
+
+    @Test
+    public void exportsAreRepeated() throws Exception {
+        Observation elevation = context().submit(Observable.create("geography:Elevation")).get();
+        engine.failNext(Endpoint.EXPORT, 2, 504);
+        LoadTest.CountingStream output = new LoadTest.CountingStream();
+        assert elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, output);
+        assert output.count == 65536;
+    }
+
+    @Test
+    public void exportsCutAfterTheHeaderAreRepeated() throws Exception {
+        Observation elevation = context().submit(Observable.create("geography:Elevation")).get();
+        engine.truncateNext(1);
+        long calls = engine.getRequestCount(Endpoint.EXPORT);
+        LoadTest.CountingStream output = new LoadTest.CountingStream();
+        assert elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, output);
+        assert output.count == 65536;
+        assert engine.getRequestCount(Endpoint.EXPORT) == calls + 2;
+    }
+
+    @Test
+    public void circuitOpensWhileEngineIsDown() throws Exception {
+        Observation elevation = context().submit(Observable.create("geography:Elevation")).get();
+        klab.setRetryPolicy(RetryPolicy.create().attempts(1).circuitBreaker(2, 1, TimeUnit.HOURS));
+        engine.failNext(Endpoint.EXPORT, 100, 503);
+        LoadTest.CountingStream output = new LoadTest.CountingStream();
+        assert !elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, output);
+        assert !elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, output);
+        long calls = engine.getRequestCount(Endpoint.EXPORT);
+        assert !elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, output);
+        assert engine.getRequestCount(Endpoint.EXPORT) == calls;
+        klab.setRetryPolicy(RetryPolicy.NONE);
+    }
+}
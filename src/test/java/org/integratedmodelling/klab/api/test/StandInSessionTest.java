@@ -0,0 +1,137 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.SessionStore;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.integratedmodelling.klab.common.Geometry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Persisting, resuming, keeping alive and renewing sessions with a {@link SessionStore}.
+ */
+public class StandInSessionTest {
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50);
+
+    private StandInEngine engine;
+    private Path directory;
+    private SessionStore store;
+
+    @Before
+    public void start() throws Exception {
+        engine = standIn.getEngine().credentials("username", "password");
+        directory = Files.createTempDirectory("klab-sessions");
+        store = SessionStore.create(directory.resolve("sessions.properties")).keepAlive(0, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void stop() throws Exception {
+        Files.deleteIfExists(store.getFile());
+        Files.deleteIfExists(directory);
+    }
+
+    private Klab connect() {
+        return Klab.create(engine.getUrl(), "username", "password", store);
+    }
+
+    private Context context(Klab klab) throws Exception {
+        return klab.submit(Observable.create("earth:Region"),
+                Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build()).get();
+    }
+
+    @Test
+    public void storedSessionIsResumed() throws Exception {
+        try (Klab klab = connect()) {
+            assert klab.isOnline();
+        }
+        assert engine.getRequestCount(Endpoint.AUTHENTICATE) == 1;
+        assert engine.getRequestCount(Endpoint.DEAUTHENTICATE) == 0;
+        try (Klab klab = connect()) {
+            assert klab.isOnline();
+            assert context(klab) != null;
+        }
+        assert engine.getRequestCount(Endpoint.AUTHENTICATE) == 1;
+        assert store.get(engine.getUrl(), "username") != null;
+    }
+
+    @Test
+    public void expiredSessionIsRenewedTransparently() throws Exception {
+        try (Klab klab = connect()) {
+            engine.expireSessions();
+            assert context(klab) != null;
+        }
+        assert engine.getRequestCount(Endpoint.AUTHENTICATE) == 2;
+        // the renewed session is the one stored
+        try (Klab klab = connect()) {
+            assert context(klab) != null;
+        }
+        assert engine.getRequestCount(Endpoint.AUTHENTICATE) == 2;
+    }
+
+    @Test
+    public void expiredStoredSessionIsReplacedAtStartup() throws Exception {
+        try (Klab klab = connect()) {
+            assert klab.isOnline();
+        }
+        engine.expireSessions();
+        try (Klab klab = connect()) {
+            assert context(klab) != null;
+        }
+        assert engine.getRequestCount(Endpoint.AUTHENTICATE) == 2;
+    }
+
+    @Test
+    public void sessionIsKeptAlive() throws Exception {
+        store.keepAlive(20, TimeUnit.MILLISECONDS);
+        try (Klab klab = connect()) {
+            long pings = engine.getRequestCount(Endpoint.PING);
+            Thread.sleep(200);
+            assert engine.getRequestCount(Endpoint.PING) > pings + 2;
+            engine.expireSessions();
+            Thread.sleep(200);
+            // renewed by the keep-alive
+            assert engine.getRequestCount(Endpoint.AUTHENTICATE) == 2;
+        }
+    }
+
+    @Test
+    public void unavailableEngineDoesNotRenewTheSession() throws Exception {
+        store.keepAlive(20, TimeUnit.MILLISECONDS);
+        try (Klab klab = connect()) {
+            engine.failNext(Endpoint.PING, 100, 503);
+            Thread.sleep(200);
+            assert engine.getRequestCount(Endpoint.AUTHENTICATE) == 1;
+        }
+    }
+
+    @Test
+    public void logoutEndsAndForgetsTheSession() throws Exception {
+        Klab klab = connect();
+        klab.logout();
+        assert engine.getRequestCount(Endpoint.DEAUTHENTICATE) == 1;
+        assert store.get(engine.getUrl(), "username") == null;
+    }
+
+    @Test
+    public void storeIsPrivate() throws Exception {
+        try (Klab klab = connect()) {
+            assert Files.exists(store.getFile());
+        }
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assert "rw-------".equals(PosixFilePermissions.toString(Files.getPosixFilePermissions(store.getFile())));
+        }
+        assert !new String(Files.readAllBytes(store.getFile())).contains("password");
+    }
+}
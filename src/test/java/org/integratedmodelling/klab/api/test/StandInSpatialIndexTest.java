@@ -0,0 +1,172 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.SpatialIndex;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Spatial indexes of stand-in feature observations, and of random features checked against a
+ * linear scan.
+ */
+public class StandInSpatialIndexTest {
+
+    private static final double[] WEST = {0, 0, 10, 0, 10, 30, 0, 30};
+    private static final double[] SOUTH = {10, 0, 20, 0, 20, 10, 10, 10};
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private Context context;
+
+    @Before
+    public void connect() throws Exception {
+        engine = standIn.getEngine();
+        engine.script("administration:Municipality").polygons(WEST, SOUTH);
+        engine.script("infrastructure:Town").objects(3);
+        klab = standIn.getKlab();
+        context = standIn.createContext();
+    }
+
+    @Test
+    public void observationsKeepTheirIndex() throws Exception {
+        Observation municipalities = context.submit(Observable.create("administration:Municipality")).get();
+        long exports = engine.getRequestCount(Endpoint.EXPORT);
+        SpatialIndex index = municipalities.getSpatialIndex();
+        assert municipalities.getSpatialIndex() == index;
+        assert engine.getRequestCount(Endpoint.EXPORT) == exports + 1;
+        assert index.size() == 2;
+
+        SpatialIndex.Cursor cursor = index.cursor();
+        assert cursor.containing(5, 25).next() && cursor.getFeature() == 0 && !cursor.next();
+        assert cursor.containing(15, 5).next() && cursor.getFeature() == 1 && !cursor.next();
+        assert !cursor.containing(15, 15).next();
+        // the bounding box of the west polygon reaches the box, so does its geometry
+        assert cursor.intersecting(9, 11, 12, 12).next() && cursor.getFeature() == 0 && !cursor.next();
+        assert cursor.nearest(25, 5, 2, 100).next() && cursor.getFeature() == 1 && cursor.getDistance() == 5;
+        assert cursor.next() && cursor.getFeature() == 0 && cursor.getDistance() == 15 && !cursor.next();
+        assert !cursor.nearest(25, 5, 2, 4).next();
+    }
+
+    @Test
+    public void pointFeatures() throws Exception {
+        Observation towns = context.submit(Observable.create("infrastructure:Town")).get();
+        SpatialIndex index = towns.getSpatialIndex();
+        assert index.size() == 3;
+        assert index.nearest(33.91, -7.21) == 1;
+        assert index.getId(1).endsWith(".1");
+        Set<Integer> found = new HashSet<>();
+        for(SpatialIndex.Cursor cursor = index.cursor().within(33.75, -7.25, 33.95, -7.05); cursor.next();) {
+            found.add(cursor.getFeature());
+        }
+        assert found.equals(Set.of(0, 1));
+    }
+
+    @Test
+    public void geojsonFilesWithManyVertices() throws Exception {
+        // forty closed pentagons in a row, 240 positions in all
+        StringBuilder geojson = new StringBuilder("{\"type\": \"FeatureCollection\", \"features\": [");
+        for(int i = 0; i < 40; i++) {
+            geojson.append(i == 0 ? "" : ", ").append("{\"type\": \"Feature\", \"id\": \"p").append(i)
+                    .append("\", \"geometry\": {\"type\": \"Polygon\", \"coordinates\": [[");
+            for(int p = 0; p <= 5; p++) {
+                double angle = (p % 5) * 2 * Math.PI / 5;
+                geojson.append(p == 0 ? "" : ", ").append('[').append(i * 10 + 5 + 4 * Math.cos(angle))
+                        .append(", ").append(5 + 4 * Math.sin(angle)).append(']');
+            }
+            geojson.append("]]}}");
+        }
+        geojson.append("]}");
+        File file = File.createTempFile("klab_index", ".json");
+        try {
+            Files.write(file.toPath(), geojson.toString().getBytes(StandardCharsets.UTF_8));
+            SpatialIndex index = SpatialIndex.of(file);
+            assert index.size() == 40;
+            SpatialIndex.Cursor cursor = index.cursor();
+            for(int i = 0; i < 40; i++) {
+                assert cursor.containing(i * 10 + 5, 5).next() && index.getId(cursor.getFeature()).equals("p" + i);
+                assert !cursor.next();
+            }
+            assert !cursor.containing(10, 5).next();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void queriesMatchALinearScan() throws Exception {
+        int size = 5000;
+        Random random = new Random(42);
+        double[][] rings = new double[size][];
+        SpatialIndex.Builder builder = SpatialIndex.builder();
+        for(int i = 0; i < size; i++) {
+            double x = random.nextDouble() * 1000;
+            double y = random.nextDouble() * 1000;
+            double radius = 1 + random.nextDouble() * 10;
+            rings[i] = new double[12];
+            for(int p = 0; p < 6; p++) {
+                double r = radius * (0.5 + random.nextDouble());
+                rings[i][p * 2] = x + r * Math.cos(p * Math.PI / 3);
+                rings[i][p * 2 + 1] = y + r * Math.sin(p * Math.PI / 3);
+            }
+            builder.polygon("zone" + i, rings[i]);
+        }
+        SpatialIndex index = builder.build();
+        SpatialIndex.Cursor cursor = index.cursor();
+
+        for(int query = 0; query < 100; query++) {
+            double x = random.nextDouble() * 1000;
+            double y = random.nextDouble() * 1000;
+            Set<Integer> found = new HashSet<>();
+            for(cursor.containing(x, y); cursor.next();) {
+                found.add(cursor.getFeature());
+            }
+            Set<Integer> expected = new HashSet<>();
+            int nearest = -1;
+            double distance = Double.POSITIVE_INFINITY;
+            for(int i = 0; i < size; i++) {
+                if (inside(x, y, rings[i])) {
+                    expected.add(i);
+                }
+                for(int p = 0; p < 6; p++) {
+                    double d = Math.hypot(rings[i][p * 2] - x, rings[i][p * 2 + 1] - y);
+                    if (d < distance) {
+                        distance = d;
+                        nearest = i;
+                    }
+                }
+            }
+            assert found.equals(expected) : query;
+            // the nearest vertex bounds the distance to the nearest polygon, to rounding
+            distance *= 1 + 1e-12;
+            assert cursor.nearest(x, y, 1, Double.POSITIVE_INFINITY).next() && cursor.getDistance() <= distance;
+            assert cursor.getFeature() == nearest || cursor.getDistance() < distance;
+        }
+    }
+
+    private static boolean inside(double x, double y, double[] ring) {
+        boolean ret = false;
+        int points = ring.length / 2;
+        for(int i = 0, j = points - 1; i < points; j = i++) {
+            double xi = ring[i * 2], yi = ring[i * 2 + 1], xj = ring[j * 2], yj = ring[j * 2 + 1];
+            if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+                ret = !ret;
+            }
+        }
+        return ret;
+    }
+}
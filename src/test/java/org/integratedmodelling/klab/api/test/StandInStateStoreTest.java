@@ -0,0 +1,136 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.nio.DoubleBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.StateStore;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Storing stand-in states, whose GeoTIFF cells are valued as their column number with no data in
+ * the top row, in chunks smaller than the raster.
+ */
+public class StandInStateStoreTest {
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private Context context;
+    private Path directory;
+
+    @Before
+    public void connect() throws Exception {
+        engine = standIn.getEngine();
+        engine.script("geography:Elevation").raster(40, 30);
+        engine.script("geography:Slope").raster(40, 30).scenario("steep", 2);
+        klab = standIn.getKlab();
+        context = standIn.createContext();
+        directory = Files.createTempDirectory("klab_states");
+    }
+
+    @After
+    public void disconnect() throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void statesAreIngestedOnce() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        long exports = engine.getRequestCount(Endpoint.EXPORT);
+        StateStore.StoredState stored = StateStore.create(directory).chunkSize(16).get(elevation);
+        assert engine.getRequestCount(Endpoint.EXPORT) == exports + 1;
+        assert stored.getWidth() == 40 && stored.getHeight() == 30;
+        // a new store on the same directory finds it
+        StateStore store = StateStore.create(directory);
+        assert store.contains(elevation);
+        stored = store.get(elevation);
+        assert engine.getRequestCount(Endpoint.EXPORT) == exports + 1;
+        assert stored.getChunkSize() == 16;
+        assert Double.isNaN(stored.get(5, 0));
+        assert stored.get(5, 1) == 5;
+        assert stored.get(39, 29) == 39;
+        assert Double.isNaN(stored.get(40, 29));
+    }
+
+    @Test
+    public void windowsSpanChunksAndEdges() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        StateStore.StoredState stored = StateStore.create(directory).chunkSize(16).get(elevation);
+        double[] window = stored.read(13, 14, 6, 4, null);
+        for(int row = 0; row < 4; row++) {
+            for(int column = 0; column < 6; column++) {
+                assert window[row * 6 + column] == 13 + column;
+            }
+        }
+        window = stored.read(36, 27, 8, 5, window);
+        assert window[0] == 36 && window[3] == 39 && Double.isNaN(window[4]);
+        assert window[2 * 8 + 3] == 39 && Double.isNaN(window[3 * 8]);
+        // cell centers from (10.5, 0.5) to (11.5, 1.5) are in the bottom two rows
+        window = stored.read(10, 0, 12, 2);
+        assert window.length == 4 && window[0] == 10 && window[1] == 11 && window[3] == 11;
+        DoubleBuffer chunk = stored.getChunk(2, 1);
+        assert chunk.isReadOnly() && chunk.capacity() == 256;
+        assert chunk.get(0) == 32 && chunk.get(16 * 5 + 7) == 39;
+    }
+
+    @Test
+    public void leastRecentlyUsedStatesAreEvicted() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        Observation slope = context.submit(Observable.create("geography:Slope")).get();
+        Observation steep = context.submit(Observable.create("geography:Slope"), "steep").get();
+        // 6 chunks of 16 by 16 doubles each
+        StateStore store = StateStore.create(directory).chunkSize(16).maxBytes(2 * (6 * 2048 + 64));
+        store.get(elevation);
+        store.get(slope);
+        store.get(elevation);
+        assert store.get(steep).get(3, 3) == 6;
+        assert store.contains(elevation) && store.contains(steep);
+        assert !store.contains(slope);
+        assert store.getSize() == 2 * (6 * 2048 + 64);
+        assert store.remove(elevation);
+        assert !store.contains(elevation);
+        assert store.getSize() == 6 * 2048 + 64;
+    }
+
+    @Test
+    public void storesSharingADirectoryKeepOneIndex() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        Observation slope = context.submit(Observable.create("geography:Slope")).get();
+        Observation steep = context.submit(Observable.create("geography:Slope"), "steep").get();
+        long size = 6 * 2048 + 64;
+        StateStore first = StateStore.create(directory).chunkSize(16).maxBytes(2 * size);
+        StateStore second = StateStore.create(directory).chunkSize(16).maxBytes(2 * size);
+        first.get(elevation);
+        second.get(slope);
+        assert first.contains(slope) && second.contains(elevation);
+        // the state stored first by the other store is the least recently used
+        second.get(steep);
+        assert !first.contains(elevation) && first.contains(slope) && first.contains(steep);
+        assert first.getSize() == 2 * size;
+        try (Stream<Path> files = Files.list(directory)) {
+            assert files.filter(file -> file.toString().endsWith(".chunks")).count() == 2;
+        }
+        // using a stored state does not write the index
+        Path index = directory.resolve("index.properties");
+        Object version = Files.readAttributes(index, BasicFileAttributes.class).fileKey();
+        first.get(slope);
+        assert Objects.equals(Files.readAttributes(index, BasicFileAttributes.class).fileKey(), version);
+    }
+}
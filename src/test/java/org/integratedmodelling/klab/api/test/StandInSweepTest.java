@@ -0,0 +1,95 @@
+package org.integratedmodelling.klab.api.test;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Sweep;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.integratedmodelling.klab.common.Geometry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Scenario sweeps against the stand-in engine, whose elevation doubles under one scenario and
+ * halves under another.
+ */
+public class StandInSweepTest {
+
+    private static final long LATENCY = 400;
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(LATENCY).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+
+    @Before
+    public void connect() {
+        engine = standIn.getEngine();
+        engine.script("geography:Elevation").state(100, 2000, 900).scenario("rcp85", 2).scenario("mitigation", 0.5);
+        engine.script("infrastructure:Road").fails();
+        klab = standIn.getKlab();
+    }
+
+    private static Geometry region() {
+        return Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build();
+    }
+
+    @Test
+    public void combinationsRunConcurrently() throws Exception {
+        Observable elevation = Observable.create("geography:Elevation");
+        Observable towns = Observable.create("infrastructure:Town");
+        long start = System.currentTimeMillis();
+        Sweep.Table table = Sweep.create(klab, Observable.create("earth:Region"), region())
+                .observe(elevation, towns)
+                .baseline()
+                .scenarios("rcp85")
+                .scenarios("mitigation")
+                .scenarios("rcp85", "mitigation")
+                .parallelism(4)
+                .run();
+        // a context and an observation for each: sequential runs would take four times as long
+        assert System.currentTimeMillis() - start < 4 * LATENCY * 2 * 3 / 4;
+        assert engine.getRequestCount(Endpoint.CREATE_CONTEXT) == 4;
+        assert table.getRows().size() == 8;
+        assert ((Number) table.get(elevation).getAggregatedValue()).doubleValue() == 900;
+        assert ((Number) table.get(elevation, "rcp85").getAggregatedValue()).doubleValue() == 1800;
+        assert table.get(elevation, "rcp85").getRange().getUpperBound() == 4000;
+        assert ((Number) table.get(elevation, "rcp85", "mitigation").getAggregatedValue()).doubleValue() == 900;
+        assert table.get(towns, "mitigation").getObservation() != null;
+        assert table.get(towns, "mitigation").getRange() == null;
+        assert table.toString().split("\n").length == 9;
+    }
+
+    @Test
+    public void failedObservationsAreRecordedInTheirRows() throws Exception {
+        Context context = klab.submit(Observable.create("earth:Region"), region()).get();
+        Observable roads = Observable.create("infrastructure:Road");
+        Observable elevation = Observable.create("geography:Elevation");
+        Sweep.Table table = Sweep.create(context).observe(roads, elevation).baseline().scenarios("rcp85").run();
+        assert table.get(roads).getError() != null;
+        assert table.get(roads, "rcp85").getError() != null;
+        assert table.get(elevation, "rcp85").getError() == null;
+        assert ((Number) table.get(elevation, "rcp85").getAggregatedValue()).doubleValue() == 1800;
+    }
+
+    @Test
+    public void statesInjectedInASharedContextGoWithEveryObservation() throws Exception {
+        Context context = klab.submit(Observable.create("earth:Region"), region()).get();
+        context.with(Observable.create("geography:Slope"), 12);
+        Observable elevation = Observable.create("geography:Elevation");
+        Sweep.Table table = Sweep.create(context)
+                .observe(elevation)
+                .baseline()
+                .scenarios("rcp85")
+                .scenarios("mitigation")
+                .parallelism(3)
+                .run();
+        assert engine.getInjectionCount("geography:Slope") == 3;
+        assert table.get(elevation, "mitigation").getError() == null;
+        // and none is left for later submissions
+        context.submit(elevation).get();
+        assert engine.getInjectionCount("geography:Slope") == 3;
+    }
+}
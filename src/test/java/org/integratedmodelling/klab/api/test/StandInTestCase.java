@@ -0,0 +1,20 @@
+package org.integratedmodelling.klab.api.test;
+
+import org.integratedmodelling.klab.api.Klab;
+import org.junit.ClassRule;
+
+/**
+ * Runs the test suite against an embedded {@link StandInEngine}, so it needs neither a local
+ * modeler nor credentials and can run in continuous integration.
+ */
+public class StandInTestCase extends KlabAPITestsuite {
+
+    @ClassRule
+    public static StandInFixture standIn = StandInFixture.start().pollingInterval(50);
+
+    @Override
+    protected Klab createClient() {
+        return Klab.create(standIn.getEngine().getUrl(), "username", "password");
+    }
+
+}
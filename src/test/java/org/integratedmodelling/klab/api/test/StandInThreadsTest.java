@@ -0,0 +1,78 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Limits;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.impl.Threads;
+import org.integratedmodelling.klab.common.Geometry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Fanning out blocking waits on the executors from {@link Klab#newExecutor()}, with platform
+ * threads and, on a <code>jdk21</code> build, virtual threads.
+ */
+public class StandInThreadsTest {
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(100).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private boolean virtualThreads;
+
+    @Before
+    public void connect() {
+        engine = standIn.getEngine();
+        virtualThreads = Klab.VIRTUAL_THREADS;
+        klab = standIn.getKlab();
+    }
+
+    @After
+    public void disconnect() throws Exception {
+        Klab.VIRTUAL_THREADS = virtualThreads;
+    }
+
+    private void fanOut(int count) throws Exception {
+        Context context = klab.submit(Observable.create("earth:Region"),
+                Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build()).get();
+        ExecutorService executor = Klab.newExecutor();
+        List<Future<Observation>> tasks = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            tasks.add(executor.submit(() -> context.submit(Observable.create("infrastructure:Town")).get()));
+        }
+        for(Future<Observation> task : tasks) {
+            assert task.get() != null;
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void platformThreadsAreAvailable() throws Exception {
+        Klab.VIRTUAL_THREADS = false;
+        assert !Threads.isVirtual();
+        ExecutorService executor = Klab.newExecutor();
+        Thread thread = executor.submit(Thread::currentThread).get();
+        executor.shutdown();
+        assert thread.isDaemon();
+        assert thread.getName().startsWith("klab-task");
+        fanOut(50);
+    }
+
+    @Test
+    public void virtualThreadsWaitOnGovernedTickets() throws Exception {
+        // the governor queue is where most waiting virtual threads park
+        klab.setLimits(Limits.create().maxTickets(8));
+        fanOut(Threads.isVirtualAvailable() ? 500 : 50);
+        assert engine.getRequestCount(StandInEngine.Endpoint.OBSERVE) == (Threads.isVirtualAvailable() ? 500 : 50);
+    }
+}
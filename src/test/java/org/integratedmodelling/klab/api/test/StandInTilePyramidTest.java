@@ -0,0 +1,164 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.TilePyramid;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Map tiles of stand-in states, rendered in grays with the top row transparent, taken as spanning
+ * 40 degrees of longitude and 30 of latitude north east of (0, 0).
+ */
+public class StandInTilePyramidTest {
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private Context context;
+    private Path directory;
+
+    @Before
+    public void connect() throws Exception {
+        engine = standIn.getEngine();
+        engine.script("geography:Elevation").raster(40, 30);
+        klab = standIn.getKlab();
+        context = standIn.createContext();
+        directory = Files.createTempDirectory("klab_tiles");
+    }
+
+    @After
+    public void disconnect() throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void tilesAreCutFromOneRenderPerZoom() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        long exports = engine.getRequestCount(Endpoint.EXPORT);
+        try (TilePyramid tiles = TilePyramid.of(elevation, 0, 0, 40, 30).directory(directory).prefetch(false)) {
+
+            BufferedImage world = image(tiles.getTile(0, 0, 0));
+            assert world.getWidth() == TilePyramid.TILE_SIZE;
+            // lon 20, lat 15 is in the state; lon 10, lat -10 is not
+            assert alpha(world, 142, 117) == 255;
+            assert alpha(world, 135, 135) == 0;
+
+            // concurrent requests for the same tile wait for the same render
+            List<CompletableFuture<byte[]>> requests = new ArrayList<>();
+            for(int i = 0; i < 8; i++) {
+                requests.add(CompletableFuture.supplyAsync(() -> tiles.getTile(4, 8, 7)));
+            }
+            byte[] tile = requests.get(0).get();
+            for(CompletableFuture<byte[]> request : requests) {
+                assert Arrays.equals(request.get(), tile);
+            }
+            // and other tiles of the same zoom use it
+            tiles.getTile(4, 9, 6);
+            assert engine.getRequestCount(Endpoint.EXPORT) == exports + 2;
+
+            // tiles outside the state need no render
+            assert alpha(image(tiles.getTile(4, 0, 0)), 128, 128) == 0;
+            assert !tiles.contains(4, 0, 0);
+            assert engine.getRequestCount(Endpoint.EXPORT) == exports + 2;
+        }
+
+        // another pyramid finds them on disk
+        try (TilePyramid tiles = TilePyramid.of(elevation, 0, 0, 40, 30).directory(directory).prefetch(false)) {
+            assert tiles.contains(4, 8, 7) && tiles.contains(4, 9, 6);
+            assert alpha(image(tiles.getTile(4, 8, 7)), 0, 255) == 255;
+            assert engine.getRequestCount(Endpoint.EXPORT) == exports + 2;
+        }
+    }
+
+    @Test
+    public void neighboursArePrefetched() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        try (TilePyramid tiles = TilePyramid.of(elevation, 0, 0, 40, 30).directory(directory)) {
+            tiles.getTile(5, 17, 14);
+            long start = System.currentTimeMillis();
+            while (!(tiles.contains(5, 16, 13) && tiles.contains(5, 18, 15)) && System.currentTimeMillis() - start < 5000) {
+                Thread.sleep(20);
+            }
+            assert tiles.contains(5, 16, 13) && tiles.contains(5, 18, 15);
+            assert !tiles.contains(5, 19, 14);
+        }
+    }
+
+    @Test
+    public void pyramidsSharingADirectoryKeepToOneBound() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        long bound = 20000;
+        try (TilePyramid first = TilePyramid.of(elevation, 0, 0, 40, 30).directory(directory).diskBytes(bound).prefetch(false);
+                TilePyramid second = TilePyramid.of(elevation, 0, 0, 40, 30).directory(directory).diskBytes(bound)
+                        .prefetch(false)) {
+            // each cuts more than the bound, the second starting before the first
+            second.getTile(5, 17, 14);
+            for(int x = 17; x < 20; x++) {
+                first.getTile(5, x, 12);
+                first.getTile(5, x, 13);
+            }
+            for(int x = 17; x < 20; x++) {
+                second.getTile(5, x, 14);
+                second.getTile(5, x, 15);
+            }
+        }
+        long stored;
+        try (Stream<Path> files = Files.walk(directory)) {
+            stored = files.filter(file -> file.toString().endsWith(".png")).mapToLong(file -> file.toFile().length()).sum();
+        }
+        assert stored > 0 && stored <= bound;
+    }
+
+    @Test
+    public void closingCancelsTilesInProgress() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        engine.delay(Endpoint.EXPORT, 1000);
+        try (TilePyramid tiles = TilePyramid.of(elevation, 0, 0, 40, 30).directory(directory).prefetch(false)) {
+            CompletableFuture<byte[]> tile = tiles.getTileAsync(0, 0, 0);
+            Thread.sleep(100);
+            tiles.close();
+            try {
+                tile.get(200, TimeUnit.MILLISECONDS);
+                assert false;
+            } catch (CancellationException e) {
+                // released at once
+            }
+            // and made again when asked for after closing
+            engine.heal();
+            assert alpha(image(tiles.getTile(0, 0, 0)), 142, 117) == 255;
+        }
+    }
+
+    private static BufferedImage image(byte[] png) throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(png));
+    }
+
+    private static int alpha(BufferedImage image, int x, int y) {
+        return image.getRGB(x, y) >>> 24;
+    }
+}
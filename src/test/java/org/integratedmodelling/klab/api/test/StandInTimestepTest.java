@@ -0,0 +1,174 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.RetryPolicy;
+import org.integratedmodelling.klab.api.Timestep;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.integratedmodelling.klab.exceptions.KlabRemoteException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Streaming the timesteps of dynamic observations as the stand-in engine computes them.
+ */
+public class StandInTimestepTest {
+
+    private static final long TIMESTEP = 150;
+
+    static class Collector implements Flow.Subscriber<Timestep> {
+
+        final long initialRequest;
+        Flow.Subscription subscription;
+        List<Timestep> timesteps = new CopyOnWriteArrayList<>();
+        List<Long> arrivals = new CopyOnWriteArrayList<>();
+        volatile Throwable error;
+        CountDownLatch done = new CountDownLatch(1);
+
+        Collector(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(Timestep item) {
+            timesteps.add(item);
+            arrivals.add(System.nanoTime());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private Context context;
+
+    @Before
+    public void connect() throws Exception {
+        engine = standIn.getEngine();
+        engine.script("hydrology:Runoff").state(0, 10, 5).timesteps(6, TIMESTEP).exportSize("image/tiff", 10000);
+        klab = standIn.getKlab();
+        context = standIn.createContext();
+    }
+
+    @Test
+    public void timestepsArePublishedAsTheyAreComputed() throws Exception {
+        Collector collector = new Collector(Long.MAX_VALUE);
+        context.publishTimesteps(Observable.create("hydrology:Runoff"), ExportFormat.GEOTIFF_RASTER, 2).subscribe(collector);
+        assert collector.done.await(10, TimeUnit.SECONDS);
+        assert collector.error == null;
+        assert collector.timesteps.size() == 6;
+        for(int i = 0; i < 6; i++) {
+            Timestep timestep = collector.timesteps.get(i);
+            assert timestep.getIndex() == i;
+            assert ((Number) timestep.getAggregatedValue()).doubleValue() == 5 + i;
+            assert timestep.getDataRange().getUpperBound() == 10 + i;
+            assert timestep.getFormat() == ExportFormat.GEOTIFF_RASTER;
+            assert timestep.getData().length == 10000;
+        }
+        // the first was delivered while the others were still being computed
+        assert collector.arrivals.get(5) - collector.arrivals.get(0) > TimeUnit.MILLISECONDS.toNanos(TIMESTEP * 3);
+    }
+
+    @Test
+    public void retrievalIsBoundedByTheWindow() throws Exception {
+        long exports = engine.getRequestCount(Endpoint.EXPORT);
+        Collector collector = new Collector(0);
+        context.publishTimesteps(Observable.create("hydrology:Runoff"), ExportFormat.GEOTIFF_RASTER, 2).subscribe(collector);
+        // let the whole run complete without asking for anything
+        Thread.sleep(TIMESTEP * 6 + 300);
+        assert collector.timesteps.isEmpty();
+        // statistics and data of two timesteps at most
+        assert engine.getRequestCount(Endpoint.EXPORT) - exports == 4;
+        collector.subscription.request(1);
+        Thread.sleep(200);
+        assert collector.timesteps.size() == 1;
+        assert engine.getRequestCount(Endpoint.EXPORT) - exports == 6;
+        collector.subscription.request(5);
+        assert collector.done.await(10, TimeUnit.SECONDS);
+        assert collector.timesteps.size() == 6;
+        assert collector.timesteps.get(5).getIndex() == 5;
+    }
+
+    @Test
+    public void statisticsCanBePublishedWithoutData() throws Exception {
+        long exports = engine.getRequestCount(Endpoint.EXPORT);
+        Collector collector = new Collector(Long.MAX_VALUE);
+        context.publishTimesteps(Observable.create("hydrology:Runoff"), null, 0).subscribe(collector);
+        assert collector.done.await(10, TimeUnit.SECONDS);
+        assert collector.timesteps.size() == 6;
+        assert collector.timesteps.get(3).getData() == null;
+        assert collector.timesteps.get(3).getInputStream() == null;
+        assert engine.getRequestCount(Endpoint.EXPORT) - exports == 6;
+    }
+
+    @Test
+    public void staticObservationsArePublishedWhole() throws Exception {
+        Collector collector = new Collector(Long.MAX_VALUE);
+        context.publishTimesteps(Observable.create("geography:Elevation"), ExportFormat.GEOTIFF_RASTER, 1).subscribe(collector);
+        assert collector.done.await(10, TimeUnit.SECONDS);
+        assert collector.error == null;
+        assert collector.timesteps.size() == 1;
+        assert collector.timesteps.get(0).getIndex() == -1;
+        assert collector.timesteps.get(0).getData().length > 0;
+    }
+
+    @Test
+    public void unreachableResultsAreSignalled() throws Exception {
+        klab.setRetryPolicy(RetryPolicy.create().attempts(1).backoff(100, 100, TimeUnit.MILLISECONDS, 1)
+                .pollFailureTolerance(500, TimeUnit.MILLISECONDS));
+        StandInMetricsTest.CountingMetrics metrics = new StandInMetricsTest.CountingMetrics();
+        klab.setMetrics(metrics);
+        Collector collector = new Collector(0);
+        context.publishTimesteps(Observable.create("hydrology:Runoff"), null, 0).subscribe(collector);
+        // the run completes and the ticket is resolved before anything is retrieved
+        Thread.sleep(TIMESTEP * 6 + 300);
+        engine.failNext(Endpoint.EXPORT, 1000, 503);
+        long exports = engine.getRequestCount(Endpoint.EXPORT);
+        collector.subscription.request(6);
+        assert collector.done.await(5, TimeUnit.SECONDS);
+        assert collector.error instanceof KlabRemoteException && collector.timesteps.isEmpty();
+        // retried with backoff for as long as tolerated
+        assert engine.getRequestCount(Endpoint.EXPORT) - exports < 50;
+        // reported once, when it was resolved
+        assert metrics.resolved.get() == 1 && metrics.outstanding.get() == 0;
+        engine.heal();
+    }
+
+    @Test
+    public void failedRunsAreSignalled() throws Exception {
+        engine.script("hydrology:Runoff").fails();
+        Collector collector = new Collector(Long.MAX_VALUE);
+        context.publishTimesteps(Observable.create("hydrology:Runoff"), null, 2).subscribe(collector);
+        assert collector.done.await(10, TimeUnit.SECONDS);
+        assert collector.error instanceof KlabRemoteException;
+    }
+}
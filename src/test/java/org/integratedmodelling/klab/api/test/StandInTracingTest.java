@@ -0,0 +1,109 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.TraceContext;
+import org.integratedmodelling.klab.api.TraceListener;
+import org.integratedmodelling.klab.api.runtime.ITicket.Status;
+import org.integratedmodelling.klab.common.Geometry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checks the request lifecycle events and the propagation of trace context headers against the
+ * stand-in engine.
+ */
+public class StandInTracingTest {
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(60);
+
+    private StandInEngine engine;
+
+    @Before
+    public void startEngine() {
+        engine = standIn.getEngine();
+    }
+
+    @Test
+    public void traceParentFormat() {
+        TraceContext trace = TraceContext.create();
+        TraceContext parsed = TraceContext.parse(trace.toTraceParent());
+        assert parsed != null && parsed.getTraceId().equals(trace.getTraceId()) && parsed.getSpanId().equals(trace.getSpanId());
+        assert parsed.isSampled();
+        assert trace.child().getTraceId().equals(trace.getTraceId());
+        assert trace.child().getParentSpanId().equals(trace.getSpanId());
+        assert TraceContext.parse("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-00") != null;
+        assert TraceContext.parse("01-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01") == null;
+        assert TraceContext.parse("00-0af7651916cd43dd8448eb211c80319c-b7ad6b71692033-01") == null;
+    }
+
+    @Test
+    public void lifecycleIsTracedUnderCallerSpan() throws Exception {
+
+        TraceContext caller = TraceContext.parse("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+        Queue<String> events = new ConcurrentLinkedQueue<>();
+        TraceListener listener = new TraceListener(){
+
+            @Override
+            public TraceContext getCurrentContext() {
+                return caller;
+            }
+
+            @Override
+            public void requestBuilt(TraceContext trace, String endpoint, Object request) {
+                events.add("built " + trace.getTraceId());
+            }
+
+            @Override
+            public void ticketPolled(TraceContext trace, String ticketId, Status status) {
+                events.add("polled " + status);
+            }
+
+            @Override
+            public void ticketResolved(TraceContext trace, String ticketId, Status status, long nanos) {
+                events.add("resolved " + status);
+            }
+
+            @Override
+            public void artifactsFetched(TraceContext trace, String ticketId, List<String> artifactIds, long nanos) {
+                events.add("fetched " + artifactIds.size());
+            }
+        };
+
+        try (Klab klab = Klab.create(engine.getUrl(), "username", "password").setTraceListener(listener)) {
+            Context context = klab.submit(Observable.create("earth:Region"),
+                    Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build(),
+                    Observable.create("geography:Elevation")).get();
+            assert context != null;
+        }
+
+        assert events.contains("built " + caller.getTraceId());
+        assert events.contains("polled OPEN");
+        assert events.contains("resolved RESOLVED");
+        assert events.contains("fetched 2");
+
+        List<String> headers = engine.getTraceParents();
+        assert headers.size() >= 4;
+        for(String header : headers) {
+            TraceContext span = TraceContext.parse(header);
+            assert span != null && span.getTraceId().equals(caller.getTraceId());
+            assert !span.getSpanId().equals(caller.getSpanId());
+        }
+    }
+
+    @Test
+    public void noHeadersWhenDisabled() throws Exception {
+        try (Klab klab = Klab.create(engine.getUrl(), "username", "password")) {
+            klab.submit(Observable.create("earth:Region"), Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build())
+                    .get();
+        }
+        assert engine.getTraceParents().isEmpty();
+    }
+}
@@ -0,0 +1,126 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.integratedmodelling.klab.api.API.PUBLIC.Export;
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Klab.ExportFormat;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.StateStore;
+import org.integratedmodelling.klab.api.Window;
+import org.integratedmodelling.klab.api.impl.GeoTiffRaster;
+import org.integratedmodelling.klab.api.test.StandInEngine.Endpoint;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Windowed exports of stand-in states, whose GeoTIFF cells are valued as their column number with
+ * no data in the top row, with unit cells and the bottom left corner at the origin.
+ */
+public class StandInWindowTest {
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private Context context;
+    private Path directory;
+    private File file;
+
+    @Before
+    public void connect() throws Exception {
+        engine = standIn.getEngine();
+        engine.script("geography:Elevation").raster(40, 30);
+        directory = Files.createTempDirectory("klab_states");
+        file = File.createTempFile("klab_window", ".tiff");
+        klab = standIn.getKlab().setStateStore(StateStore.create(directory));
+        context = standIn.createContext();
+    }
+
+    @After
+    public void disconnect() throws Exception {
+        file.delete();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void windowsAreCutFromTheStoredState() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        long exports = engine.getRequestCount(Endpoint.EXPORT);
+
+        assert elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, file, Window.of(10, 5, 20, 15));
+        try (GeoTiffRaster raster = GeoTiffRaster.open(file); GeoTiffRaster.Reader reader = raster.newReader()) {
+            assert raster.getWidth() == 10 && raster.getHeight() == 10;
+            assert raster.getOriginX() == 10 && raster.getOriginY() == 15 && raster.getCellWidth() == 1;
+            double[] values = reader.read(0);
+            assert values[0] == 10 && values[9] == 19 && values[raster.getBlockWidth() * 9 + 9] == 19;
+        }
+
+        // panning does not download again
+        assert elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, file, Window.of(30.5, 20.5, 45, 40));
+        assert engine.getRequestCount(Endpoint.EXPORT) == exports + 1;
+        try (GeoTiffRaster raster = GeoTiffRaster.open(file); GeoTiffRaster.Reader reader = raster.newReader()) {
+            // clipped to the raster
+            assert raster.getWidth() == 10 && raster.getHeight() == 10 && raster.getOriginX() == 30;
+            double[] values = reader.read(0);
+            assert Double.isNaN(values[0]) && values[raster.getBlockWidth()] == 30;
+        }
+    }
+
+    @Test
+    public void decimatedCellsAverageTheCellsWithData() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        // aligned to the grid of 2 by 2 cells from the top left corner
+        assert elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, file, Window.of(1, 20.5, 8.5, 30).resolution(2.5));
+        try (GeoTiffRaster raster = GeoTiffRaster.open(file); GeoTiffRaster.Reader reader = raster.newReader()) {
+            assert raster.getWidth() == 5 && raster.getHeight() == 5;
+            assert raster.getOriginX() == 0 && raster.getOriginY() == 30 && raster.getCellWidth() == 2;
+            double[] values = reader.read(0);
+            for(int column = 0; column < 5; column++) {
+                // the top row has no data in the first row of cells
+                assert values[column] == column * 2 + 0.5;
+                assert values[raster.getBlockWidth() * 4 + column] == column * 2 + 0.5;
+            }
+        }
+        try {
+            elevation.export(Export.DATA, ExportFormat.GEOTIFF_RASTER, file, Window.of(100, 100, 200, 200).decimation(4));
+            assert false;
+        } catch (KlabIllegalArgumentException e) {
+            // outside the raster
+        }
+    }
+
+    @Test
+    public void windowsKeepTheStoredValues() throws Exception {
+        double[] values = new double[12 * 9];
+        for(int i = 0; i < values.length; i++) {
+            values[i] = i < 12 ? Double.NaN : 1000 + i * 0.1;
+        }
+        try (OutputStream output = new FileOutputStream(file)) {
+            GeoTiffRaster.write(output, 12, 9, 0, 9, 1, 1, values);
+        }
+        try (GeoTiffRaster raster = GeoTiffRaster.open(file); GeoTiffRaster.Reader reader = raster.newReader()) {
+            double[] read = reader.read(0);
+            for(int row = 0; row < 9; row++) {
+                for(int column = 0; column < 12; column++) {
+                    double value = values[row * 12 + column];
+                    assert Double.compare(read[row * raster.getBlockWidth() + column], value) == 0 : value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.ZonalStatistics;
+import org.integratedmodelling.klab.exceptions.KlabIllegalArgumentException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Zonal statistics of stand-in states, whose GeoTIFF cells are valued as their column number, and
+ * of GeoTIFF files checked against a cell-by-cell computation.
+ */
+public class StandInZonalStatisticsTest {
+
+    private static final double[] WEST = {0, 0, 10, 0, 10, 30, 0, 30};
+    private static final double[] SOUTH = {10, 0, 20, 0, 20, 10, 10, 10};
+    private static final double[] ALL = {0, 0, 40, 0, 40, 30, 0, 30};
+
+    @Rule
+    public StandInFixture standIn = StandInFixture.start(50).connected();
+
+    private StandInEngine engine;
+    private Klab klab;
+    private Context context;
+
+    @Before
+    public void connect() throws Exception {
+        engine = standIn.getEngine();
+        engine.script("geography:Elevation").raster(40, 30).state(0, 39, 19.5);
+        engine.script("administration:Municipality").polygons(WEST, SOUTH);
+        klab = standIn.getKlab();
+        context = standIn.createContext();
+    }
+
+    @Test
+    public void statisticsByFeatureZones() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        Observation municipalities = context.submit(Observable.create("administration:Municipality")).get();
+        List<ZonalStatistics.Zone> zones = new ArrayList<>(
+                ZonalStatistics.of(elevation).zones(municipalities).parallelism(2).compute().values());
+        assert zones.size() == 2;
+        // the top row has no data
+        assert zones.get(0).getCount() == 290;
+        assert zones.get(0).getSum() == 29 * 45;
+        assert zones.get(0).getMean() == 4.5;
+        assert zones.get(0).getMin() == 0 && zones.get(0).getMax() == 9;
+        assert zones.get(1).getCount() == 100;
+        assert zones.get(1).getMean() == 14.5;
+        assert zones.get(1).getMin() == 10 && zones.get(1).getMax() == 19;
+        // the same features twice would share their results
+        try {
+            ZonalStatistics.of(elevation).zones(municipalities).zones(municipalities).compute();
+            assert false;
+        } catch (KlabIllegalArgumentException e) {
+            // duplicate ids
+        }
+    }
+
+    @Test
+    public void histogramsUseTheDataRangeOfTheState() throws Exception {
+        Observation elevation = context.submit(Observable.create("geography:Elevation")).get();
+        ZonalStatistics.Zone all = ZonalStatistics.of(elevation).zone("all", ALL).zone("none", new double[]{50, 50, 60, 50, 60, 60})
+                .histogram(4).compute().get("all");
+        assert all.getCount() == 29 * 40;
+        assert all.getHistogramRange().getLowerBound() == 0 && all.getHistogramRange().getUpperBound() == 39;
+        for(long count : all.getHistogram()) {
+            assert count == 290;
+        }
+    }
+
+    @Test
+    public void parallelBlocksMatchCellByCell() throws Exception {
+        int width = 173;
+        int height = 121;
+        float[] values = new float[width * height];
+        Random random = new Random(42);
+        for(int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(20) == 0 ? -1 : (float) (random.nextDouble() * 100);
+        }
+        double[] outer = {3.3, 2.1, 150.7, 10.2, 160.2, 110.8, 20.5, 118.9};
+        double[] hole = {40.2, 40.7, 90.1, 40.7, 65.3, 80.4};
+        double[] triangle = {100.5, 0.2, 172.9, 60.5, 100.5, 120.7};
+
+        for(GeoTiffWriter writer : new GeoTiffWriter[]{new GeoTiffWriter(width, height, values).noData(-1),
+                new GeoTiffWriter(width, height, values).noData(-1).strips(5).bigEndian(),
+                new GeoTiffWriter(width, height, values).noData(-1).tiles(32, 16).deflate()}) {
+
+            File file = File.createTempFile("klab_zonal", ".tiff");
+            try {
+                Files.write(file.toPath(), writer.write());
+                for(int parallelism : new int[]{1, 4}) {
+                    Map<String, ZonalStatistics.Zone> zones = ZonalStatistics.of(file).zone("frame", outer, hole)
+                            .zone("triangle", triangle).histogram(10, 0, 100).parallelism(parallelism).compute();
+                    check(zones.get("frame"), values, width, height, outer, hole);
+                    check(zones.get("triangle"), values, width, height, triangle);
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    private static void check(ZonalStatistics.Zone zone, float[] values, int width, int height, double[]... rings) {
+        long count = 0;
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        long[] histogram = new long[10];
+        for(int row = 0; row < height; row++) {
+            for(int column = 0; column < width; column++) {
+                float value = values[row * width + column];
+                if (value == -1 || !inside(column + 0.5, height - row - 0.5, rings)) {
+                    continue;
+                }
+                count++;
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                histogram[Math.min(9, (int) (value / 10))]++;
+            }
+        }
+        assert count > 0 && zone.getCount() == count : zone;
+        assert Math.abs(zone.getSum() - sum) < 1e-6 : zone;
+        assert zone.getMin() == min && zone.getMax() == max : zone;
+        assert Arrays.equals(zone.getHistogram(), histogram) : zone;
+    }
+
+    private static boolean inside(double x, double y, double[]... rings) {
+        boolean ret = false;
+        for(double[] ring : rings) {
+            int points = ring.length / 2;
+            for(int i = 0, j = points - 1; i < points; j = i++) {
+                double xi = ring[i * 2], yi = ring[i * 2 + 1], xj = ring[j * 2], yj = ring[j * 2 + 1];
+                if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+                    ret = !ret;
+                }
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,109 @@
+package org.integratedmodelling.klab.api.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.integratedmodelling.klab.api.Context;
+import org.integratedmodelling.klab.api.Klab;
+import org.integratedmodelling.klab.api.Observable;
+import org.integratedmodelling.klab.api.Observation;
+import org.integratedmodelling.klab.api.impl.Threads;
+import org.integratedmodelling.klab.common.Geometry;
+
+/**
+ * Keeps a large number of observation tickets in flight at a {@link StandInEngine}, each awaited
+ * with a blocking <code>get()</code> in its own task from {@link Klab#newExecutor()}, and reports
+ * the live and peak platform threads and the heap used once all tickets are in flight. Run it on a
+ * <code>jdk21</code> build to compare virtual threads with platform threads.
+ * <p>
+ * Arguments are <code>--name value</code> pairs: tickets (default 10000), contexts (default 100),
+ * latency (stand-in ticket latency in ms, default 20000), polling (ms, default 2000) and threads
+ * (<code>virtual</code> or <code>platform</code>). Thread counts include the stand-in engine's own
+ * handler threads.
+ */
+public class VirtualThreadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        int tickets = 10000;
+        int contexts = 100;
+        long latency = 20000;
+        long polling = 2000;
+        for(int i = 0; i < args.length - 1; i += 2) {
+            String value = args[i + 1];
+            switch(args[i].replaceFirst("^--", "")) {
+            case "tickets":
+                tickets = Integer.parseInt(value);
+                break;
+            case "contexts":
+                contexts = Integer.parseInt(value);
+                break;
+            case "latency":
+                latency = Long.parseLong(value);
+                break;
+            case "polling":
+                polling = Long.parseLong(value);
+                break;
+            case "threads":
+                Klab.VIRTUAL_THREADS = "virtual".equals(value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown argument " + args[i]);
+            }
+        }
+
+        Klab.POLLING_INTERVAL_MS = polling;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        try (StandInEngine engine = StandInEngine.start().ticketLatency(100);
+                Klab klab = Klab.create(engine.getUrl(), "username", "password")) {
+
+            List<Context> targets = new ArrayList<>();
+            for(int i = 0; i < contexts; i++) {
+                targets.add(klab.submit(Observable.create("earth:Region"),
+                        Geometry.builder().grid(KlabAPITestsuite.ruaha, "1 km").years(2010).build()).get());
+            }
+            engine.ticketLatency(latency);
+            threads.resetPeakThreadCount();
+
+            System.out.println((Threads.isVirtual() ? "virtual" : "platform") + " threads, " + tickets + " tickets");
+            long start = System.nanoTime();
+            CountDownLatch submitted = new CountDownLatch(tickets);
+            AtomicInteger observed = new AtomicInteger();
+            ExecutorService executor = Klab.newExecutor();
+            List<Future< ? >> tasks = new ArrayList<>();
+            for(int i = 0; i < tickets; i++) {
+                Context context = targets.get(i % contexts);
+                tasks.add(executor.submit(() -> {
+                    Future<Observation> observation = context.submit(Observable.create("geography:Elevation"));
+                    submitted.countDown();
+                    if (observation.get() != null) {
+                        observed.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+
+            submitted.await();
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            System.out.println(String.format("all submitted in %d ms: %d live platform threads, %d MB heap used",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), threads.getThreadCount(),
+                    (runtime.totalMemory() - runtime.freeMemory()) >> 20));
+
+            for(Future< ? > task : tasks) {
+                task.get();
+            }
+            executor.shutdown();
+            System.out.println(String.format("%d observations in %d ms, peak %d platform threads", observed.get(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), threads.getPeakThreadCount()));
+        }
+    }
+}